@@ -0,0 +1,358 @@
+import home.learn.benchmarks.RowCodec;
+import home.learn.benchmarks.Workload;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于Chapter01/Chapter02的Workload实现，连接配置见RedisConfig
+ * 默认使用进程内的EmbeddedRedisServer，不需要网络与Redis服务器；-Dredis.embedded=false时连接配置的Redis。
+ * 内嵌服务用EmbeddedScripting执行Lua脚本的子集，articleVoteAtomic、articleVotes与PageCache的基准测试
+ * 也可以在内嵌服务上运行；脚本由解释器执行，耗时与真实的Redis不可比，只用于检查流程。
+ */
+public class ChapterWorkload implements Workload {
+    //与Chapter01的每页文章数相同
+    private static final int ARTICLES_PER_PAGE = 25;
+    //基准测试线程各自占用一个连接，连接池需要足够大
+    private static final int MIN_POOL_SIZE = 128;
+    //异步版本共享的连接数
+    private static final int ASYNC_CONNECTIONS = 4;
+    //同步版本模拟的请求线程数，每个线程占用一个连接
+    private static final int BLOCKING_THREADS = 64;
+    //异步版本执行Callback与PageCache的线程数
+    private static final int CALLBACK_THREADS = 8;
+
+    private final RedisConnectionProvider provider;
+    private final Chapter01 chapter01;
+    private final Chapter02 chapter02;
+    private final ThreadLocal<Jedis> connections = new ThreadLocal<Jedis>();
+    private final List<Jedis> borrowed = new ArrayList<Jedis>();
+    private final Chapter02.Callback callback = new Chapter02.Callback() {
+        public String call(String request) {
+            return "content for " + request;
+        }
+    };
+
+    private volatile int articles;
+    private volatile int sessions;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    private PipelineDispatcher dispatcher;
+    private AsyncChapter01 asyncChapter01;
+    private AsyncChapter02 asyncChapter02;
+    private ExecutorService blocking;
+    private ExecutorService callbacks;
+
+    public ChapterWorkload() {
+        RedisConfig config = RedisConfig.fromSystemProperties();
+        config.setEmbedded(Boolean.parseBoolean(System.getProperty("redis.embedded", "true")));
+        config.setPoolSize(Math.max(config.getPoolSize(), MIN_POOL_SIZE));
+        this.provider = ConnectionProviders.create(config);
+        this.chapter01 = new Chapter01(provider);
+        this.chapter02 = new Chapter02(provider);
+    }
+
+    private Jedis conn() {
+        Jedis conn = connections.get();
+        if (conn == null) {
+            conn = provider.getConnection();
+            connections.set(conn);
+            synchronized (borrowed) {
+                borrowed.add(conn);
+            }
+        }
+        return conn;
+    }
+
+    public void reset() {
+        conn().flushDB();
+        articles = 0;
+        sessions = 0;
+    }
+
+    public void prepareArticles(int articles) {
+        Jedis conn = conn();
+        for (int i = 0; i < articles; i++) {
+            chapter01.postArticle(conn, "user" + i, "title" + i, "http://www.test.com/" + i);
+        }
+        this.articles = articles;
+    }
+
+    public void prepareSessions(int sessions) {
+        Jedis conn = conn();
+        for (int i = 0; i < sessions; i++) {
+            chapter02.updateTokenPipelined(conn, "session" + i, "user" + i, "item" + (i % 1000));
+        }
+        this.sessions = sessions;
+    }
+
+    public void prepareItems(int items) {
+        Pipeline pipeline = conn().pipelined();
+        for (int i = 0; i < items; i++) {
+            pipeline.zadd("viewed:", i - items, "item" + i);
+        }
+        pipeline.sync();
+    }
+
+    public void setTokenCacheEnabled(boolean enabled) {
+        if (enabled) {
+            chapter02.enableTokenCache(Math.max(1000, sessions / 10), 60000);
+        } else {
+            chapter02.disableTokenCache();
+        }
+    }
+
+    public void setRequestClassifierEnabled(boolean enabled) {
+        if (enabled) {
+            chapter02.enableRequestClassifier(10000, 1000);
+        } else {
+            chapter02.disableRequestClassifier();
+        }
+    }
+
+    public void setPageCacheEnabled(boolean enabled) {
+        chapter02.setPageCache(enabled ? new PageCache(300, 60) : null);
+    }
+
+    public String postArticle(int user) {
+        return chapter01.postArticle(conn(), "user" + user, "title", "http://www.test.com/");
+    }
+
+    public void articleVote(int user, int article) {
+        chapter01.articleVote(conn(), "user" + user, "article:" + (article % articles + 1));
+    }
+
+    public boolean articleVoteAtomic(int user, int article) {
+        return chapter01.articleVoteAtomic(conn(), "user" + user, "article:" + (article % articles + 1));
+    }
+
+    public long articleVotes(int firstUser, int firstArticle, int count) {
+        List<Chapter01.Vote> votes = new ArrayList<Chapter01.Vote>(count);
+        for (int i = 0; i < count; i++) {
+            votes.add(new Chapter01.Vote("user" + (firstUser + i), "article:" + ((firstArticle + i) % articles + 1)));
+        }
+        return chapter01.articleVotes(conn(), votes);
+    }
+
+    public int getArticles(int page, int pageSize, boolean pipelined) {
+        if (pipelined) {
+            return chapter01.getArticles(conn(), page, pageSize, "score:").size();
+        }
+        int read = 0;
+        int first = (page - 1) * (pageSize / ARTICLES_PER_PAGE) + 1;
+        for (int p = first; p < first + pageSize / ARTICLES_PER_PAGE; p++) {
+            read += chapter01.getArticles(conn(), p, "score:").size();
+        }
+        return read;
+    }
+
+    public void updateToken(int session, int item, boolean pipelined) {
+        if (pipelined) {
+            chapter02.updateTokenPipelined(conn(), "session" + session, "user" + session, "item" + item);
+        } else {
+            chapter02.updateToken(conn(), "session" + session, "user" + session, "item" + item);
+        }
+    }
+
+    public String checkToken(int session) {
+        return chapter02.checkToken(conn(), "session" + session);
+    }
+
+    public void addToCart(int session, int item, int count) {
+        chapter02.addToCart(conn(), "session" + session, "item" + item, count);
+    }
+
+    public boolean canCache(int item) {
+        return chapter02.canCache(conn(), "http://www.test.com/view?item=item" + item);
+    }
+
+    public String cacheRequest(int item) {
+        return chapter02.cacheRequest(conn(), "http://www.test.com/view?item=item" + item, callback);
+    }
+
+    public int concurrentCalls(final String operation, int callers, boolean async) {
+        try {
+            if (async) {
+                startAsync();
+                CompletableFuture<?>[] calls = new CompletableFuture<?>[callers];
+                for (int i = 0; i < callers; i++) {
+                    calls[i] = callAsync(operation, sequence.getAndIncrement());
+                }
+                CompletableFuture.allOf(calls).join();
+            } else {
+                List<Callable<Object>> calls = new ArrayList<Callable<Object>>(callers);
+                for (int i = 0; i < callers; i++) {
+                    final int n = sequence.getAndIncrement();
+                    calls.add(new Callable<Object>() {
+                        public Object call() {
+                            return callBlocking(operation, n);
+                        }
+                    });
+                }
+                for (Future<Object> call : startBlocking().invokeAll(calls)) {
+                    call.get();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+        return callers;
+    }
+
+    private CompletableFuture<?> callAsync(String operation, int n) {
+        int session = n % Math.max(1, sessions);
+        if ("checkToken".equals(operation)) {
+            return asyncChapter02.checkToken("session" + session);
+        } else if ("updateToken".equals(operation)) {
+            return asyncChapter02.updateToken("session" + session, "user" + session, "item" + (n % 1000));
+        } else if ("addToCart".equals(operation)) {
+            return asyncChapter02.addToCart("session" + session, "item" + (n % 1000), 1);
+        } else if ("cacheRequest".equals(operation)) {
+            return asyncChapter02.cacheRequest("http://www.test.com/view?item=item" + (n % 1000), callback);
+        } else if ("postArticle".equals(operation)) {
+            return asyncChapter01.postArticle("user" + n, "title", "http://www.test.com/");
+        } else if ("articleVote".equals(operation)) {
+            return asyncChapter01.articleVote("user" + n, "article:" + (n % articles + 1));
+        } else if ("getArticles".equals(operation)) {
+            return asyncChapter01.getArticles(1, ARTICLES_PER_PAGE, "score:");
+        }
+        throw new IllegalArgumentException("Unknown operation: " + operation);
+    }
+
+    //与callAsync相同的操作，使用同步版本
+    private Object callBlocking(String operation, int n) {
+        int session = n % Math.max(1, sessions);
+        if ("checkToken".equals(operation)) {
+            return checkToken(session);
+        } else if ("updateToken".equals(operation)) {
+            updateToken(session, n % 1000, true);
+            return null;
+        } else if ("addToCart".equals(operation)) {
+            addToCart(session, n % 1000, 1);
+            return null;
+        } else if ("cacheRequest".equals(operation)) {
+            return cacheRequest(n % 1000);
+        } else if ("postArticle".equals(operation)) {
+            return postArticle(n);
+        } else if ("articleVote".equals(operation)) {
+            articleVote(n, n);
+            return null;
+        } else if ("getArticles".equals(operation)) {
+            return getArticles(1, ARTICLES_PER_PAGE, true);
+        }
+        throw new IllegalArgumentException("Unknown operation: " + operation);
+    }
+
+    private synchronized void startAsync() {
+        if (dispatcher == null) {
+            dispatcher = new PipelineDispatcher(provider, ASYNC_CONNECTIONS, 1000);
+            asyncChapter01 = new AsyncChapter01(chapter01, dispatcher);
+            callbacks = newPool(CALLBACK_THREADS, "async-callback-");
+            asyncChapter02 = new AsyncChapter02(chapter02, dispatcher, callbacks);
+        }
+    }
+
+    private synchronized ExecutorService startBlocking() {
+        if (blocking == null) {
+            blocking = newPool(BLOCKING_THREADS, "blocking-caller-");
+        }
+        return blocking;
+    }
+
+    private static ExecutorService newPool(int threads, final String prefix) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public long cleanSessions(int limit, int workers) {
+        SessionCleaner cleaner = new SessionCleaner(provider, limit, workers, false);
+        cleaner.start();
+        try {
+            Jedis conn = conn();
+            while (conn.zcard("recent:") > limit) {
+                Thread.sleep(1);
+            }
+            cleaner.shutdown(10000);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return cleaner.getCleaned();
+    }
+
+    public RowCodec rowCodec(String serializer, int rowChars) {
+        final RowSerializer rowSerializer;
+        if ("gson".equals(serializer)) {
+            rowSerializer = new GsonRowSerializer();
+        } else if ("binary".equals(serializer)) {
+            rowSerializer = new BinaryRowSerializer();
+        } else if ("gson+deflate".equals(serializer)) {
+            rowSerializer = new CompressingRowSerializer(new GsonRowSerializer(), 1024);
+        } else if ("binary+deflate".equals(serializer)) {
+            rowSerializer = new CompressingRowSerializer(new BinaryRowSerializer(), 1024);
+        } else {
+            throw new IllegalArgumentException("Unknown serializer: " + serializer);
+        }
+
+        //与Chapter02Benchmark.benchmarkRowSerializers相同的数据行
+        StringBuilder data = new StringBuilder(rowChars);
+        Random random = new Random(rowChars);
+        while (data.length() < rowChars) {
+            data.append("field").append(random.nextInt(1000)).append("=value").append(random.nextInt(100)).append(';');
+        }
+        final Chapter02.Inventory row = new Chapter02.Inventory(
+                "item" + rowChars, data.toString(), System.currentTimeMillis() / 1000);
+
+        return new RowCodec() {
+            public byte[] encode() {
+                return rowSerializer.encode(row);
+            }
+
+            public Object decode(byte[] bytes) {
+                return rowSerializer.decode(bytes);
+            }
+        };
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (dispatcher != null) {
+                dispatcher.close();
+            }
+            if (callbacks != null) {
+                callbacks.shutdown();
+            }
+            if (blocking != null) {
+                blocking.shutdown();
+            }
+        }
+        chapter02.disableTokenCache();
+        chapter02.disableRequestClassifier();
+        synchronized (borrowed) {
+            for (Jedis conn : borrowed) {
+                conn.close();
+            }
+            borrowed.clear();
+        }
+        provider.close();
+    }
+}
@@ -0,0 +1,58 @@
+package home.learn.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getArticles：逐条HGETALL与流水线读取，按页大小对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArticleReadBenchmark {
+    @Param({"1000", "100000"})
+    public int articles;
+
+    @Param({"25", "100", "500"})
+    public int pageSize;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    private Workload workload;
+    private int pages;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.open();
+        workload.reset();
+        workload.prepareArticles(articles);
+        pages = Math.max(1, articles / pageSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public int getArticles() {
+        return workload.getArticles(ThreadLocalRandom.current().nextInt(pages) + 1, pageSize, pipelined);
+    }
+}
@@ -0,0 +1,73 @@
+package home.learn.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * postArticle与三种投票方式：逐条命令、脚本、流水线批量脚本
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArticleWriteBenchmark {
+    private static final int VOTES_PER_BATCH = 100;
+
+    @Param({"1000", "100000"})
+    public int articles;
+
+    private Workload workload;
+    //每次投票使用新用户，投票不会因重复投票而提前返回
+    private final AtomicInteger users = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.open();
+        workload.reset();
+        workload.prepareArticles(articles);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public String postArticle() {
+        return workload.postArticle(users.incrementAndGet());
+    }
+
+    @Benchmark
+    public void articleVote() {
+        workload.articleVote(users.incrementAndGet(), ThreadLocalRandom.current().nextInt(articles));
+    }
+
+    @Benchmark
+    public boolean articleVoteAtomic() {
+        return workload.articleVoteAtomic(users.incrementAndGet(), ThreadLocalRandom.current().nextInt(articles));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VOTES_PER_BATCH)
+    public long articleVotes() {
+        return workload.articleVotes(users.getAndAdd(VOTES_PER_BATCH),
+                ThreadLocalRandom.current().nextInt(articles), VOTES_PER_BATCH);
+    }
+}
@@ -0,0 +1,85 @@
+package home.learn.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 按每个线程数运行一次所有基准测试，结果合并写入一个JSON文件，便于比较不同版本
+ * java -Dbench.threads=1,4,16 -Dbench.output=jmh-result.json -jar target/benchmarks.jar [包含的基准测试正则]
+ * 单线程的SessionCleanerBenchmark与ConcurrentCallersBenchmark只运行一次。默认使用进程内的EmbeddedRedisServer；
+ * -Dredis.embedded=false时连接RedisConfig配置的Redis，会清空redis.db(默认15号)数据库。
+ */
+public class BenchmarkRunner {
+    //自己控制并发，只能单线程运行的基准测试
+    private static final List<Class<?>> SINGLE_THREADED = Arrays.<Class<?>>asList(
+            SessionCleanerBenchmark.class, ConcurrentCallersBenchmark.class);
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        String include = args.length > 0 ? args[0] : ".*";
+        String output = System.getProperty("bench.output", "jmh-result.json");
+        String[] threads = System.getProperty("bench.threads", "1,4,16").split(",");
+
+        List<RunResult> results = new ArrayList<RunResult>();
+        for (String count : threads) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(Integer.parseInt(count.trim()));
+            for (Class<?> benchmark : SINGLE_THREADED) {
+                options.exclude(benchmark.getSimpleName());
+            }
+            results.addAll(run(options));
+        }
+        //多个include之间是或的关系，这里自己判断正则是否选中了单线程的基准测试
+        Pattern pattern = Pattern.compile(include);
+        for (Class<?> benchmark : SINGLE_THREADED) {
+            if (selects(pattern, benchmark)) {
+                results.addAll(run(new OptionsBuilder().include(benchmark.getSimpleName())));
+            }
+        }
+
+        PrintStream out = new PrintStream(new FileOutputStream(output), true, "UTF-8");
+        try {
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, out).writeOut(results);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + results.size() + " results to " + output);
+    }
+
+    private static boolean selects(Pattern pattern, Class<?> benchmark) {
+        for (Method method : benchmark.getMethods()) {
+            if (method.isAnnotationPresent(Benchmark.class)
+                    && pattern.matcher(benchmark.getName() + "." + method.getName()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Collection<RunResult> run(ChainedOptionsBuilder options) throws RunnerException {
+        try {
+            return new Runner(options.build()).run();
+        } catch (NoBenchmarksException nbe) {
+            //正则没有选中这一组基准测试
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package home.learn.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cacheRequest：原SETEX缓存与PageCache，浏览次数最多的10000个商品的请求会被缓存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheRequestBenchmark {
+    @Param({"1000", "100000"})
+    public int items;
+
+    @Param({"false", "true"})
+    public boolean pageCache;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.open();
+        workload.reset();
+        workload.prepareItems(items);
+        workload.setPageCacheEnabled(pageCache);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public String cacheRequest() {
+        return workload.cacheRequest(ThreadLocalRandom.current().nextInt(items));
+    }
+}
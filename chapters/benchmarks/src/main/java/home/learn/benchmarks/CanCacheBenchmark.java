@@ -0,0 +1,54 @@
+package home.learn.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * canCache：URL解析+zrank与RequestClassifier本地判断
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CanCacheBenchmark {
+    @Param({"1000", "100000"})
+    public int items;
+
+    @Param({"false", "true"})
+    public boolean classifier;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.open();
+        workload.reset();
+        workload.prepareItems(items);
+        workload.setRequestClassifierEnabled(classifier);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public boolean canCache() {
+        return workload.canCache(ThreadLocalRandom.current().nextInt(items));
+    }
+}
@@ -0,0 +1,51 @@
+package home.learn.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * addToCart：十分之一的调用把数量设为0，从购物车中删除商品
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CartBenchmark {
+    @Param({"1000", "100000"})
+    public int sessions;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.open();
+        workload.reset();
+        workload.prepareSessions(sessions);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public void addToCart() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        workload.addToCart(random.nextInt(sessions), random.nextInt(100), random.nextInt(10));
+    }
+}
@@ -0,0 +1,78 @@
+package home.learn.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 10、1000、10000个并发调用方时的吞吐量：异步版本(少量连接多路复用)与同步版本(固定大小的线程池，
+ * 每个线程占用一个连接)。同步版本的线程数与连接数有上限(ChapterWorkload为64)，调用方多于线程数时
+ * 在线程池中排队，这正是同步模型在大量调用方时的瓶颈。
+ * 每次调用同时发起callers个操作并等待全部完成，calls计数器给出每秒完成的操作数。
+ * 并发由callers决定，只能单线程运行，BenchmarkRunner不会改变它的线程数。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class ConcurrentCallersBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int callers;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    @Param({"checkToken", "updateToken", "articleVote", "getArticles"})
+    public String operation;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.open();
+        workload.reset();
+        workload.prepareArticles(1000);
+        workload.prepareSessions(10000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public void concurrentCalls(Calls calls) {
+        calls.calls += workload.concurrentCalls(operation, callers, async);
+    }
+
+    /**
+     * 完成的操作数，JMH按OPERATIONS计数器报告每秒的数量
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Calls {
+        public long calls;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            calls = 0;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package home.learn.benchmarks;
+
+/**
+ * 绑定了一个数据行的RowSerializer
+ */
+public interface RowCodec {
+    byte[] encode();
+
+    Object decode(byte[] bytes);
+}
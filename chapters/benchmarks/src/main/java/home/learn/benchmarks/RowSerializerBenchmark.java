@@ -0,0 +1,59 @@
+package home.learn.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各RowSerializer的编码与解码耗时，不访问Redis
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowSerializerBenchmark {
+    @Param({"gson", "binary", "gson+deflate", "binary+deflate"})
+    public String serializer;
+
+    @Param({"64", "4096", "65536"})
+    public int rowChars;
+
+    private Workload workload;
+    private RowCodec codec;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.open();
+        codec = workload.rowCodec(serializer, rowChars);
+        encoded = codec.encode();
+    }
+
+    @TearDown
+    public void tearDown() {
+        workload.close();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode();
+    }
+
+    @Benchmark
+    public Object decode() {
+        return codec.decode(encoded);
+    }
+}
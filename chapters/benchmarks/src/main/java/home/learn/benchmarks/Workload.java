@@ -0,0 +1,94 @@
+package home.learn.benchmarks;
+
+import java.io.Closeable;
+
+/**
+ * 基准测试使用的各章节操作
+ * 各章节的类都在默认包中，JMH不支持默认包中的基准测试类，而具名包中的类无法引用默认包，
+ * 所以基准测试类只依赖这个接口，由默认包中的ChapterWorkload实现，通过ServiceLoader加载。
+ * 每个线程使用自己的连接，连接在第一次调用时借用，close()时全部归还。
+ * 文章、会话与商品都用从0开始的序号表示。
+ */
+public interface Workload extends Closeable {
+    /**
+     * 清空基准测试使用的数据库(redis.db，默认15号)
+     */
+    void reset();
+
+    /**
+     * 发布articles篇文章，文章id为1到articles
+     * @param articles
+     */
+    void prepareArticles(int articles);
+
+    /**
+     * 创建sessions个已登录的会话
+     * @param sessions
+     */
+    void prepareSessions(int sessions);
+
+    /**
+     * 写入items个商品的浏览排行，序号越小浏览次数越多
+     * @param items
+     */
+    void prepareItems(int items);
+
+    void setTokenCacheEnabled(boolean enabled);
+
+    void setRequestClassifierEnabled(boolean enabled);
+
+    void setPageCacheEnabled(boolean enabled);
+
+    String postArticle(int user);
+
+    void articleVote(int user, int article);
+
+    boolean articleVoteAtomic(int user, int article);
+
+    /**
+     * 流水线批量投票：第i票由用户firstUser+i投给文章firstArticle+i(超过文章数时回绕)
+     * @return 成功的投票数
+     */
+    long articleVotes(int firstUser, int firstArticle, int count);
+
+    /**
+     * 读取第page页文章
+     * @param pipelined true时使用流水线版本，false时按原getArticles每页25篇逐页读取
+     * @return 读取的文章数
+     */
+    int getArticles(int page, int pageSize, boolean pipelined);
+
+    void updateToken(int session, int item, boolean pipelined);
+
+    String checkToken(int session);
+
+    void addToCart(int session, int item, int count);
+
+    boolean canCache(int item);
+
+    String cacheRequest(int item);
+
+    /**
+     * callers个调用方同时发起一次操作，全部完成后返回
+     * @param operation checkToken, updateToken, addToCart, cacheRequest, postArticle, articleVote或getArticles
+     * @param async true时使用AsyncChapter01/AsyncChapter02在少量连接上多路复用，
+     *              false时由固定大小的线程池执行同步版本，每个线程占用一个连接
+     * @return 完成的操作数
+     */
+    int concurrentCalls(String operation, int callers, boolean async);
+
+    /**
+     * 启动SessionCleaner，等待会话数降到limit以下后停止
+     * @return 清理的会话数
+     */
+    long cleanSessions(int limit, int workers);
+
+    /**
+     * @param serializer gson, binary, gson+deflate或binary+deflate
+     * @param rowChars 数据行的数据长度
+     * @return
+     */
+    RowCodec rowCodec(String serializer, int rowChars);
+
+    void close();
+}
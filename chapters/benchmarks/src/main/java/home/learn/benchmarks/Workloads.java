@@ -0,0 +1,21 @@
+package home.learn.benchmarks;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+public final class Workloads {
+    private Workloads() {
+    }
+
+    /**
+     * 加载Workload实现，连接配置见RedisConfig
+     * @return
+     */
+    public static Workload open() {
+        Iterator<Workload> workloads = ServiceLoader.load(Workload.class).iterator();
+        if (!workloads.hasNext()) {
+            throw new IllegalStateException("No " + Workload.class.getName() + " implementation on the classpath");
+        }
+        return workloads.next();
+    }
+}
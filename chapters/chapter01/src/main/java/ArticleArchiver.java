@@ -0,0 +1,163 @@
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 归档已过投票期的文章
+ * 发布超过一周的文章不能再投票，得分不再变化。归档线程分批把这些文章从score:、time:
+ * 移到冻结排行archive:score:、archive:time:，热排行保持在一周的文章量，
+ * zrevrange与ZINTERSTORE不再随历史文章增长而变慢。
+ * Chapter01.getArticles翻过热排行后接着读取冻结排行，getArticlesWithArchive按分值合并两者。
+ * 每批的读取与移动在一个脚本中完成，读取得分与移出score:之间的投票不会丢失。
+ */
+public class ArticleArchiver
+        extends Thread
+{
+    public static final String ARCHIVE_PREFIX = "archive:";
+
+    /**
+     * 归档脚本：按发布时间从旧到新取一批已截止的文章，写入冻结排行并从热排行移除
+     * KEYS: time:, score:, archive:time:, archive:score:
+     * ARGV: 截止时间, 每批文章数
+     * 返回{本批归档的文章数, time:剩余的文章数}
+     */
+    private static final String ARCHIVE_SCRIPT =
+            "local closed = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, tonumber(ARGV[2])) " +
+            "for i = 1, #closed, 2 do " +
+            "  local article = closed[i] " +
+            "  redis.call('zadd', KEYS[3], closed[i + 1], article) " +
+            "  local score = redis.call('zscore', KEYS[2], article) " +
+            "  if score then redis.call('zadd', KEYS[4], score, article) end " +
+            "  redis.call('zrem', KEYS[1], article) " +
+            "  redis.call('zrem', KEYS[2], article) " +
+            "end " +
+            "return {#closed / 2, redis.call('zcard', KEYS[1])}";
+
+    private final RedisConnectionProvider provider;
+    //每批归档的文章数
+    private final int batchSize;
+    //两批之间的间隔(毫秒)，避免归档占满Redis
+    private final long pauseMillis;
+    //没有可归档文章时的等待时间(毫秒)
+    private final long idleMillis;
+    private volatile boolean quit;
+
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastFailure;
+    private volatile long hotSize = -1;
+    private volatile double lastBatchRate;
+
+    public ArticleArchiver(RedisConnectionProvider provider) {
+        this(provider, 500, 100, 10000);
+    }
+
+    public ArticleArchiver(RedisConnectionProvider provider, int batchSize, long pauseMillis, long idleMillis) {
+        this.provider = provider;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+        this.idleMillis = idleMillis;
+        setName("article-archiver");
+        setDaemon(true);
+    }
+
+    public void quit() {
+        quit = true;
+        interrupt();
+    }
+
+    public void run() {
+        while (!quit) {
+            int count;
+            try {
+                Jedis conn = provider.getConnection();
+                try {
+                    count = archiveBatch(conn);
+                } finally {
+                    conn.close();
+                }
+            } catch (RuntimeException re) {
+                //Redis暂时不可用等，下一轮重试，线程不退出
+                failures.incrementAndGet();
+                lastFailure = re.toString();
+                count = 0;
+            }
+
+            try {
+                sleep(count < batchSize ? idleMillis : pauseMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 归档一批已过投票期的文章
+     * @param conn
+     * @return 本批归档的文章数
+     */
+    public int archiveBatch(Jedis conn) {
+        RedisMetrics.begin("archiveArticles");
+        try {
+            long start = System.nanoTime();
+            long cutoff = (System.currentTimeMillis() / 1000) - Chapter01.ONE_WEEK_IN_SECONDS;
+
+            @SuppressWarnings("unchecked")
+            List<Long> result = (List<Long>) conn.eval(ARCHIVE_SCRIPT,
+                    Arrays.asList("time:", "score:", ARCHIVE_PREFIX + "time:", ARCHIVE_PREFIX + "score:"),
+                    Arrays.asList(String.valueOf(cutoff), String.valueOf(batchSize)));
+            int count = result.get(0).intValue();
+            hotSize = result.get(1);
+            if (count == 0) {
+                return 0;
+            }
+
+            moved.addAndGet(count);
+            lastBatchRate = count / ((System.nanoTime() - start) / 1e9);
+            return count;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    //累计归档的文章数
+    public long getMoved() {
+        return moved.get();
+    }
+
+    //自启动以来平均每秒归档的文章数
+    public double getMovedPerSecond() {
+        double seconds = (System.currentTimeMillis() - startedAt) / 1000.0;
+        return seconds > 0 ? moved.get() / seconds : 0;
+    }
+
+    //最近一批的归档速度(篇/秒)
+    public double getLastBatchRate() {
+        return lastBatchRate;
+    }
+
+    //归档失败的批数
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次失败的异常
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    //热排行time:的大小，尚未执行过归档时为-1
+    public long getHotSize() {
+        return hotSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("moved=%d, moved/s=%.1f, lastBatch/s=%.1f, hotSize=%d, failures=%d",
+                moved.get(), getMovedPerSecond(), lastBatchRate, hotSize, failures.get());
+    }
+}
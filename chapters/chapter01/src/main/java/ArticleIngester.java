@@ -0,0 +1,378 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量导入文章，用于从历史存档回填
+ * 文章id用一次INCRBY article: 预留一段；每篇文章的写入放入流水线，每个窗口的文章发送后sync一次，
+ * 内存中最多只有一个窗口的文章。窗口大小按AIMD调整：窗口往返时间低于目标时每次加step，
+ * 超过目标时减半，Redis变慢时导入自动放缓，不会挤占在线请求。
+ * 与postArticle相比，已超过投票期的文章不再记录作者的投票(voted:集合等，见VoteDedup)。
+ * 每篇文章的命令回复在sync后逐一检查，有错误回复的文章计入failed而不计入ingested，
+ * 错误回复总数与最近一次错误见getErrors/getLastError。
+ */
+public class ArticleIngester {
+    private final RedisConnectionProvider provider;
+    //每次INCRBY预留的id数
+    private final int idBlock;
+    private final int minWindow;
+    private final int maxWindow;
+    private final int step;
+    //窗口往返时间目标(纳秒)
+    private final long targetNanos;
+
+    private volatile VoteDedup voteDedup;
+    private volatile int window;
+    private final AtomicLong ingested = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile String lastError;
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+    private volatile long maxWindowNanos;
+    private volatile long maxHeapBytes;
+    private volatile long elapsedNanos;
+
+    public ArticleIngester(RedisConnectionProvider provider) {
+        this(provider, 10000, 16, 4096, 16, 20);
+    }
+
+    /**
+     * @param provider
+     * @param idBlock 每次预留的id数
+     * @param minWindow 最小窗口(篇)
+     * @param maxWindow 最大窗口(篇)
+     * @param step 每次增加的窗口大小
+     * @param targetMillis 窗口往返时间目标(毫秒)
+     */
+    public ArticleIngester(RedisConnectionProvider provider, int idBlock, int minWindow, int maxWindow,
+                           int step, long targetMillis)
+    {
+        this.provider = provider;
+        this.idBlock = idBlock;
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        this.step = step;
+        this.targetNanos = targetMillis * 1000000;
+        this.window = minWindow;
+        this.voteDedup = VoteDedups.fromSystemProperties();
+    }
+
+    //与Chapter01使用相同的投票去重方式
+    public void setVoteDedup(VoteDedup voteDedup) {
+        this.voteDedup = voteDedup;
+    }
+
+    /**
+     * 用法：ArticleIngester 文件，每行一篇文章：用户\t标题\t链接[\t发布时间(秒)]，连接配置见RedisConfig
+     * @param args
+     */
+    public static void main(String[] args) throws IOException {
+        RedisConnectionProvider provider = ConnectionProviders.fromSystemProperties();
+        Reader reader = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+        try {
+            ArticleIngester ingester = new ArticleIngester(provider);
+            ingester.ingest(lines(reader));
+            System.out.println(ingester);
+            if (ingester.getFailed() > 0) {
+                System.out.println("last error: " + ingester.getLastError());
+            }
+        } finally {
+            reader.close();
+            provider.close();
+        }
+    }
+
+    /**
+     * 逐行读取文章，不把整个文件读入内存；格式错误的行抛出IllegalArgumentException
+     * @param reader
+     * @return
+     */
+    public static Iterator<Article> lines(Reader reader) {
+        final BufferedReader lines = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+        return new Iterator<Article>() {
+            private String next;
+            private int lineNumber;
+
+            public boolean hasNext() {
+                while (next == null) {
+                    try {
+                        next = lines.readLine();
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException("Cannot read articles", ioe);
+                    }
+                    if (next == null) {
+                        return false;
+                    }
+                    lineNumber++;
+                    if (next.trim().isEmpty()) {
+                        next = null;
+                    }
+                }
+                return true;
+            }
+
+            public Article next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String[] fields = next.split("\t");
+                next = null;
+                if (fields.length < 3) {
+                    throw new IllegalArgumentException("Line " + lineNumber + ": expected user, title and link");
+                }
+                long posted = 0;
+                if (fields.length > 3) {
+                    try {
+                        posted = Long.parseLong(fields[3]);
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Line " + lineNumber + ": invalid posted time " + fields[3], nfe);
+                    }
+                }
+                return new Article(fields[0], fields[1], fields[2], posted);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * 导入全部文章
+     * @param articles
+     * @return 成功导入的文章数，写入失败的文章见getFailed
+     */
+    public long ingest(Iterator<Article> articles) {
+        long start = System.nanoTime();
+        long count = 0;
+        Jedis conn = provider.getConnection();
+        try {
+            long nextId = 0;
+            long lastId = -1;
+            while (articles.hasNext()) {
+                RedisMetrics.begin("ingestArticles");
+                try {
+                    long windowStart = System.nanoTime();
+                    long now = System.currentTimeMillis() / 1000;
+                    Pipeline pipeline = conn.pipelined();
+                    List<Written> written = new ArrayList<Written>();
+                    int size = window;
+                    int sent = 0;
+                    int succeeded = 0;
+                    while (sent < size && articles.hasNext()) {
+                        if (nextId > lastId) {
+                            //预留id需要立即得到INCRBY的结果，先sync窗口中已发送的命令
+                            succeeded += sync(pipeline, written);
+                            lastId = conn.incrBy("article:", idBlock);
+                            nextId = lastId - idBlock + 1;
+                            pipeline = conn.pipelined();
+                        }
+                        written.add(write(pipeline, String.valueOf(nextId++), articles.next(), now));
+                        sent++;
+                    }
+                    succeeded += sync(pipeline, written);
+                    count += succeeded;
+                    ingested.addAndGet(succeeded);
+                    failed.addAndGet(sent - succeeded);
+                    windows.incrementAndGet();
+                    adjustWindow(System.nanoTime() - windowStart);
+                } finally {
+                    RedisMetrics.end();
+                }
+                Runtime runtime = Runtime.getRuntime();
+                maxHeapBytes = Math.max(maxHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+            }
+        } finally {
+            conn.close();
+            elapsedNanos += System.nanoTime() - start;
+        }
+        return count;
+    }
+
+    /**
+     * sync流水线并检查已发送文章的回复
+     * @param pipeline
+     * @param written sync前发送的文章，检查后清空
+     * @return 所有命令都成功的文章数
+     */
+    private int sync(Pipeline pipeline, List<Written> written) {
+        for (Object reply : pipeline.syncAndReturnAll()) {
+            if (reply instanceof JedisDataException) {
+                errors.incrementAndGet();
+                lastError = reply.toString();
+            }
+        }
+        int succeeded = 0;
+        for (Written article : written) {
+            if (article.succeeded()) {
+                succeeded++;
+            }
+        }
+        written.clear();
+        return succeeded;
+    }
+
+    private Written write(Pipeline pipeline, String articleId, Article input, long now) {
+        long posted = input.getPosted() > 0 ? input.getPosted() : now;
+        String article = "article:" + articleId;
+        VoteDedup.Result dedup = null;
+        //投票期内的文章才需要记录投票用户，记录在投票期结束时过期
+        if (posted + Chapter01.ONE_WEEK_IN_SECONDS > now) {
+            dedup = voteDedup.add(pipeline, articleId, input.getUser(), posted + Chapter01.ONE_WEEK_IN_SECONDS);
+        }
+        Map<String,String> articleData = new HashMap<String,String>(8);
+        articleData.put("title", input.getTitle());
+        articleData.put("link", input.getLink());
+        articleData.put("user", input.getUser());
+        articleData.put("now", String.valueOf(posted));
+        articleData.put("votes", "1");
+        Response<String> data = pipeline.hmset(article, articleData);
+        Response<Long> score = pipeline.zadd("score:", posted + Chapter01.VOTE_SCORE, article);
+        Response<Long> time = pipeline.zadd("time:", posted, article);
+        return new Written(dedup, data, score, time);
+    }
+
+    //AIMD：低于目标时加法增大窗口，超过目标时乘法减小
+    private void adjustWindow(long nanos) {
+        maxWindowNanos = Math.max(maxWindowNanos, nanos);
+        if (nanos > targetNanos) {
+            window = Math.max(minWindow, window / 2);
+            decreases.incrementAndGet();
+        } else {
+            window = Math.min(maxWindow, window + step);
+        }
+    }
+
+    //已导入的文章数
+    public long getIngested() {
+        return ingested.get();
+    }
+
+    //有命令失败而没有计入ingested的文章数
+    public long getFailed() {
+        return failed.get();
+    }
+
+    //错误回复数
+    public long getErrors() {
+        return errors.get();
+    }
+
+    //最近一次错误回复
+    public String getLastError() {
+        return lastError;
+    }
+
+    public double getArticlesPerSecond() {
+        return elapsedNanos == 0 ? 0 : ingested.get() * 1e9 / elapsedNanos;
+    }
+
+    //当前窗口大小
+    public int getWindow() {
+        return window;
+    }
+
+    //因往返时间超过目标而减小窗口的次数
+    public long getDecreases() {
+        return decreases.get();
+    }
+
+    public long getMaxWindowMillis() {
+        return maxWindowNanos / 1000000;
+    }
+
+    //导入期间观察到的最大堆使用量
+    public long getMaxHeapBytes() {
+        return maxHeapBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ingested=%d, failed=%d, articles/s=%.0f, windows=%d, window=%d, decreases=%d, maxWindow=%dms, maxHeap=%dMB",
+                ingested.get(), failed.get(), getArticlesPerSecond(), windows.get(), window, decreases.get(),
+                getMaxWindowMillis(), maxHeapBytes / (1024 * 1024));
+    }
+
+    /**
+     * 一篇已发送文章的回复，sync之后检查
+     */
+    private static class Written {
+        private final VoteDedup.Result dedup;
+        private final Response<?>[] replies;
+
+        private Written(VoteDedup.Result dedup, Response<?>... replies) {
+            this.dedup = dedup;
+            this.replies = replies;
+        }
+
+        //错误回复在get()时抛出JedisDataException
+        private boolean succeeded() {
+            try {
+                if (dedup != null) {
+                    dedup.isFirstVote();
+                }
+                for (Response<?> reply : replies) {
+                    reply.get();
+                }
+                return true;
+            } catch (JedisDataException jde) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 待导入的文章
+     */
+    public static class Article {
+        private final String user;
+        private final String title;
+        private final String link;
+        private final long posted;
+
+        /**
+         * @param user
+         * @param title
+         * @param link
+         * @param posted 发布时间(秒)，为0时使用导入时间
+         */
+        public Article(String user, String title, String link, long posted) {
+            this.user = user;
+            this.title = title;
+            this.link = link;
+            this.posted = posted;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getLink() {
+            return link;
+        }
+
+        public long getPosted() {
+            return posted;
+        }
+    }
+}
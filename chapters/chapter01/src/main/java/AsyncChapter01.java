@@ -0,0 +1,201 @@
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Chapter01文章操作的非阻塞版本，返回CompletableFuture，由PipelineDispatcher在共享的少量连接上执行
+ * 每个操作按依赖关系拆成几轮(如投票：检查发布时间、记录投票、更新得分)，各轮与其他调用方的命令合并在同一次往返中发送，
+ * 写入的数据与同步版本完全相同，两者可以混用。
+ */
+public class AsyncChapter01 {
+    private final Chapter01 chapter;
+    private final PipelineDispatcher dispatcher;
+
+    public AsyncChapter01(Chapter01 chapter, PipelineDispatcher dispatcher) {
+        this.chapter = chapter;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * 发布文章
+     * @return 文章id
+     */
+    public CompletableFuture<String> postArticle(final String user, final String title, final String link) {
+        return dispatcher.submit(new PipelinedOperation<String>() {
+            private Response<Long> id;
+            private String articleId;
+            private final List<Response<?>> writes = new ArrayList<Response<?>>(3);
+            private VoteDedup.Result voted;
+
+            protected void send(Pipeline pipeline) {
+                if (articleId == null) {
+                    id = pipeline.incr("article:");
+                    return;
+                }
+                long now = System.currentTimeMillis() / 1000;
+                String article = "article:" + articleId;
+                Map<String,String> articleData = new HashMap<String,String>();
+                articleData.put("title", title);
+                articleData.put("link", link);
+                articleData.put("user", user);
+                articleData.put("now", String.valueOf(now));
+                articleData.put("votes", "1");
+                voted = chapter.getVoteDedup().add(pipeline, articleId, user, now + Chapter01.ONE_WEEK_IN_SECONDS);
+                writes.add(pipeline.hmset(article, articleData));
+                writes.add(pipeline.zadd("score:", now + Chapter01.VOTE_SCORE, article));
+                writes.add(pipeline.zadd("time:", now, article));
+            }
+
+            protected boolean receive() {
+                if (articleId == null) {
+                    articleId = String.valueOf(id.get());
+                    return false;
+                }
+                //命令出错时get()抛出异常
+                voted.isFirstVote();
+                for (Response<?> write : writes) {
+                    write.get();
+                }
+                complete(articleId);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 文章投票
+     * @param user 用户
+     * @param article 文章:id
+     * @return 是否投票成功：文章已超过投票期限、已归档或用户已投过票时为false
+     */
+    public CompletableFuture<Boolean> articleVote(final String user, final String article) {
+        final long cutoff = (System.currentTimeMillis() / 1000) - Chapter01.ONE_WEEK_IN_SECONDS;
+        final String articleId = article.substring(article.indexOf(':') + 1);
+        return dispatcher.submit(new PipelinedOperation<Boolean>() {
+            private int round;
+            private Response<Double> posted;
+            private VoteDedup.Result added;
+            private Response<Set<String>> groups;
+            //分组在读取之后发生变化时，为投票脚本返回的当前分组
+            private Set<String> current;
+            private Response<Object> updated;
+
+            protected void send(Pipeline pipeline) {
+                switch (round) {
+                    case 0:
+                        posted = pipeline.zscore("time:", article);
+                        break;
+                    case 1:
+                        added = chapter.getVoteDedup().add(pipeline, articleId, user,
+                                posted.get().longValue() + Chapter01.ONE_WEEK_IN_SECONDS);
+                        groups = pipeline.smembers("groups:" + articleId);
+                        break;
+                    default:
+                        //得分、票数与分组排行在一个脚本中更新，分组排行的重建不会插在中间
+                        updated = chapter.getGroupRankings().onVote(pipeline, article, Chapter01.VOTE_SCORE,
+                                current != null ? current : groups.get());
+                }
+            }
+
+            protected boolean receive() {
+                switch (round++) {
+                    case 0:
+                        Double time = posted.get();
+                        if (time == null || time < cutoff) {
+                            complete(false);
+                            return true;
+                        }
+                        return false;
+                    case 1:
+                        if (!added.isFirstVote()) {
+                            complete(false);
+                            return true;
+                        }
+                        return false;
+                    default:
+                        try {
+                            //分组已变化时按当前分组再执行一轮
+                            current = chapter.getGroupRankings().changedGroups(updated.get());
+                        } catch (JedisDataException jde) {
+                            //脚本缓存已丢失，下一轮重新发送脚本
+                            if (!chapter.getGroupRankings().scriptMissing(jde)) {
+                                throw jde;
+                            }
+                            round--;
+                            return false;
+                        }
+                        if (current != null) {
+                            return false;
+                        }
+                        complete(true);
+                        return true;
+                }
+            }
+        });
+    }
+
+    /**
+     * 流水线方式获取文章
+     * 与Chapter01.getArticles一样，热排行之后接着是归档的文章，页超出热排行时多一轮读取冻结排行
+     * @param page 页码
+     * @param pageSize 每页文章数
+     * @param order 排序的有序集合
+     * @param fields 只获取的字段，为空时获取全部字段
+     * @return
+     */
+    public CompletableFuture<List<Map<String,String>>> getArticles(
+            final int page, final int pageSize, final String order, final String... fields)
+    {
+        final int start = (page - 1) * pageSize;
+        final int end = start + pageSize - 1;
+        return dispatcher.submit(new PipelinedOperation<List<Map<String,String>>>() {
+            private Response<Set<String>> hot;
+            private Response<Long> hotCount;
+            private Response<Set<String>> frozen;
+            private Set<String> ids;
+            private List<Response<?>> articles;
+
+            protected void send(Pipeline pipeline) {
+                if (hot == null) {
+                    hot = pipeline.zrevrange(order, start, end);
+                    hotCount = pipeline.zcard(order);
+                } else if (ids == null) {
+                    long count = hotCount.get();
+                    frozen = pipeline.zrevrange(ArticleArchiver.ARCHIVE_PREFIX + order,
+                            Math.max(0, start - count), end - count);
+                } else {
+                    articles = chapter.queueArticles(pipeline, ids, fields);
+                }
+            }
+
+            protected boolean receive() {
+                if (ids == null) {
+                    if (frozen == null && hot.get().size() < pageSize) {
+                        //页超出热排行，下一轮读取冻结排行
+                        return false;
+                    }
+                    ids = new LinkedHashSet<String>(hot.get());
+                    if (frozen != null) {
+                        ids.addAll(frozen.get());
+                    }
+                    if (ids.isEmpty()) {
+                        complete(Collections.<Map<String,String>>emptyList());
+                        return true;
+                    }
+                    return false;
+                }
+                complete(chapter.collectArticles(ids, articles, fields));
+                return true;
+            }
+        });
+    }
+}
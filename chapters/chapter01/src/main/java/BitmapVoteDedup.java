@@ -0,0 +1,112 @@
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 位图去重：用户映射为整数偏移量(见UserOffsets)，每篇文章一个votes:文章id 位图，用SETBIT记录，结果准确
+ * 位图的长度由投票用户中最大的偏移量决定，与投票数无关：用户数为U时每篇文章最多占用U / 8字节，
+ * 投票用户多、用户总数不太大时比集合节省得多，投票很少的文章反而可能更大。
+ * add只在调用方的流水线中发送命令：偏移量已缓存时发送SETBIT，未缓存时发送一个脚本，
+ * 在Redis中取得或分配偏移量并SETBIT，sync之后把偏移量放入缓存。批量投票前可以先用
+ * UserOffsets.resolve一次取得所有用户的偏移量。
+ * 投票脚本中的去重步骤使用缓存的偏移量，未缓存时在脚本中取得或分配，不增加往返。
+ */
+public class BitmapVoteDedup implements VoteDedup {
+    public static final String NAME = "bitmap";
+
+    /**
+     * 取得或分配偏移量并记录投票
+     * KEYS: voters:, voter:, votes:文章id
+     * ARGV: 用户, 记录过期的时间(秒)
+     * 返回{SETBIT之前的值, 偏移量}
+     */
+    private static final String ADD_SCRIPT =
+            "local offset = redis.call('hget', KEYS[1], ARGV[1]) " +
+            "if offset then " +
+            "  offset = tonumber(offset) " +
+            "else " +
+            "  offset = redis.call('incr', KEYS[2]) - 1 " +
+            "  redis.call('hset', KEYS[1], ARGV[1], offset) " +
+            "end " +
+            "local previous = redis.call('setbit', KEYS[3], offset, 1) " +
+            "redis.call('expireat', KEYS[3], ARGV[2]) " +
+            "return {previous, offset}";
+
+    private final UserOffsets offsets;
+
+    public BitmapVoteDedup(UserOffsets offsets) {
+        this.offsets = offsets;
+    }
+
+    public UserOffsets getOffsets() {
+        return offsets;
+    }
+
+    public Result add(Pipeline pipeline, String articleId, final String user, long expireAt) {
+        String key = key(articleId);
+        Long offset = offsets.cached(user);
+        if (offset != null) {
+            final Response<Boolean> previous = pipeline.setbit(key, offset, true);
+            pipeline.expireAt(key, expireAt);
+            return new Result() {
+                public boolean isFirstVote() {
+                    return !previous.get();
+                }
+            };
+        }
+
+        final Response<Object> reply = pipeline.eval(ADD_SCRIPT,
+                Arrays.asList(UserOffsets.OFFSETS_KEY, UserOffsets.COUNTER_KEY, key),
+                Arrays.asList(user, String.valueOf(expireAt)));
+        return new Result() {
+            public boolean isFirstVote() {
+                @SuppressWarnings("unchecked")
+                List<Long> values = (List<Long>) reply.get();
+                offsets.remember(user, values.get(1));
+                return values.get(0) == 0;
+            }
+        };
+    }
+
+    public String scriptStep(int firstKey, int firstArg) {
+        String offsets = "KEYS[" + firstKey + "]";
+        String user = "ARGV[" + firstArg + "]";
+        return "local offset = ARGV[" + (firstArg + 1) + "] " +
+               "if offset == '' then " +
+               "  offset = redis.call('hget', " + offsets + ", " + user + ") " +
+               "  if not offset then " +
+               "    offset = redis.call('incr', KEYS[" + (firstKey + 1) + "]) - 1 " +
+               "    redis.call('hset', " + offsets + ", " + user + ", offset) " +
+               "  end " +
+               "end " +
+               "if redis.call('setbit', KEYS[" + (firstKey + 2) + "], offset, 1) == 1 then return 0 end ";
+    }
+
+    public int scriptKeyCount() {
+        return 3;
+    }
+
+    public int scriptArgCount() {
+        return 2;
+    }
+
+    public List<String> scriptKeys(String articleId) {
+        return Arrays.asList(UserOffsets.OFFSETS_KEY, UserOffsets.COUNTER_KEY, key(articleId));
+    }
+
+    //用户与缓存的偏移量，未缓存时为空字符串
+    public List<String> scriptArgs(String user) {
+        Long offset = offsets.cached(user);
+        return Arrays.asList(user, offset != null ? String.valueOf(offset) : "");
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public String key(String articleId) {
+        return "votes:" + articleId;
+    }
+}
@@ -0,0 +1,114 @@
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.util.Hashing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 布隆过滤器去重：每篇文章一个固定大小的votebloom:文章id 位图，每个用户用SETBIT设置k位，结果是近似的
+ * k位在设置前都已为1时视为重复投票，因此少量第一次投票会被误判为重复(假阳性)而拒绝，但不会重复计票。
+ * 位数m与哈希次数k按预计投票数n与假阳性率p计算：m = -n ln p / (ln 2)^2，k = m / n ln 2。
+ * 每篇文章固定占用m / 8字节，不需要用户偏移量的映射。
+ * 没有使用RedisBloom模块的BF.ADD(需要额外部署模块)，k次SETBIT在同一个脚本中执行：
+ * 同一用户的两次并发投票不会交错设置各自的位，否则两次都可能看到某一位原来为0而都被当作第一次投票。
+ */
+public class BloomVoteDedup implements VoteDedup {
+    public static final String NAME = "bloom";
+
+    /**
+     * 设置k位并记录过期时间
+     * KEYS: votebloom:文章id
+     * ARGV: 记录过期的时间(秒), 位...
+     * 返回1表示设置前至少有一位为0(第一次投票)
+     */
+    private static final String ADD_SCRIPT =
+            "local first = 0 " +
+            "for i = 2, #ARGV do " +
+            "  if redis.call('setbit', KEYS[1], ARGV[i], 1) == 0 then first = 1 end " +
+            "end " +
+            "redis.call('expireat', KEYS[1], ARGV[1]) " +
+            "return first";
+
+    private final long bits;
+    private final int hashes;
+
+    /**
+     * @param expectedVotes 每篇文章预计的投票数
+     * @param falsePositiveRate 投票数达到预计值时的假阳性率
+     */
+    public BloomVoteDedup(long expectedVotes, double falsePositiveRate) {
+        this.bits = Math.max(8, (long) Math.ceil(-expectedVotes * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedVotes * Math.log(2)));
+    }
+
+    public long getBits() {
+        return bits;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    public Result add(Pipeline pipeline, String articleId, String user, long expireAt) {
+        List<String> args = new ArrayList<String>(1 + hashes);
+        args.add(String.valueOf(expireAt));
+        args.addAll(positions(user));
+        final Response<Object> first = pipeline.eval(ADD_SCRIPT, Collections.singletonList(key(articleId)), args);
+        return new Result() {
+            public boolean isFirstVote() {
+                return ((Long) first.get()) == 1;
+            }
+        };
+    }
+
+    /**
+     * 用户在过滤器中的k个位
+     * @param user
+     * @return
+     */
+    List<String> positions(String user) {
+        //双重哈希：第i位为 h1 + i * h2
+        long hash = Hashing.MURMUR_HASH.hash(user);
+        long h1 = hash & 0xffffffffL;
+        long h2 = (hash >>> 32) | 1;
+        List<String> positions = new ArrayList<String>(hashes);
+        for (int i = 0; i < hashes; i++) {
+            positions.add(String.valueOf(((h1 + i * h2) & Long.MAX_VALUE) % bits));
+        }
+        return positions;
+    }
+
+    public String scriptStep(int firstKey, int firstArg) {
+        return "local first = 0 " +
+               "for i = " + firstArg + ", " + (firstArg + hashes - 1) + " do " +
+               "  if redis.call('setbit', KEYS[" + firstKey + "], ARGV[i], 1) == 0 then first = 1 end " +
+               "end " +
+               "if first == 0 then return 0 end ";
+    }
+
+    public int scriptKeyCount() {
+        return 1;
+    }
+
+    public int scriptArgCount() {
+        return hashes;
+    }
+
+    public List<String> scriptKeys(String articleId) {
+        return Collections.singletonList(key(articleId));
+    }
+
+    public List<String> scriptArgs(String user) {
+        return positions(user);
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public String key(String articleId) {
+        return "votebloom:" + articleId;
+    }
+}
@@ -1,5 +1,8 @@
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.ZParams;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 import java.util.*;
 
@@ -8,20 +11,108 @@ import java.util.*;
  * Redis中key形式为(XXX:id)
  */
 public class Chapter01 {
-    private static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
-    private static final int VOTE_SCORE = 432;
+    static final int ONE_WEEK_IN_SECONDS = 7 * 86400;
+    static final int VOTE_SCORE = 432;
     private static final int ARTICLES_PER_PAGE = 25;
+    //批量投票时每次flush的命令数
+    private static final int VOTES_PER_FLUSH = 1000;
+
+    /**
+     * 投票脚本：检查截止时间、记录投票用户、增加得分与票数在一次往返内原子完成，
+     * 同时增量更新文章所在的已建立分组排行(score:分组)
+     * 记录投票用户由去重方式提供的步骤完成(VoteDedup.scriptStep)，脚本按去重方式生成，见articleVoteScript
+     * 分组排行的key按调用方传入的分组放在KEYS中，脚本先核对"groups:文章id"(GroupRankings.checkGroups)，
+     * 不一致时返回当前的分组，调用方按它重试；不属于任何分组的文章一次往返完成
+     * KEYS: time:, score:, article:文章id, groups:文章id, 去重步骤的key..., score:分组...
+     * ARGV: article:文章id, 截止时间, 每票得分, 去重步骤的参数..., 分组...
+     * 返回1表示投票成功，0表示文章已过投票期、不存在或用户已投过票
+     */
+    static String articleVoteScript(VoteDedup dedup) {
+        return "local posted = redis.call('zscore', KEYS[1], ARGV[1]) " +
+               "if not posted or tonumber(posted) < tonumber(ARGV[2]) then return 0 end " +
+               GroupRankings.checkGroups(4, 4 + dedup.scriptArgCount()) +
+               dedup.scriptStep(5, 4) +
+               "redis.call('zincrby', KEYS[2], ARGV[3], ARGV[1]) " +
+               "redis.call('hincrby', KEYS[3], 'votes', 1) " +
+               "for i = " + (5 + dedup.scriptKeyCount()) + ", #KEYS do " +
+               "  redis.call('zadd', KEYS[i], 'XX', 'INCR', ARGV[3], ARGV[1]) " +
+               "end " +
+               "return 1";
+    }
+
+    /**
+     * 去重方式与按它生成的投票脚本，更换去重方式时一起更换
+     */
+    private static class VoteScript {
+        private final VoteDedup dedup;
+        private final String source;
+        //SCRIPT LOAD返回的脚本sha1，只需加载一次
+        private volatile String sha;
+
+        private VoteScript(VoteDedup dedup) {
+            this.dedup = dedup;
+            this.source = articleVoteScript(dedup);
+        }
+    }
+
+    //分组排行的增量维护
+    private final GroupRankings groupRankings = new GroupRankings();
+    //投票去重方式及其投票脚本，默认为voted:集合，见VoteDedups
+    private volatile VoteScript voteScript;
+
+    //连接提供者，由多个线程共享
+    private final RedisConnectionProvider provider;
+
+    public Chapter01() {
+        this(ConnectionProviders.fromSystemProperties());
+    }
+
+    public Chapter01(RedisConnectionProvider provider) {
+        this.provider = provider;
+        setVoteDedup(VoteDedups.fromSystemProperties());
+    }
 
     public static void main(String[] args) {
-        new Chapter01().run();
+        Chapter01 chapter = new Chapter01();
+        try {
+            chapter.run();
+        } finally {
+            chapter.getProvider().close();
+        }
+    }
+
+    public RedisConnectionProvider getProvider() {
+        return provider;
+    }
+
+    public GroupRankings getGroupRankings() {
+        return groupRankings;
+    }
+
+    public VoteDedup getVoteDedup() {
+        return voteScript.dedup;
+    }
+
+    /**
+     * 更换投票去重方式，已有文章的投票记录不会迁移，应在部署时配置
+     * @param voteDedup
+     */
+    public void setVoteDedup(VoteDedup voteDedup) {
+        this.voteScript = new VoteScript(voteDedup);
     }
 
     public void run() {
         //Jedis为连接开发工具，jedis对象线程不安全，多线程下使用同一个Jedis对象会出现并发问题。
-        // 为了避免每次使用Jedis对象时都需要重新创建，Jedis提供了JedisPool。JedisPool是线程安全的连接池
-        Jedis conn = new Jedis("localhost");
-        conn.select(15);
+        // 为了避免每次使用Jedis对象时都需要重新创建，从共享的连接池借用连接，用完后close()归还
+        Jedis conn = provider.getConnection();
+        try {
+            run(conn);
+        } finally {
+            conn.close();
+        }
+    }
 
+    public void run(Jedis conn) {
         String articleId = postArticle(
                 conn, "username", "A title", "http://www.google.com");
         System.out.println("We posted a new article with id: " + articleId);
@@ -38,16 +129,32 @@ public class Chapter01 {
         System.out.println("We voted for the article, it now has votes: " + votes);
         assert Integer.parseInt(votes) > 1;
 
+        boolean accepted = articleVoteAtomic(conn, "another_user", "article:" + articleId);
+        System.out.println("We voted again with a single round trip, accepted: " + accepted);
+        assert accepted;
+        long batch = articleVotes(conn, Arrays.asList(
+                new Vote("user_a", "article:" + articleId),
+                new Vote("user_b", "article:" + articleId),
+                new Vote("user_a", "article:" + articleId)));
+        System.out.println("A pipelined batch of 3 votes (one duplicate) accepted: " + batch);
+        assert batch == 2;
+
         System.out.println("The currently highest-scoring articles are:");
         List<Map<String,String>> articles = getArticles(conn, 1);
         printArticles(articles);
         assert articles.size() >= 1;
 
+        articles = getArticles(conn, 1, ARTICLES_PER_PAGE, "score:", "title", "link", "votes");
+        System.out.println("The same page fetched in one pipeline, with only title, link and votes:");
+        printArticles(articles);
+        assert articles.size() >= 1;
+
         addGroups(conn, articleId, new String[]{"new-group"});
         System.out.println("We added the article to a new group, other articles include:");
         articles = getGroupArticles(conn, "new-group", 1);
         printArticles(articles);
         assert articles.size() >= 1;
+        System.out.println("Group rankings: " + groupRankings);
     }
 
     /**
@@ -59,33 +166,38 @@ public class Chapter01 {
      * @return
      */
     public String postArticle(Jedis conn, String user, String title, String link) {
-        //key为"article:"的value自增
-        String articleId = String.valueOf(conn.incr("article:"));
+        RedisMetrics.begin("postArticle");
+        try {
+            //key为"article:"的value自增
+            String articleId = String.valueOf(conn.incr("article:"));
 
-        //key为"voted:文章id"的投票集合，其元素包括用户，过期时间
-        String voted = "voted:" + articleId;
-        conn.sadd(voted, user);
-        conn.expire(voted, ONE_WEEK_IN_SECONDS);
+            //记录作者的投票，默认为key为"voted:文章id"的投票集合，其元素包括用户，过期时间
+            long now = System.currentTimeMillis() / 1000;
+            Pipeline pipeline = conn.pipelined();
+            voteScript.dedup.add(pipeline, articleId, user, now + ONE_WEEK_IN_SECONDS);
+            pipeline.sync();
 
-        //key为"article:文章id"的文章散列，包括标题键值对，连接键值对，用户键值对，发布时间键值对，投票数键值对
-        long now = System.currentTimeMillis() / 1000;
-        String article = "article:" + articleId;
-        HashMap<String,String> articleData = new HashMap<String,String>();
-        articleData.put("title", title);
-        articleData.put("link", link);
-        articleData.put("user", user);
-        articleData.put("now", String.valueOf(now));
-        articleData.put("votes", "1");
-        //为散列添加多个键值对
-        conn.hmset(article, articleData);
+            //key为"article:文章id"的文章散列，包括标题键值对，连接键值对，用户键值对，发布时间键值对，投票数键值对
+            String article = "article:" + articleId;
+            HashMap<String,String> articleData = new HashMap<String,String>();
+            articleData.put("title", title);
+            articleData.put("link", link);
+            articleData.put("user", user);
+            articleData.put("now", String.valueOf(now));
+            articleData.put("votes", "1");
+            //为散列添加多个键值对
+            conn.hmset(article, articleData);
 
-        //key为"score:"的得分有序集合，包括得分键值对，"article:文章id"为成员，分值为投票得分
-        conn.zadd("score:", now + VOTE_SCORE, article);
+            //key为"score:"的得分有序集合，包括得分键值对，"article:文章id"为成员，分值为投票得分
+            conn.zadd("score:", now + VOTE_SCORE, article);
 
-        //key为"score:"的时间有序集合，包括时间键值对，"article:文章id"为成员，分值为发布时间
-        conn.zadd("time:", now, article);
+            //key为"score:"的时间有序集合，包括时间键值对，"article:文章id"为成员，分值为发布时间
+            conn.zadd("time:", now, article);
 
-        return articleId;
+            return articleId;
+        } finally {
+            RedisMetrics.end();
+        }
     }
 
     /**
@@ -93,54 +205,444 @@ public class Chapter01 {
      * @param conn
      * @param user 用户
      * @param article 文章:id
+     * @return 是否投票成功
      */
-    public void articleVote(Jedis conn, String user, String article) {
+    public boolean articleVote(Jedis conn, String user, String article) {
+        RedisMetrics.begin("articleVote");
+        try {
+            return vote(conn, user, article);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    private boolean vote(Jedis conn, String user, String article) {
         //截止时间
         long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
 
         //zscore:通过成员获取有序集合对应的分值
         //是否还能投票(文章发布期满一周之后，将不能再进行投票 ，节约内存)
-        if (conn.zscore("time:", article) < cutoff){
-            return;
+        //已被ArticleArchiver归档的文章不在time:中
+        Double posted = conn.zscore("time:", article);
+        if (posted == null || posted < cutoff){
+            return false;
         }
 
         //得到文章ID
         String articleId = article.substring(article.indexOf(':') + 1);
-        //判断该用户是否对文章已投票，通过集合的数据添加判断，1.成功，0.失败
-        if (conn.sadd("voted:" + articleId, user) == 1) {
-            //在以"score:"为key的得分有序集合中，zincrby：将指定的成员的分值加上increment
-            conn.zincrby("score:", VOTE_SCORE, article);
-            //在以"article"为key的文章散列中，hincrBy：将指定的键的对应的value加上increment
-            conn.hincrBy(article, "votes", 1);
+        //判断该用户是否对文章已投票，默认通过集合的数据添加判断
+        Pipeline pipeline = conn.pipelined();
+        VoteDedup.Result added = voteScript.dedup.add(pipeline, articleId, user,
+                posted.longValue() + ONE_WEEK_IN_SECONDS);
+        Response<Set<String>> groups = pipeline.smembers("groups:" + articleId);
+        pipeline.sync();
+        if (!added.isFirstVote()) {
+            return false;
         }
+        //得分、票数与分组排行在一个脚本中更新，分组排行的重建不会插在中间，
+        //读取分组之后加入的分组由脚本核对后重试
+        groupRankings.onVote(conn, article, VOTE_SCORE, groups.get());
+        return true;
     }
 
+    /**
+     * 文章投票(原子版本)，通过EVALSHA执行投票脚本，一次往返完成检查与更新，各种去重方式相同
+     * @param conn
+     * @param user 用户
+     * @param article 文章:id
+     * @return 是否投票成功
+     */
+    public boolean articleVoteAtomic(Jedis conn, String user, String article) {
+        RedisMetrics.begin("articleVoteAtomic");
+        try {
+            VoteScript script = voteScript;
+            long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
+            //先按不属于任何分组执行，分组不一致时按脚本返回的分组重试
+            Set<String> groups = Collections.emptySet();
+            while (true) {
+                Object reply = evalArticleVote(conn, script, user, article, cutoff, groups);
+                Set<String> changed = groupRankings.changedGroups(reply);
+                if (changed == null) {
+                    return ((Long) reply) == 1;
+                }
+                groups = changed;
+            }
+        } finally {
+            RedisMetrics.end();
+        }
+    }
 
     /**
-     *
+     * 批量投票，以流水线方式每VOTES_PER_FLUSH条投票flush一次
      * @param conn
-     * @param page
+     * @param votes 投票列表
+     * @return 投票成功的数量
+     */
+    public long articleVotes(Jedis conn, List<Vote> votes) {
+        RedisMetrics.begin("articleVotes");
+        try {
+            VoteScript script = voteScript;
+            long cutoff = (System.currentTimeMillis() / 1000) - ONE_WEEK_IN_SECONDS;
+            //每批开始前加载脚本，流水线中无法处理NOSCRIPT后重试
+            String sha = loadArticleVoteScript(conn, script);
+
+            long accepted = 0;
+            List<Vote> sent = new ArrayList<Vote>(Math.min(votes.size(), VOTES_PER_FLUSH));
+            List<Response<Object>> responses = new ArrayList<Response<Object>>(
+                    Math.min(votes.size(), VOTES_PER_FLUSH));
+            Set<String> noGroups = Collections.emptySet();
+            Pipeline pipeline = conn.pipelined();
+            for (Vote vote : votes) {
+                sent.add(vote);
+                responses.add(pipeline.evalsha(sha, voteKeys(script, vote.article, noGroups),
+                        voteArgs(script, vote.user, vote.article, cutoff, noGroups)));
+                if (responses.size() == VOTES_PER_FLUSH) {
+                    accepted += flushVotes(pipeline, script, sha, cutoff, sent, responses);
+                    sent.clear();
+                    responses.clear();
+                }
+            }
+            accepted += flushVotes(pipeline, script, sha, cutoff, sent, responses);
+            return accepted;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    private String loadArticleVoteScript(Jedis conn, VoteScript script) {
+        script.sha = conn.scriptLoad(script.source);
+        return script.sha;
+    }
+
+    private Object evalArticleVote(Jedis conn, VoteScript script, String user, String article, long cutoff,
+                                   Set<String> groups) {
+        List<String> keys = voteKeys(script, article, groups);
+        List<String> args = voteArgs(script, user, article, cutoff, groups);
+        String sha = script.sha != null ? script.sha : loadArticleVoteScript(conn, script);
+        try {
+            return conn.evalsha(sha, keys, args);
+        } catch (JedisDataException jde) {
+            //Redis重启或执行SCRIPT FLUSH后脚本缓存会丢失，重新加载一次
+            if (jde.getMessage() == null || !jde.getMessage().startsWith("NOSCRIPT")) {
+                throw jde;
+            }
+            return conn.evalsha(loadArticleVoteScript(conn, script), keys, args);
+        }
+    }
+
+    private List<String> voteKeys(VoteScript script, String article, Set<String> groups) {
+        return articleVoteKeys(script.dedup, article, groups);
+    }
+
+    private List<String> voteArgs(VoteScript script, String user, String article, long cutoff, Set<String> groups) {
+        return articleVoteArgs(script.dedup, user, article, cutoff, groups);
+    }
+
+    /**
+     * articleVoteScript的KEYS，分片版本在每个key前加上分区的hash tag后使用
+     * @param dedup 去重方式
+     * @param article 文章:id
+     * @param groups 文章所在的分组
+     * @return
+     */
+    static List<String> articleVoteKeys(VoteDedup dedup, String article, Set<String> groups) {
+        String articleId = article.substring(article.indexOf(':') + 1);
+        List<String> keys = new ArrayList<String>(4 + dedup.scriptKeyCount() + groups.size());
+        keys.addAll(Arrays.asList("time:", "score:", article, "groups:" + articleId));
+        keys.addAll(dedup.scriptKeys(articleId));
+        keys.addAll(GroupRankings.scoreRankings(groups));
+        return keys;
+    }
+
+    /**
+     * articleVoteScript的ARGV
+     * @param dedup 去重方式
+     * @param user 用户
+     * @param article 文章:id
+     * @param cutoff 投票截止时间(秒)，早于它发布的文章不能再投票
+     * @param groups 文章所在的分组
+     * @return
+     */
+    static List<String> articleVoteArgs(VoteDedup dedup, String user, String article, long cutoff,
+                                        Set<String> groups) {
+        List<String> args = new ArrayList<String>(3 + dedup.scriptArgCount() + groups.size());
+        args.addAll(Arrays.asList(article, String.valueOf(cutoff), String.valueOf(VOTE_SCORE)));
+        args.addAll(dedup.scriptArgs(user));
+        args.addAll(groups);
+        return args;
+    }
+
+    /**
+     * 执行流水线中的投票，分组已变化的投票按脚本返回的分组在同一流水线中重试
+     * @return 投票成功的数量
+     */
+    private long flushVotes(Pipeline pipeline, VoteScript script, String sha, long cutoff,
+                            List<Vote> sent, List<Response<Object>> responses) {
+        long accepted = 0;
+        while (!sent.isEmpty()) {
+            pipeline.sync();
+            List<Vote> retries = new ArrayList<Vote>();
+            List<Response<Object>> retried = new ArrayList<Response<Object>>();
+            for (int i = 0; i < sent.size(); i++) {
+                Object reply = responses.get(i).get();
+                Set<String> groups = groupRankings.changedGroups(reply);
+                if (groups != null) {
+                    Vote vote = sent.get(i);
+                    retries.add(vote);
+                    retried.add(pipeline.evalsha(sha, voteKeys(script, vote.article, groups),
+                            voteArgs(script, vote.user, vote.article, cutoff, groups)));
+                } else if (((Long) reply) == 1) {
+                    accepted++;
+                }
+            }
+            sent = retries;
+            responses = retried;
+        }
+        return accepted;
+    }
+
+    /**
+     * 按得分获取文章，见getArticles(Jedis, int, String)
+     * @param conn
+     * @param page 页码
      * @return
      */
     public List<Map<String,String>> getArticles(Jedis conn, int page) {
         return getArticles(conn, page, "score:");
     }
 
-
+    /**
+     * 获取文章
+     * 热排行之后接着是ArticleArchiver归档的文章(archive:排序集合)，翻过热排行的页从冻结排行读取，
+     * 归档的文章不会从翻页结果中消失，但总是排在所有热文章之后；需要按分值统一排序时用getArticlesWithArchive。
+     * @param conn
+     * @param page 页码
+     * @param order 排序的有序集合
+     * @return
+     */
     public List<Map<String,String>> getArticles(Jedis conn, int page, String order) {
-        int start = (page - 1) * ARTICLES_PER_PAGE;
-        int end = start + ARTICLES_PER_PAGE - 1;
+        RedisMetrics.begin("getArticles");
+        try {
+            int start = (page - 1) * ARTICLES_PER_PAGE;
+            int end = start + ARTICLES_PER_PAGE - 1;
+
+            //得分有序集合，zrevrange:给定排名范围内的成员(article:文章id)，成员按分值由大到小排列
+            Set<String> ids = pageIds(conn, order, start, end);
+            List<Map<String,String>> articles = new ArrayList<Map<String,String>>();
+            for (String id : ids){
+                //hgetAll:通过key获取散列的所有键值对
+                Map<String,String> articleData = conn.hgetAll(id);
+                articleData.put("id", id);
+                articles.add(articleData);
+            }
 
-        //得分有序集合，zrevrange:给定排名范围内的成员(article:文章id)，成员按分值由大到小排列
+            return articles;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 流水线方式获取文章，所有HGETALL/HMGET在一次flush中发送
+     * 与getArticles(Jedis, int, String)一样，热排行之后接着是归档的文章
+     * @param conn
+     * @param page 页码
+     * @param pageSize 每页文章数
+     * @param order 排序的有序集合
+     * @param fields 只获取的字段(如title, link, votes)，为空时获取全部字段
+     * @return
+     */
+    public List<Map<String,String>> getArticles(
+            Jedis conn, int page, int pageSize, String order, String... fields)
+    {
+        RedisMetrics.begin("getArticles");
+        try {
+            int start = (page - 1) * pageSize;
+            int end = start + pageSize - 1;
+
+            Set<String> ids = pageIds(conn, order, start, end);
+            return fetchArticles(conn, ids, fields);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 一页文章的id：先读热排行，页超出热排行的部分接着读冻结排行(archive:排序集合)
+     * 分组排行等没有冻结排行的有序集合，只在最后一页多一次读取
+     */
+    private Set<String> pageIds(Jedis conn, String order, int start, int end) {
         Set<String> ids = conn.zrevrange(order, start, end);
-        List<Map<String,String>> articles = new ArrayList<Map<String,String>>();
-        for (String id : ids){
-            //hgetAll:通过key获取散列的所有键值对
-            Map<String,String> articleData = conn.hgetAll(id);
+        if (ids.size() == end - start + 1) {
+            return ids;
+        }
+        long hot = ids.isEmpty() ? conn.zcard(order) : start + ids.size();
+        //读取期间被归档的文章可能同时出现在两个排行中
+        Set<String> page = new LinkedHashSet<String>(ids);
+        page.addAll(conn.zrevrange(ArticleArchiver.ARCHIVE_PREFIX + order, Math.max(0, start - hot), end - hot));
+        return page;
+    }
+
+    /**
+     * 游标分页：从游标之后取一页文章，游标为上一页最后一篇文章的(分值, 成员)
+     * 用zrevrangeByScoreWithScores从游标的分值开始读取，每页的开销与翻到多深无关，
+     * 只与和游标同分值的文章数有关。翻页期间得分变化的文章不会重复出现：
+     * 得分升到游标之前的文章本次浏览不再出现，降到游标之后的文章会在后面的页中出现。
+     * @param conn
+     * @param order 排序的有序集合(score:、time:或分组排行)
+     * @param cursor 上一页返回的游标，第一页为null
+     * @param pageSize 每页文章数
+     * @param fields 只获取的字段，为空时获取全部字段
+     * @return
+     * @throws IllegalArgumentException pageSize不大于0，或游标不是"分值:成员"的格式
+     */
+    public ArticlePage getArticlesAfter(Jedis conn, String order, String cursor, int pageSize, String... fields) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        }
+        double max = Double.POSITIVE_INFINITY;
+        String lastMember = null;
+        if (cursor != null) {
+            //分值中没有':'，第一个':'之后都是成员
+            int colon = cursor.indexOf(':');
+            if (colon <= 0 || colon == cursor.length() - 1) {
+                throw new IllegalArgumentException("Malformed cursor: " + cursor);
+            }
+            try {
+                max = Double.parseDouble(cursor.substring(0, colon));
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Malformed cursor: " + cursor, nfe);
+            }
+            if (Double.isNaN(max)) {
+                throw new IllegalArgumentException("Malformed cursor: " + cursor);
+            }
+            lastMember = cursor.substring(colon + 1);
+        }
+
+        RedisMetrics.begin("getArticlesAfter");
+        try {
+
+            //多取一篇判断是否还有下一页；同分值的成员按成员倒序排列，跳过游标及之前的成员
+            List<Tuple> page = new ArrayList<Tuple>(pageSize + 1);
+            int offset = 0;
+            while (page.size() <= pageSize) {
+                int count = pageSize + 1 - page.size();
+                Set<Tuple> tuples = conn.zrevrangeByScoreWithScores(order, max, Double.NEGATIVE_INFINITY, offset, count);
+                for (Tuple tuple : tuples) {
+                    if (lastMember == null || tuple.getScore() < max || tuple.getElement().compareTo(lastMember) < 0) {
+                        page.add(tuple);
+                    }
+                }
+                if (tuples.size() < count) {
+                    break;
+                }
+                offset += count;
+            }
+
+            String next = null;
+            if (page.size() > pageSize) {
+                page.remove(pageSize);
+                Tuple last = page.get(pageSize - 1);
+                next = last.getScore() + ":" + last.getElement();
+            }
+            List<String> ids = new ArrayList<String>(page.size());
+            for (Tuple tuple : page) {
+                ids.add(tuple.getElement());
+            }
+            return new ArticlePage(fetchArticles(conn, ids, fields), next);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 合并热排行与归档后的冻结排行(archive:排序集合)获取文章
+     * @param conn
+     * @param page 页码
+     * @param pageSize 每页文章数
+     * @param order 排序的有序集合
+     * @param fields 只获取的字段，为空时获取全部字段
+     * @return
+     */
+    public List<Map<String,String>> getArticlesWithArchive(
+            Jedis conn, int page, int pageSize, String order, String... fields)
+    {
+        RedisMetrics.begin("getArticlesWithArchive");
+        try {
+            int start = (page - 1) * pageSize;
+            int end = start + pageSize - 1;
+
+            //两个排行各取前end+1名，归并后截取本页
+            Pipeline pipeline = conn.pipelined();
+            Response<Set<Tuple>> hot = pipeline.zrevrangeWithScores(order, 0, end);
+            Response<Set<Tuple>> frozen = pipeline.zrevrangeWithScores(ArticleArchiver.ARCHIVE_PREFIX + order, 0, end);
+            pipeline.sync();
+
+            List<String> ids = new ArrayList<String>(pageSize);
+            Iterator<Tuple> h = hot.get().iterator();
+            Iterator<Tuple> f = frozen.get().iterator();
+            Tuple nextHot = h.hasNext() ? h.next() : null;
+            Tuple nextFrozen = f.hasNext() ? f.next() : null;
+            for (int rank = 0; rank <= end && (nextHot != null || nextFrozen != null); rank++) {
+                Tuple taken;
+                if (nextFrozen == null || (nextHot != null && nextHot.compareTo(nextFrozen) >= 0)) {
+                    taken = nextHot;
+                    nextHot = h.hasNext() ? h.next() : null;
+                } else {
+                    taken = nextFrozen;
+                    nextFrozen = f.hasNext() ? f.next() : null;
+                }
+                if (rank >= start) {
+                    ids.add(taken.getElement());
+                }
+            }
+            return fetchArticles(conn, ids, fields);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    private List<Map<String,String>> fetchArticles(Jedis conn, Collection<String> ids, String... fields) {
+        Pipeline pipeline = conn.pipelined();
+        List<Response<?>> responses = queueArticles(pipeline, ids, fields);
+        pipeline.sync();
+        return collectArticles(ids, responses, fields);
+    }
+
+    //把读取文章的HGETALL/HMGET加入流水线，sync后由collectArticles组装结果
+    List<Response<?>> queueArticles(Pipeline pipeline, Collection<String> ids, String... fields) {
+        List<Response<?>> responses = new ArrayList<Response<?>>(ids.size());
+        for (String id : ids) {
+            if (fields.length == 0) {
+                responses.add(pipeline.hgetAll(id));
+            } else {
+                //hmget:只获取指定字段，减少返回数据量
+                responses.add(pipeline.hmget(id, fields));
+            }
+        }
+        return responses;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<Map<String,String>> collectArticles(Collection<String> ids, List<Response<?>> responses, String... fields) {
+        List<Map<String,String>> articles = new ArrayList<Map<String,String>>(ids.size());
+        int i = 0;
+        for (String id : ids) {
+            Map<String,String> articleData;
+            if (fields.length == 0) {
+                articleData = ((Response<Map<String,String>>) responses.get(i++)).get();
+            } else {
+                List<String> values = ((Response<List<String>>) responses.get(i++)).get();
+                articleData = new HashMap<String,String>(fields.length * 2);
+                for (int f = 0; f < fields.length; f++) {
+                    if (values.get(f) != null) {
+                        articleData.put(fields[f], values.get(f));
+                    }
+                }
+            }
             articleData.put("id", id);
             articles.add(articleData);
         }
-
         return articles;
     }
 
@@ -151,9 +653,12 @@ public class Chapter01 {
      * @param toAdd
      */
     public void addGroups(Jedis conn, String articleId, String[] toAdd) {
-        String article = "article:" + articleId;
-        for (String group : toAdd) {
-            conn.sadd("group:" + group, article);
+        RedisMetrics.begin("addGroups");
+        try {
+            //加入分组集合，已建立的分组排行同时加入该文章
+            groupRankings.addGroups(conn, articleId, toAdd);
+        } finally {
+            RedisMetrics.end();
         }
     }
 
@@ -169,13 +674,60 @@ public class Chapter01 {
     }
 
     public List<Map<String,String>> getGroupArticles(Jedis conn, String group, int page, String order) {
-        String key = order + group;
-        if (!conn.exists(key)) {
-            ZParams params = new ZParams().aggregate(ZParams.Aggregate.MAX);
-            conn.zinterstore(key, params, "group:" + group, order);
-            conn.expire(key, 60);
+        RedisMetrics.begin("getGroupArticles");
+        try {
+            //分组排行由投票与加入分组增量维护，只在尚未建立时重建一次
+            String key = groupRankings.ensureRanking(conn, group, order);
+            return getArticles(conn, page, key);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 流水线方式获取分组文章
+     * @param conn
+     * @param group 分组
+     * @param page 页码
+     * @param pageSize 每页文章数
+     * @param order 排序的有序集合
+     * @param fields 只获取的字段，为空时获取全部字段
+     * @return
+     */
+    public List<Map<String,String>> getGroupArticles(
+            Jedis conn, String group, int page, int pageSize, String order, String... fields)
+    {
+        RedisMetrics.begin("getGroupArticles");
+        try {
+            //分组排行由投票与加入分组增量维护，只在尚未建立时重建一次
+            String key = groupRankings.ensureRanking(conn, group, order);
+            return getArticles(conn, page, pageSize, key, fields);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 游标分页获取分组文章
+     * @param conn
+     * @param group 分组
+     * @param order 排序的有序集合
+     * @param cursor 上一页返回的游标，第一页为null
+     * @param pageSize 每页文章数
+     * @param fields 只获取的字段，为空时获取全部字段
+     * @return
+     * @throws IllegalArgumentException 同getArticlesAfter
+     */
+    public ArticlePage getGroupArticlesAfter(
+            Jedis conn, String group, String order, String cursor, int pageSize, String... fields)
+    {
+        RedisMetrics.begin("getGroupArticlesAfter");
+        try {
+            String key = groupRankings.ensureRanking(conn, group, order);
+            return getArticlesAfter(conn, key, cursor, pageSize, fields);
+        } finally {
+            RedisMetrics.end();
         }
-        return getArticles(conn, page, key);
     }
 
     private void printArticles(List<Map<String,String>> articles){
@@ -189,4 +741,51 @@ public class Chapter01 {
             }
         }
     }
+
+    /**
+     * 游标分页的一页文章
+     */
+    public static class ArticlePage {
+        private final List<Map<String,String>> articles;
+        private final String cursor;
+
+        public ArticlePage(List<Map<String,String>> articles, String cursor) {
+            this.articles = articles;
+            this.cursor = cursor;
+        }
+
+        public List<Map<String,String>> getArticles() {
+            return articles;
+        }
+
+        //下一页的游标，格式为"分值:成员"，没有下一页时为null
+        public String getCursor() {
+            return cursor;
+        }
+
+        public boolean hasMore() {
+            return cursor != null;
+        }
+    }
+
+    /**
+     * 一次投票：用户与"article:文章id"
+     */
+    public static class Vote {
+        private final String user;
+        private final String article;
+
+        public Vote(String user, String article) {
+            this.user = user;
+            this.article = article;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getArticle() {
+            return article;
+        }
+    }
 }
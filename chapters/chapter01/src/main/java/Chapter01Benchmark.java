@@ -0,0 +1,344 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 文章投票相关操作的简单吞吐量对比
+ * 需要本地Redis，连接配置见RedisConfig
+ */
+public class Chapter01Benchmark {
+    public static void main(String[] args) {
+        int votes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        RedisConnectionProvider provider = ConnectionProviders.fromSystemProperties();
+        Jedis conn = provider.getConnection();
+        try {
+            Chapter01Benchmark benchmark = new Chapter01Benchmark();
+            benchmark.benchmarkArticleVote(conn, votes);
+            benchmark.benchmarkGetArticles(conn, 200);
+            benchmark.benchmarkIngest(provider, conn, 100000);
+            benchmark.benchmarkVoteDedup(provider, conn, 50, 500, 20000);
+            benchmark.benchmarkPagination(provider, conn, 200);
+            benchmark.benchmarkFrontPage(provider, conn, 20000);
+            if (RedisMetrics.isEnabled()) {
+                //-Dredis.metrics=true时输出各操作的命令数、往返次数与延迟分布
+                System.out.println("\n----- Redis metrics -----");
+                new ConsoleMetricsExporter().export(RedisMetrics.get());
+            }
+        } finally {
+            conn.close();
+            provider.close();
+        }
+    }
+
+    /**
+     * 对比逐条命令投票、脚本投票与流水线批量投票的吞吐量
+     * @param conn
+     * @param votes 每种方式的投票次数
+     */
+    public void benchmarkArticleVote(Jedis conn, int votes) {
+        System.out.println("\n----- benchmarkArticleVote (" + votes + " votes) -----");
+        Chapter01 chapter = new Chapter01();
+
+        String article = "article:" + chapter.postArticle(conn, "bench", "bench", "http://bench");
+        long start = System.nanoTime();
+        for (int i = 0; i < votes; i++) {
+            chapter.articleVote(conn, "user" + i, article);
+        }
+        report("articleVote", votes, start);
+
+        article = "article:" + chapter.postArticle(conn, "bench", "bench", "http://bench");
+        start = System.nanoTime();
+        for (int i = 0; i < votes; i++) {
+            chapter.articleVoteAtomic(conn, "user" + i, article);
+        }
+        report("articleVoteAtomic", votes, start);
+
+        article = "article:" + chapter.postArticle(conn, "bench", "bench", "http://bench");
+        List<Chapter01.Vote> batch = new ArrayList<Chapter01.Vote>(votes);
+        for (int i = 0; i < votes; i++) {
+            batch.add(new Chapter01.Vote("user" + i, article));
+        }
+        start = System.nanoTime();
+        chapter.articleVotes(conn, batch);
+        report("articleVotes", votes, start);
+    }
+
+    /**
+     * 对比逐条HGETALL、流水线HGETALL与流水线HMGET在不同页大小下的平均延迟
+     * @param conn
+     * @param rounds 每种方式每个页大小的执行次数
+     */
+    public void benchmarkGetArticles(Jedis conn, int rounds) {
+        System.out.println("\n----- benchmarkGetArticles (" + rounds + " rounds) -----");
+        Chapter01 chapter = new Chapter01();
+        for (int i = 0; i < 500; i++) {
+            chapter.postArticle(conn, "bench", "title " + i, "http://bench/" + i);
+        }
+
+        for (int pageSize : new int[]{25, 100, 500}) {
+            //逐条HGETALL: 按25篇一页分多次取同样数量的文章
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int page = 1; page <= pageSize / 25; page++) {
+                    chapter.getArticles(conn, page, "score:");
+                }
+            }
+            reportLatency("hgetAll x" + pageSize, rounds, start);
+
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                chapter.getArticles(conn, 1, pageSize, "score:");
+            }
+            reportLatency("pipelined x" + pageSize, rounds, start);
+
+            start = System.nanoTime();
+            List<Map<String,String>> page = null;
+            for (int r = 0; r < rounds; r++) {
+                page = chapter.getArticles(conn, 1, pageSize, "score:", "title", "link", "votes");
+            }
+            reportLatency("hmget x" + pageSize, rounds, start);
+            assert page != null && page.size() == pageSize;
+        }
+    }
+
+    /**
+     * 对比逐篇postArticle与ArticleIngester批量导入的吞吐量，导入的文章由迭代器逐篇生成，不预先放入内存
+     * @param provider
+     * @param conn
+     * @param articles 导入的文章数，postArticle只发布其中十分之一
+     */
+    public void benchmarkIngest(RedisConnectionProvider provider, Jedis conn, final int articles) {
+        System.out.println("\n----- benchmarkIngest (" + articles + " articles) -----");
+        Chapter01 chapter = new Chapter01();
+        long start = System.nanoTime();
+        for (int i = 0; i < articles / 10; i++) {
+            chapter.postArticle(conn, "bench", "title " + i, "http://bench/" + i);
+        }
+        report("postArticle", articles / 10, start);
+
+        //一半的文章发布于一年前，已过投票期
+        final long posted = System.currentTimeMillis() / 1000 - 365 * 86400;
+        Iterator<ArticleIngester.Article> input = new Iterator<ArticleIngester.Article>() {
+            private int next;
+
+            public boolean hasNext() {
+                return next < articles;
+            }
+
+            public ArticleIngester.Article next() {
+                int i = next++;
+                return new ArticleIngester.Article("bench", "title " + i, "http://bench/" + i,
+                        i % 2 == 0 ? posted + i : 0);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        ArticleIngester ingester = new ArticleIngester(provider);
+        start = System.nanoTime();
+        ingester.ingest(input);
+        report("ArticleIngester", articles, start);
+        System.out.println("  " + ingester);
+    }
+
+    /**
+     * 对比voted:集合、位图与布隆过滤器三种投票去重方式的吞吐量与每篇文章的内存
+     * 三种方式使用相同的投票序列(其中约一成是重复投票)，都通过articleVoteAtomic的投票脚本一次往返完成，
+     * 布隆过滤器少接受的投票数即误判的第一次投票数。
+     * 内存为投票前后INFO memory的used_memory之差，位图方式预先分配全部用户的偏移量，不计入voters:映射；
+     * EmbeddedRedisServer不支持INFO，此时位图与布隆过滤器输出STRLEN，集合无法统计。
+     * @param provider
+     * @param conn
+     * @param articles 文章数
+     * @param votesPerArticle 每篇文章的投票数
+     * @param users 用户总数
+     */
+    public void benchmarkVoteDedup(RedisConnectionProvider provider, Jedis conn,
+                                   int articles, int votesPerArticle, int users)
+    {
+        System.out.println("\n----- benchmarkVoteDedup (" + articles + " articles, " + votesPerArticle
+                + " votes/article, " + users + " users) -----");
+        VoteDedup[] dedups = {
+                new SetVoteDedup(),
+                new BitmapVoteDedup(new UserOffsets(users)),
+                new BloomVoteDedup(votesPerArticle, 0.01)};
+        long exact = -1;
+        for (VoteDedup dedup : dedups) {
+            Chapter01 chapter = new Chapter01(provider);
+            chapter.setVoteDedup(dedup);
+            String[] ids = new String[articles];
+            for (int i = 0; i < articles; i++) {
+                ids[i] = chapter.postArticle(conn, "bench", "title " + i, "http://bench/" + i);
+            }
+            if (dedup instanceof BitmapVoteDedup) {
+                List<String> names = new ArrayList<String>(users);
+                for (int u = 0; u < users; u++) {
+                    names.add("user" + u);
+                }
+                ((BitmapVoteDedup) dedup).getOffsets().resolve(conn, names);
+            }
+
+            Random random = new Random(42);
+            long memory = usedMemory(conn);
+            long accepted = 0;
+            long start = System.nanoTime();
+            for (int a = 0; a < articles; a++) {
+                int previous = 0;
+                for (int v = 0; v < votesPerArticle; v++) {
+                    //一成的投票重复前一个用户
+                    int user = v > 0 && random.nextInt(10) == 0 ? previous : random.nextInt(users);
+                    previous = user;
+                    if (chapter.articleVoteAtomic(conn, "user" + user, "article:" + ids[a])) {
+                        accepted++;
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long bytes = memory < 0 ? -1 : (usedMemory(conn) - memory) / articles;
+            if (exact < 0) {
+                exact = accepted;
+            }
+
+            String size;
+            if (bytes >= 0) {
+                size = bytes + " bytes/article";
+            } else if (!(dedup instanceof SetVoteDedup)) {
+                long length = 0;
+                for (String id : ids) {
+                    length += conn.strlen(dedup.key(id));
+                }
+                size = (length / articles) + " bytes/article (STRLEN)";
+            } else {
+                size = "n/a";
+            }
+            System.out.printf("  %-8s %10.0f votes/s  accepted=%d  lost=%d  %s%n", dedup.getName(),
+                    articles * votesPerArticle / seconds, accepted, exact - accepted, size);
+        }
+    }
+
+    //INFO memory中的used_memory，服务器不支持INFO时为-1
+    private long usedMemory(Jedis conn) {
+        try {
+            for (String line : conn.info("memory").split("\r\n")) {
+                if (line.startsWith("used_memory:")) {
+                    return Long.parseLong(line.substring("used_memory:".length()));
+                }
+            }
+        } catch (JedisDataException jde) {
+            //EmbeddedRedisServer不支持INFO
+        }
+        return -1;
+    }
+
+    /**
+     * 对比页码分页(zrevrange按排名)与游标分页(zrevrangeByScore从游标开始)在第1、1000与100000篇文章处的每页延迟
+     * 先用ArticleIngester导入足够的文章，游标取自该深度前一篇文章的(分值, 成员)
+     * @param provider
+     * @param conn
+     * @param rounds 每种方式每个深度的执行次数
+     */
+    public void benchmarkPagination(RedisConnectionProvider provider, Jedis conn, int rounds) {
+        int pageSize = 25;
+        int[] depths = {1, 1000, 100000};
+        System.out.println("\n----- benchmarkPagination (" + rounds + " rounds) -----");
+        Chapter01 chapter = new Chapter01(provider);
+        final long total = depths[depths.length - 1] + pageSize;
+        long existing = conn.zcard("time:");
+        if (existing < total) {
+            final long posted = System.currentTimeMillis() / 1000 - total;
+            final long missing = total - existing;
+            new ArticleIngester(provider).ingest(new Iterator<ArticleIngester.Article>() {
+                private long next;
+
+                public boolean hasNext() {
+                    return next < missing;
+                }
+
+                public ArticleIngester.Article next() {
+                    long i = next++;
+                    return new ArticleIngester.Article("bench", "title " + i, "http://bench/" + i, posted + i);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+
+        for (int depth : depths) {
+            //页码分页只能按整页跳转，取深度所在的页
+            int page = (depth - 1) / pageSize + 1;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                chapter.getArticles(conn, page, pageSize, "time:", "title", "link", "votes");
+            }
+            reportLatency("page " + page, rounds, start);
+
+            String cursor = null;
+            int rank = (page - 1) * pageSize;
+            if (rank > 0) {
+                Tuple last = conn.zrevrangeWithScores("time:", rank - 1, rank - 1).iterator().next();
+                cursor = last.getScore() + ":" + last.getElement();
+            }
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                chapter.getArticlesAfter(conn, "time:", cursor, pageSize, "title", "link", "votes");
+            }
+            reportLatency("cursor @" + depth, rounds, start);
+        }
+    }
+
+    /**
+     * 对比直接读取与FrontPageCache在首页流量下的每页延迟：九成请求读取score:的前3页，其余读取第4到10页
+     * @param provider
+     * @param conn
+     * @param reads 读取次数
+     */
+    public void benchmarkFrontPage(RedisConnectionProvider provider, Jedis conn, int reads) {
+        System.out.println("\n----- benchmarkFrontPage (" + reads + " reads) -----");
+        Chapter01 chapter = new Chapter01(provider);
+        Random random = new Random(42);
+        int[] pages = new int[reads];
+        for (int i = 0; i < reads; i++) {
+            pages[i] = random.nextInt(10) < 9 ? 1 + random.nextInt(3) : 4 + random.nextInt(7);
+        }
+
+        long start = System.nanoTime();
+        for (int page : pages) {
+            chapter.getArticles(conn, page, 25, "score:");
+        }
+        reportLatency("live", reads, start);
+
+        FrontPageCache cache = new FrontPageCache(chapter, Arrays.asList("score:", "time:"), 3, 25, 300, false);
+        cache.start();
+        try {
+            start = System.nanoTime();
+            for (int page : pages) {
+                cache.getArticles(conn, page, "score:");
+            }
+            reportLatency("FrontPageCache", reads, start);
+            System.out.println("  " + cache);
+        } finally {
+            cache.quit();
+        }
+    }
+
+    private void reportLatency(String name, int rounds, long startNanos) {
+        double micros = (System.nanoTime() - startNanos) / 1e3 / rounds;
+        System.out.printf("  %-20s %10.1f us/page%n", name, micros);
+    }
+
+    private void report(String name, int ops, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("  %-20s %10.0f ops/s  (%.3f s)%n", name, ops / seconds, seconds);
+    }
+}
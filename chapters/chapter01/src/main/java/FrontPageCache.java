@@ -0,0 +1,349 @@
+import com.google.gson.Gson;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.params.SetParams;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 首页快照缓存：每种排行(score:、time:与登记的分组排行)的前K页文章
+ * 由一个刷新线程每隔refreshMillis毫秒重建为不可变快照，同时生成每页的JSON；
+ * 读取只需一次AtomicReference.get()，不加锁，也不在请求线程中访问Redis。快照之外的页走原来的读取路径。
+ * shared为true时快照以一个字符串(frontpage:)保存在Redis中，各进程每轮先抢frontpage:lock，
+ * 抢到的进程从排行重建并写入，其余进程只读取这个字符串，整个集群每轮只重建一次。
+ */
+public class FrontPageCache
+        extends Thread
+{
+    public static final String SNAPSHOT_KEY = "frontpage:";
+    public static final String LOCK_KEY = "frontpage:lock";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final AtomicInteger CACHES = new AtomicInteger();
+
+    private final Chapter01 chapter;
+    //快照中的排行，分组排行为排序集合 + 分组，如score:programming
+    private final List<String> orders;
+    private final Map<String, String[]> groups = new LinkedHashMap<String, String[]>();
+    private final int pages;
+    private final int pageSize;
+    private final long refreshMillis;
+    private final boolean shared;
+    private final Gson gson = new Gson();
+    //指标名前缀，每个实例不同，多个缓存的指标互不覆盖
+    private final String gaugePrefix;
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+    private volatile boolean quit;
+
+    private final AtomicLong snapshotReads = new AtomicLong();
+    private final AtomicLong liveReads = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastFailure;
+    private volatile long lastRefreshMillis;
+
+    /**
+     * @param chapter
+     * @param orders 快照的排行，如score:、time:
+     * @param pages 每种排行快照的页数
+     * @param pageSize 每页文章数
+     * @param refreshMillis 刷新间隔(毫秒)
+     * @param shared 是否通过Redis在进程间共享快照
+     */
+    public FrontPageCache(Chapter01 chapter, List<String> orders, int pages, int pageSize,
+                          long refreshMillis, boolean shared)
+    {
+        this.chapter = chapter;
+        this.orders = new ArrayList<String>(orders);
+        this.pages = pages;
+        this.pageSize = pageSize;
+        this.refreshMillis = refreshMillis;
+        this.shared = shared;
+        setName("front-page-cache-" + CACHES.incrementAndGet());
+        setDaemon(true);
+        this.gaugePrefix = "frontPage." + getName() + ".";
+    }
+
+    /**
+     * 登记分组的排行，应在start()之前调用
+     * @param group 分组
+     * @param order 排序的有序集合
+     */
+    public FrontPageCache addGroup(String group, String order) {
+        groups.put(order + group, new String[]{group, order});
+        return this;
+    }
+
+    /**
+     * 启动刷新线程，第一个快照建好后返回
+     */
+    public synchronized void start() {
+        refresh();
+        RedisMetrics.get().registerGauge(gaugePrefix + "ageMillis", new RedisMetrics.Gauge() {
+            public long value() {
+                return getSnapshotAgeMillis();
+            }
+        });
+        super.start();
+    }
+
+    public void quit() {
+        quit = true;
+        interrupt();
+        RedisMetrics.get().removeGauge(gaugePrefix + "ageMillis");
+    }
+
+    public void run() {
+        while (!quit) {
+            try {
+                sleep(refreshMillis);
+            } catch (InterruptedException ie) {
+                continue;
+            }
+            refresh();
+        }
+    }
+
+    /**
+     * 获取一页文章，在快照内时返回快照中的不可变数据
+     * @param conn 页不在快照内时使用的连接
+     * @param page 页码
+     * @param order 排序的有序集合
+     * @return
+     */
+    public List<Map<String,String>> getArticles(Jedis conn, int page, String order) {
+        List<Map<String,String>> cached = cachedPage(order, page);
+        if (cached != null) {
+            return cached;
+        }
+        return chapter.getArticles(conn, page, pageSize, order);
+    }
+
+    /**
+     * 获取一页分组文章，分组未登记或页不在快照内时走原来的读取路径
+     * @param conn
+     * @param group 分组
+     * @param page 页码
+     * @param order 排序的有序集合
+     * @return
+     */
+    public List<Map<String,String>> getGroupArticles(Jedis conn, String group, int page, String order) {
+        List<Map<String,String>> cached = cachedPage(order + group, page);
+        if (cached != null) {
+            return cached;
+        }
+        return chapter.getGroupArticles(conn, group, page, pageSize, order);
+    }
+
+    /**
+     * 一页文章的JSON(UTF-8)，可以直接写入响应
+     * @param conn
+     * @param page 页码
+     * @param order 排序的有序集合，分组排行为排序集合 + 分组
+     * @return
+     */
+    public byte[] getSerializedPage(Jedis conn, int page, String order) {
+        Snapshot current = snapshot.get();
+        byte[][] serialized = current != null ? current.serialized.get(order) : null;
+        if (serialized != null && page >= 1 && page <= serialized.length) {
+            snapshotReads.incrementAndGet();
+            return serialized[page - 1];
+        }
+        String[] group = groups.get(order);
+        List<Map<String,String>> articles = group != null
+                ? getGroupArticles(conn, group[0], page, group[1])
+                : getArticles(conn, page, order);
+        return gson.toJson(articles).getBytes(UTF_8);
+    }
+
+    private List<Map<String,String>> cachedPage(String key, int page) {
+        Snapshot current = snapshot.get();
+        List<List<Map<String,String>>> cached = current != null ? current.pages.get(key) : null;
+        if (cached != null && page >= 1 && page <= cached.size()) {
+            snapshotReads.incrementAndGet();
+            return cached.get(page - 1);
+        }
+        liveReads.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 重建或从Redis读取快照，失败时保留原来的快照
+     */
+    public void refresh() {
+        try {
+            Jedis conn = chapter.getProvider().getConnection();
+            try {
+                Snapshot next = null;
+                if (shared && conn.set(LOCK_KEY, getName(), SetParams.setParams().nx().px(refreshMillis)) == null) {
+                    next = load(conn);
+                }
+                if (next == null) {
+                    next = rebuild(conn);
+                }
+                snapshot.set(next);
+                lastRefreshMillis = System.currentTimeMillis();
+            } finally {
+                conn.close();
+            }
+        } catch (RuntimeException re) {
+            //借不到连接或刷新失败时继续使用旧快照，线程不退出，下一轮重试
+            failures.incrementAndGet();
+            lastFailure = re.toString();
+        }
+    }
+
+    private Snapshot rebuild(Jedis conn) {
+        RedisMetrics.begin("frontPageRefresh");
+        try {
+            Map<String, List<Map<String,String>>> articles = new LinkedHashMap<String, List<Map<String,String>>>();
+            //每种排行一次读取前K页：一次zrevrange加一个流水线
+            for (String order : orders) {
+                articles.put(order, chapter.getArticles(conn, 1, pages * pageSize, order));
+            }
+            for (Map.Entry<String, String[]> group : groups.entrySet()) {
+                articles.put(group.getKey(), chapter.getGroupArticles(
+                        conn, group.getValue()[0], 1, pages * pageSize, group.getValue()[1]));
+            }
+            Snapshot built = new Snapshot(System.currentTimeMillis(), articles);
+            if (shared) {
+                //过期时间为几个刷新间隔，刷新进程全部停止后其他进程不会一直读取旧快照
+                conn.set(SNAPSHOT_KEY.getBytes(UTF_8), gson.toJson(new SharedSnapshot(built.createdAt, articles)).getBytes(UTF_8),
+                        SetParams.setParams().px(refreshMillis * 10));
+            }
+            rebuilds.incrementAndGet();
+            return built;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    //读取其他进程写入的快照，不存在时返回null，由本进程重建
+    private Snapshot load(Jedis conn) {
+        byte[] data = conn.get(SNAPSHOT_KEY.getBytes(UTF_8));
+        if (data == null) {
+            return null;
+        }
+        Snapshot current = snapshot.get();
+        SharedSnapshot stored = gson.fromJson(new String(data, UTF_8), SharedSnapshot.class);
+        if (current != null && current.createdAt == stored.createdAt) {
+            //快照没有变化，不重新生成JSON
+            return current;
+        }
+        loads.incrementAndGet();
+        return new Snapshot(stored.createdAt, stored.articles);
+    }
+
+    //快照服务的读取次数
+    public long getSnapshotReads() {
+        return snapshotReads.get();
+    }
+
+    //快照之外走原读取路径的次数
+    public long getLiveReads() {
+        return liveReads.get();
+    }
+
+    public double getSnapshotRatio() {
+        long total = snapshotReads.get() + liveReads.get();
+        return total == 0 ? 0 : snapshotReads.get() / (double) total;
+    }
+
+    //当前快照从排行生成至今的毫秒数，包括在Redis中共享的时间
+    public long getSnapshotAgeMillis() {
+        Snapshot current = snapshot.get();
+        return current == null ? -1 : System.currentTimeMillis() - current.createdAt;
+    }
+
+    //本进程重建快照的次数
+    public long getRebuilds() {
+        return rebuilds.get();
+    }
+
+    //从Redis读取其他进程所建快照的次数
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次失败的异常
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    //指标名前缀，如frontPage.front-page-cache-1.
+    public String getGaugePrefix() {
+        return gaugePrefix;
+    }
+
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("snapshotReads=%d, liveReads=%d, snapshotRatio=%.3f, ageMillis=%d, rebuilds=%d, loads=%d, failures=%d",
+                snapshotReads.get(), liveReads.get(), getSnapshotRatio(), getSnapshotAgeMillis(),
+                rebuilds.get(), loads.get(), failures.get());
+    }
+
+    /**
+     * 不可变快照：按页切分的文章与每页的JSON
+     */
+    private class Snapshot {
+        private final long createdAt;
+        private final Map<String, List<List<Map<String,String>>>> pages;
+        private final Map<String, byte[][]> serialized;
+
+        private Snapshot(long createdAt, Map<String, List<Map<String,String>>> articles) {
+            this.createdAt = createdAt;
+            Map<String, List<List<Map<String,String>>>> pages = new HashMap<String, List<List<Map<String,String>>>>();
+            Map<String, byte[][]> serialized = new HashMap<String, byte[][]>();
+            for (Map.Entry<String, List<Map<String,String>>> entry : articles.entrySet()) {
+                List<Map<String,String>> all = entry.getValue();
+                //排行不足K页时后面的页为空，仍由快照返回
+                List<List<Map<String,String>>> split = new ArrayList<List<Map<String,String>>>(FrontPageCache.this.pages);
+                for (int start = 0; split.size() < FrontPageCache.this.pages; start += pageSize) {
+                    List<Map<String,String>> page = new ArrayList<Map<String,String>>(pageSize);
+                    for (Map<String,String> article : all.subList(Math.min(start, all.size()), Math.min(start + pageSize, all.size()))) {
+                        page.add(Collections.unmodifiableMap(new HashMap<String,String>(article)));
+                    }
+                    split.add(Collections.unmodifiableList(page));
+                }
+                byte[][] json = new byte[split.size()][];
+                for (int i = 0; i < json.length; i++) {
+                    json[i] = gson.toJson(split.get(i)).getBytes(UTF_8);
+                }
+                pages.put(entry.getKey(), Collections.unmodifiableList(split));
+                serialized.put(entry.getKey(), json);
+            }
+            this.pages = pages;
+            this.serialized = serialized;
+        }
+    }
+
+    /**
+     * 保存在Redis中的快照
+     */
+    private static class SharedSnapshot {
+        private long createdAt;
+        private Map<String, List<Map<String,String>>> articles;
+
+        private SharedSnapshot(long createdAt, Map<String, List<Map<String,String>>> articles) {
+            this.createdAt = createdAt;
+            this.articles = articles;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.ZParams;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.SetParams;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分组文章排行的增量维护
+ * 分组排行有序集合(score:分组, time:分组)建立后不再过期，投票、加入分组时增量更新，
+ * 不再每60秒对整个score:执行一次ZINTERSTORE。
+ * 排行不存在(冷启动)时，同一时刻只有一个线程/进程执行ZINTERSTORE重建，其余等待重建完成。
+ * 重建时同时包含已归档的文章，归档不影响分组排行。
+ * 另外维护"groups:文章id"集合记录文章所属分组，投票时据此找到需要更新的分组排行。
+ * 没有文章的分组不会生成排行键，重建时同时写入"built:排行"标记(BUILT_MARKER_SECONDS秒后过期)，
+ * 标记存在期间读取空分组不再重建，加入分组时照常写入排行。
+ * 投票对score:与分组排行的增量在同一个脚本中执行(见onVote)，脚本读写的key全部通过KEYS传入。
+ * 投票脚本只在第一次使用或收到NOSCRIPT后发送全文，其余时候用EVALSHA发送。
+ * 所有key可以加上统一的前缀(keyPrefix)，ShardedChapter01每个分区用一个实例，前缀为分区的hash tag。
+ */
+public class GroupRankings {
+    //重建锁的过期时间(毫秒)，持有锁的进程异常退出时锁自动释放
+    private static final int REBUILD_LOCK_MILLIS = 10000;
+    private static final int REBUILD_POLL_MILLIS = 10;
+    //空分组的标记过期时间(秒)，与原来分组排行的缓存时间相同
+    private static final int BUILT_MARKER_SECONDS = 60;
+    private static final String BUILT_PREFIX = "built:";
+    //本进程重建锁的分段数
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * 加入分组脚本：加入分组集合、记录文章所属分组，已建立的分组排行(score:分组, time:分组)同时加入该文章
+     * 脚本读写的key全部通过KEYS传入(见addGroupsKeys)，不在脚本中拼接
+     * KEYS: article:文章id, groups:文章id, score:, time:,
+     *       每个分组依次为group:分组, score:分组, built:score:分组, time:分组, built:time:分组
+     * ARGV: article:文章id(有序集合的成员，不含key前缀), 分组...
+     */
+    private static final String ADD_GROUPS_SCRIPT =
+            "for i = 2, #ARGV do " +
+            "  local base = 4 + (i - 2) * 5 " +
+            "  redis.call('sadd', KEYS[base + 1], ARGV[1]) " +
+            "  redis.call('sadd', KEYS[2], ARGV[i]) " +
+            "  for j = 0, 1 do " +
+            "    local ranking = KEYS[base + 2 + j * 2] " +
+            "    if redis.call('exists', ranking) == 1 or redis.call('exists', KEYS[base + 3 + j * 2]) == 1 then " +
+            "      local score = redis.call('zscore', KEYS[3 + j], ARGV[1]) " +
+            "      if score then redis.call('zadd', ranking, score, ARGV[1]) end " +
+            "    end " +
+            "  end " +
+            "end " +
+            "return #ARGV - 1";
+
+    /**
+     * 投票脚本：增加得分、票数与文章所在的已建立分组排行(score:分组)中的得分
+     * 分组排行的key由调用方按事先读取的分组传入，脚本先核对"groups:文章id"，见checkGroups
+     * KEYS: score:, article:文章id, groups:文章id, score:分组...
+     * ARGV: 得分增量, article:文章id(有序集合的成员，不含key前缀), 分组...
+     * 返回1；分组已变化时不做修改，返回当前的分组
+     */
+    private static final String VOTE_SCRIPT =
+            checkGroups(3, 3) +
+            "redis.call('zincrby', KEYS[1], ARGV[1], ARGV[2]) " +
+            "redis.call('hincrby', KEYS[2], 'votes', 1) " +
+            "for i = 4, #KEYS do " +
+            "  redis.call('zadd', KEYS[i], 'XX', 'INCR', ARGV[1], ARGV[2]) " +
+            "end " +
+            "return 1";
+
+    //VOTE_SCRIPT的sha1，与SCRIPT LOAD的返回值相同，流水线中不需要等待加载的回复
+    static final String VOTE_SHA = sha1(VOTE_SCRIPT);
+
+    /**
+     * 释放重建锁脚本，只删除自己持有的锁
+     */
+    private static final String RELEASE_LOCK_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end " +
+            "return 0";
+
+    //本进程内的分段重建锁，避免多个线程同时重建同一个分组排行，锁的数量不随分组数增长
+    private final Object[] localLocks = new Object[LOCK_STRIPES];
+    //所有key的前缀
+    private final String keyPrefix;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong groupRetries = new AtomicLong();
+    //投票脚本是否已发送给Redis(EVAL或SCRIPT LOAD)，收到NOSCRIPT后重新发送
+    private volatile boolean voteLoaded;
+
+    public GroupRankings() {
+        this("");
+    }
+
+    /**
+     * @param keyPrefix 所有key的前缀，如分区的hash tag
+     */
+    public GroupRankings(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+        for (int i = 0; i < localLocks.length; i++) {
+            localLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * 脚本片段：核对"groups:文章id"(KEYS[groupsKey])与ARGV[firstGroup]起传入的分组，
+     * 不一致时在任何修改之前返回当前的分组。
+     * 分组排行的key在执行前就要确定，由调用方先读取分组，脚本内核对，
+     * 读取之后加入的分组不会漏掉这一票(效果与WATCH groups:文章id相同)。
+     * @param groupsKey "groups:文章id"在KEYS中的位置
+     * @param firstGroup 第一个分组在ARGV中的位置，其后的参数都是分组
+     * @return
+     */
+    static String checkGroups(int groupsKey, int firstGroup) {
+        String groups = "KEYS[" + groupsKey + "]";
+        return "local groups = redis.call('smembers', " + groups + ") " +
+               "if #groups ~= #ARGV - " + (firstGroup - 1) + " then return groups end " +
+               "for i = " + firstGroup + ", #ARGV do " +
+               "  if redis.call('sismember', " + groups + ", ARGV[i]) == 0 then return groups end " +
+               "end ";
+    }
+
+    /**
+     * 文章加入分组
+     * @param conn
+     * @param articleId 文章id
+     * @param toAdd 分组
+     */
+    public void addGroups(Jedis conn, String articleId, String[] toAdd) {
+        List<String> args = new ArrayList<String>(1 + toAdd.length);
+        args.add("article:" + articleId);
+        args.addAll(Arrays.asList(toAdd));
+        conn.eval(ADD_GROUPS_SCRIPT, addGroupsKeys(articleId, toAdd), args);
+    }
+
+    private List<String> addGroupsKeys(String articleId, String[] toAdd) {
+        List<String> keys = new ArrayList<String>(4 + toAdd.length * 5);
+        keys.add(keyPrefix + "article:" + articleId);
+        keys.add(keyPrefix + "groups:" + articleId);
+        keys.add(keyPrefix + "score:");
+        keys.add(keyPrefix + "time:");
+        for (String group : toAdd) {
+            keys.add(keyPrefix + "group:" + group);
+            keys.add(keyPrefix + "score:" + group);
+            keys.add(keyPrefix + BUILT_PREFIX + "score:" + group);
+            keys.add(keyPrefix + "time:" + group);
+            keys.add(keyPrefix + BUILT_PREFIX + "time:" + group);
+        }
+        return keys;
+    }
+
+    /**
+     * 投票后增加得分、票数与文章所在的已建立分组排行中的得分
+     * 三者在同一个脚本中执行，重建排行不会插在中间，否则重建已包含新的得分，
+     * 随后的ZINCRBY XX会把这一票重复计入分组排行。
+     * 分组在读取之后发生变化时，按脚本返回的分组重试。
+     * @param conn
+     * @param article article:文章id
+     * @param increment 得分增量
+     * @param groups "groups:文章id"的成员，由调用方事先读取
+     */
+    public void onVote(Jedis conn, String article, double increment, Set<String> groups) {
+        Set<String> current = groups;
+        while (current != null) {
+            current = changedGroups(evalVote(conn, voteKeys(article, current), voteArgs(article, increment, current)));
+        }
+    }
+
+    private Object evalVote(Jedis conn, List<String> keys, List<String> args) {
+        if (!voteLoaded) {
+            conn.scriptLoad(VOTE_SCRIPT);
+            voteLoaded = true;
+        }
+        try {
+            return conn.evalsha(VOTE_SHA, keys, args);
+        } catch (JedisDataException jde) {
+            //Redis重启或执行SCRIPT FLUSH后脚本缓存会丢失，重新加载一次
+            if (!scriptMissing(jde)) {
+                throw jde;
+            }
+            conn.scriptLoad(VOTE_SCRIPT);
+            voteLoaded = true;
+            return conn.evalsha(VOTE_SHA, keys, args);
+        }
+    }
+
+    /**
+     * 流水线版本的onVote，回复交给changedGroups判断是否需要重试
+     * 脚本尚未发送时用EVAL发送全文(同时缓存在Redis中)，之后用EVALSHA；
+     * 回复为NOSCRIPT时调用方用scriptMissing检查，再次调用本方法重发
+     * @param pipeline
+     * @param article article:文章id
+     * @param increment 得分增量
+     * @param groups "groups:文章id"的成员，由调用方事先读取
+     * @return 投票脚本的回复
+     */
+    public Response<Object> onVote(Pipeline pipeline, String article, double increment, Set<String> groups) {
+        List<String> keys = voteKeys(article, groups);
+        List<String> args = voteArgs(article, increment, groups);
+        if (!voteLoaded) {
+            voteLoaded = true;
+            return pipeline.eval(VOTE_SCRIPT, keys, args);
+        }
+        return pipeline.evalsha(VOTE_SHA, keys, args);
+    }
+
+    /**
+     * 检查投票脚本的错误回复是否为NOSCRIPT，是则下次投票时重新发送脚本
+     * @param jde
+     * @return 是否为NOSCRIPT
+     */
+    public boolean scriptMissing(JedisDataException jde) {
+        if (jde.getMessage() == null || !jde.getMessage().startsWith("NOSCRIPT")) {
+            return false;
+        }
+        voteLoaded = false;
+        return true;
+    }
+
+    static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * 检查投票脚本(包括使用checkGroups的其他脚本)的回复
+     * @param reply 脚本的回复
+     * @return 分组已变化时为当前的分组，需要按它重试；否则为null
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> changedGroups(Object reply) {
+        if (!(reply instanceof List)) {
+            return null;
+        }
+        groupRetries.incrementAndGet();
+        return new HashSet<String>((List<String>) reply);
+    }
+
+    /**
+     * 文章所在分组的得分排行(score:分组)，作为脚本的KEYS传入
+     * @param groups 分组
+     * @return
+     */
+    public static List<String> scoreRankings(Set<String> groups) {
+        List<String> keys = new ArrayList<String>(groups.size());
+        for (String group : groups) {
+            keys.add("score:" + group);
+        }
+        return keys;
+    }
+
+    private List<String> voteKeys(String article, Set<String> groups) {
+        List<String> keys = new ArrayList<String>(3 + groups.size());
+        keys.add(keyPrefix + "score:");
+        keys.add(keyPrefix + article);
+        keys.add(keyPrefix + "groups:" + article.substring(article.indexOf(':') + 1));
+        for (String ranking : scoreRankings(groups)) {
+            keys.add(keyPrefix + ranking);
+        }
+        return keys;
+    }
+
+    private static List<String> voteArgs(String article, double increment, Set<String> groups) {
+        List<String> args = new ArrayList<String>(2 + groups.size());
+        args.add(String.valueOf(increment));
+        args.add(article);
+        args.addAll(groups);
+        return args;
+    }
+
+    /**
+     * 确保分组排行已建立，返回排行的key
+     * @param conn
+     * @param group 分组
+     * @param order 排序的有序集合
+     * @return 排行的key(含前缀)
+     */
+    public String ensureRanking(Jedis conn, String group, String order) {
+        String ranking = order + group;
+        if (built(conn, ranking)) {
+            hits.incrementAndGet();
+            return keyPrefix + ranking;
+        }
+
+        Object localLock = localLocks[(ranking.hashCode() & 0x7fffffff) % localLocks.length];
+        synchronized (localLock) {
+            //等待锁期间其他线程可能已经建好
+            if (built(conn, ranking)) {
+                waits.incrementAndGet();
+                return keyPrefix + ranking;
+            }
+            rebuild(conn, group, order, ranking);
+        }
+        return keyPrefix + ranking;
+    }
+
+    private void rebuild(Jedis conn, String group, String order, String ranking) {
+        String lock = keyPrefix + "lock:" + ranking;
+        String identifier = UUID.randomUUID().toString();
+        long deadline = System.currentTimeMillis() + REBUILD_LOCK_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            //跨进程的重建锁，set nx px
+            if ("OK".equals(conn.set(lock, identifier, SetParams.setParams().nx().px(REBUILD_LOCK_MILLIS)))) {
+                try {
+                    if (!built(conn, ranking)) {
+                        rebuildRanking(conn, group, order, ranking);
+                        rebuilds.incrementAndGet();
+                    }
+                } finally {
+                    conn.eval(RELEASE_LOCK_SCRIPT, Collections.singletonList(lock),
+                            Collections.singletonList(identifier));
+                }
+                return;
+            }
+
+            //其他进程正在重建，等待完成
+            try {
+                Thread.sleep(REBUILD_POLL_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (built(conn, ranking)) {
+                waits.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    //排行已存在，或者是标记未过期的空排行
+    private boolean built(Jedis conn, String ranking) {
+        return conn.exists(keyPrefix + ranking, keyPrefix + BUILT_PREFIX + ranking) > 0;
+    }
+
+    /**
+     * 分组排行包括热排行与ArticleArchiver归档后的冻结排行中的文章，
+     * 在一个事务内完成，读取方不会看到只有一部分文章的排行
+     */
+    private void rebuildRanking(Jedis conn, String group, String order, String ranking) {
+        ZParams params = new ZParams().aggregate(ZParams.Aggregate.MAX);
+        String key = keyPrefix + ranking;
+        String members = keyPrefix + "group:" + group;
+        String frozen = keyPrefix + ArticleArchiver.ARCHIVE_PREFIX + order;
+        String frozenPart = keyPrefix + "tmp:" + ranking;
+        Transaction trans = conn.multi();
+        trans.setex(keyPrefix + BUILT_PREFIX + ranking, BUILT_MARKER_SECONDS, "1");
+        trans.zinterstore(key, params, members, keyPrefix + order);
+        trans.zinterstore(frozenPart, params, members, frozen);
+        trans.zunionstore(key, params, key, frozenPart);
+        trans.del(frozenPart);
+        trans.exec();
+    }
+
+    //直接命中已建立排行的次数
+    public long getHits() {
+        return hits.get();
+    }
+
+    //执行ZINTERSTORE重建的次数
+    public long getRebuilds() {
+        return rebuilds.get();
+    }
+
+    //等待其他线程/进程重建完成的次数
+    public long getWaits() {
+        return waits.get();
+    }
+
+    //投票时分组已变化、按当前分组重试的次数
+    public long getGroupRetries() {
+        return groupRetries.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits.get() + ", rebuilds=" + rebuilds.get() + ", waits=" + waits.get()
+                + ", groupRetries=" + groupRetries.get();
+    }
+}
@@ -0,0 +1,52 @@
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 原来的去重方式：每篇文章一个voted:文章id 集合，成员为投票用户，结果准确
+ * 内存随投票数线性增长，每个成员都要保存完整的用户名。
+ */
+public class SetVoteDedup implements VoteDedup {
+    public static final String NAME = "set";
+
+    public Result add(Pipeline pipeline, String articleId, String user, long expireAt) {
+        String voted = key(articleId);
+        final Response<Long> added = pipeline.sadd(voted, user);
+        pipeline.expireAt(voted, expireAt);
+        return new Result() {
+            public boolean isFirstVote() {
+                return added.get() == 1;
+            }
+        };
+    }
+
+    public String scriptStep(int firstKey, int firstArg) {
+        return "if redis.call('sadd', KEYS[" + firstKey + "], ARGV[" + firstArg + "]) == 0 then return 0 end ";
+    }
+
+    public int scriptKeyCount() {
+        return 1;
+    }
+
+    public int scriptArgCount() {
+        return 1;
+    }
+
+    public List<String> scriptKeys(String articleId) {
+        return Collections.singletonList(key(articleId));
+    }
+
+    public List<String> scriptArgs(String user) {
+        return Collections.singletonList(user);
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public String key(String articleId) {
+        return "voted:" + articleId;
+    }
+}
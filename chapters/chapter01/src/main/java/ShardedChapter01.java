@@ -0,0 +1,402 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文章投票的分片版本，数据分布在ShardedRedis的多个节点上，写入吞吐量随节点数增长
+ * 每篇文章属于一个分区，文章id = 分区内序号 * 分区数 + 分区，由id即可算出分区。分区p的键：
+ *   {pN}article:            分区内的文章序号
+ *   {pN}article:id          文章散列
+ *   {pN}voted:id            投票去重记录(去重方式见VoteDedup，bitmap方式的voters:与voter:也按分区保存)
+ *   {pN}score: {pN}time:    分区内的得分与发布时间排行，成员仍为article:id
+ *   {pN}group:分组           分区内属于该分组的文章
+ *   {pN}groups:id           文章所属的分组
+ *   {pN}score:分组           分区内的分组排行，由每个分区的GroupRankings建立一次，之后随投票与加入分组增量更新
+ * 一篇文章的所有键都在同一个分区，投票与分组排行的多键命令在分区内执行，Redis Cluster中同样可用；
+ * 投票与单机版本的articleVoteAtomic执行同一个脚本(Chapter01.articleVoteScript)，key加上分区的hash tag，
+ * 在分区所在节点上一次EVALSHA完成；
+ * 全局排行由各分区排行的前end+1名归并得到(scatter-gather)。
+ */
+public class ShardedChapter01 {
+    private final ShardedRedis redis;
+    //新文章轮流写入各分区
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    //每个分区的去重方式及其脚本，bitmap方式的偏移量按分区分配，进程内的偏移量缓存也按分区
+    private volatile PartitionVotes[] votes;
+    //每个分区的分组排行，key前缀为分区的hash tag
+    private final GroupRankings[] rankings;
+
+    /**
+     * 一个分区的去重方式，以及按它生成的投票脚本与记录作者投票的脚本
+     */
+    private static class PartitionVotes {
+        private final VoteDedup dedup;
+        private final String voteScript;
+        private final String voteSha;
+        private final String recordScript;
+        private final String recordSha;
+
+        private PartitionVotes(VoteDedup dedup) {
+            this.dedup = dedup;
+            this.voteScript = Chapter01.articleVoteScript(dedup);
+            this.voteSha = GroupRankings.sha1(voteScript);
+            this.recordScript = recordVoteScript(dedup);
+            this.recordSha = GroupRankings.sha1(recordScript);
+        }
+    }
+
+    public ShardedChapter01(ShardedRedis redis) {
+        this.redis = redis;
+        this.rankings = new GroupRankings[redis.getPartitions()];
+        for (int p = 0; p < rankings.length; p++) {
+            rankings[p] = new GroupRankings(ShardedRedis.tag(p));
+        }
+        setVoteDedup(System.getProperty("votes.dedup", SetVoteDedup.NAME));
+    }
+
+    /**
+     * 更换投票去重方式，每个分区使用各自的实例
+     * @param name 去重方式的名称，见VoteDedups
+     */
+    public void setVoteDedup(String name) {
+        PartitionVotes[] created = new PartitionVotes[redis.getPartitions()];
+        for (int p = 0; p < created.length; p++) {
+            created[p] = new PartitionVotes(VoteDedups.create(name));
+        }
+        votes = created;
+    }
+
+    //分区使用的去重方式，其key需要加上分区的hash tag
+    public VoteDedup getVoteDedup(int partition) {
+        return votes[partition].dedup;
+    }
+
+    public GroupRankings getGroupRankings(int partition) {
+        return rankings[partition];
+    }
+
+    /**
+     * 发布文章时记录作者投票的脚本：执行去重方式的脚本步骤，再设置投票记录的过期时间
+     * KEYS: 去重步骤的key...
+     * ARGV: 去重步骤的参数..., 过期时间(秒)
+     */
+    static String recordVoteScript(VoteDedup dedup) {
+        int recordKey = 1 + dedup.scriptKeys("0").indexOf(dedup.key("0"));
+        return dedup.scriptStep(1, 1) +
+               "redis.call('expireat', KEYS[" + recordKey + "], ARGV[" + (1 + dedup.scriptArgCount()) + "]) " +
+               "return 1";
+    }
+
+    public static void main(String[] args) {
+        ShardedRedis redis = ShardedRedis.fromSystemProperties();
+        try {
+            new ShardedChapter01(redis).run();
+        } finally {
+            redis.close();
+        }
+    }
+
+    public void run() {
+        System.out.println("Shards: " + redis);
+        String articleId = postArticle("username", "A title", "http://www.google.com");
+        System.out.println("We posted a new article with id: " + articleId);
+        for (int i = 0; i < 10; i++) {
+            postArticle("user" + i, "Title " + i, "http://www.google.com/" + i);
+        }
+
+        boolean voted = articleVote("other_user", "article:" + articleId);
+        System.out.println("We voted for the article: " + voted);
+        assert voted;
+
+        System.out.println("The currently highest-scoring articles across all partitions are:");
+        List<Map<String,String>> articles = getArticles(1, 5, "score:");
+        for (Map<String,String> article : articles) {
+            System.out.println("  " + article.get("id") + " votes=" + article.get("votes"));
+        }
+        assert articles.get(0).get("id").equals("article:" + articleId);
+
+        addGroups(articleId, new String[]{"new-group"});
+        articles = getGroupArticles("new-group", 1, 25, "score:");
+        System.out.println("The group contains: " + articles.size() + " article(s)");
+        assert articles.size() == 1;
+    }
+
+    public ShardedRedis getRedis() {
+        return redis;
+    }
+
+    //文章id所属的分区
+    public int partitionOf(long articleId) {
+        return (int) (articleId % redis.getPartitions());
+    }
+
+    private int partitionOf(String article) {
+        return partitionOf(Long.parseLong(article.substring(article.indexOf(':') + 1)));
+    }
+
+    /**
+     * 发布文章，新文章轮流写入各分区
+     * @param user 用户
+     * @param title 文章标题
+     * @param link 文章连接
+     * @return 文章id
+     */
+    public String postArticle(final String user, final String title, final String link) {
+        final int partition = (nextPartition.getAndIncrement() & Integer.MAX_VALUE) % redis.getPartitions();
+        final PartitionVotes votes = this.votes[partition];
+        return redis.execute(partition, new RedisCallback<String>() {
+            public String doInRedis(Jedis conn) {
+                RedisMetrics.begin("postArticle");
+                try {
+                    long sequence = conn.incr(ShardedRedis.key(partition, "article:"));
+                    String articleId = String.valueOf(sequence * redis.getPartitions() + partition);
+
+                    long now = System.currentTimeMillis() / 1000;
+                    String article = "article:" + articleId;
+                    Map<String,String> articleData = new HashMap<String,String>();
+                    articleData.put("title", title);
+                    articleData.put("link", link);
+                    articleData.put("user", user);
+                    articleData.put("now", String.valueOf(now));
+                    articleData.put("votes", "1");
+
+                    List<String> keys = keys(partition, votes.dedup.scriptKeys(articleId));
+                    List<String> args = new ArrayList<String>(votes.dedup.scriptArgs(user));
+                    args.add(String.valueOf(now + Chapter01.ONE_WEEK_IN_SECONDS));
+                    Pipeline pipeline = conn.pipelined();
+                    Response<Object> recorded = pipeline.evalsha(votes.recordSha, keys, args);
+                    pipeline.hmset(ShardedRedis.key(partition, article), articleData);
+                    pipeline.zadd(ShardedRedis.key(partition, "score:"), now + Chapter01.VOTE_SCORE, article);
+                    pipeline.zadd(ShardedRedis.key(partition, "time:"), now, article);
+                    pipeline.sync();
+                    try {
+                        recorded.get();
+                    } catch (JedisDataException jde) {
+                        //节点上没有脚本时，加载后单独重新记录
+                        evalsha(conn, votes.recordSha, votes.recordScript, keys, args);
+                    }
+                    return articleId;
+                } finally {
+                    RedisMetrics.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * 文章投票，在分区所在节点上执行投票脚本，检查截止时间、去重与更新得分一次往返原子完成
+     * @param user 用户
+     * @param article 文章:id
+     * @return 是否投票成功
+     */
+    public boolean articleVote(final String user, final String article) {
+        final int partition = partitionOf(article);
+        final PartitionVotes votes = this.votes[partition];
+        return redis.execute(partition, new RedisCallback<Boolean>() {
+            public Boolean doInRedis(Jedis conn) {
+                RedisMetrics.begin("articleVote");
+                try {
+                    long cutoff = (System.currentTimeMillis() / 1000) - Chapter01.ONE_WEEK_IN_SECONDS;
+                    //先按不属于任何分组执行，分组不一致时按脚本返回的分组重试
+                    Set<String> groups = Collections.emptySet();
+                    while (true) {
+                        Object reply = evalsha(conn, votes.voteSha, votes.voteScript,
+                                keys(partition, Chapter01.articleVoteKeys(votes.dedup, article, groups)),
+                                Chapter01.articleVoteArgs(votes.dedup, user, article, cutoff, groups));
+                        Set<String> current = rankings[partition].changedGroups(reply);
+                        if (current == null) {
+                            return ((Long) reply) == 1;
+                        }
+                        groups = current;
+                    }
+                } finally {
+                    RedisMetrics.end();
+                }
+            }
+        });
+    }
+
+    //key加上分区的hash tag
+    private static List<String> keys(int partition, List<String> keys) {
+        List<String> tagged = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            tagged.add(ShardedRedis.key(partition, key));
+        }
+        return tagged;
+    }
+
+    /**
+     * EVALSHA，节点的脚本缓存中没有该脚本(第一次使用、重启或SCRIPT FLUSH)时加载后重试一次
+     */
+    private static Object evalsha(Jedis conn, String sha, String script, List<String> keys, List<String> args) {
+        try {
+            return conn.evalsha(sha, keys, args);
+        } catch (JedisDataException jde) {
+            if (jde.getMessage() == null || !jde.getMessage().startsWith("NOSCRIPT")) {
+                throw jde;
+            }
+            conn.scriptLoad(script);
+            return conn.evalsha(sha, keys, args);
+        }
+    }
+
+    /**
+     * 获取全局排行的一页文章：各节点并行读取其分区排行的前end+1名，归并后截取本页，再按节点读取文章散列
+     * @param page 页码
+     * @param pageSize 每页文章数
+     * @param order 排序的有序集合(score:或time:，分组排行为score:分组)
+     * @param fields 只获取的字段，为空时获取全部字段
+     * @return
+     */
+    public List<Map<String,String>> getArticles(int page, int pageSize, final String order, final String... fields) {
+        RedisMetrics.begin("getArticles");
+        try {
+            int start = (page - 1) * pageSize;
+            final int end = start + pageSize - 1;
+
+            List<Tuple> merged = new ArrayList<Tuple>();
+            for (List<Tuple> top : redis.scatter(new ShardedRedis.ShardCallback<List<Tuple>>() {
+                public List<Tuple> doInShard(Jedis conn, List<Integer> partitions) {
+                    Pipeline pipeline = conn.pipelined();
+                    List<Response<Set<Tuple>>> responses = new ArrayList<Response<Set<Tuple>>>(partitions.size());
+                    for (int partition : partitions) {
+                        responses.add(pipeline.zrevrangeWithScores(ShardedRedis.key(partition, order), 0, end));
+                    }
+                    pipeline.sync();
+                    List<Tuple> top = new ArrayList<Tuple>();
+                    for (Response<Set<Tuple>> response : responses) {
+                        top.addAll(response.get());
+                    }
+                    return top;
+                }
+            })) {
+                merged.addAll(top);
+            }
+            //分值相同时与单机ZREVRANGE一样按成员倒序
+            Collections.sort(merged, Collections.reverseOrder());
+            if (merged.size() <= start) {
+                return new ArrayList<Map<String,String>>();
+            }
+            final List<String> ids = new ArrayList<String>(pageSize);
+            for (Tuple tuple : merged.subList(start, Math.min(end + 1, merged.size()))) {
+                ids.add(tuple.getElement());
+            }
+
+            final Map<String, Map<String,String>> articles = new HashMap<String, Map<String,String>>();
+            for (Map<String, Map<String,String>> fetched : redis.scatter(
+                    new ShardedRedis.ShardCallback<Map<String, Map<String,String>>>() {
+                public Map<String, Map<String,String>> doInShard(Jedis conn, List<Integer> partitions) {
+                    return fetchArticles(conn, partitions, ids, fields);
+                }
+            })) {
+                articles.putAll(fetched);
+            }
+            List<Map<String,String>> result = new ArrayList<Map<String,String>>(ids.size());
+            for (String id : ids) {
+                Map<String,String> articleData = articles.get(id);
+                articleData.put("id", id);
+                result.add(articleData);
+            }
+            return result;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    //读取属于本节点分区的文章
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String,String>> fetchArticles(
+            Jedis conn, List<Integer> partitions, List<String> ids, String... fields)
+    {
+        Map<String, Response<?>> responses = new HashMap<String, Response<?>>();
+        Pipeline pipeline = conn.pipelined();
+        for (String id : ids) {
+            int partition = partitionOf(id);
+            if (!partitions.contains(partition)) {
+                continue;
+            }
+            String key = ShardedRedis.key(partition, id);
+            responses.put(id, fields.length == 0 ? pipeline.hgetAll(key) : pipeline.hmget(key, fields));
+        }
+        if (responses.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        pipeline.sync();
+
+        Map<String, Map<String,String>> articles = new HashMap<String, Map<String,String>>(responses.size() * 2);
+        for (Map.Entry<String, Response<?>> entry : responses.entrySet()) {
+            if (fields.length == 0) {
+                articles.put(entry.getKey(), ((Response<Map<String,String>>) entry.getValue()).get());
+                continue;
+            }
+            List<String> values = ((Response<List<String>>) entry.getValue()).get();
+            Map<String,String> articleData = new HashMap<String,String>(fields.length * 2);
+            for (int f = 0; f < fields.length; f++) {
+                if (values.get(f) != null) {
+                    articleData.put(fields[f], values.get(f));
+                }
+            }
+            articles.put(entry.getKey(), articleData);
+        }
+        return articles;
+    }
+
+    /**
+     * 文章加入分组，分组集合按文章所在分区保存，分区内已建立的分组排行同时加入该文章
+     * @param articleId 文章id
+     * @param toAdd 分组
+     */
+    public void addGroups(String articleId, final String[] toAdd) {
+        final long id = Long.parseLong(articleId);
+        final int partition = partitionOf(id);
+        redis.execute(partition, new RedisCallback<Void>() {
+            public Void doInRedis(Jedis conn) {
+                RedisMetrics.begin("addGroups");
+                try {
+                    rankings[partition].addGroups(conn, String.valueOf(id), toAdd);
+                    return null;
+                } finally {
+                    RedisMetrics.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * 获取分组文章：各分区的分组排行由GroupRankings确保已建立(冷启动时每个分区只重建一次)，再与getArticles一样归并
+     * @param group 分组
+     * @param page 页码
+     * @param pageSize 每页文章数
+     * @param order 排序的有序集合
+     * @param fields 只获取的字段，为空时获取全部字段
+     * @return
+     */
+    public List<Map<String,String>> getGroupArticles(
+            final String group, int page, int pageSize, final String order, String... fields)
+    {
+        RedisMetrics.begin("getGroupArticles");
+        try {
+            redis.scatter(new ShardedRedis.ShardCallback<Void>() {
+                public Void doInShard(Jedis conn, List<Integer> partitions) {
+                    for (int partition : partitions) {
+                        rankings[partition].ensureRanking(conn, group, order);
+                    }
+                    return null;
+                }
+            });
+            return getArticles(page, pageSize, order + group, fields);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用户名到连续整数偏移量的映射，供BitmapVoteDedup使用
+ * 映射保存在voters:散列中，新用户的偏移量由脚本在Redis中原子分配(INCR voter: 后HSET)，
+ * 并发分配时每个用户只有一个偏移量，不浪费偏移量。偏移量分配后不再改变，在进程内LRU缓存，命中时不访问Redis。
+ * 所有读取都使用调用方的连接或流水线，不借用其他连接：resolve在发送流水线之前批量取得偏移量，
+ * BitmapVoteDedup在缓存未命中时把分配与SETBIT放进同一个脚本。
+ */
+public class UserOffsets {
+    public static final String OFFSETS_KEY = "voters:";
+    public static final String COUNTER_KEY = "voter:";
+
+    /**
+     * 取得或分配偏移量
+     * KEYS: voters:, voter:
+     * ARGV: 用户...
+     * 返回与ARGV顺序相同的偏移量
+     */
+    static final String ASSIGN_SCRIPT =
+            "local offsets = {} " +
+            "for i = 1, #ARGV do " +
+            "  local offset = redis.call('hget', KEYS[1], ARGV[i]) " +
+            "  if offset then " +
+            "    offsets[i] = tonumber(offset) " +
+            "  else " +
+            "    offsets[i] = redis.call('incr', KEYS[2]) - 1 " +
+            "    redis.call('hset', KEYS[1], ARGV[i], offsets[i]) " +
+            "  end " +
+            "end " +
+            "return offsets";
+
+    private final int maxSize;
+    private final LinkedHashMap<String, Long> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+
+    public UserOffsets(int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > UserOffsets.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * 只查进程内缓存
+     * @param user
+     * @return 偏移量，未缓存时为null(计为一次未命中)
+     */
+    public Long cached(String user) {
+        Long offset;
+        synchronized (cache) {
+            offset = cache.get(user);
+        }
+        if (offset != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return offset;
+    }
+
+    //从Redis取得偏移量后放入缓存
+    void remember(String user, long offset) {
+        synchronized (cache) {
+            cache.put(user, offset);
+        }
+    }
+
+    /**
+     * 批量取得用户的偏移量，新用户分配下一个偏移量；未缓存的用户用一次EVAL读取
+     * @param conn 调用方的连接，不能处于流水线或事务中
+     * @param users
+     * @return 用户到从0开始的偏移量
+     */
+    public Map<String, Long> resolve(Jedis conn, Collection<String> users) {
+        Map<String, Long> offsets = new HashMap<String, Long>(users.size() * 2);
+        List<String> missing = new ArrayList<String>();
+        for (String user : new LinkedHashSet<String>(users)) {
+            Long offset = cached(user);
+            if (offset != null) {
+                offsets.put(user, offset);
+            } else {
+                missing.add(user);
+            }
+        }
+        if (missing.isEmpty()) {
+            return offsets;
+        }
+
+        lookups.incrementAndGet();
+        @SuppressWarnings("unchecked")
+        List<Long> assigned = (List<Long>) conn.eval(ASSIGN_SCRIPT, Arrays.asList(OFFSETS_KEY, COUNTER_KEY), missing);
+        for (int i = 0; i < missing.size(); i++) {
+            remember(missing.get(i), assigned.get(i));
+            offsets.put(missing.get(i), assigned.get(i));
+        }
+        return offsets;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    //resolve读取Redis的次数
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits.get() + ", misses=" + misses.get() + ", lookups=" + lookups.get();
+    }
+}
@@ -0,0 +1,50 @@
+import redis.clients.jedis.Pipeline;
+
+import java.util.List;
+
+/**
+ * 文章投票的去重方式，记录每篇文章有哪些用户投过票
+ * 记录在流水线中发送，sync之后通过Result读取用户是否第一次投票。
+ * 另外提供投票脚本中的去重步骤(见Chapter01.articleVoteAtomic)，各种去重方式都一次往返完成投票。
+ */
+public interface VoteDedup {
+    /**
+     * 在流水线中记录用户对文章的投票(发布文章时记录作者)
+     * @param pipeline
+     * @param articleId 文章id
+     * @param user 用户
+     * @param expireAt 投票期结束的时间(秒)，记录在此之后过期
+     * @return sync之后为true表示用户第一次投票
+     */
+    Result add(Pipeline pipeline, String articleId, String user, long expireAt);
+
+    /**
+     * 投票脚本中的去重步骤，用户已投过票时脚本返回0；步骤之前脚本不修改任何数据
+     * 步骤使用的key从KEYS[firstKey]起，共scriptKeyCount()个，由scriptKeys给出；
+     * 参数从ARGV[firstArg]起，共scriptArgCount()个，由scriptArgs给出
+     * @param firstKey
+     * @param firstArg
+     * @return Lua片段
+     */
+    String scriptStep(int firstKey, int firstArg);
+
+    int scriptKeyCount();
+
+    int scriptArgCount();
+
+    //去重步骤的key
+    List<String> scriptKeys(String articleId);
+
+    //去重步骤的参数
+    List<String> scriptArgs(String user);
+
+    //名称，用于配置与报告
+    String getName();
+
+    //保存文章投票记录的键
+    String key(String articleId);
+
+    interface Result {
+        boolean isFirstVote();
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * 按配置创建VoteDedup，同一部署的所有进程应使用相同的配置
+ * votes.dedup=set(默认)|bitmap|bloom
+ * votes.bloom.expected=每篇文章预计的投票数(默认10000)，votes.bloom.fpp=假阳性率(默认0.01)
+ * votes.offsets.cache=bitmap方式在进程内缓存的用户偏移量数(默认100000)
+ */
+public class VoteDedups {
+    private VoteDedups() {
+    }
+
+    public static VoteDedup fromSystemProperties() {
+        return create(System.getProperty("votes.dedup", SetVoteDedup.NAME));
+    }
+
+    public static VoteDedup create(String name) {
+        if (SetVoteDedup.NAME.equals(name)) {
+            return new SetVoteDedup();
+        }
+        if (BitmapVoteDedup.NAME.equals(name)) {
+            return new BitmapVoteDedup(new UserOffsets(Integer.getInteger("votes.offsets.cache", 100000)));
+        }
+        if (BloomVoteDedup.NAME.equals(name)) {
+            return new BloomVoteDedup(Long.getLong("votes.bloom.expected", 10000),
+                    Double.parseDouble(System.getProperty("votes.bloom.fpp", "0.01")));
+        }
+        throw new IllegalArgumentException("Unknown vote dedup: " + name);
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ArticleArchiverTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+    private Chapter01 chapter;
+    //由新到旧，后3篇超过投票期会被归档
+    private final List<String> articles = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+        chapter = new Chapter01(provider);
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < 5; i++) {
+            String article = "article:" + chapter.postArticle(conn, "user" + i, "title" + i, "link" + i);
+            long posted = i < 2 ? now - i : now - Chapter01.ONE_WEEK_IN_SECONDS - i;
+            conn.zadd("time:", posted, article);
+            conn.zadd("score:", posted + Chapter01.VOTE_SCORE, article);
+            articles.add(article);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void archivesClosedArticles() {
+        ArticleArchiver archiver = new ArticleArchiver(provider, 500, 0, 0);
+        assertEquals(3, archiver.archiveBatch(conn));
+        assertEquals(0, archiver.archiveBatch(conn));
+        assertEquals(2, (long) conn.zcard("time:"));
+        assertEquals(3, (long) conn.zcard("archive:score:"));
+        assertEquals(3, archiver.getMoved());
+    }
+
+    @Test
+    public void getArticlesContinuesIntoArchive() {
+        new ArticleArchiver(provider).archiveBatch(conn);
+
+        //热排行之后接着是冻结排行，归档的文章不会消失
+        assertEquals(articles.subList(0, 2), ids(chapter.getArticles(conn, 1, 2, "time:")));
+        assertEquals(articles.subList(2, 4), ids(chapter.getArticles(conn, 2, 2, "time:")));
+        assertEquals(articles.subList(4, 5), ids(chapter.getArticles(conn, 3, 2, "time:")));
+        assertEquals(Collections.emptyList(), ids(chapter.getArticles(conn, 4, 2, "time:")));
+        //跨越两个排行的页
+        assertEquals(articles.subList(0, 3), ids(chapter.getArticles(conn, 1, 3, "time:")));
+        assertEquals(articles.subList(3, 5), ids(chapter.getArticles(conn, 2, 3, "time:")));
+
+        assertEquals(articles, ids(chapter.getArticles(conn, 1)));
+        assertEquals("title3", chapter.getArticles(conn, 2, 2, "score:", "title").get(1).get("title"));
+    }
+
+    @Test
+    public void asyncGetArticlesContinuesIntoArchive() throws Exception {
+        new ArticleArchiver(provider).archiveBatch(conn);
+        PipelineDispatcher dispatcher = new PipelineDispatcher(provider, 1, 10);
+        try {
+            AsyncChapter01 async = new AsyncChapter01(chapter, dispatcher);
+            assertEquals(articles.subList(0, 2), ids(async.getArticles(1, 2, "time:").get(5, TimeUnit.SECONDS)));
+            assertEquals(articles.subList(2, 4), ids(async.getArticles(2, 2, "time:").get(5, TimeUnit.SECONDS)));
+            assertEquals(articles.subList(4, 5), ids(async.getArticles(3, 2, "time:").get(5, TimeUnit.SECONDS)));
+            assertEquals(Collections.emptyList(), ids(async.getArticles(4, 2, "time:").get(5, TimeUnit.SECONDS)));
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void groupRankingsAreNotDuplicated() {
+        for (String article : articles) {
+            chapter.addGroups(conn, article.substring(article.indexOf(':') + 1), new String[]{"group"});
+        }
+        new ArticleArchiver(provider).archiveBatch(conn);
+        //分组排行重建时已包含归档的文章，没有对应的冻结排行
+        assertEquals(articles, ids(chapter.getGroupArticles(conn, "group", 1, 25, "time:")));
+    }
+
+    private static List<String> ids(List<Map<String, String>> articles) {
+        List<String> ids = new ArrayList<String>(articles.size());
+        for (Map<String, String> article : articles) {
+            ids.add(article.get("id"));
+        }
+        return ids;
+    }
+}
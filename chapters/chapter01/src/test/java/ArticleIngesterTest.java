@@ -0,0 +1,130 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArticleIngesterTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void reservesIdBlocksAcrossWindows() {
+        conn.set("article:", "100");
+        //每块5个id，每个窗口3篇，第2、3个窗口中途需要预留新的id块
+        ArticleIngester ingester = new ArticleIngester(provider, 5, 3, 3, 0, 1000);
+        assertEquals(11, ingester.ingest(articles(11).iterator()));
+
+        assertEquals(11, ingester.getIngested());
+        assertEquals(0, ingester.getFailed());
+        //预留了3块，最后一块只用了一个id
+        assertEquals("115", conn.get("article:"));
+        for (int i = 0; i < 11; i++) {
+            String article = "article:" + (101 + i);
+            assertEquals("title " + i, conn.hget(article, "title"));
+            assertEquals(1000000000.0 + i, conn.zscore("time:", article), 0);
+        }
+        assertFalse(conn.exists("article:112"));
+        assertEquals(11, conn.zcard("score:").longValue());
+    }
+
+    @Test
+    public void errorRepliesCountAsFailed() {
+        //article:3与article:6已被其他类型的值占用，HMSET返回错误回复
+        conn.set("article:3", "taken");
+        conn.set("article:6", "taken");
+        //id块在窗口中途用完，错误回复分别出现在预留前后两次sync中
+        ArticleIngester ingester = new ArticleIngester(provider, 4, 8, 8, 0, 1000);
+        assertEquals(6, ingester.ingest(articles(8).iterator()));
+
+        assertEquals(6, ingester.getIngested());
+        assertEquals(2, ingester.getFailed());
+        assertEquals(2, ingester.getErrors());
+        assertTrue(ingester.getLastError(), ingester.getLastError().contains("WRONGTYPE"));
+        assertEquals("taken", conn.get("article:3"));
+        assertEquals("title 3", conn.hget("article:4", "title"));
+        assertEquals("title 7", conn.hget("article:8", "title"));
+    }
+
+    @Test
+    public void noErrorsWithoutErrorReplies() {
+        ArticleIngester ingester = new ArticleIngester(provider, 10, 4, 4, 0, 1000);
+        assertEquals(5, ingester.ingest(articles(5).iterator()));
+        assertEquals(0, ingester.getErrors());
+        assertNull(ingester.getLastError());
+    }
+
+    @Test
+    public void windowShrinksWhenSlow() {
+        final int fast = 100;
+        final int slow = 40;
+        final ArticleIngester ingester = new ArticleIngester(provider, 1000, 2, 16, 2, 200);
+        final List<Integer> windows = new ArrayList<Integer>();
+        final Iterator<ArticleIngester.Article> input = articles(fast + slow).iterator();
+        //前fast篇立即返回，之后每篇耗时30ms，一个16篇的窗口超过200ms的目标
+        long count = ingester.ingest(new Iterator<ArticleIngester.Article>() {
+            private int i;
+
+            public boolean hasNext() {
+                return input.hasNext();
+            }
+
+            public ArticleIngester.Article next() {
+                windows.add(ingester.getWindow());
+                if (i++ >= fast) {
+                    try {
+                        Thread.sleep(30);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return input.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        assertEquals(fast + slow, count);
+        assertEquals(2, windows.get(0).intValue());
+        assertEquals(16, windows.get(fast - 1).intValue());
+        assertTrue(ingester.getDecreases() > 0);
+        //乘法减小后窗口不超过一半
+        int smallest = 16;
+        for (int window : windows.subList(fast, windows.size())) {
+            smallest = Math.min(smallest, window);
+        }
+        assertTrue(String.valueOf(smallest), smallest <= 8);
+        assertTrue(ingester.getWindow() >= 2);
+    }
+
+    private List<ArticleIngester.Article> articles(int count) {
+        List<ArticleIngester.Article> articles = new ArrayList<ArticleIngester.Article>();
+        for (int i = 0; i < count; i++) {
+            articles.add(new ArticleIngester.Article("user" + i, "title " + i, "http://www.google.com/" + i,
+                    1000000000 + i));
+        }
+        return articles;
+    }
+}
@@ -0,0 +1,134 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArticlePaginationTest {
+    private static final String ORDER = "test:";
+
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+    private Chapter01 chapter;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+        chapter = new Chapter01(provider);
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void equalScoresAcrossPageBoundaries() {
+        //一篇3分，五篇同为2分，一篇1分；每页2篇时同分值的文章跨越三页
+        article(1, 3);
+        for (int i = 2; i <= 6; i++) {
+            article(i, 2);
+        }
+        article(7, 1);
+
+        List<String> expected = new ArrayList<String>(conn.zrevrange(ORDER, 0, -1));
+        assertEquals(Arrays.asList("article:1", "article:6", "article:5", "article:4", "article:3",
+                "article:2", "article:7"), expected);
+        assertEquals(expected, readAll(2));
+        assertEquals(expected, readAll(1));
+        assertEquals(expected, readAll(3));
+    }
+
+    @Test
+    public void lastPageHasNoCursor() {
+        for (int i = 1; i <= 4; i++) {
+            article(i, i);
+        }
+        Chapter01.ArticlePage page = chapter.getArticlesAfter(conn, ORDER, null, 2);
+        assertTrue(page.hasMore());
+        //剩下的文章正好一页时没有下一页
+        page = chapter.getArticlesAfter(conn, ORDER, page.getCursor(), 2);
+        assertEquals(2, page.getArticles().size());
+        assertNull(page.getCursor());
+        assertFalse(page.hasMore());
+
+        page = chapter.getArticlesAfter(conn, ORDER, null, 10);
+        assertEquals(4, page.getArticles().size());
+        assertNull(page.getCursor());
+
+        assertTrue(chapter.getArticlesAfter(conn, "empty:", null, 10).getArticles().isEmpty());
+    }
+
+    @Test
+    public void cursorWithExponentScore() {
+        //time:的分值为秒级时间戳，Double.toString输出为1.7E9这样的形式
+        article(1, 1.7e9);
+        article(2, 1.7e9);
+        article(3, 1.7e9 - 1);
+        Chapter01.ArticlePage page = chapter.getArticlesAfter(conn, ORDER, null, 1, "title");
+        assertEquals("1.7E9:article:2", page.getCursor());
+        assertEquals("title2", page.getArticles().get(0).get("title"));
+
+        page = chapter.getArticlesAfter(conn, ORDER, page.getCursor(), 1, "title");
+        assertEquals("title1", page.getArticles().get(0).get("title"));
+        assertEquals("1.7E9:article:1", page.getCursor());
+
+        page = chapter.getArticlesAfter(conn, ORDER, page.getCursor(), 1, "title");
+        assertEquals("title3", page.getArticles().get(0).get("title"));
+        assertNull(page.getCursor());
+    }
+
+    @Test
+    public void rejectsMalformedCursors() {
+        article(1, 1);
+        for (String cursor : new String[]{"", "1.0", ":article:1", "1.0:", "abc:article:1", "NaN:article:1"}) {
+            try {
+                chapter.getArticlesAfter(conn, ORDER, cursor, 10);
+                fail("Accepted cursor: " + cursor);
+            } catch (IllegalArgumentException iae) {
+                assertTrue(iae.getMessage(), iae.getMessage().startsWith("Malformed cursor"));
+            }
+        }
+        for (int pageSize : new int[]{0, -1}) {
+            try {
+                chapter.getArticlesAfter(conn, ORDER, null, pageSize);
+                fail("Accepted page size: " + pageSize);
+            } catch (IllegalArgumentException iae) {
+                assertTrue(iae.getMessage().startsWith("pageSize"));
+            }
+        }
+        //分值可以是无穷大
+        assertEquals(1, chapter.getArticlesAfter(conn, ORDER, "Infinity:article:9", 10).getArticles().size());
+    }
+
+    private void article(int id, double score) {
+        conn.hset("article:" + id, "title", "title" + id);
+        conn.zadd(ORDER, score, "article:" + id);
+    }
+
+    private List<String> readAll(int pageSize) {
+        List<String> ids = new ArrayList<String>();
+        String cursor = null;
+        do {
+            Chapter01.ArticlePage page = chapter.getArticlesAfter(conn, ORDER, cursor, pageSize);
+            assertTrue(page.getArticles().size() <= pageSize);
+            for (Map<String,String> article : page.getArticles()) {
+                ids.add(article.get("id"));
+            }
+            cursor = page.getCursor();
+        } while (cursor != null);
+        return ids;
+    }
+}
@@ -0,0 +1,87 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArticleVoteTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+    private Chapter01 chapter;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+        chapter = new Chapter01(provider);
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void atomicVoteWithEveryDedup() {
+        for (VoteDedup dedup : dedups()) {
+            chapter.setVoteDedup(dedup);
+            String id = chapter.postArticle(conn, "author", "A title", "http://www.google.com");
+            String article = "article:" + id;
+            chapter.addGroups(conn, id, new String[]{"group1"});
+            chapter.getGroupArticles(conn, "group1", 1);
+            double score = conn.zscore("score:", article);
+
+            assertTrue(dedup.getName(), chapter.articleVoteAtomic(conn, "user1", article));
+            assertFalse(dedup.getName(), chapter.articleVoteAtomic(conn, "user1", article));
+            //作者在发布时已记录投票
+            assertFalse(dedup.getName(), chapter.articleVoteAtomic(conn, "author", article));
+            assertEquals(dedup.getName(), "2", conn.hget(article, "votes"));
+            assertEquals(score + Chapter01.VOTE_SCORE, conn.zscore("score:", article), 0);
+            assertEquals(score + Chapter01.VOTE_SCORE, conn.zscore("score:group1", article), 0);
+            assertTrue(dedup.getName(), conn.exists(dedup.key(id)));
+        }
+    }
+
+    @Test
+    public void batchVotesWithEveryDedup() {
+        for (VoteDedup dedup : dedups()) {
+            chapter.setVoteDedup(dedup);
+            String article = "article:" + chapter.postArticle(conn, "author", "A title", "http://www.google.com");
+            assertEquals(dedup.getName(), 2, chapter.articleVotes(conn, Arrays.asList(
+                    new Chapter01.Vote("user1", article),
+                    new Chapter01.Vote("user2", article),
+                    new Chapter01.Vote("user1", article),
+                    new Chapter01.Vote("author", article))));
+            assertEquals(dedup.getName(), "3", conn.hget(article, "votes"));
+            //多次往返的版本与脚本使用相同的去重记录
+            assertFalse(dedup.getName(), chapter.articleVote(conn, "user2", article));
+        }
+    }
+
+    @Test
+    public void bitmapScriptAssignsOffsetOnCacheMiss() {
+        BitmapVoteDedup dedup = new BitmapVoteDedup(new UserOffsets(100));
+        chapter.setVoteDedup(dedup);
+        String id = chapter.postArticle(conn, "author", "A title", "http://www.google.com");
+        assertTrue(chapter.articleVoteAtomic(conn, "new_user", "article:" + id));
+
+        //偏移量在脚本中分配，之后的投票与流水线去重使用同一个偏移量
+        long offset = Long.parseLong(conn.hget(UserOffsets.OFFSETS_KEY, "new_user"));
+        assertTrue(conn.getbit(dedup.key(id), offset));
+        assertEquals(2, conn.hlen(UserOffsets.OFFSETS_KEY).longValue());
+        assertFalse(chapter.articleVote(conn, "new_user", "article:" + id));
+    }
+
+    private VoteDedup[] dedups() {
+        return new VoteDedup[]{
+                new SetVoteDedup(),
+                new BitmapVoteDedup(new UserOffsets(100)),
+                new BloomVoteDedup(1000, 0.01)};
+    }
+}
@@ -0,0 +1,160 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomVoteDedupTest {
+    private RedisConnectionProvider provider;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    @Test
+    public void sizing() {
+        //m = -n ln p / (ln 2)^2，k = m / n ln 2
+        BloomVoteDedup dedup = new BloomVoteDedup(10000, 0.01);
+        assertEquals(95851, dedup.getBits());
+        assertEquals(7, dedup.getHashes());
+
+        dedup = new BloomVoteDedup(1000, 0.001);
+        assertEquals(14378, dedup.getBits());
+        assertEquals(10, dedup.getHashes());
+    }
+
+    @Test
+    public void tinyFilterHasMinimumSize() {
+        BloomVoteDedup dedup = new BloomVoteDedup(1, 0.5);
+        assertEquals(8, dedup.getBits());
+        assertTrue(dedup.getHashes() >= 1);
+    }
+
+    @Test
+    public void falsePositiveRateNearTarget() {
+        int votes = 2000;
+        BloomVoteDedup dedup = new BloomVoteDedup(votes, 0.01);
+        long expireAt = System.currentTimeMillis() / 1000 + 3600;
+        Jedis conn = provider.getConnection();
+        try {
+            //写入过程中已有少量假阳性；重复投票一定被识别
+            int firsts = firstVotes(conn, dedup, "user:", votes, expireAt);
+            assertTrue("firsts=" + firsts, firsts > votes * 0.98);
+            assertEquals(0, firstVotes(conn, dedup, "user:", votes, expireAt));
+
+            //未投过票的用户被误判为重复投票的比例；每次都在原过滤器的副本上判断，不让过滤器继续变满
+            byte[] filter = conn.get(SafeEncoder.encode(dedup.key("1")));
+            byte[] probe = SafeEncoder.encode(dedup.key("probe"));
+            int others = 2000;
+            Pipeline pipeline = conn.pipelined();
+            List<VoteDedup.Result> results = new ArrayList<VoteDedup.Result>(others);
+            for (int i = 0; i < others; i++) {
+                pipeline.set(probe, filter);
+                results.add(dedup.add(pipeline, "probe", "other:" + i, expireAt));
+            }
+            pipeline.sync();
+            int falsePositives = 0;
+            for (VoteDedup.Result result : results) {
+                if (!result.isFirstVote()) {
+                    falsePositives++;
+                }
+            }
+            double rate = falsePositives / (double) others;
+            assertTrue("rate=" + rate, rate < 0.02);
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void keyExpires() {
+        BloomVoteDedup dedup = new BloomVoteDedup(100, 0.01);
+        Jedis conn = provider.getConnection();
+        try {
+            Pipeline pipeline = conn.pipelined();
+            VoteDedup.Result result = dedup.add(pipeline, "1", "user:1", System.currentTimeMillis() / 1000 + 3600);
+            pipeline.sync();
+            assertTrue(result.isFirstVote());
+            assertTrue(conn.ttl(dedup.key("1")) > 0);
+            assertFalse(dedup.key("1").equals(dedup.key("2")));
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void concurrentVotesOfOneUserCountOnce() throws Exception {
+        final BloomVoteDedup dedup = new BloomVoteDedup(1000, 0.01);
+        final long expireAt = System.currentTimeMillis() / 1000 + 3600;
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 50; round++) {
+                final String articleId = "race" + round;
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<Boolean>> votes = new ArrayList<Future<Boolean>>(threads);
+                for (int i = 0; i < threads; i++) {
+                    votes.add(executor.submit(new Callable<Boolean>() {
+                        public Boolean call() throws Exception {
+                            Jedis conn = provider.getConnection();
+                            try {
+                                start.await();
+                                Pipeline pipeline = conn.pipelined();
+                                VoteDedup.Result result = dedup.add(pipeline, articleId, "user", expireAt);
+                                pipeline.sync();
+                                return result.isFirstVote();
+                            } finally {
+                                conn.close();
+                            }
+                        }
+                    }));
+                }
+                start.countDown();
+                int firsts = 0;
+                for (Future<Boolean> vote : votes) {
+                    if (vote.get()) {
+                        firsts++;
+                    }
+                }
+                assertEquals(1, firsts);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int firstVotes(Jedis conn, BloomVoteDedup dedup, String prefix, int users, long expireAt) {
+        Pipeline pipeline = conn.pipelined();
+        List<VoteDedup.Result> results = new ArrayList<VoteDedup.Result>(users);
+        for (int i = 0; i < users; i++) {
+            results.add(dedup.add(pipeline, "1", prefix + i, expireAt));
+        }
+        pipeline.sync();
+        int firsts = 0;
+        for (VoteDedup.Result result : results) {
+            if (result.isFirstVote()) {
+                firsts++;
+            }
+        }
+        return firsts;
+    }
+}
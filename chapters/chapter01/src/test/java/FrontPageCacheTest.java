@@ -0,0 +1,126 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrontPageCacheTest {
+    private RedisConnectionProvider embedded;
+    private FlakyConnectionProvider provider;
+    private Jedis conn;
+    private Chapter01 chapter;
+
+    @Before
+    public void setUp() {
+        embedded = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        provider = new FlakyConnectionProvider(embedded);
+        conn = provider.getConnection();
+        chapter = new Chapter01(provider);
+        for (int i = 0; i < 5; i++) {
+            chapter.postArticle(conn, "user" + i, "title" + i, "link" + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void servesSnapshotPagesAndCountsLiveReads() {
+        FrontPageCache cache = new FrontPageCache(chapter, Arrays.asList("score:"), 2, 2, 60000, false);
+        cache.refresh();
+        List<Map<String,String>> first = cache.getArticles(conn, 1, "score:");
+        assertEquals(chapter.getArticles(conn, 1, 2, "score:"), first);
+        assertEquals(2, cache.getArticles(conn, 2, "score:").size());
+        assertEquals(2, cache.getSnapshotReads());
+        assertEquals(0, cache.getLiveReads());
+
+        //快照之外的页与未登记的排行走原来的读取路径
+        assertEquals(1, cache.getArticles(conn, 3, "score:").size());
+        assertEquals(2, cache.getArticles(conn, 1, "time:").size());
+        assertEquals(2, cache.getLiveReads());
+        assertEquals(0.5, cache.getSnapshotRatio(), 0);
+
+        //快照在下一次刷新前不变
+        String top = first.get(0).get("id");
+        chapter.articleVote(conn, "voter", top);
+        assertEquals("1", cache.getArticles(conn, 1, "score:").get(0).get("votes"));
+        cache.refresh();
+        assertEquals("2", cache.getArticles(conn, 1, "score:").get(0).get("votes"));
+        assertEquals(2, cache.getRebuilds());
+    }
+
+    @Test
+    public void sharedSnapshotIsBuiltOncePerRound() {
+        FrontPageCache builder = new FrontPageCache(chapter, Arrays.asList("score:"), 2, 2, 60000, true);
+        FrontPageCache reader = new FrontPageCache(chapter, Arrays.asList("score:"), 2, 2, 60000, true);
+        builder.refresh();
+        //frontpage:lock未过期，另一个进程读取已写入的快照
+        reader.refresh();
+        assertEquals(1, builder.getRebuilds());
+        assertEquals(0, reader.getRebuilds());
+        assertEquals(1, reader.getLoads());
+        assertEquals(builder.getArticles(conn, 1, "score:"), reader.getArticles(conn, 1, "score:"));
+        assertTrue(Arrays.equals(builder.getSerializedPage(conn, 2, "score:"),
+                reader.getSerializedPage(conn, 2, "score:")));
+
+        //快照没有变化时不重新读取
+        reader.refresh();
+        assertEquals(1, reader.getLoads());
+        assertEquals(0, reader.getFailures());
+    }
+
+    @Test
+    public void refresherSurvivesUnavailableRedis() throws Exception {
+        FrontPageCache cache = new FrontPageCache(chapter, Arrays.asList("score:"), 1, 2, 10, false);
+        cache.start();
+        try {
+            provider.setDown(true);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getFailures() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(cache.getFailures() > 0);
+            assertTrue(cache.isAlive());
+            //刷新失败期间继续使用旧快照
+            assertEquals(2, cache.getArticles(conn, 1, "score:").size());
+
+            provider.setDown(false);
+            long recovered = System.currentTimeMillis();
+            while (cache.getLastRefreshMillis() < recovered && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(cache.getLastRefreshMillis() >= recovered);
+        } finally {
+            cache.quit();
+        }
+    }
+
+    @Test
+    public void gaugesArePerInstance() {
+        FrontPageCache first = new FrontPageCache(chapter, Arrays.asList("score:"), 1, 2, 60000, false);
+        FrontPageCache second = new FrontPageCache(chapter, Arrays.asList("score:"), 1, 2, 60000, false);
+        assertNotEquals(first.getGaugePrefix(), second.getGaugePrefix());
+        first.start();
+        second.start();
+        Map<String, Long> gauges = RedisMetrics.get().getGauges();
+        assertTrue(gauges.containsKey(first.getGaugePrefix() + "ageMillis"));
+        assertTrue(gauges.containsKey(second.getGaugePrefix() + "ageMillis"));
+
+        first.quit();
+        gauges = RedisMetrics.get().getGauges();
+        assertFalse(gauges.containsKey(first.getGaugePrefix() + "ageMillis"));
+        assertTrue(gauges.containsKey(second.getGaugePrefix() + "ageMillis"));
+        second.quit();
+    }
+}
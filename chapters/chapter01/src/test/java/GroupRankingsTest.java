@@ -0,0 +1,110 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GroupRankingsTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+    private Chapter01 chapter;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+        chapter = new Chapter01(provider);
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void addGroupsUpdatesBuiltRankings() {
+        String first = chapter.postArticle(conn, "user1", "A title", "http://www.google.com");
+        String second = chapter.postArticle(conn, "user2", "A title", "http://www.google.com");
+        chapter.addGroups(conn, first, new String[]{"group1"});
+        //建立排行后加入的文章直接写入排行
+        assertEquals(1, chapter.getGroupArticles(conn, "group1", 1).size());
+        chapter.addGroups(conn, second, new String[]{"group1", "group2"});
+
+        assertEquals(conn.zscore("score:", "article:" + second), conn.zscore("score:group1", "article:" + second));
+        //尚未建立的排行不写入
+        assertFalse(conn.exists("time:group1"));
+        assertFalse(conn.exists("score:group2"));
+        assertEquals(new HashSet<String>(Arrays.asList("group1", "group2")), conn.smembers("groups:" + second));
+        assertEquals(1, chapter.getGroupArticles(conn, "group2", 1).size());
+    }
+
+    @Test
+    public void voteRetriesWhenGroupsChanged() {
+        String id = chapter.postArticle(conn, "user1", "A title", "http://www.google.com");
+        String article = "article:" + id;
+        chapter.addGroups(conn, id, new String[]{"group1"});
+        chapter.getGroupArticles(conn, "group1", 1);
+        double before = conn.zscore("score:group1", article);
+
+        //读取分组时文章还不属于任何分组，脚本核对后按当前分组重试，这一票计入分组排行
+        GroupRankings rankings = chapter.getGroupRankings();
+        rankings.onVote(conn, article, Chapter01.VOTE_SCORE, Collections.<String>emptySet());
+        assertEquals(1, rankings.getGroupRetries());
+        assertEquals(before + Chapter01.VOTE_SCORE, conn.zscore("score:group1", article), 0);
+        assertEquals(conn.zscore("score:", article), conn.zscore("score:group1", article));
+        //发布时作者已投一票
+        assertEquals("2", conn.hget(article, "votes"));
+    }
+
+    @Test
+    public void voteUpdatesGroupRankings() {
+        String id = chapter.postArticle(conn, "user1", "A title", "http://www.google.com");
+        String article = "article:" + id;
+        chapter.addGroups(conn, id, new String[]{"group1", "group2"});
+        chapter.getGroupArticles(conn, "group1", 1);
+
+        assertTrue(chapter.articleVote(conn, "user2", article));
+        assertTrue(chapter.articleVoteAtomic(conn, "user3", article));
+        assertEquals(2, chapter.articleVotes(conn, Arrays.asList(
+                new Chapter01.Vote("user4", article), new Chapter01.Vote("user2", article),
+                new Chapter01.Vote("user5", article))));
+
+        assertEquals("5", conn.hget(article, "votes"));
+        assertEquals(conn.zscore("score:", article), conn.zscore("score:group1", article));
+        //未建立的分组排行不会被写入不完整的数据
+        assertNull(conn.zscore("score:group2", article));
+    }
+
+    @Test
+    public void voteScriptReloadedAfterFlush() throws Exception {
+        String article = "article:" + chapter.postArticle(conn, "user1", "A title", "http://www.google.com");
+        assertTrue(chapter.articleVote(conn, "user2", article));
+        //本地计算的sha1与Redis的相同，之后的投票只发送EVALSHA
+        assertTrue(conn.scriptExists(GroupRankings.VOTE_SHA));
+
+        conn.scriptFlush();
+        assertTrue(chapter.articleVote(conn, "user3", article));
+        assertTrue(conn.scriptExists(GroupRankings.VOTE_SHA));
+
+        conn.scriptFlush();
+        PipelineDispatcher dispatcher = new PipelineDispatcher(provider, 1, 100);
+        try {
+            AsyncChapter01 async = new AsyncChapter01(chapter, dispatcher);
+            assertTrue(async.articleVote("user4", article).get(5, TimeUnit.SECONDS));
+            assertFalse(async.articleVote("user4", article).get(5, TimeUnit.SECONDS));
+        } finally {
+            dispatcher.close();
+        }
+        assertEquals("4", conn.hget(article, "votes"));
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedChapter01Test {
+    private ShardedRedis redis;
+    private ShardedChapter01 chapter;
+
+    @Before
+    public void setUp() {
+        //两个嵌入式节点，四个分区
+        redis = ShardedRedis.create(new RedisConfig().setEmbedded(true).setShards("2").setPartitions(4));
+        chapter = new ShardedChapter01(redis);
+    }
+
+    @After
+    public void tearDown() {
+        redis.close();
+    }
+
+    @Test
+    public void voteWithEveryDedup() {
+        for (String name : Arrays.asList(SetVoteDedup.NAME, BitmapVoteDedup.NAME, BloomVoteDedup.NAME)) {
+            chapter.setVoteDedup(name);
+            //覆盖每个分区
+            for (int i = 0; i < redis.getPartitions(); i++) {
+                String id = chapter.postArticle("author", "A title", "http://www.google.com");
+                String article = "article:" + id;
+                int partition = chapter.partitionOf(Long.parseLong(id));
+                Jedis conn = redis.shard(partition).getConnection();
+                try {
+                    String score = ShardedRedis.key(partition, "score:");
+                    double before = conn.zscore(score, article);
+
+                    assertTrue(name, chapter.articleVote("user1", article));
+                    assertFalse(name, chapter.articleVote("user1", article));
+                    //作者在发布时已通过去重方式记录投票
+                    assertFalse(name, chapter.articleVote("author", article));
+                    assertEquals(name, "2", conn.hget(ShardedRedis.key(partition, article), "votes"));
+                    assertEquals(before + Chapter01.VOTE_SCORE, conn.zscore(score, article), 0);
+                    String record = ShardedRedis.key(partition, chapter.getVoteDedup(partition).key(id));
+                    assertTrue(name, conn.exists(record));
+                    assertTrue(name, conn.ttl(record) > 0);
+                } finally {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void voteReloadsFlushedScript() {
+        String id = chapter.postArticle("author", "A title", "http://www.google.com");
+        int partition = chapter.partitionOf(Long.parseLong(id));
+        Jedis conn = redis.shard(partition).getConnection();
+        try {
+            conn.scriptFlush();
+        } finally {
+            conn.close();
+        }
+        //节点的脚本缓存清空后收到NOSCRIPT，加载后重试
+        assertTrue(chapter.articleVote("user1", "article:" + id));
+        assertFalse(chapter.articleVote("user1", "article:" + id));
+    }
+
+    @Test
+    public void groupRankingsBuiltOnceAndUpdatedByVotes() {
+        String[] ids = new String[redis.getPartitions()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = chapter.postArticle("author", "A title", "http://www.google.com");
+        }
+        chapter.addGroups(ids[0], new String[]{"group1"});
+        chapter.addGroups(ids[1], new String[]{"group1"});
+        assertEquals(2, chapter.getGroupArticles("group1", 1, 10, "score:").size());
+        assertEquals(2, chapter.getGroupArticles("group1", 1, 10, "score:").size());
+        //排行建立后不再重建，每个分区只重建一次(空分组写入标记)
+        for (int p = 0; p < redis.getPartitions(); p++) {
+            assertEquals(1, chapter.getGroupRankings(p).getRebuilds());
+            assertEquals(1, chapter.getGroupRankings(p).getHits());
+        }
+
+        //建立后加入分组与投票都增量更新分区内的排行
+        chapter.addGroups(ids[2], new String[]{"group1"});
+        assertTrue(chapter.articleVote("user1", "article:" + ids[2]));
+        List<Map<String,String>> articles = chapter.getGroupArticles("group1", 1, 10, "score:");
+        assertEquals(3, articles.size());
+        assertEquals("article:" + ids[2], articles.get(0).get("id"));
+        int partition = chapter.partitionOf(Long.parseLong(ids[2]));
+        Jedis conn = redis.shard(partition).getConnection();
+        try {
+            assertEquals(conn.zscore(ShardedRedis.key(partition, "score:"), "article:" + ids[2]),
+                    conn.zscore(ShardedRedis.key(partition, "score:group1"), "article:" + ids[2]));
+        } finally {
+            conn.close();
+        }
+        for (int p = 0; p < redis.getPartitions(); p++) {
+            assertEquals(1, chapter.getGroupRankings(p).getRebuilds());
+        }
+    }
+}
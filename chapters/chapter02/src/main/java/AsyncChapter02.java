@@ -0,0 +1,227 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Chapter02会话与页面缓存操作的非阻塞版本，返回CompletableFuture，由PipelineDispatcher在共享的少量连接上执行
+ * 近端令牌缓存与本地请求判断仍然有效，命中时不访问Redis、直接返回已完成的future。
+ * 生成页面的Callback可能阻塞，在executor中执行；开启PageCache时整个cacheRequest在executor中以同步方式执行，
+ * 因为PageCache的锁与等待逻辑需要独占一个连接。
+ */
+public class AsyncChapter02 {
+    private final Chapter02 chapter;
+    private final PipelineDispatcher dispatcher;
+    private final Executor executor;
+
+    /**
+     * @param executor 执行Callback与PageCache的线程池，应为专用的有界线程池：
+     *                 Callback与PageCache会阻塞，不能使用ForkJoinPool.commonPool()
+     */
+    public AsyncChapter02(Chapter02 chapter, PipelineDispatcher dispatcher, Executor executor) {
+        this.chapter = chapter;
+        this.dispatcher = dispatcher;
+        this.executor = executor;
+    }
+
+    /**
+     * @param token 令牌
+     * @return 用户，令牌不存在时为null
+     */
+    public CompletableFuture<String> checkToken(final String token) {
+        final TokenNearCache cache = chapter.getTokenCache();
+        if (cache != null) {
+            String user = cache.getLocal(token);
+            if (user != null) {
+                return CompletableFuture.completedFuture(user);
+            }
+        }
+        final long loadVersion = cache != null ? cache.loadVersion() : 0;
+        return dispatcher.submit(new PipelinedOperation<String>() {
+            private Response<String> user;
+
+            protected void send(Pipeline pipeline) {
+                user = pipeline.hget("login:", token);
+            }
+
+            protected boolean receive() {
+                //不存在的令牌不缓存，登录后可以立即查到
+                if (cache != null && user.get() != null) {
+                    cache.put(token, user.get(), loadVersion);
+                }
+                complete(user.get());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 更新令牌，五条命令在一轮中发送，与updateTokenPipelined相同
+     * @param token 令牌
+     * @param user 用户
+     * @param item 商品，可以为null
+     */
+    public CompletableFuture<Void> updateToken(final String token, final String user, final String item) {
+        return dispatcher.submit(new PipelinedOperation<Void>() {
+            private final List<Response<?>> writes = new ArrayList<Response<?>>(5);
+
+            protected void send(Pipeline pipeline) {
+                long timestamp = System.currentTimeMillis() / 1000;
+                writes.add(pipeline.hset("login:", token, user));
+                writes.add(pipeline.zadd("recent:", timestamp, token));
+                if (item != null) {
+                    writes.add(pipeline.zadd("viewed:" + token, timestamp, item));
+                    writes.add(pipeline.zremrangeByRank("viewed:" + token, 0, -(Chapter02.VIEWED_ITEMS_PER_USER + 1)));
+                    writes.add(pipeline.zincrby("viewed:", -1, item));
+                }
+            }
+
+            protected boolean receive() {
+                for (Response<?> write : writes) {
+                    write.get();
+                }
+                chapter.cacheToken(token, user);
+                complete(null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 添加购物车，count不大于0时删除商品
+     */
+    public CompletableFuture<Void> addToCart(final String session, final String item, final int count) {
+        return dispatcher.submit(new PipelinedOperation<Void>() {
+            private Response<Long> written;
+
+            protected void send(Pipeline pipeline) {
+                if (count <= 0) {
+                    written = pipeline.hdel("cart:" + session, item);
+                } else {
+                    written = pipeline.hset("cart:" + session, item, String.valueOf(count));
+                }
+            }
+
+            protected boolean receive() {
+                written.get();
+                complete(null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 获取缓存的页面，不能缓存或未缓存时在executor中调用callback生成
+     * @param request 请求
+     * @param callback 生成页面的回调，为null时只读取缓存
+     * @return 页面内容
+     */
+    public CompletableFuture<String> cacheRequest(final String request, final Chapter02.Callback callback) {
+        if (chapter.getPageCache() != null) {
+            return CompletableFuture.supplyAsync(new Supplier<String>() {
+                public String get() {
+                    return chapter.getProvider().execute(new RedisCallback<String>() {
+                        public String doInRedis(Jedis conn) {
+                            return chapter.cacheRequest(conn, request, callback);
+                        }
+                    });
+                }
+            }, executor);
+        }
+
+        RequestClassifier classifier = chapter.getRequestClassifier();
+        final String itemId = chapter.cacheableItem(request);
+        if (itemId == null || (classifier != null && !classifier.canCache(request))) {
+            return generate(request, callback);
+        }
+
+        //排名与页面在同一轮中读取，不能缓存时读到的页面不使用
+        final String pageKey = "cache:" + chapter.hashRequest(request);
+        return dispatcher.submit(new PageLookup(itemId, pageKey, classifier == null))
+                .thenCompose(new Function<PageLookup, CompletionStage<String>>() {
+                    public CompletionStage<String> apply(PageLookup lookup) {
+                        if (!lookup.cacheable) {
+                            return generate(request, callback);
+                        }
+                        if (lookup.content != null || callback == null) {
+                            return CompletableFuture.completedFuture(lookup.content);
+                        }
+                        return generate(request, callback).thenCompose(new Function<String, CompletionStage<String>>() {
+                            public CompletionStage<String> apply(String generated) {
+                                return store(pageKey, generated);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private CompletableFuture<String> generate(final String request, final Chapter02.Callback callback) {
+        if (callback == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(new Supplier<String>() {
+            public String get() {
+                return callback.call(request);
+            }
+        }, executor);
+    }
+
+    private CompletableFuture<String> store(final String pageKey, final String content) {
+        return dispatcher.submit(new PipelinedOperation<String>() {
+            private Response<String> stored;
+
+            protected void send(Pipeline pipeline) {
+                stored = pipeline.setex(pageKey, 300, content);
+            }
+
+            protected boolean receive() {
+                stored.get();
+                complete(content);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 读取缓存的页面，未开启本地请求判断时同时读取商品的浏览排名
+     */
+    private static class PageLookup
+            extends PipelinedOperation<PageLookup>
+    {
+        private final String itemId;
+        private final String pageKey;
+        private final boolean checkRank;
+        private Response<Long> rank;
+        private Response<String> page;
+        private boolean cacheable;
+        private String content;
+
+        PageLookup(String itemId, String pageKey, boolean checkRank) {
+            this.itemId = itemId;
+            this.pageKey = pageKey;
+            this.checkRank = checkRank;
+        }
+
+        protected void send(Pipeline pipeline) {
+            if (checkRank) {
+                rank = pipeline.zrank("viewed:", itemId);
+            }
+            page = pipeline.get(pageKey);
+        }
+
+        protected boolean receive() {
+            //缓存最经常浏览的10000个商品
+            cacheable = !checkRank || (rank.get() != null && rank.get() < 10000);
+            content = cacheable ? page.get() : null;
+            complete(this);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 紧凑的二进制序列化，不使用反射
+ * 格式：id与data依次为变长整数(字节数+1)+UTF-8字节，8字节time
+ * 变长整数为0表示null，与GsonRowSerializer一样，data为null的行解码后仍为null
+ */
+public class BinaryRowSerializer implements RowSerializer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public byte[] encode(Chapter02.Inventory row) {
+        byte[] id = bytes(row.getId());
+        byte[] data = bytes(row.getData());
+        ByteBuffer buffer = ByteBuffer.allocate(length(id) + length(data) + 5 + 5 + 8);
+        writeBytes(buffer, id);
+        writeBytes(buffer, data);
+        buffer.putLong(row.getTime());
+
+        byte[] encoded = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, encoded, 0, encoded.length);
+        return encoded;
+    }
+
+    public Chapter02.Inventory decode(byte[] encoded) {
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        String id = readString(buffer);
+        String data = readString(buffer);
+        long time = buffer.getLong();
+        return new Chapter02.Inventory(id, data, time);
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(UTF_8) : null;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes != null ? bytes.length : 0;
+    }
+
+    //bytes为null时只写入长度0
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        int length = bytes != null ? bytes.length + 1 : 0;
+        //每字节7位，最高位表示后面还有字节
+        while ((length & ~0x7F) != 0) {
+            buffer.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        buffer.put((byte) length);
+        if (bytes != null) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -1,31 +1,110 @@
-import com.google.gson.Gson;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.util.SafeEncoder;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * web应用相关
  */
 public class Chapter02 {
+    //每个用户保留的最近浏览商品数
+    static final int VIEWED_ITEMS_PER_USER = 25;
+
+    /**
+     * 更新令牌脚本：登录散列、最近登录、最近浏览与商品浏览次数在一次往返内完成
+     * KEYS: login:, recent:, viewed:令牌, viewed:
+     * ARGV: 令牌, 用户, 时间戳[, 商品]
+     */
+    private static final String UPDATE_TOKEN_SCRIPT =
+            "redis.call('hset', KEYS[1], ARGV[1], ARGV[2]) " +
+            "redis.call('zadd', KEYS[2], ARGV[3], ARGV[1]) " +
+            "if ARGV[4] then " +
+            "  redis.call('zadd', KEYS[3], ARGV[3], ARGV[4]) " +
+            "  redis.call('zremrangebyrank', KEYS[3], 0, -" + (VIEWED_ITEMS_PER_USER + 1) + ") " +
+            "  redis.call('zincrby', KEYS[4], -1, ARGV[4]) " +
+            "end " +
+            "return 1";
+
+    //连接提供者，请求线程与后台清理、缓存线程共享
+    private final RedisConnectionProvider provider;
+    //checkToken的近端缓存，为null时每次都访问Redis
+    private volatile TokenNearCache tokenCache;
+    //SCRIPT LOAD返回的脚本sha1
+    private volatile String updateTokenSha;
+    //本进程的行缓存调度器，scheduleRowCache时唤醒
+    private volatile RowCacheScheduler rowCacheScheduler;
+    //本地判断请求是否可以缓存，为null时每次通过zrank判断
+    private volatile RequestClassifier requestClassifier;
+    //网页缓存，为null时cacheRequest使用GET/SETEX
+    private volatile PageCache pageCache;
+    //缓存数据行的序列化方式，默认JSON
+    private volatile RowSerializer rowSerializer = new GsonRowSerializer();
+    //缓存线程读取数据行的方式，默认每行调用一次Inventory.get
+    private volatile RowLoader rowLoader = new RowLoader(new StubRowBackend());
+
+    public Chapter02() {
+        this(ConnectionProviders.fromSystemProperties());
+    }
+
+    public Chapter02(RedisConnectionProvider provider) {
+        this.provider = provider;
+    }
+
     public static final void main(String[] args)
             throws InterruptedException
     {
-        new Chapter02().run();
+        Chapter02 chapter = new Chapter02();
+        try {
+            chapter.run();
+        } finally {
+            chapter.getProvider().close();
+        }
+    }
+
+    public RedisConnectionProvider getProvider() {
+        return provider;
+    }
+
+    /**
+     * 开启checkToken的近端缓存，并订阅清理线程发布的令牌失效消息
+     * @param maxSize 最多缓存的令牌数
+     * @param ttlMillis 缓存条目的有效期(毫秒)
+     * @return
+     */
+    public TokenNearCache enableTokenCache(int maxSize, long ttlMillis) {
+        TokenNearCache cache = new TokenNearCache(maxSize, ttlMillis);
+        cache.start(provider);
+        tokenCache = cache;
+        return cache;
+    }
+
+    public void disableTokenCache() {
+        TokenNearCache cache = tokenCache;
+        tokenCache = null;
+        if (cache != null) {
+            cache.close();
+        }
     }
 
     public void run()
             throws InterruptedException
     {
-        Jedis conn = new Jedis("localhost");
-        conn.select(15);
-
-        testLoginCookies(conn);
-        testShopppingCartCookies(conn);
-        testCacheRows(conn);
-        testCacheRequest(conn);
+        Jedis conn = provider.getConnection();
+        try {
+            testLoginCookies(conn);
+            testShopppingCartCookies(conn);
+            testCacheRows(conn);
+            testCacheRequest(conn);
+        } finally {
+            conn.close();
+        }
+        System.out.println("\nConnection pool: " + provider.getMetrics());
     }
 
     /**
@@ -133,6 +212,7 @@ public class Chapter02 {
 
         System.out.println("We'll check again in 5 seconds...");
         Thread.sleep(5000);
+        //StubRowBackend读取的行带有读取时间，5秒后的编码结果不同，调度器会重新写入
         System.out.println("Notice that the data has changed...");
         String r2 = conn.get("inv:itemX");
         System.out.println(r2);
@@ -184,7 +264,16 @@ public class Chapter02 {
     }
 
     public String checkToken(Jedis conn, String token) {
-        return conn.hget("login:", token);
+        RedisMetrics.begin("checkToken");
+        try {
+            TokenNearCache cache = tokenCache;
+            if (cache != null) {
+                return cache.get(conn, token);
+            }
+            return conn.hget("login:", token);
+        } finally {
+            RedisMetrics.end();
+        }
     }
 
     /**
@@ -195,20 +284,96 @@ public class Chapter02 {
      * @param item 商品
      */
     public void updateToken(Jedis conn, String token, String user, String item) {
-        long timestamp = System.currentTimeMillis() / 1000;
-        //登录散列
-        conn.hset("login:", token, user);
+        RedisMetrics.begin("updateToken");
+        try {
+            long timestamp = System.currentTimeMillis() / 1000;
+            //登录散列
+            conn.hset("login:", token, user);
+            cacheToken(token, user);
+
+            //记录最近登录用户的有序集合
+            conn.zadd("recent:", timestamp, token);
+
+            if (item != null) {
+                //用户浏览的商品
+                conn.zadd("viewed:" + token, timestamp, item);
+                //移除旧记录，保留最近浏览的25个商品
+                conn.zremrangeByRank("viewed:" + token, 0, -(VIEWED_ITEMS_PER_USER + 1));
+                //有序集合记录所有商品浏览记录。根据浏览次数对商品进行排序，浏览最多放到有序集合的索引0上，且有最少得分
+                conn.zincrby("viewed:", -1, item);
+            }
+        } finally {
+            RedisMetrics.end();
+        }
+    }
 
-        //记录最近登录用户的有序集合
-        conn.zadd("recent:", timestamp, token);
+    /**
+     * 更新令牌(流水线版本)，五条命令在一次往返内发送
+     * @param conn
+     * @param token 令牌
+     * @param user 用户
+     * @param item 商品
+     */
+    public void updateTokenPipelined(Jedis conn, String token, String user, String item) {
+        RedisMetrics.begin("updateTokenPipelined");
+        try {
+            long timestamp = System.currentTimeMillis() / 1000;
+            Pipeline pipeline = conn.pipelined();
+            pipeline.hset("login:", token, user);
+            pipeline.zadd("recent:", timestamp, token);
+            if (item != null) {
+                pipeline.zadd("viewed:" + token, timestamp, item);
+                pipeline.zremrangeByRank("viewed:" + token, 0, -(VIEWED_ITEMS_PER_USER + 1));
+                pipeline.zincrby("viewed:", -1, item);
+            }
+            pipeline.sync();
+            cacheToken(token, user);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
 
-        if (item != null) {
-            //用户浏览的商品
-            conn.zadd("viewed:" + token, timestamp, item);
-            //移除旧记录，保留最近浏览的25个商品
-            conn.zremrangeByRank("viewed:" + token, 0, -26);
-            //有序集合记录所有商品浏览记录。根据浏览次数对商品进行排序，浏览最多放到有序集合的索引0上，且有最少得分
-            conn.zincrby("viewed:", -1, item);
+    /**
+     * 更新令牌(脚本版本)，通过EVALSHA在服务端执行，一次往返只发送一条命令
+     * @param conn
+     * @param token 令牌
+     * @param user 用户
+     * @param item 商品
+     */
+    public void updateTokenScript(Jedis conn, String token, String user, String item) {
+        RedisMetrics.begin("updateTokenScript");
+        try {
+            long timestamp = System.currentTimeMillis() / 1000;
+            List<String> keys = Arrays.asList("login:", "recent:", "viewed:" + token, "viewed:");
+            List<String> args = item != null
+                    ? Arrays.asList(token, user, String.valueOf(timestamp), item)
+                    : Arrays.asList(token, user, String.valueOf(timestamp));
+            String sha = updateTokenSha != null ? updateTokenSha : loadUpdateTokenScript(conn);
+            try {
+                conn.evalsha(sha, keys, args);
+            } catch (JedisDataException jde) {
+                //Redis重启或执行SCRIPT FLUSH后脚本缓存会丢失，重新加载一次
+                if (jde.getMessage() == null || !jde.getMessage().startsWith("NOSCRIPT")) {
+                    throw jde;
+                }
+                conn.evalsha(loadUpdateTokenScript(conn), keys, args);
+            }
+            cacheToken(token, user);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    private String loadUpdateTokenScript(Jedis conn) {
+        updateTokenSha = conn.scriptLoad(UPDATE_TOKEN_SCRIPT);
+        return updateTokenSha;
+    }
+
+    //令牌写入Redis后同步更新近端缓存
+    void cacheToken(String token, String user) {
+        TokenNearCache cache = tokenCache;
+        if (cache != null) {
+            cache.put(token, user);
         }
     }
 
@@ -220,12 +385,17 @@ public class Chapter02 {
      * @param count 商品数量
      */
     public void addToCart(Jedis conn, String session, String item, int count) {
-        //通过商品数量判断添加还是删除商品
-        if (count <= 0) {
-            conn.hdel("cart:" + session, item);
-        } else {
-            //将商品及数量存入有序集合 同一session
-            conn.hset("cart:" + session, item, String.valueOf(count));
+        RedisMetrics.begin("addToCart");
+        try {
+            //通过商品数量判断添加还是删除商品
+            if (count <= 0) {
+                conn.hdel("cart:" + session, item);
+            } else {
+                //将商品及数量存入有序集合 同一session
+                conn.hset("cart:" + session, item, String.valueOf(count));
+            }
+        } finally {
+            RedisMetrics.end();
         }
     }
 
@@ -236,28 +406,128 @@ public class Chapter02 {
      * @param delay
      */
     public void scheduleRowCache(Jedis conn, String rowId, int delay) {
-        //延时有序集合，成员为行id，分值为数据行缓存每隔多少更新一次
-        conn.zadd("delay:", delay, rowId);
-        //调度有序集合，成员为行id，分值为何时将数据行缓存到Redis
-        conn.zadd("schedule:", System.currentTimeMillis() / 1000, rowId);
+        scheduleRowCache(conn, rowId, delay, delay);
     }
 
-
-    public String cacheRequest(Jedis conn, String request, Callback callback) {
-        if (!canCache(conn, request)){
-            return callback != null ? callback.call(request) : null;
+    /**
+     * 调度行缓存，刷新间隔从minDelay开始，数据未变时逐步延长到maxDelay，数据变化时缩短
+     * @param conn
+     * @param rowId 行id
+     * @param minDelay 最小刷新间隔(秒)，不大于0时取消缓存
+     * @param maxDelay 最大刷新间隔(秒)
+     */
+    public void scheduleRowCache(Jedis conn, String rowId, int minDelay, int maxDelay) {
+        RedisMetrics.begin("scheduleRowCache");
+        try {
+            Pipeline pipeline = conn.pipelined();
+            //延时有序集合，成员为行id，分值为数据行缓存每隔多少更新一次
+            pipeline.zadd("delay:", minDelay, rowId);
+            if (maxDelay > minDelay) {
+                pipeline.hset(RowCacheScheduler.MAX_DELAY_KEY, rowId, String.valueOf(maxDelay));
+            } else {
+                pipeline.hdel(RowCacheScheduler.MAX_DELAY_KEY, rowId);
+            }
+            //重新调度时从最小间隔开始
+            pipeline.hdel(RowCacheScheduler.INTERVAL_KEY, rowId);
+            //调度有序集合，成员为行id，分值为何时将数据行缓存到Redis
+            pipeline.zadd("schedule:", System.currentTimeMillis() / 1000, rowId);
+            pipeline.sync();
+
+            RowCacheScheduler scheduler = rowCacheScheduler;
+            if (scheduler != null) {
+                scheduler.wakeup();
+            }
+        } finally {
+            RedisMetrics.end();
         }
+    }
+
 
-        //请求转换为字符串
-        String pageKey = "cache:" + hashRequest(request);
-        String content = conn.get(pageKey);
+    public RowSerializer getRowSerializer() {
+        return rowSerializer;
+    }
 
-        if (content == null && callback != null){
-            content = callback.call(request);
-            conn.setex(pageKey, 300, content);
+    /**
+     * 设置缓存数据行的序列化方式，需要在启动CacheRowsThread之前设置
+     * @param rowSerializer
+     */
+    public void setRowSerializer(RowSerializer rowSerializer) {
+        this.rowSerializer = rowSerializer;
+    }
+
+    public RowLoader getRowLoader() {
+        return rowLoader;
+    }
+
+    /**
+     * 设置缓存线程读取数据行的方式，需要在启动CacheRowsThread之前设置
+     * @param rowLoader
+     */
+    public void setRowLoader(RowLoader rowLoader) {
+        this.rowLoader = rowLoader;
+    }
+
+    /**
+     * 读取已缓存的数据行
+     * @param conn
+     * @param rowId 行id
+     * @return 数据行，未缓存时为null
+     */
+    public Inventory getCachedRow(Jedis conn, String rowId) {
+        RedisMetrics.begin("getCachedRow");
+        try {
+            byte[] data = conn.get(SafeEncoder.encode("inv:" + rowId));
+            return data != null ? rowSerializer.decode(data) : null;
+        } finally {
+            RedisMetrics.end();
         }
+    }
+
+    /**
+     * 使用PageCache缓存网页：散列不冲突、过期时只有一个调用方重新生成
+     * @param pageCache 为null时恢复GET/SETEX
+     */
+    public void setPageCache(PageCache pageCache) {
+        this.pageCache = pageCache;
+    }
+
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    public TokenNearCache getTokenCache() {
+        return tokenCache;
+    }
 
-        return content;
+    public RequestClassifier getRequestClassifier() {
+        return requestClassifier;
+    }
+
+    public String cacheRequest(Jedis conn, String request, Callback callback) {
+        RedisMetrics.begin("cacheRequest");
+        try {
+            if (!canCache(conn, request)){
+                return callback != null ? callback.call(request) : null;
+            }
+
+            PageCache cache = pageCache;
+            if (cache != null) {
+                return cache.get(conn, request, callback);
+            }
+
+            //请求转换为字符串
+            String pageKey = "cache:" + hashRequest(request);
+            String content = conn.get(pageKey);
+
+            if (content == null && callback != null){
+                content = callback.call(request);
+                conn.setex(pageKey, 300, content);
+            }
+
+            return content;
+        } finally {
+            RedisMetrics.end();
+        }
     }
 
     /**
@@ -267,6 +537,32 @@ public class Chapter02 {
      * @return
      */
     public boolean canCache(Jedis conn, String request) {
+        RedisMetrics.begin("canCache");
+        try {
+            RequestClassifier classifier = requestClassifier;
+            if (classifier != null) {
+                return classifier.canCache(request);
+            }
+            //商品id
+            String itemId = cacheableItem(request);
+            if (itemId == null) {
+                return false;
+            }
+
+            //获取商品的浏览次数排名
+            Long rank = conn.zrank("viewed:", itemId);
+            return rank != null && rank < 10000; //根据排名判断是否需要缓存   缓存最经常浏览的10000个商品
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 从请求中取出商品id，不是商品页面或是动态页面时返回null
+     * @param request
+     * @return
+     */
+    String cacheableItem(String request) {
         try {
             URL url = new URL(request);
 
@@ -280,17 +576,31 @@ public class Chapter02 {
                 }
             }
 
-            //商品id
             String itemId = extractItemId(params);
-            if (itemId == null || isDynamic(params)) {
-                return false;
-            }
-
-            //获取商品的浏览次数排名
-            Long rank = conn.zrank("viewed:", itemId);
-            return rank != null && rank < 10000; //根据排名判断是否需要缓存   缓存最经常浏览的10000个商品
+            return itemId == null || isDynamic(params) ? null : itemId;
         }catch(MalformedURLException mue){
-            return false;
+            return null;
+        }
+    }
+
+    /**
+     * 开启本地请求判断，浏览次数最多的商品集合在本地保存并定期刷新，canCache不再访问Redis
+     * @param limit 缓存浏览次数最多的商品数
+     * @param refreshMillis 刷新间隔(毫秒)
+     * @return
+     */
+    public RequestClassifier enableRequestClassifier(int limit, long refreshMillis) {
+        RequestClassifier classifier = new RequestClassifier(provider, limit, refreshMillis);
+        classifier.start();
+        requestClassifier = classifier;
+        return classifier;
+    }
+
+    public void disableRequestClassifier() {
+        RequestClassifier classifier = requestClassifier;
+        requestClassifier = null;
+        if (classifier != null) {
+            classifier.close();
         }
     }
 
@@ -326,13 +636,18 @@ public class Chapter02 {
     public class CleanSessionsThread
             extends Thread
     {
-        private Jedis conn;
+        private RedisConnectionProvider provider;
         private int limit;
-        private boolean quit;
+        private volatile boolean quit;
+        private final AtomicLong failures = new AtomicLong();
+        private volatile String lastFailure;
 
         public CleanSessionsThread(int limit) {
-            this.conn = new Jedis("localhost");
-            this.conn.select(15);
+            this(Chapter02.this.provider, limit);
+        }
+
+        public CleanSessionsThread(RedisConnectionProvider provider, int limit) {
+            this.provider = provider;
             this.limit = limit;
         }
 
@@ -342,17 +657,54 @@ public class Chapter02 {
 
         public void run() {
             while (!quit) {
-                //最近登录用户有序集合的成员数
-                long size = conn.zcard("recent:");
-                if (size <= limit){
+                boolean cleaned = false;
+                Jedis conn = null;
+                try {
+                    //每一批借用一次连接，取不到连接或命令失败时等待后重试，线程不退出
+                    conn = provider.getConnection();
+                    cleaned = clean(conn);
+                } catch (RuntimeException re) {
+                    failures.incrementAndGet();
+                    lastFailure = re.toString();
+                } finally {
+                    if (conn != null) {
+                        conn.close();
+                    }
+                }
+                if (!cleaned) {
                     try {
                         sleep(1000);
-                    }catch(InterruptedException ie){
-                        Thread.currentThread().interrupt();
+                    } catch (InterruptedException ie) {
+                        return;
                     }
-                    continue;
                 }
+            }
+        }
+
+        //失败的批数
+        public long getFailures() {
+            return failures.get();
+        }
+
+        //最近一次失败的异常
+        public String getLastFailure() {
+            return lastFailure;
+        }
+
+        /**
+         * 清理一批最旧的会话
+         * @param conn
+         * @return 是否清理了会话，会话数没有超过limit时为false
+         */
+        private boolean clean(Jedis conn) {
+            //最近登录用户有序集合的成员数
+            long size = conn.zcard("recent:");
+            if (size <= limit){
+                return false;
+            }
 
+            RedisMetrics.begin("cleanSessions");
+            try {
                 //移除最多100个最旧令牌
                 long endIndex = Math.min(size - limit, 100);
                 //排名介于start与stop间的成员
@@ -370,20 +722,30 @@ public class Chapter02 {
                 conn.hdel("login:", tokens);
                 //移除最近登录用户有序集合
                 conn.zrem("recent:", tokens);
+                //通知各进程的checkToken近端缓存
+                TokenNearCache.publishInvalidation(conn, tokens);
+            } finally {
+                RedisMetrics.end();
             }
+            return true;
         }
     }
 
     public class CleanFullSessionsThread
             extends Thread
     {
-        private Jedis conn;
+        private RedisConnectionProvider provider;
         private int limit;
-        private boolean quit;
+        private volatile boolean quit;
+        private final AtomicLong failures = new AtomicLong();
+        private volatile String lastFailure;
 
         public CleanFullSessionsThread(int limit) {
-            this.conn = new Jedis("localhost");
-            this.conn.select(15);
+            this(Chapter02.this.provider, limit);
+        }
+
+        public CleanFullSessionsThread(RedisConnectionProvider provider, int limit) {
+            this.provider = provider;
             this.limit = limit;
         }
 
@@ -393,16 +755,53 @@ public class Chapter02 {
 
         public void run() {
             while (!quit) {
-                long size = conn.zcard("recent:");
-                if (size <= limit){
+                boolean cleaned = false;
+                Jedis conn = null;
+                try {
+                    //每一批借用一次连接，取不到连接或命令失败时等待后重试，线程不退出
+                    conn = provider.getConnection();
+                    cleaned = clean(conn);
+                } catch (RuntimeException re) {
+                    failures.incrementAndGet();
+                    lastFailure = re.toString();
+                } finally {
+                    if (conn != null) {
+                        conn.close();
+                    }
+                }
+                if (!cleaned) {
                     try {
                         sleep(1000);
-                    }catch(InterruptedException ie){
-                        Thread.currentThread().interrupt();
+                    } catch (InterruptedException ie) {
+                        return;
                     }
-                    continue;
                 }
+            }
+        }
+
+        //失败的批数
+        public long getFailures() {
+            return failures.get();
+        }
+
+        //最近一次失败的异常
+        public String getLastFailure() {
+            return lastFailure;
+        }
+
+        /**
+         * 清理一批最旧的会话
+         * @param conn
+         * @return 是否清理了会话，会话数没有超过limit时为false
+         */
+        private boolean clean(Jedis conn) {
+            long size = conn.zcard("recent:");
+            if (size <= limit){
+                return false;
+            }
 
+            RedisMetrics.begin("cleanFullSessions");
+            try {
                 long endIndex = Math.min(size - limit, 100);
                 Set<String> sessionSet = conn.zrange("recent:", 0, endIndex - 1);
                 String[] sessions = sessionSet.toArray(new String[sessionSet.size()]);
@@ -417,53 +816,33 @@ public class Chapter02 {
                 conn.del(sessionKeys.toArray(new String[sessionKeys.size()]));
                 conn.hdel("login:", sessions);
                 conn.zrem("recent:", sessions);
+                TokenNearCache.publishInvalidation(conn, sessions);
+            } finally {
+                RedisMetrics.end();
             }
+            return true;
         }
     }
 
+    /**
+     * 缓存数据行的线程，由RowCacheScheduler按到期时间批量刷新
+     */
     public class CacheRowsThread
-            extends Thread
+            extends RowCacheScheduler
     {
-        private Jedis conn;
-        private boolean quit;
-
         public CacheRowsThread() {
-            this.conn = new Jedis("localhost");
-            this.conn.select(15);
+            this(Chapter02.this.provider);
         }
 
-        public void quit() {
-            quit = true;
+        public CacheRowsThread(RedisConnectionProvider provider) {
+            super(provider, 1, rowSerializer, rowLoader);
         }
 
-        public void run() {
-            Gson gson = new Gson();
-            while (!quit){
-                Set<Tuple> range = conn.zrangeWithScores("schedule:", 0, 0);
-                Tuple next = range.size() > 0 ? range.iterator().next() : null;
-                long now = System.currentTimeMillis() / 1000;
-                if (next == null || next.getScore() > now){
-                    try {
-                        sleep(50);
-                    }catch(InterruptedException ie){
-                        Thread.currentThread().interrupt();
-                    }
-                    continue;
-                }
-
-                String rowId = next.getElement();
-                double delay = conn.zscore("delay:", rowId);
-                if (delay <= 0) {
-                    conn.zrem("delay:", rowId);
-                    conn.zrem("schedule:", rowId);
-                    conn.del("inv:" + rowId);
-                    continue;
-                }
-
-                Inventory row = Inventory.get(rowId);
-                conn.zadd("schedule:", now + delay, rowId);
-                conn.set("inv:" + rowId, gson.toJson(row));
-            }
+        //启动后scheduleRowCache才唤醒这个线程，只创建未启动的实例不替换正在运行的线程
+        @Override
+        public synchronized void start() {
+            super.start();
+            rowCacheScheduler = this;
         }
     }
 
@@ -473,13 +852,34 @@ public class Chapter02 {
         private long time;
 
         private Inventory (String id) {
+            this(id, "data to cache...", System.currentTimeMillis() / 1000);
+        }
+
+        Inventory(String id, String data, long time) {
             this.id = id;
-            this.data = "data to cache...";
-            this.time = System.currentTimeMillis() / 1000;
+            this.data = data;
+            this.time = time;
         }
 
+        /**
+         * 读取一行数据，批量读取见RowBackend
+         * @param id
+         * @return
+         */
         public static Inventory get(String id) {
             return new Inventory(id);
         }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        public long getTime() {
+            return time;
+        }
     }
 }
@@ -0,0 +1,522 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * web应用相关操作的简单性能对比
+ * 需要本地Redis，连接配置见RedisConfig
+ */
+public class Chapter02Benchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        RedisConnectionProvider provider = ConnectionProviders.fromSystemProperties();
+        Jedis conn = provider.getConnection();
+        try {
+            Chapter02Benchmark benchmark = new Chapter02Benchmark();
+            Chapter02 chapter = new Chapter02(provider);
+            benchmark.benchmarkCheckToken(chapter, conn, 10000, requests);
+            benchmark.benchmarkUpdateToken(chapter, conn, 1000, requests);
+            benchmark.benchmarkRowSerializers(20000);
+            benchmark.benchmarkCanCache(chapter, conn, requests);
+            benchmark.benchmarkSessionLayouts(chapter, conn, 10000);
+            benchmark.benchmarkRowLoader(chapter, conn, 2000);
+            benchmark.benchmarkRowChanges(chapter, conn, 2000);
+            if (RedisMetrics.isEnabled()) {
+                //-Dredis.metrics=true时输出各操作的命令数、往返次数与延迟分布
+                System.out.println("\n----- Redis metrics -----");
+                new ConsoleMetricsExporter().export(RedisMetrics.get());
+            }
+        } finally {
+            conn.close();
+            provider.close();
+        }
+    }
+
+    /**
+     * 令牌按Zipf分布访问，对比有无近端缓存时checkToken的延迟
+     * @param chapter
+     * @param conn
+     * @param tokens 令牌数
+     * @param requests 请求数
+     */
+    public void benchmarkCheckToken(Chapter02 chapter, Jedis conn, int tokens, int requests) {
+        System.out.println("\n----- benchmarkCheckToken (" + tokens + " tokens, " + requests + " requests) -----");
+        String[] tokenIds = new String[tokens];
+        for (int i = 0; i < tokens; i++) {
+            tokenIds[i] = UUID.randomUUID().toString();
+            chapter.updateToken(conn, tokenIds[i], "user" + i, null);
+        }
+        ZipfGenerator zipf = new ZipfGenerator(tokens, 0.99, new Random(42));
+        int[] sequence = new int[requests];
+        for (int i = 0; i < requests; i++) {
+            sequence[i] = zipf.next();
+        }
+
+        reportLatencies("without near-cache", checkTokens(chapter, conn, tokenIds, sequence));
+
+        TokenNearCache cache = chapter.enableTokenCache(tokens / 10, 60000);
+        try {
+            reportLatencies("with near-cache", checkTokens(chapter, conn, tokenIds, sequence));
+            System.out.println("  " + cache);
+        } finally {
+            chapter.disableTokenCache();
+        }
+    }
+
+    /**
+     * 对比逐条命令、流水线、脚本与延迟合并写入四种updateToken的吞吐量与每次请求的命令数
+     * @param chapter
+     * @param conn
+     * @param tokens 令牌数
+     * @param requests 请求数
+     */
+    public void benchmarkUpdateToken(Chapter02 chapter, Jedis conn, int tokens, int requests) {
+        System.out.println("\n----- benchmarkUpdateToken (" + tokens + " tokens, " + requests + " requests) -----");
+        String[] tokenIds = new String[tokens];
+        for (int i = 0; i < tokens; i++) {
+            tokenIds[i] = UUID.randomUUID().toString();
+        }
+        Random random = new Random(42);
+        int[] sequence = new int[requests];
+        for (int i = 0; i < requests; i++) {
+            sequence[i] = random.nextInt(tokens);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            chapter.updateToken(conn, tokenIds[sequence[i]], "user", "item" + (i % 100));
+        }
+        report("updateToken", requests, start, 5);
+
+        start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            chapter.updateTokenPipelined(conn, tokenIds[sequence[i]], "user", "item" + (i % 100));
+        }
+        report("updateTokenPipelined", requests, start, 5);
+
+        start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            chapter.updateTokenScript(conn, tokenIds[sequence[i]], "user", "item" + (i % 100));
+        }
+        report("updateTokenScript", requests, start, 1);
+
+        TokenUpdateBuffer buffer = new TokenUpdateBuffer(chapter, 100);
+        buffer.start();
+        start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            buffer.updateToken(conn, tokenIds[sequence[i]], "user", "item" + (i % 100));
+        }
+        buffer.quit();
+        try {
+            buffer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        report("TokenUpdateBuffer", requests, start, buffer.getCommandsPerRequest());
+    }
+
+    /**
+     * 对比各RowSerializer对不同大小数据行的编码、解码时间与编码后字节数，不需要Redis
+     * @param iterations 每种方式的编码/解码次数
+     */
+    public void benchmarkRowSerializers(int iterations) {
+        System.out.println("\n----- benchmarkRowSerializers (" + iterations + " iterations) -----");
+        String[] names = {"gson", "binary", "gson+deflate", "binary+deflate"};
+        RowSerializer[] serializers = {
+                new GsonRowSerializer(),
+                new BinaryRowSerializer(),
+                new CompressingRowSerializer(new GsonRowSerializer(), 1024),
+                new CompressingRowSerializer(new BinaryRowSerializer(), 1024)};
+
+        for (int size : new int[]{64, 4096, 65536}) {
+            StringBuilder data = new StringBuilder(size);
+            Random random = new Random(size);
+            while (data.length() < size) {
+                data.append("field").append(random.nextInt(1000)).append("=value").append(random.nextInt(100)).append(';');
+            }
+            Chapter02.Inventory row = new Chapter02.Inventory("item" + size, data.toString(), System.currentTimeMillis() / 1000);
+
+            for (int i = 0; i < serializers.length; i++) {
+                RowSerializer serializer = serializers[i];
+                byte[] encoded = null;
+                long start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    encoded = serializer.encode(row);
+                }
+                double encodeMicros = (System.nanoTime() - start) / 1e3 / iterations;
+
+                start = System.nanoTime();
+                for (int n = 0; n < iterations; n++) {
+                    serializer.decode(encoded);
+                }
+                double decodeMicros = (System.nanoTime() - start) / 1e3 / iterations;
+                System.out.printf("  %6d chars %-16s encode=%8.2fus decode=%8.2fus bytes=%d%n",
+                        size, names[i], encodeMicros, decodeMicros, encoded.length);
+            }
+        }
+    }
+
+    /**
+     * 对比canCache(URL解析+zrank)与RequestClassifier(本地扫描+本地快照)的耗时，并统计省去的Redis命令数
+     * @param chapter
+     * @param conn
+     * @param requests 请求数
+     */
+    public void benchmarkCanCache(Chapter02 chapter, Jedis conn, int requests) {
+        System.out.println("\n----- benchmarkCanCache (" + requests + " requests) -----");
+        for (int i = 0; i < 1000; i++) {
+            conn.zincrby("viewed:", -1, "item" + i);
+        }
+        String[] urls = new String[1024];
+        Random random = new Random(42);
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = "http://test.com/view?item=item" + random.nextInt(2000)
+                    + (i % 10 == 0 ? "&_=" + i : "") + "&ref=home";
+        }
+
+        long start = System.nanoTime();
+        int cacheable = 0;
+        for (int i = 0; i < requests; i++) {
+            if (chapter.canCache(conn, urls[i & 1023])) {
+                cacheable++;
+            }
+        }
+        System.out.printf("  %-20s %8.0f ns/request  cacheable=%d  redis commands/request=1%n", "canCache",
+                (System.nanoTime() - start) / (double) requests, cacheable);
+
+        RequestClassifier classifier = chapter.enableRequestClassifier(10000, 1000);
+        try {
+            start = System.nanoTime();
+            cacheable = 0;
+            for (int i = 0; i < requests; i++) {
+                if (chapter.canCache(conn, urls[i & 1023])) {
+                    cacheable++;
+                }
+            }
+            System.out.printf("  %-20s %8.0f ns/request  cacheable=%d  redis commands saved=%d%n", "RequestClassifier",
+                    (System.nanoTime() - start) / (double) requests, cacheable, classifier.getRedisCallsSaved());
+        } finally {
+            chapter.disableRequestClassifier();
+        }
+    }
+
+    /**
+     * 对比login:/viewed:令牌/cart:令牌 布局与SessionStore每个会话的内存占用与清理开销
+     * 内存为创建会话前后INFO memory的used_memory之差；清理开销分别是CleanFullSessionsThread线程的CPU时间
+     * 与Redis过期删除期间INFO cpu的增量。EmbeddedRedisServer不支持INFO，此时只输出客户端的数据。
+     * @param chapter
+     * @param conn
+     * @param sessions 会话数
+     */
+    public void benchmarkSessionLayouts(Chapter02 chapter, Jedis conn, int sessions)
+            throws InterruptedException
+    {
+        System.out.println("\n----- benchmarkSessionLayouts (" + sessions + " sessions) -----");
+        String[] tokens = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            tokens[i] = UUID.randomUUID().toString();
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        //原布局：清理线程删除全部会话
+        conn.del("login:", "recent:");
+        long memory = usedMemory(conn);
+        for (int i = 0; i < sessions; i++) {
+            for (int v = 0; v < 10; v++) {
+                chapter.updateTokenPipelined(conn, tokens[i], "user" + i, "item" + ((i + v) % 1000));
+            }
+            chapter.addToCart(conn, tokens[i], "item" + (i % 1000), 2);
+        }
+        long bytes = usedMemory(conn) - memory;
+        double cpu = serverCpuSeconds(conn);
+        Chapter02.CleanFullSessionsThread cleaner = chapter.new CleanFullSessionsThread(0);
+        long start = System.nanoTime();
+        cleaner.start();
+        while (conn.zcard("recent:") > 0) {
+            Thread.sleep(10);
+        }
+        long cleanerCpu = threads.getThreadCpuTime(cleaner.getId());
+        long elapsed = System.nanoTime() - start;
+        cleaner.quit();
+        cleaner.join();
+        reportSessionLayout("login: + viewed: + cart:", sessions, memory, bytes,
+                cleanerCpu, elapsed, serverCpuSeconds(conn) - cpu);
+
+        //SessionStore：由Redis按EXPIRE删除，客户端没有清理线程
+        SessionStore store = new SessionStore(3600);
+        memory = usedMemory(conn);
+        for (int i = 0; i < sessions; i++) {
+            for (int v = 0; v < 10; v++) {
+                store.updateToken(conn, tokens[i], "user" + i, "item" + ((i + v) % 1000));
+            }
+            store.addToCart(conn, tokens[i], "item" + (i % 1000), 2);
+        }
+        bytes = usedMemory(conn) - memory;
+        String encoding = objectEncoding(conn, SessionStore.key(tokens[0]));
+
+        Pipeline pipeline = conn.pipelined();
+        for (String token : tokens) {
+            pipeline.expire(SessionStore.key(token), 1);
+        }
+        pipeline.sync();
+        cpu = serverCpuSeconds(conn);
+        long expired = expiredKeys(conn);
+        start = System.nanoTime();
+        //等待主动过期删除全部会话，不支持INFO时无法观察，最多等待30秒
+        while (expired >= 0 && expiredKeys(conn) - expired < sessions && System.nanoTime() - start < 30e9) {
+            Thread.sleep(100);
+        }
+        elapsed = System.nanoTime() - start;
+        reportSessionLayout("session:<token> (" + encoding + ")", sessions, memory, bytes,
+                0, elapsed, serverCpuSeconds(conn) - cpu);
+        store.remove(conn, tokens);
+    }
+
+    /**
+     * 对比逐行查询与RowLoader合并查询：模拟每次查询1毫秒的InMemoryRowBackend，
+     * 先由多个线程并发读取有重叠的行(不需要Redis)，再用RowCacheScheduler刷新一批到期的行，
+     * 输出每秒刷新的行数与每批的查询次数。
+     * @param chapter
+     * @param conn
+     * @param rows 行数
+     */
+    public void benchmarkRowLoader(Chapter02 chapter, Jedis conn, int rows) throws InterruptedException {
+        System.out.println("\n----- benchmarkRowLoader (" + rows + " rows) -----");
+        String[] names = {"per-row", "batched"};
+        int[] batches = {1, 1000};
+        for (int i = 0; i < names.length; i++) {
+            InMemoryRowBackend backend = new InMemoryRowBackend(1);
+            for (int row = 0; row < rows; row++) {
+                backend.put("item" + row, "data" + row);
+            }
+            final RowLoader loader = new RowLoader(backend, batches[i], 4);
+            final int total = rows;
+            Thread[] threads = new Thread[8];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads.length; t++) {
+                final Random random = new Random(t);
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int round = 0; round < 20; round++) {
+                                List<String> ids = new ArrayList<String>(100);
+                                for (int n = 0; n < 100; n++) {
+                                    ids.add("item" + random.nextInt(total));
+                                }
+                                loader.loadAll(ids);
+                            }
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("  concurrent %-8s rows/s=%8.0f  calls=%5d  coalesced=%5d  maxRunning=%d%n",
+                    names[i], loader.getRequested() / seconds, loader.getCalls(), loader.getCoalesced(),
+                    backend.getMaxRunning());
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            InMemoryRowBackend backend = new InMemoryRowBackend(1);
+            clearRowSchedule(conn);
+            Pipeline pipeline = conn.pipelined();
+            for (int row = 0; row < rows; row++) {
+                backend.put("item" + row, "data" + row);
+                pipeline.zadd("delay:", 60, "item" + row);
+                pipeline.zadd("schedule:", 0, "item" + row);
+            }
+            pipeline.sync();
+
+            RowCacheScheduler scheduler = new RowCacheScheduler(chapter.getProvider(), 4, new GsonRowSerializer(),
+                    new RowLoader(backend, batches[i], 4), 1000, 30, 1000);
+            long start = System.nanoTime();
+            int claimed;
+            do {
+                claimed = scheduler.refreshDue(conn);
+            } while (claimed > 0);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("  scheduler  %-8s rows/s=%8.0f  batches=%d  calls/batch=%.1f%n",
+                    names[i], scheduler.getRefreshed() / seconds, scheduler.getBatches(),
+                    scheduler.getLoadCallsPerBatch());
+        }
+        clearRowSchedule(conn);
+        for (int row = 0; row < rows; row++) {
+            conn.del("inv:item" + row);
+        }
+    }
+
+    /**
+     * 行缓存的变化检测：每轮只有10%的行变化，统计每轮实际写入inv:的行数、省去的写入字节数，
+     * 以及变化的行与不变的行的刷新间隔(最小1秒，最大64秒)。每轮把所有行的调度时间改为0，强制全部刷新。
+     * @param chapter
+     * @param conn
+     * @param rows 行数
+     */
+    public void benchmarkRowChanges(Chapter02 chapter, Jedis conn, int rows) throws InterruptedException {
+        System.out.println("\n----- benchmarkRowChanges (" + rows + " rows) -----");
+        clearRowSchedule(conn);
+        InMemoryRowBackend backend = new InMemoryRowBackend();
+        for (int row = 0; row < rows; row++) {
+            backend.put("item" + row, "data" + row);
+            chapter.scheduleRowCache(conn, "item" + row, 1, 64);
+        }
+        RowCacheScheduler scheduler = new RowCacheScheduler(chapter.getProvider(), 4, new GsonRowSerializer(),
+                new RowLoader(backend), 1000, 30, 1000);
+        int changing = Math.max(1, rows / 10);
+        for (int cycle = 1; cycle <= 6; cycle++) {
+            if (cycle > 1) {
+                for (int row = 0; row < changing; row++) {
+                    backend.put("item" + row, "data" + row + "-" + cycle);
+                }
+            }
+            Pipeline pipeline = conn.pipelined();
+            for (int row = 0; row < rows; row++) {
+                pipeline.zadd("schedule:", 0, "item" + row);
+            }
+            pipeline.sync();
+
+            long refreshed = scheduler.getRefreshed();
+            long avoided = scheduler.getWritesAvoided();
+            int claimed;
+            do {
+                claimed = scheduler.refreshDue(conn);
+                //本轮刷新过的行可能在循环期间再次到期，每轮只刷新一遍
+            } while (claimed > 0 && scheduler.getRefreshed() - refreshed < rows);
+            long writes = scheduler.getRefreshed() - refreshed - (scheduler.getWritesAvoided() - avoided);
+            System.out.printf("  cycle %d  writes=%5d  avoided=%5d  changing interval=%4.0fs  stable interval=%4.0fs%n",
+                    cycle, writes, scheduler.getWritesAvoided() - avoided,
+                    RowCacheScheduler.getEffectiveInterval(conn, "item0"),
+                    RowCacheScheduler.getEffectiveInterval(conn, "item" + (rows - 1)));
+        }
+        System.out.println("  " + scheduler);
+        System.out.println("  bytes avoided=" + scheduler.getBytesAvoided());
+        clearRowSchedule(conn);
+        for (int row = 0; row < rows; row++) {
+            conn.del("inv:item" + row);
+        }
+    }
+
+    private void clearRowSchedule(Jedis conn) {
+        conn.del("schedule:", "delay:", RowCacheScheduler.FINGERPRINT_KEY, RowCacheScheduler.INTERVAL_KEY,
+                RowCacheScheduler.MAX_DELAY_KEY);
+    }
+
+    private void reportSessionLayout(String name, int sessions, long memory, long bytes,
+                                     long clientCpuNanos, long elapsedNanos, double serverCpuSeconds)
+    {
+        System.out.printf("  %-34s bytes/session=%s  cleanup client cpu=%.1fms  elapsed=%.0fms  server cpu=%s%n",
+                name, memory < 0 ? "n/a" : String.valueOf(bytes / sessions), clientCpuNanos / 1e6,
+                elapsedNanos / 1e6, memory < 0 ? "n/a" : String.format("%.1fms", serverCpuSeconds * 1e3));
+    }
+
+    //INFO中的字段，服务器不支持INFO时为空
+    private Map<String,String> info(Jedis conn, String section) {
+        Map<String,String> fields = new HashMap<String,String>();
+        try {
+            for (String line : conn.info(section).split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    fields.put(line.substring(0, colon), line.substring(colon + 1));
+                }
+            }
+        } catch (JedisDataException jde) {
+            //EmbeddedRedisServer不支持INFO
+        }
+        return fields;
+    }
+
+    private long usedMemory(Jedis conn) {
+        String used = info(conn, "memory").get("used_memory");
+        return used == null ? -1 : Long.parseLong(used);
+    }
+
+    private double serverCpuSeconds(Jedis conn) {
+        Map<String,String> cpu = info(conn, "cpu");
+        if (!cpu.containsKey("used_cpu_sys")) {
+            return 0;
+        }
+        return Double.parseDouble(cpu.get("used_cpu_sys")) + Double.parseDouble(cpu.get("used_cpu_user"));
+    }
+
+    private long expiredKeys(Jedis conn) {
+        String expired = info(conn, "stats").get("expired_keys");
+        return expired == null ? -1 : Long.parseLong(expired);
+    }
+
+    private String objectEncoding(Jedis conn, String key) {
+        try {
+            return conn.objectEncoding(key);
+        } catch (JedisDataException jde) {
+            return "encoding n/a";
+        }
+    }
+
+    private void report(String name, int ops, long startNanos, double commandsPerRequest) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("  %-22s %10.0f ops/s  %6.3f commands/request%n", name, ops / seconds, commandsPerRequest);
+    }
+
+    private long[] checkTokens(Chapter02 chapter, Jedis conn, String[] tokenIds, int[] sequence) {
+        long[] latencies = new long[sequence.length];
+        for (int i = 0; i < sequence.length; i++) {
+            long start = System.nanoTime();
+            chapter.checkToken(conn, tokenIds[sequence[i]]);
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private void reportLatencies(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.printf("  %-20s p50=%.1fus p99=%.1fus p99.9=%.1fus%n", name,
+                percentile(latencies, 0.50) / 1e3,
+                percentile(latencies, 0.99) / 1e3,
+                percentile(latencies, 0.999) / 1e3);
+    }
+
+    private long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    /**
+     * Zipf分布的随机数，排名越靠前出现越频繁，取值范围[0, n)
+     */
+    static class ZipfGenerator {
+        private final double[] cumulative;
+        private final Random random;
+
+        ZipfGenerator(int n, double exponent, Random random) {
+            this.cumulative = new double[n];
+            this.random = random;
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        int next() {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return index >= 0 ? index : Math.min(cumulative.length - 1, -index - 1);
+        }
+    }
+}
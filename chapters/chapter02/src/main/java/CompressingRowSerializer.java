@@ -0,0 +1,96 @@
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 对超过阈值的编码结果做Deflate压缩
+ * 首字节标记是否压缩(0:未压缩, 1:Deflate)，压缩时随后4字节为原始长度
+ */
+public class CompressingRowSerializer implements RowSerializer {
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+
+    private final RowSerializer delegate;
+    //原始编码达到该字节数才压缩
+    private final int threshold;
+
+    public CompressingRowSerializer(RowSerializer delegate, int threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    public byte[] encode(Chapter02.Inventory row) {
+        byte[] raw = delegate.encode(row);
+        if (raw.length >= threshold) {
+            byte[] compressed = deflate(raw);
+            //压缩后不比原来小时保留原始编码
+            if (compressed.length + 5 < raw.length + 1) {
+                byte[] encoded = new byte[compressed.length + 5];
+                encoded[0] = DEFLATE;
+                encoded[1] = (byte) (raw.length >>> 24);
+                encoded[2] = (byte) (raw.length >>> 16);
+                encoded[3] = (byte) (raw.length >>> 8);
+                encoded[4] = (byte) raw.length;
+                System.arraycopy(compressed, 0, encoded, 5, compressed.length);
+                return encoded;
+            }
+        }
+        byte[] encoded = new byte[raw.length + 1];
+        encoded[0] = RAW;
+        System.arraycopy(raw, 0, encoded, 1, raw.length);
+        return encoded;
+    }
+
+    public Chapter02.Inventory decode(byte[] encoded) {
+        if (encoded[0] == RAW) {
+            byte[] raw = new byte[encoded.length - 1];
+            System.arraycopy(encoded, 1, raw, 0, raw.length);
+            return delegate.decode(raw);
+        }
+        int length = ((encoded[1] & 0xFF) << 24) | ((encoded[2] & 0xFF) << 16)
+                | ((encoded[3] & 0xFF) << 8) | (encoded[4] & 0xFF);
+        return delegate.decode(inflate(encoded, 5, length));
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] encoded, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, offset, encoded.length - offset);
+            byte[] raw = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(raw, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed row");
+                }
+                read += n;
+            }
+            //压缩流提前结束时不能把补零的数组交给编码器
+            if (read != length) {
+                throw new IllegalArgumentException("Compressed row is " + read + " bytes, expected " + length);
+            }
+            return raw;
+        } catch (DataFormatException dfe) {
+            throw new IllegalArgumentException("Corrupt compressed row", dfe);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+import com.google.gson.Gson;
+
+import java.nio.charset.Charset;
+
+/**
+ * JSON序列化，与原CacheRowsThread写入的格式相同，inv:行id可以直接按字符串读取
+ */
+public class GsonRowSerializer implements RowSerializer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Gson gson = new Gson();
+
+    public byte[] encode(Chapter02.Inventory row) {
+        return gson.toJson(row).getBytes(UTF_8);
+    }
+
+    public Chapter02.Inventory decode(byte[] data) {
+        return gson.fromJson(new String(data, UTF_8), Chapter02.Inventory.class);
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内存中的数据行，代替数据库用于测试与性能对比
+ * 每次getAll固定等待latencyMillis毫秒，模拟一次查询的往返时间；记录查询次数与同时进行的最大查询数
+ */
+public class InMemoryRowBackend implements RowBackend {
+    private final ConcurrentMap<String, Chapter02.Inventory> rows = new ConcurrentHashMap<String, Chapter02.Inventory>();
+    private final long latencyMillis;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong rowsRead = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    public InMemoryRowBackend() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis 每次查询的模拟延迟(毫秒)
+     */
+    public InMemoryRowBackend(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public InMemoryRowBackend put(String rowId, String data) {
+        rows.put(rowId, new Chapter02.Inventory(rowId, data, System.currentTimeMillis() / 1000));
+        return this;
+    }
+
+    public void remove(String rowId) {
+        rows.remove(rowId);
+    }
+
+    public Map<String, Chapter02.Inventory> getAll(Collection<String> rowIds) {
+        int current = running.incrementAndGet();
+        try {
+            while (true) {
+                int max = maxRunning.get();
+                if (current <= max || maxRunning.compareAndSet(max, current)) {
+                    break;
+                }
+            }
+            calls.incrementAndGet();
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while loading rows", ie);
+                }
+            }
+            Map<String, Chapter02.Inventory> found = new HashMap<String, Chapter02.Inventory>(rowIds.size() * 2);
+            for (String rowId : rowIds) {
+                Chapter02.Inventory row = rows.get(rowId);
+                if (row != null) {
+                    found.put(rowId, row);
+                }
+            }
+            rowsRead.addAndGet(found.size());
+            return found;
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    //getAll的调用次数，即数据库查询次数
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    //同时进行的最大查询数
+    public int getMaxRunning() {
+        return maxRunning.get();
+    }
+
+    @Override
+    public String toString() {
+        return "rows=" + rows.size() + ", calls=" + calls.get() + ", rowsRead=" + rowsRead.get()
+                + ", maxRunning=" + maxRunning.get();
+    }
+}
@@ -0,0 +1,442 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.params.SetParams;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 网页缓存，替代cacheRequest的GET/SETEX
+ * 1. key为请求的128位MurmurHash3，散列中同时保存原始请求，散列冲突时按未命中处理，不会返回别的页面；
+ * 2. 缓存在ttl后逻辑过期，但在staleSeconds内仍保留，过期后由一个调用方重新生成，其余调用方继续使用旧页面，
+ *    重新生成返回null或抛出异常时该调用方同样返回旧页面；
+ * 3. 过期前按XFetch算法以一定概率提前刷新，生成越慢、越接近过期越可能提前刷新；
+ * 4. 未命中时本进程内同一页面只生成一次，多个进程之间通过lock:cache:散列值互斥；
+ * 5. 可选的进程内一级缓存，命中时不访问Redis。
+ */
+public class PageCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String RELEASE_LOCK_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end " +
+            "return 0";
+
+    //页面有效期(秒)
+    private final int ttlSeconds;
+    //逻辑过期后继续保留旧页面的时间(秒)
+    private final int staleSeconds;
+    //提前刷新系数，越大越早刷新，0表示不提前刷新
+    private final double beta;
+    //重新生成页面的锁超时时间(毫秒)
+    private final int lockMillis;
+
+    //一级缓存，为null时不使用
+    private final LinkedHashMap<String,Page> local;
+    private final long localTtlMillis;
+    private final ConcurrentMap<String,FutureTask<String>> inFlight = new ConcurrentHashMap<String,FutureTask<String>>();
+
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong collisions = new AtomicLong();
+    private final AtomicLong regenerations = new AtomicLong();
+    private final AtomicLong earlyRefreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong callbackNanos = new AtomicLong();
+    private final AtomicLong maxCallbackNanos = new AtomicLong();
+
+    public PageCache(int ttlSeconds, int staleSeconds) {
+        this(ttlSeconds, staleSeconds, 1.0, 5000, 0, 0);
+    }
+
+    /**
+     * @param ttlSeconds 页面有效期(秒)
+     * @param staleSeconds 过期后仍可返回旧页面的时间(秒)
+     * @param beta 提前刷新系数
+     * @param lockMillis 重新生成页面的锁超时时间(毫秒)
+     * @param localSize 一级缓存容量，0表示不使用一级缓存
+     * @param localTtlMillis 一级缓存条目的有效期(毫秒)
+     */
+    public PageCache(int ttlSeconds, int staleSeconds, double beta, int lockMillis,
+                     final int localSize, long localTtlMillis)
+    {
+        this.ttlSeconds = ttlSeconds;
+        this.staleSeconds = staleSeconds;
+        this.beta = beta;
+        this.lockMillis = lockMillis;
+        this.localTtlMillis = localTtlMillis;
+        this.local = localSize <= 0 ? null : new LinkedHashMap<String,Page>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,Page> eldest) {
+                return size() > localSize;
+            }
+        };
+    }
+
+    /**
+     * 获取缓存的页面，需要时调用callback生成
+     * @param conn
+     * @param request 请求
+     * @param callback 生成页面的回调
+     * @return 页面内容
+     */
+    public String get(Jedis conn, String request, Chapter02.Callback callback) {
+        String key = "cache:" + hashRequest(request);
+        long now = System.currentTimeMillis();
+
+        Page page = getLocal(key, request, now);
+        if (page != null) {
+            localHits.incrementAndGet();
+            return page.content;
+        }
+
+        List<String> fields = conn.hmget(key, "req", "content", "expires", "delta");
+        if (fields.get(0) != null && !fields.get(0).equals(request)) {
+            collisions.incrementAndGet();
+        }
+        if (fields.get(0) != null && fields.get(0).equals(request) && fields.get(1) != null) {
+            page = new Page(request, fields.get(1), Long.parseLong(fields.get(2)), Long.parseLong(fields.get(3)), now);
+            if (!shouldRefresh(page, now)) {
+                hits.incrementAndGet();
+                putLocal(key, page);
+                return page.content;
+            }
+            if (now < page.expires) {
+                earlyRefreshes.incrementAndGet();
+            }
+            //只有拿到锁的调用方重新生成，其他调用方直接返回旧页面
+            String identifier = tryLock(conn, key);
+            if (identifier == null || callback == null) {
+                staleHits.incrementAndGet();
+                return page.content;
+            }
+            String content = null;
+            try {
+                content = regenerate(conn, key, request, callback);
+            } catch (RuntimeException re) {
+                //重新生成失败时旧页面仍在staleSeconds内，继续返回旧页面
+                refreshFailures.incrementAndGet();
+            } finally {
+                unlock(conn, key, identifier);
+            }
+            if (content == null) {
+                staleHits.incrementAndGet();
+                return page.content;
+            }
+            return content;
+        }
+
+        misses.incrementAndGet();
+        if (callback == null) {
+            return null;
+        }
+        return loadSingleFlight(conn, key, request, callback);
+    }
+
+    /**
+     * 128位MurmurHash3(x64)，以32位十六进制字符串表示
+     * @param request
+     * @return
+     */
+    public static String hashRequest(String request) {
+        long[] hash = murmur3x64128(request.getBytes(UTF_8), 0);
+        return String.format("%016x%016x", hash[0], hash[1]);
+    }
+
+    //XFetch：now - delta * beta * ln(random) >= expires 时刷新
+    private boolean shouldRefresh(Page page, long now) {
+        if (now >= page.expires) {
+            return true;
+        }
+        if (beta <= 0) {
+            return false;
+        }
+        double random = ThreadLocalRandom.current().nextDouble();
+        return now - page.delta * beta * Math.log(random) >= page.expires;
+    }
+
+    private String loadSingleFlight(final Jedis conn, final String key, final String request,
+                                    final Chapter02.Callback callback)
+    {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                return loadWithLock(conn, key, request, callback);
+            }
+        });
+        FutureTask<String> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return callback.call(request);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    private String loadWithLock(Jedis conn, String key, String request, Chapter02.Callback callback)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + lockMillis;
+        while (System.currentTimeMillis() < deadline) {
+            String identifier = tryLock(conn, key);
+            if (identifier != null) {
+                try {
+                    return regenerate(conn, key, request, callback);
+                } finally {
+                    unlock(conn, key, identifier);
+                }
+            }
+            //其他进程正在生成，等待结果
+            Thread.sleep(10);
+            List<String> fields = conn.hmget(key, "req", "content");
+            if (request.equals(fields.get(0)) && fields.get(1) != null) {
+                return fields.get(1);
+            }
+        }
+        //等待超时，不写缓存直接生成
+        return callback.call(request);
+    }
+
+    private String regenerate(Jedis conn, String key, String request, Chapter02.Callback callback) {
+        long start = System.nanoTime();
+        String content = callback.call(request);
+        long elapsed = System.nanoTime() - start;
+        regenerations.incrementAndGet();
+        callbackNanos.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = maxCallbackNanos.get())) {
+            if (maxCallbackNanos.compareAndSet(max, elapsed)) {
+                break;
+            }
+        }
+        if (content == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        Page page = new Page(request, content, now + ttlSeconds * 1000L, Math.max(1, elapsed / 1000000), now);
+        Map<String,String> fields = new HashMap<String,String>(8);
+        fields.put("req", request);
+        fields.put("content", content);
+        fields.put("expires", String.valueOf(page.expires));
+        fields.put("delta", String.valueOf(page.delta));
+        Pipeline pipeline = conn.pipelined();
+        pipeline.hmset(key, fields);
+        pipeline.expire(key, ttlSeconds + staleSeconds);
+        pipeline.sync();
+        putLocal(key, page);
+        return content;
+    }
+
+    private String tryLock(Jedis conn, String key) {
+        String identifier = UUID.randomUUID().toString();
+        String result = conn.set("lock:" + key, identifier, SetParams.setParams().nx().px(lockMillis));
+        return "OK".equals(result) ? identifier : null;
+    }
+
+    private void unlock(Jedis conn, String key, String identifier) {
+        conn.eval(RELEASE_LOCK_SCRIPT, Collections.singletonList("lock:" + key),
+                Collections.singletonList(identifier));
+    }
+
+    private Page getLocal(String key, String request, long now) {
+        if (local == null) {
+            return null;
+        }
+        synchronized (local) {
+            Page page = local.get(key);
+            if (page == null) {
+                return null;
+            }
+            if (!page.request.equals(request) || now - page.cachedAt >= localTtlMillis || now >= page.expires) {
+                local.remove(key);
+                return null;
+            }
+            return page;
+        }
+    }
+
+    private void putLocal(String key, Page page) {
+        if (local == null) {
+            return;
+        }
+        synchronized (local) {
+            local.put(key, page);
+        }
+    }
+
+    public long getLocalHits() {
+        return localHits.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    //逻辑过期或提前刷新时返回旧页面的次数
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    //散列值相同但请求不同的次数
+    public long getCollisions() {
+        return collisions.get();
+    }
+
+    //调用callback重新生成页面的次数
+    public long getRegenerations() {
+        return regenerations.get();
+    }
+
+    public long getEarlyRefreshes() {
+        return earlyRefreshes.get();
+    }
+
+    //有旧页面时重新生成抛出异常的次数，这些调用返回旧页面
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    public double getMeanCallbackMillis() {
+        long count = regenerations.get();
+        return count == 0 ? 0 : callbackNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxCallbackMillis() {
+        return maxCallbackNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("localHits=%d, hits=%d, staleHits=%d, misses=%d, collisions=%d, regenerations=%d, "
+                        + "earlyRefreshes=%d, refreshFailures=%d, callback(mean/max)=%.2f/%.2fms",
+                localHits.get(), hits.get(), staleHits.get(), misses.get(), collisions.get(), regenerations.get(),
+                earlyRefreshes.get(), refreshFailures.get(), getMeanCallbackMillis(), getMaxCallbackMillis());
+    }
+
+    @SuppressWarnings("fallthrough")
+    static long[] murmur3x64128(byte[] data, int seed) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        int length = data.length;
+        int blocks = length / 16;
+        long h1 = seed & 0xFFFFFFFFL;
+        long h2 = seed & 0xFFFFFFFFL;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        //以下各case有意不break，从剩余字节数对应的case一直执行到default
+        switch (length & 15) {
+            case 15: k2 ^= ((long) data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= ((long) data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= ((long) data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= ((long) data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= ((long) data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= ((long) data[tail + 9] & 0xff) << 8;
+            case 9:
+                k2 ^= ((long) data[tail + 8] & 0xff);
+                k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            case 8: k1 ^= ((long) data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= ((long) data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= ((long) data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= ((long) data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= ((long) data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= ((long) data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= ((long) data[tail + 1] & 0xff) << 8;
+            case 1:
+                k1 ^= ((long) data[tail] & 0xff);
+                k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[]{h1, h2};
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) data[offset] & 0xff)
+                | (((long) data[offset + 1] & 0xff) << 8)
+                | (((long) data[offset + 2] & 0xff) << 16)
+                | (((long) data[offset + 3] & 0xff) << 24)
+                | (((long) data[offset + 4] & 0xff) << 32)
+                | (((long) data[offset + 5] & 0xff) << 40)
+                | (((long) data[offset + 6] & 0xff) << 48)
+                | (((long) data[offset + 7] & 0xff) << 56);
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static class Page {
+        private final String request;
+        private final String content;
+        //逻辑过期时间(毫秒)
+        private final long expires;
+        //上次生成页面的耗时(毫秒)
+        private final long delta;
+        //放入一级缓存的时间(毫秒)
+        private final long cachedAt;
+
+        private Page(String request, String content, long expires, long delta, long cachedAt) {
+            this.request = request;
+            this.content = content;
+            this.expires = expires;
+            this.delta = delta;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import redis.clients.jedis.Jedis;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * canCache的本地实现
+ * 直接在请求字符串上扫描查询参数item与_，不创建URL、HashMap与split数组；
+ * 浏览次数最多的商品集合(viewed:的前limit名)保存在本地快照中，由后台线程定期刷新，
+ * 判断时不访问Redis。快照最多比viewed:落后一个刷新周期。
+ * 解析结果与Chapter02.cacheableItem(new URL)一致：只接受http、https、ftp、file协议(不区分大小写)，
+ * '#'之后的片段不是查询参数。已知的差异：new URL会去掉首尾空白并检查端口号等格式，
+ * 这里不检查，"http://host:abc/?item=1"这类格式错误的请求可能被判断为可缓存。
+ */
+public class RequestClassifier {
+    private final RedisConnectionProvider provider;
+    //缓存浏览次数最多的商品数
+    private final int limit;
+    private final long refreshMillis;
+    private volatile ItemSnapshot snapshot = new ItemSnapshot(new String[0]);
+    private volatile Refresher refresher;
+
+    private final AtomicLong classified = new AtomicLong();
+    //需要查询商品排名的判断数，即没有本地快照时会执行zrank的次数
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastFailure;
+    private volatile long refreshedAt;
+
+    public RequestClassifier(RedisConnectionProvider provider, int limit, long refreshMillis) {
+        this.provider = provider;
+        this.limit = limit;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * 读取第一份快照并启动后台刷新线程
+     */
+    public synchronized void start() {
+        if (refresher == null) {
+            Jedis conn = provider.getConnection();
+            try {
+                refresh(conn);
+            } finally {
+                conn.close();
+            }
+            refresher = new Refresher();
+            refresher.start();
+        }
+    }
+
+    public synchronized void close() {
+        if (refresher != null) {
+            refresher.quit();
+            refresher = null;
+        }
+    }
+
+    /**
+     * 重新读取viewed:的前limit名商品
+     * @param conn
+     */
+    public void refresh(Jedis conn) {
+        RedisMetrics.begin("refreshClassifier");
+        try {
+            Set<String> items = conn.zrange("viewed:", 0, limit - 1);
+            snapshot = new ItemSnapshot(items.toArray(new String[items.size()]));
+            refreshes.incrementAndGet();
+            refreshedAt = System.currentTimeMillis();
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 是否需要被缓存：请求带有item参数、不带_参数，且商品在浏览次数最多的limit个商品中
+     * @param request
+     * @return
+     */
+    public boolean canCache(String request) {
+        classified.incrementAndGet();
+
+        //协议部分，与new URL一样，没有协议或协议不支持的请求不缓存
+        int scheme = request.indexOf(':');
+        if (scheme <= 0 || !isSupportedScheme(request, scheme)) {
+            return false;
+        }
+        //'#'之后是片段，其中的'?'不是查询的开始
+        int end = request.indexOf('#', scheme);
+        if (end < 0) {
+            end = request.length();
+        }
+        int query = request.indexOf('?', scheme);
+        if (query < 0 || query > end) {
+            return false;
+        }
+
+        int itemStart = -1;
+        int itemEnd = -1;
+        int start = query + 1;
+        while (start <= end) {
+            int next = request.indexOf('&', start);
+            if (next < 0 || next > end) {
+                next = end;
+            }
+            int equals = request.indexOf('=', start);
+            int nameEnd = equals >= 0 && equals < next ? equals : next;
+
+            if (nameEnd - start == 1 && request.charAt(start) == '_') {
+                //动态数据
+                return false;
+            }
+            if (nameEnd - start == 4 && request.startsWith("item", start)) {
+                //与HashMap.put一样，重复的参数以最后一个为准；没有值的参数为null
+                if (nameEnd < next) {
+                    itemStart = nameEnd + 1;
+                    itemEnd = next;
+                } else {
+                    itemStart = -1;
+                    itemEnd = -1;
+                }
+            }
+            start = next + 1;
+        }
+
+        if (itemStart < 0) {
+            return false;
+        }
+        lookups.incrementAndGet();
+        return snapshot.contains(request, itemStart, itemEnd);
+    }
+
+    //new URL默认支持的协议，jar协议要求"!/"，商品页面不会使用
+    private static boolean isSupportedScheme(String request, int length) {
+        switch (length) {
+            case 3:
+                return request.regionMatches(true, 0, "ftp", 0, 3);
+            case 4:
+                return request.regionMatches(true, 0, "http", 0, 4) || request.regionMatches(true, 0, "file", 0, 4);
+            case 5:
+                return request.regionMatches(true, 0, "https", 0, 5);
+            default:
+                return false;
+        }
+    }
+
+    //已判断的请求数
+    public long getClassified() {
+        return classified.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    //需要查询商品排名的判断数：带有item参数且不是动态页面，没有本地快照时每次都执行一次zrank
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    //省去的Redis命令数：省去的zrank次数减去刷新快照的命令数
+    public long getRedisCallsSaved() {
+        return lookups.get() - refreshes.get();
+    }
+
+    //刷新快照失败的次数
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次失败的异常
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    public int getSnapshotSize() {
+        return snapshot.size;
+    }
+
+    public long getSnapshotAgeMillis() {
+        return System.currentTimeMillis() - refreshedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "classified=" + classified.get() + ", lookups=" + lookups.get() + ", refreshes=" + refreshes.get()
+                + ", redisCallsSaved=" + getRedisCallsSaved() + ", snapshotSize=" + snapshot.size
+                + ", failures=" + failures.get();
+    }
+
+    /**
+     * 不可变的商品集合，开放寻址散列表，可以直接按请求字符串中的一段查找，不创建子串
+     */
+    static class ItemSnapshot {
+        private final String[] table;
+        private final int mask;
+        private final int size;
+
+        ItemSnapshot(String[] items) {
+            int capacity = Integer.highestOneBit(Math.max(4, items.length * 2 - 1)) << 1;
+            this.table = new String[capacity];
+            this.mask = capacity - 1;
+            this.size = items.length;
+            for (String item : items) {
+                int slot = hash(item, 0, item.length()) & mask;
+                while (table[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = item;
+            }
+        }
+
+        boolean contains(String s, int start, int end) {
+            int length = end - start;
+            int slot = hash(s, start, end) & mask;
+            String item;
+            while ((item = table[slot]) != null) {
+                if (item.length() == length && item.regionMatches(0, s, start, length)) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        //与String.hashCode相同的计算方式，再打散低位
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private class Refresher
+            extends Thread
+    {
+        private volatile boolean quit;
+
+        private Refresher() {
+            setName("request-classifier-refresher");
+            setDaemon(true);
+        }
+
+        private void quit() {
+            quit = true;
+            interrupt();
+        }
+
+        public void run() {
+            while (!quit) {
+                try {
+                    sleep(refreshMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                Jedis conn = null;
+                try {
+                    conn = provider.getConnection();
+                    refresh(conn);
+                } catch (RuntimeException re) {
+                    //取不到连接或刷新失败时继续使用旧快照，下一周期重试
+                    failures.incrementAndGet();
+                    lastFailure = re.toString();
+                } finally {
+                    if (conn != null) {
+                        conn.close();
+                    }
+                }
+            }
+        }
+    }
+}
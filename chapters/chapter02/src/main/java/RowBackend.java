@@ -0,0 +1,14 @@
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 缓存数据行的来源(通常是数据库)，RowLoader通过它批量读取数据行
+ */
+public interface RowBackend {
+    /**
+     * 一次查询读取多行，如SELECT ... WHERE id IN (...)
+     * @param rowIds 行id，不重复
+     * @return 行id到数据行，不存在的行不包含在内
+     */
+    Map<String, Chapter02.Inventory> getAll(Collection<String> rowIds);
+}
@@ -0,0 +1,450 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据行缓存调度器，替代每50毫秒轮询一次、每次只处理一行的CacheRowsThread
+ * 每次取出所有已到期的行，通过RowLoader一次查询读取这一批数据行，在工作线程池中并行用RowSerializer编码，以流水线写回Redis；
+ * 两批之间一直等待到下一行的到期时间(最多maxIdleMillis)，scheduleRowCache时会被提前唤醒。
+ * 多个节点可以共享schedule:：取行时通过脚本把到期行的分值原子地改为租约到期时间，
+ * 同一行只会被一个调度器取到；处理该行的节点异常退出时，租约到期后该行会被其他节点重新取到。
+ * 编码后数据(即写入inv:的内容)的指纹保存在fingerprint:散列中，指纹未变且inv:行id仍存在时不再写入；
+ * 每行的刷新间隔保存在interval:散列中，数据未变时加倍，变化时减半，范围为scheduleRowCache设置的
+ * delay:(最小)与maxdelay:(最大，未设置时等于最小，即固定间隔)。
+ * 跳过的写入数、字节数与平均刷新间隔导出为cacheRows.<线程名>.*指标，每个调度器各自一组。
+ */
+public class RowCacheScheduler
+        extends Thread
+{
+    /**
+     * 领取到期行脚本：取出分值不大于当前时间的行，把分值改为租约到期时间
+     * KEYS: schedule:
+     * ARGV: 当前时间, 租约到期时间, 最多领取的行数
+     */
+    private static final String CLAIM_SCRIPT =
+            "local due = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[3])) " +
+            "for _, row in ipairs(due) do redis.call('zadd', KEYS[1], ARGV[2], row) end " +
+            "return due";
+
+    public static final String FINGERPRINT_KEY = "fingerprint:";
+    public static final String INTERVAL_KEY = "interval:";
+    public static final String MAX_DELAY_KEY = "maxdelay:";
+    private static final AtomicInteger SCHEDULERS = new AtomicInteger();
+
+    private final RedisConnectionProvider provider;
+    private final ExecutorService workers;
+    //一次最多领取的行数
+    private final int batchSize;
+    //租约时长(秒)
+    private final int leaseSeconds;
+    //两批之间的最长等待时间(毫秒)
+    private final long maxIdleMillis;
+    private final Object wakeup = new Object();
+    //等待开始前收到的唤醒
+    private boolean woken;
+    private volatile boolean quit;
+    //本调度器的指标名前缀，多个调度器的指标互不覆盖
+    private final String gaugePrefix;
+
+    private final RowSerializer serializer;
+    private final RowLoader loader;
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong loadCalls = new AtomicLong();
+    private final AtomicLong writesAvoided = new AtomicLong();
+    private final AtomicLong bytesAvoided = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastFailure;
+    //刷新的行的刷新间隔之和(毫秒)
+    private final AtomicLong intervalMillis = new AtomicLong();
+    //调度器启动的时间
+    private volatile long startedAt;
+
+    public RowCacheScheduler(RedisConnectionProvider provider, int workers) {
+        this(provider, workers, new GsonRowSerializer());
+    }
+
+    public RowCacheScheduler(RedisConnectionProvider provider, int workers, RowSerializer serializer) {
+        this(provider, workers, serializer, new RowLoader(new StubRowBackend()));
+    }
+
+    public RowCacheScheduler(RedisConnectionProvider provider, int workers, RowSerializer serializer, RowLoader loader) {
+        this(provider, workers, serializer, loader, 1000, 30, 1000);
+    }
+
+    public RowCacheScheduler(RedisConnectionProvider provider, int workers, RowSerializer serializer,
+                             int batchSize, int leaseSeconds, long maxIdleMillis)
+    {
+        this(provider, workers, serializer, new RowLoader(new StubRowBackend()), batchSize, leaseSeconds, maxIdleMillis);
+    }
+
+    public RowCacheScheduler(RedisConnectionProvider provider, int workers, RowSerializer serializer, RowLoader loader,
+                             int batchSize, int leaseSeconds, long maxIdleMillis)
+    {
+        this.provider = provider;
+        this.serializer = serializer;
+        this.loader = loader;
+        this.batchSize = batchSize;
+        this.leaseSeconds = leaseSeconds;
+        this.maxIdleMillis = maxIdleMillis;
+        this.workers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "row-cache-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        setName("row-cache-scheduler-" + SCHEDULERS.incrementAndGet());
+        setDaemon(true);
+        this.gaugePrefix = "cacheRows." + getName() + ".";
+    }
+
+    public synchronized void start() {
+        RedisMetrics.get().registerGauge(gaugePrefix + "writesAvoided", new RedisMetrics.Gauge() {
+            public long value() {
+                return writesAvoided.get();
+            }
+        });
+        RedisMetrics.get().registerGauge(gaugePrefix + "bytesAvoided", new RedisMetrics.Gauge() {
+            public long value() {
+                return bytesAvoided.get();
+            }
+        });
+        RedisMetrics.get().registerGauge(gaugePrefix + "averageIntervalMillis", new RedisMetrics.Gauge() {
+            public long value() {
+                return Math.round(getAverageInterval() * 1000);
+            }
+        });
+        super.start();
+    }
+
+    public void quit() {
+        quit = true;
+        wakeup();
+        RedisMetrics.get().removeGauge(gaugePrefix + "writesAvoided");
+        RedisMetrics.get().removeGauge(gaugePrefix + "bytesAvoided");
+        RedisMetrics.get().removeGauge(gaugePrefix + "averageIntervalMillis");
+    }
+
+    /**
+     * 有新的行加入调度时提前结束等待
+     */
+    public void wakeup() {
+        synchronized (wakeup) {
+            woken = true;
+            wakeup.notifyAll();
+        }
+    }
+
+    public void run() {
+        startedAt = System.currentTimeMillis();
+        try {
+            while (!quit) {
+                long waitMillis;
+                Jedis conn = null;
+                try {
+                    conn = provider.getConnection();
+                    if (refreshDue(conn) == batchSize) {
+                        //可能还有到期的行，立即处理下一批
+                        continue;
+                    }
+                    waitMillis = millisUntilNextDue(conn);
+                } catch (RuntimeException re) {
+                    //取不到连接、读取数据行或访问Redis失败，等待后重试，未写回的行租约到期后重新领取
+                    failures.incrementAndGet();
+                    lastFailure = re.toString();
+                    waitMillis = maxIdleMillis;
+                } finally {
+                    if (conn != null) {
+                        conn.close();
+                    }
+                }
+
+                if (waitMillis > 0) {
+                    synchronized (wakeup) {
+                        if (!quit && !woken) {
+                            wakeup.wait(waitMillis);
+                        }
+                        woken = false;
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * 领取并刷新一批到期的行
+     * @param conn
+     * @return 领取的行数
+     */
+    @SuppressWarnings("unchecked")
+    public int refreshDue(Jedis conn) throws InterruptedException {
+        RedisMetrics.begin("cacheRows");
+        try {
+            long now = System.currentTimeMillis() / 1000;
+            List<String> claimed = (List<String>) conn.eval(CLAIM_SCRIPT,
+                    Arrays.asList("schedule:"),
+                    Arrays.asList(String.valueOf(now), String.valueOf(now + leaseSeconds), String.valueOf(batchSize)));
+            if (claimed.isEmpty()) {
+                return 0;
+            }
+
+            Pipeline pipeline = conn.pipelined();
+            List<Response<Double>> delays = new ArrayList<Response<Double>>(claimed.size());
+            List<Response<String>> maxDelays = new ArrayList<Response<String>>(claimed.size());
+            List<Response<String>> intervals = new ArrayList<Response<String>>(claimed.size());
+            List<Response<String>> fingerprints = new ArrayList<Response<String>>(claimed.size());
+            List<Response<Boolean>> cached = new ArrayList<Response<Boolean>>(claimed.size());
+            for (String rowId : claimed) {
+                delays.add(pipeline.zscore("delay:", rowId));
+                maxDelays.add(pipeline.hget(MAX_DELAY_KEY, rowId));
+                intervals.add(pipeline.hget(INTERVAL_KEY, rowId));
+                fingerprints.add(pipeline.hget(FINGERPRINT_KEY, rowId));
+                cached.add(pipeline.exists("inv:" + rowId));
+            }
+            pipeline.sync();
+
+            List<String> rows = new ArrayList<String>(claimed.size());
+            Map<String, RowState> rowStates = new HashMap<String, RowState>(claimed.size() * 2);
+            pipeline = conn.pipelined();
+            for (int i = 0; i < claimed.size(); i++) {
+                String rowId = claimed.get(i);
+                Double delay = delays.get(i).get();
+                if (delay == null || delay <= 0) {
+                    //取消缓存的行
+                    remove(pipeline, rowId);
+                    continue;
+                }
+                rows.add(rowId);
+                rowStates.put(rowId, new RowState(delay, maxDelays.get(i).get(), intervals.get(i).get(),
+                        fingerprints.get(i).get(), cached.get(i).get()));
+            }
+
+            //这一批的行一次读取，其他线程正在读取的行不重复查询
+            List<String> found = new ArrayList<String>(rows.size());
+            long callsBefore = loader.getCalls();
+            try {
+                Map<String, Chapter02.Inventory> loaded = loader.loadAll(rows);
+
+                //并行序列化
+                List<Callable<byte[]>> encodes = new ArrayList<Callable<byte[]>>(loaded.size());
+                for (String rowId : rows) {
+                    final Chapter02.Inventory row = loaded.get(rowId);
+                    if (row == null) {
+                        //数据来源中已不存在的行
+                        remove(pipeline, rowId);
+                        continue;
+                    }
+                    found.add(rowId);
+                    encodes.add(new Callable<byte[]>() {
+                        public byte[] call() {
+                            return serializer.encode(row);
+                        }
+                    });
+                }
+
+                List<Future<byte[]>> results = workers.invokeAll(encodes);
+                for (int i = 0; i < found.size(); i++) {
+                    String rowId = found.get(i);
+                    byte[] data = results.get(i).get();
+                    String fingerprint = fingerprint(data);
+                    RowState state = rowStates.get(rowId);
+                    boolean unchanged = state.cached && fingerprint.equals(state.fingerprint);
+                    double interval = state.nextInterval(unchanged);
+                    if (unchanged) {
+                        writesAvoided.incrementAndGet();
+                        bytesAvoided.addAndGet(data.length);
+                    } else {
+                        pipeline.set(SafeEncoder.encode("inv:" + rowId), data);
+                        pipeline.hset(FINGERPRINT_KEY, rowId, fingerprint);
+                    }
+                    if (interval != state.interval) {
+                        pipeline.hset(INTERVAL_KEY, rowId, String.valueOf(interval));
+                    }
+                    pipeline.zadd("schedule:", now + interval, rowId);
+                    intervalMillis.addAndGet((long) (interval * 1000));
+                }
+            } catch (ExecutionException ee) {
+                //读取或编码失败的行保留租约，租约到期后重试
+                throw new RuntimeException(ee.getCause());
+            } finally {
+                loadCalls.addAndGet(loader.getCalls() - callsBefore);
+                pipeline.sync();
+            }
+
+            refreshed.addAndGet(found.size());
+            batches.incrementAndGet();
+            return claimed.size();
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    private void remove(Pipeline pipeline, String rowId) {
+        pipeline.zrem("delay:", rowId);
+        pipeline.zrem("schedule:", rowId);
+        pipeline.del("inv:" + rowId);
+        pipeline.hdel(FINGERPRINT_KEY, rowId);
+        pipeline.hdel(INTERVAL_KEY, rowId);
+        pipeline.hdel(MAX_DELAY_KEY, rowId);
+        removed.incrementAndGet();
+    }
+
+    //编码后数据的64位FNV-1a散列，Inventory增加的字段经序列化后同样参与比较
+    static String fingerprint(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+
+    /**
+     * 一行当前的刷新间隔(秒)
+     * @param conn
+     * @param rowId 行id
+     * @return 未调度的行为-1
+     */
+    public static double getEffectiveInterval(Jedis conn, String rowId) {
+        String interval = conn.hget(INTERVAL_KEY, rowId);
+        if (interval != null) {
+            return Double.parseDouble(interval);
+        }
+        Double delay = conn.zscore("delay:", rowId);
+        return delay != null ? delay : -1;
+    }
+
+    private long millisUntilNextDue(Jedis conn) {
+        Set<Tuple> next = conn.zrangeWithScores("schedule:", 0, 0);
+        if (next.isEmpty()) {
+            return maxIdleMillis;
+        }
+        long dueMillis = (long) (next.iterator().next().getScore() * 1000) - System.currentTimeMillis();
+        return Math.max(0, Math.min(dueMillis, maxIdleMillis));
+    }
+
+    //累计刷新的行数
+    public long getRefreshed() {
+        return refreshed.get();
+    }
+
+    //累计取消缓存的行数
+    public long getRemoved() {
+        return removed.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    //指标名前缀，如cacheRows.row-cache-scheduler-1.
+    public String getGaugePrefix() {
+        return gaugePrefix;
+    }
+
+    public RowLoader getLoader() {
+        return loader;
+    }
+
+    //累计的数据库查询次数，RowLoader由其他线程共用时包括它们在这期间触发的查询
+    public long getLoadCalls() {
+        return loadCalls.get();
+    }
+
+    //数据未变而没有写入inv:的次数
+    public long getWritesAvoided() {
+        return writesAvoided.get();
+    }
+
+    //没有写入的字节数
+    public long getBytesAvoided() {
+        return bytesAvoided.get();
+    }
+
+    //刷新失败的批数
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次失败的异常
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    //刷新的行的平均刷新间隔(秒)
+    public double getAverageInterval() {
+        long count = refreshed.get();
+        return count == 0 ? 0 : intervalMillis.get() / 1000.0 / count;
+    }
+
+    //每批平均的数据库查询次数
+    public double getLoadCallsPerBatch() {
+        long count = batches.get();
+        return count == 0 ? 0 : loadCalls.get() / (double) count;
+    }
+
+    //启动以来平均每秒刷新的行数
+    public double getRowsPerSecond() {
+        long elapsed = System.currentTimeMillis() - startedAt;
+        return startedAt == 0 || elapsed <= 0 ? 0 : refreshed.get() * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("refreshed=%d, removed=%d, batches=%d, rows/s=%.0f, loadCalls/batch=%.2f, writesAvoided=%d, avgInterval=%.1fs, failures=%d",
+                refreshed.get(), removed.get(), batches.get(), getRowsPerSecond(), getLoadCallsPerBatch(),
+                writesAvoided.get(), getAverageInterval(), failures.get());
+    }
+
+    /**
+     * 一行的调度状态：最小、最大与当前的刷新间隔，上次写入的指纹
+     */
+    private static class RowState {
+        private final double minDelay;
+        private final double maxDelay;
+        private final double interval;
+        private final String fingerprint;
+        //inv:行id是否存在，被删除时即使指纹未变也要重新写入
+        private final boolean cached;
+
+        private RowState(double minDelay, String maxDelay, String interval, String fingerprint, boolean cached) {
+            this.minDelay = minDelay;
+            this.maxDelay = maxDelay != null ? Math.max(minDelay, Double.parseDouble(maxDelay)) : minDelay;
+            this.interval = interval != null
+                    ? Math.max(this.minDelay, Math.min(this.maxDelay, Double.parseDouble(interval)))
+                    : minDelay;
+            this.fingerprint = fingerprint;
+            this.cached = cached;
+        }
+
+        //数据未变时间隔加倍，变化时减半
+        private double nextInterval(boolean unchanged) {
+            return unchanged ? Math.min(maxDelay, interval * 2) : Math.max(minDelay, interval / 2);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并读取数据行：一次loadAll的行按maxBatch分段，每段只调用一次RowBackend.getAll(一次数据库查询)
+ * 其他线程正在读取的行不重复读取，等待同一个结果；同时进行的查询数由信号量限制为maxInFlight，
+ * 超过时调用方阻塞等待，数据库不会因为刷新高峰收到过多并发查询。
+ * 不缓存结果，每次loadAll都读取最新的数据行。
+ */
+public class RowLoader {
+    private final RowBackend backend;
+    //每次查询最多读取的行数
+    private final int maxBatch;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    //正在读取的行
+    private final ConcurrentMap<String, CompletableFuture<Chapter02.Inventory>> inFlight =
+            new ConcurrentHashMap<String, CompletableFuture<Chapter02.Inventory>>();
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public RowLoader(RowBackend backend) {
+        this(backend, 1000, 4);
+    }
+
+    /**
+     * @param backend 数据行来源
+     * @param maxBatch 每次查询最多读取的行数
+     * @param maxInFlight 同时进行的最大查询数
+     */
+    public RowLoader(RowBackend backend, int maxBatch, int maxInFlight) {
+        this.backend = backend;
+        this.maxBatch = maxBatch;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight, true);
+    }
+
+    public RowBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * 读取一行
+     * @param rowId 行id
+     * @return 数据行，不存在时为null
+     */
+    public Chapter02.Inventory load(String rowId) throws InterruptedException {
+        return loadAll(Collections.singletonList(rowId)).get(rowId);
+    }
+
+    /**
+     * 读取多行
+     * @param rowIds 行id
+     * @return 行id到数据行，不存在的行不包含在内
+     * @throws InterruptedException 等待查询许可时被中断
+     */
+    public Map<String, Chapter02.Inventory> loadAll(Collection<String> rowIds) throws InterruptedException {
+        Map<String, CompletableFuture<Chapter02.Inventory>> waiting =
+                new LinkedHashMap<String, CompletableFuture<Chapter02.Inventory>>();
+        Map<String, CompletableFuture<Chapter02.Inventory>> owned =
+                new LinkedHashMap<String, CompletableFuture<Chapter02.Inventory>>();
+        for (String rowId : new LinkedHashSet<String>(rowIds)) {
+            CompletableFuture<Chapter02.Inventory> future = new CompletableFuture<Chapter02.Inventory>();
+            CompletableFuture<Chapter02.Inventory> running = inFlight.putIfAbsent(rowId, future);
+            if (running != null) {
+                //其他线程正在读取这一行
+                coalesced.incrementAndGet();
+                waiting.put(rowId, running);
+            } else {
+                owned.put(rowId, future);
+                waiting.put(rowId, future);
+            }
+        }
+        requested.addAndGet(waiting.size());
+
+        try {
+            List<String> ids = new ArrayList<String>(owned.keySet());
+            for (int start = 0; start < ids.size(); start += maxBatch) {
+                fetch(ids.subList(start, Math.min(start + maxBatch, ids.size())), owned);
+            }
+        } finally {
+            //中断或失败时没有读取的行也要结束，等待这些行的其他线程才不会一直阻塞
+            for (Map.Entry<String, CompletableFuture<Chapter02.Inventory>> entry : owned.entrySet()) {
+                if (entry.getValue().completeExceptionally(new IllegalStateException("Row load abandoned: " + entry.getKey()))) {
+                    inFlight.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        Map<String, Chapter02.Inventory> rows = new HashMap<String, Chapter02.Inventory>(waiting.size() * 2);
+        for (Map.Entry<String, CompletableFuture<Chapter02.Inventory>> entry : waiting.entrySet()) {
+            try {
+                Chapter02.Inventory row = entry.getValue().get();
+                if (row != null) {
+                    rows.put(entry.getKey(), row);
+                }
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ee.getCause();
+                }
+                throw new RuntimeException(ee.getCause());
+            }
+        }
+        return rows;
+    }
+
+    //一次查询读取一段行，并结束这些行的等待
+    private void fetch(List<String> ids, Map<String, CompletableFuture<Chapter02.Inventory>> owned)
+            throws InterruptedException
+    {
+        long start = System.nanoTime();
+        permits.acquire();
+        waitNanos.addAndGet(System.nanoTime() - start);
+        try {
+            Map<String, Chapter02.Inventory> found;
+            try {
+                calls.incrementAndGet();
+                found = backend.getAll(ids);
+            } catch (RuntimeException re) {
+                for (String rowId : ids) {
+                    owned.get(rowId).completeExceptionally(re);
+                }
+                throw re;
+            }
+            for (String rowId : ids) {
+                Chapter02.Inventory row = found.get(rowId);
+                if (row != null) {
+                    loaded.incrementAndGet();
+                } else {
+                    missing.incrementAndGet();
+                }
+                owned.get(rowId).complete(row);
+            }
+        } finally {
+            for (String rowId : ids) {
+                inFlight.remove(rowId, owned.get(rowId));
+            }
+            permits.release();
+        }
+    }
+
+    //请求读取的行数
+    public long getRequested() {
+        return requested.get();
+    }
+
+    //因其他线程正在读取而合并的行数
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    //RowBackend.getAll的调用次数
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getLoaded() {
+        return loaded.get();
+    }
+
+    //数据来源中不存在的行数
+    public long getMissing() {
+        return missing.get();
+    }
+
+    //正在进行的查询数
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    //等待查询许可的累计时间(毫秒)
+    public long getWaitMillis() {
+        return waitNanos.get() / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "requested=" + requested.get() + ", coalesced=" + coalesced.get() + ", calls=" + calls.get()
+                + ", loaded=" + loaded.get() + ", missing=" + missing.get() + ", waitMillis=" + getWaitMillis();
+    }
+}
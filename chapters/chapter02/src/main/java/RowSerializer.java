@@ -0,0 +1,8 @@
+/**
+ * 缓存数据行(inv:行id)的序列化方式
+ */
+public interface RowSerializer {
+    byte[] encode(Chapter02.Inventory row);
+
+    Chapter02.Inventory decode(byte[] data);
+}
@@ -0,0 +1,317 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多线程会话清理服务，替代单线程的CleanSessionsThread/CleanFullSessionsThread
+ * 每一轮先计算超出limit的积压数，把需要清理的最旧令牌按排名平均切成互不重叠的片，
+ * 每片以片首令牌的登录时间(recent:的分值)为边界，并分配该片的令牌数为配额；
+ * 每个线程在自己的分值区间内分批取令牌(ZRANGEBYSCORE ... LIMIT)，清理满配额即停止，
+ * 一轮清理的令牌数不超过积压数，同一秒登录的大量令牌不会被多清理。
+ * 每批的DEL/HDEL/ZREM在一个流水线中发送。批大小随积压量调整，
+ * 没有积压时等待时间逐步加长，避免空闲时频繁轮询。
+ */
+public class SessionCleaner {
+    private static final long MIN_IDLE_MILLIS = 50;
+    private static final long MAX_IDLE_MILLIS = 1000;
+    private static final AtomicInteger CLEANERS = new AtomicInteger();
+
+    private final RedisConnectionProvider provider;
+    private final int limit;
+    private final int workers;
+    //是否同时清理购物车
+    private final boolean full;
+    private final int minBatch;
+    private final int maxBatch;
+
+    private final ExecutorService executor;
+    private final Thread coordinator;
+    //指标名前缀，每个实例不同，清理购物车与不清理购物车的实例可以同时运行
+    private final String gaugePrefix;
+    private volatile boolean running;
+
+    private final AtomicLong cleaned = new AtomicLong();
+    private volatile long backlog;
+    private volatile double cleanedPerSecond;
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastFailure;
+
+    public SessionCleaner(RedisConnectionProvider provider, int limit, int workers, boolean full) {
+        this(provider, limit, workers, full, 100, 5000);
+    }
+
+    public SessionCleaner(RedisConnectionProvider provider, int limit, int workers, boolean full,
+                          int minBatch, int maxBatch)
+    {
+        this.provider = provider;
+        this.limit = limit;
+        this.workers = workers;
+        this.full = full;
+        this.minBatch = minBatch;
+        this.maxBatch = maxBatch;
+        final String name = "session-cleaner-" + CLEANERS.incrementAndGet();
+        this.gaugePrefix = "cleanSessions." + name + ".";
+        this.executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.coordinator = new Thread(new Runnable() {
+            public void run() {
+                coordinate();
+            }
+        }, name);
+        this.coordinator.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        RedisMetrics.get().registerGauge(gaugePrefix + "backlog", new RedisMetrics.Gauge() {
+            public long value() {
+                return backlog;
+            }
+        });
+        RedisMetrics.get().registerGauge(gaugePrefix + "cleanedPerSecond", new RedisMetrics.Gauge() {
+            public long value() {
+                return Math.round(cleanedPerSecond);
+            }
+        });
+        coordinator.start();
+    }
+
+    /**
+     * 停止清理：不再开始新的一轮，工作线程完成当前批后退出
+     * @param timeoutMillis 最长等待时间
+     * @return 是否在等待时间内全部退出
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        running = false;
+        coordinator.interrupt();
+        RedisMetrics.get().removeGauge(gaugePrefix + "backlog");
+        RedisMetrics.get().removeGauge(gaugePrefix + "cleanedPerSecond");
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        coordinator.join(timeoutMillis);
+        executor.shutdown();
+        return executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+                && !coordinator.isAlive();
+    }
+
+    private void coordinate() {
+        long idle = MIN_IDLE_MILLIS;
+        while (running) {
+            long start = System.nanoTime();
+            long count;
+            try {
+                count = cleanRound();
+            } catch (InterruptedException ie) {
+                return;
+            } catch (RuntimeException re) {
+                //Redis暂时不可用，等待后重试
+                failures.incrementAndGet();
+                lastFailure = re.toString();
+                count = 0;
+            }
+
+            if (count > 0) {
+                cleanedPerSecond = count / ((System.nanoTime() - start) / 1e9);
+                idle = MIN_IDLE_MILLIS;
+                continue;
+            }
+            cleanedPerSecond = 0;
+            try {
+                Thread.sleep(idle);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            idle = Math.min(idle * 2, MAX_IDLE_MILLIS);
+        }
+    }
+
+    /**
+     * 清理一轮积压的会话
+     * @return 本轮清理的会话数
+     */
+    long cleanRound() throws InterruptedException {
+        long backlog;
+        int slices;
+        long perSlice;
+        double[] bounds;
+        Jedis conn = provider.getConnection();
+        try {
+            long size = conn.zcard("recent:");
+            backlog = Math.max(0, size - limit);
+            this.backlog = backlog;
+            if (backlog == 0) {
+                return 0;
+            }
+            //每片至少minBatch个令牌，积压少时不必拆给全部工作线程
+            slices = (int) Math.max(1, Math.min(workers, backlog / minBatch));
+            perSlice = backlog / slices;
+            //每片第一个令牌的分值作为区间下界
+            Pipeline pipeline = conn.pipelined();
+            List<Response<Set<Tuple>>> firsts = new ArrayList<Response<Set<Tuple>>>(slices);
+            for (int i = 0; i < slices; i++) {
+                firsts.add(pipeline.zrangeWithScores("recent:", i * perSlice, i * perSlice));
+            }
+            pipeline.sync();
+            bounds = new double[slices];
+            for (int i = 0; i < slices; i++) {
+                Set<Tuple> first = firsts.get(i).get();
+                if (first.isEmpty()) {
+                    return 0;
+                }
+                bounds[i] = first.iterator().next().getScore();
+            }
+        } finally {
+            conn.close();
+        }
+
+        int batch = (int) Math.max(minBatch, Math.min(maxBatch, perSlice));
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(slices);
+        long quota = 0;
+        for (int i = 0; i < slices; i++) {
+            quota += i == slices - 1 ? backlog - perSlice * (slices - 1) : perSlice;
+            //下界相同的片合并，配额累加
+            if (i < slices - 1 && bounds[i + 1] == bounds[i]) {
+                continue;
+            }
+            //区间左闭右开，最后一片没有上界，由配额限制；
+            //与下一片下界同分的令牌归下一片，本片可能不满配额，剩余的由下一轮清理
+            String max = i == slices - 1 ? "+inf" : "(" + bounds[i + 1];
+            tasks.add(new CleanRange(String.valueOf(bounds[i]), max, batch, quota));
+            quota = 0;
+        }
+
+        long count = 0;
+        try {
+            for (Future<Long> result : executor.invokeAll(tasks)) {
+                count += result.get();
+            }
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+        return count;
+    }
+
+    private long cleanBatch(Jedis conn, String min, String max, int batch) {
+        RedisMetrics.begin("cleanSessions");
+        try {
+            Set<String> tokenSet = conn.zrangeByScore("recent:", min, max, 0, batch);
+            if (tokenSet.isEmpty()) {
+                return 0;
+            }
+            String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
+            List<String> sessionKeys = new ArrayList<String>(tokens.length * 2);
+            for (String token : tokens) {
+                sessionKeys.add("viewed:" + token);
+                if (full) {
+                    sessionKeys.add("cart:" + token);
+                }
+            }
+
+            Pipeline pipeline = conn.pipelined();
+            pipeline.del(sessionKeys.toArray(new String[sessionKeys.size()]));
+            pipeline.hdel("login:", tokens);
+            pipeline.zrem("recent:", tokens);
+            pipeline.sync();
+            TokenNearCache.publishInvalidation(conn, tokens);
+
+            cleaned.addAndGet(tokens.length);
+            return tokens.length;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    //累计清理的会话数
+    public long getCleaned() {
+        return cleaned.get();
+    }
+
+    //最近一轮的清理速度(会话/秒)，空闲时为0，同时导出为指标cleanSessions.实例名.cleanedPerSecond
+    public double getCleanedPerSecond() {
+        return cleanedPerSecond;
+    }
+
+    //最近一次测得的积压会话数
+    public long getBacklog() {
+        return backlog;
+    }
+
+    //指标名前缀，如cleanSessions.session-cleaner-1.
+    public String getGaugePrefix() {
+        return gaugePrefix;
+    }
+
+    //失败的轮数
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次失败的异常
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cleaned=%d, cleaned/s=%.0f, backlog=%d, failures=%d",
+                cleaned.get(), cleanedPerSecond, backlog, failures.get());
+    }
+
+    /**
+     * 一个工作线程负责的分值区间，分批清理直到区间为空或服务停止
+     */
+    private class CleanRange
+            implements Callable<Long>
+    {
+        private final String min;
+        private final String max;
+        private final int batch;
+        //本片最多清理的令牌数
+        private final long quota;
+
+        private CleanRange(String min, String max, int batch, long quota) {
+            this.min = min;
+            this.max = max;
+            this.batch = batch;
+            this.quota = quota;
+        }
+
+        public Long call() {
+            long count = 0;
+            Jedis conn = provider.getConnection();
+            try {
+                while (running && count < quota) {
+                    int size = (int) Math.min(batch, quota - count);
+                    long removed = cleanBatch(conn, min, max, size);
+                    count += removed;
+                    if (removed < size) {
+                        break;
+                    }
+                }
+            } finally {
+                conn.close();
+            }
+            return count;
+        }
+    }
+}
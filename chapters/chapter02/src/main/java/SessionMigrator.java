@@ -0,0 +1,154 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把login:/recent:/viewed:令牌/cart:令牌 布局的会话迁移到SessionStore的session:令牌 散列
+ * 按recent:的顺序分批读取，每批的读取与写入各一次往返；过期时间按最后访问时间计算，
+ * 已超过ttl的会话不迁移。迁移期间应用应已改为写入SessionStore，已存在的session:令牌 不会被覆盖。
+ * 会话的删除使recent:的排名前移，可能漏掉少量会话，需要时可以再运行一次。
+ */
+public class SessionMigrator {
+    private final SessionStore store;
+    private final int batchSize;
+    //迁移后是否删除旧布局的键
+    private final boolean deleteOld;
+
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong existing = new AtomicLong();
+
+    public SessionMigrator(SessionStore store, int batchSize, boolean deleteOld) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.deleteOld = deleteOld;
+    }
+
+    /**
+     * 用法：SessionMigrator 会话ttl秒数 [delete]，连接配置见RedisConfig
+     * @param args
+     */
+    public static void main(String[] args) {
+        int ttlSeconds = Integer.parseInt(args[0]);
+        boolean deleteOld = args.length > 1 && "delete".equals(args[1]);
+        RedisConnectionProvider provider = ConnectionProviders.fromSystemProperties();
+        Jedis conn = provider.getConnection();
+        try {
+            SessionMigrator migrator = new SessionMigrator(new SessionStore(ttlSeconds), 500, deleteOld);
+            migrator.migrate(conn);
+            System.out.println(migrator);
+        } finally {
+            conn.close();
+            provider.close();
+        }
+    }
+
+    /**
+     * 迁移所有会话
+     * @param conn
+     * @return 迁移的会话数
+     */
+    public long migrate(Jedis conn) {
+        long offset = 0;
+        while (true) {
+            Set<Tuple> batch = conn.zrangeWithScores("recent:", offset, offset + batchSize - 1);
+            if (batch.isEmpty()) {
+                break;
+            }
+            int removed = migrateBatch(conn, new ArrayList<Tuple>(batch));
+            //删除旧键后后面的会话排名前移
+            offset += batch.size() - removed;
+        }
+        return migrated.get();
+    }
+
+    //迁移一批会话，返回从recent:中删除的会话数
+    private int migrateBatch(Jedis conn, List<Tuple> batch) {
+        RedisMetrics.begin("migrateSessions");
+        try {
+            Pipeline pipeline = conn.pipelined();
+            List<Response<Boolean>> exists = new ArrayList<Response<Boolean>>(batch.size());
+            List<Response<String>> users = new ArrayList<Response<String>>(batch.size());
+            List<Response<Set<String>>> viewed = new ArrayList<Response<Set<String>>>(batch.size());
+            List<Response<Map<String,String>>> carts = new ArrayList<Response<Map<String,String>>>(batch.size());
+            for (Tuple tuple : batch) {
+                String token = tuple.getElement();
+                exists.add(pipeline.exists(SessionStore.key(token)));
+                users.add(pipeline.hget("login:", token));
+                //最旧的在前，依次写入环形缓冲区
+                viewed.add(pipeline.zrange("viewed:" + token, -Chapter02.VIEWED_ITEMS_PER_USER, -1));
+                carts.add(pipeline.hgetAll("cart:" + token));
+            }
+            pipeline.sync();
+
+            long now = System.currentTimeMillis() / 1000;
+            List<String> oldTokens = new ArrayList<String>();
+            pipeline = conn.pipelined();
+            for (int i = 0; i < batch.size(); i++) {
+                String token = batch.get(i).getElement();
+                long ttl = store.getTtlSeconds() - (now - (long) batch.get(i).getScore());
+                if (exists.get(i).get()) {
+                    existing.incrementAndGet();
+                } else if (ttl <= 0 || users.get(i).get() == null) {
+                    expired.incrementAndGet();
+                } else {
+                    Map<String,String> session = new HashMap<String,String>();
+                    session.put(SessionStore.USER, users.get(i).get());
+                    long view = 0;
+                    for (String item : viewed.get(i).get()) {
+                        session.put(SessionStore.viewedField(view++), item);
+                    }
+                    session.put(SessionStore.SEEN, String.valueOf(view));
+                    for (Map.Entry<String,String> entry : carts.get(i).get().entrySet()) {
+                        session.put(SessionStore.CART_PREFIX + entry.getKey(), entry.getValue());
+                    }
+                    String key = SessionStore.key(token);
+                    pipeline.hmset(key, session);
+                    pipeline.expire(key, (int) ttl);
+                    migrated.incrementAndGet();
+                }
+                if (deleteOld) {
+                    oldTokens.add(token);
+                    pipeline.del("viewed:" + token, "cart:" + token);
+                }
+            }
+            if (!oldTokens.isEmpty()) {
+                String[] tokens = oldTokens.toArray(new String[oldTokens.size()]);
+                pipeline.hdel("login:", tokens);
+                pipeline.zrem("recent:", tokens);
+            }
+            pipeline.sync();
+            return oldTokens.size();
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    //写入session:令牌 的会话数
+    public long getMigrated() {
+        return migrated.get();
+    }
+
+    //已超过ttl或没有登录信息而未迁移的会话数
+    public long getExpired() {
+        return expired.get();
+    }
+
+    //session:令牌 已存在而未覆盖的会话数
+    public long getExisting() {
+        return existing.get();
+    }
+
+    @Override
+    public String toString() {
+        return "migrated=" + migrated.get() + ", expired=" + expired.get() + ", existing=" + existing.get();
+    }
+}
@@ -0,0 +1,206 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 每个会话一个散列的会话存储，替代login:散列 + viewed:令牌 + cart:令牌 的布局
+ * session:令牌 的字段：
+ *   user           用户
+ *   seen           已浏览的商品数
+ *   v0 ... v24     最近浏览的25个商品，第n次浏览写入v(n % 25)，是一个环形缓冲区
+ *   c:商品          购物车中商品的数量
+ * 字段数不超过hash-max-listpack-entries(默认128)、值不超过hash-max-listpack-value(默认64字节)时
+ * Redis用listpack紧凑编码保存，购物车应少于100种商品，商品id应短于64字节。
+ * 每次更新都重设EXPIRE，会话在空闲ttl秒后由Redis自行删除，不需要清理线程；
+ * updateToken在一个脚本中更新seen与环中的商品，getViewed读到的seen总与环一致。
+ * 会话不再按全局数量上限淘汰，也没有全局的recent:有序集合。
+ * 与viewed:令牌有序集合不同，重复浏览同一商品会在环中占用多个位置。
+ * 商品浏览排行viewed:仍是全局有序集合，canCache与RequestClassifier不受影响。
+ */
+public class SessionStore {
+    public static final String KEY_PREFIX = "session:";
+    static final String USER = "user";
+    static final String SEEN = "seen";
+    static final String CART_PREFIX = "c:";
+
+    /**
+     * 更新令牌脚本：写入用户，有浏览商品时在同一个脚本中取得环中的位置并写入商品，最后续期
+     * seen与v(n)同时更新，读取方不会看到seen已增加而商品尚未写入的会话
+     * KEYS: session:令牌, viewed:
+     * ARGV: 用户, ttl秒数[, 商品]
+     */
+    private static final String UPDATE_TOKEN_SCRIPT =
+            "redis.call('hset', KEYS[1], '" + USER + "', ARGV[1]) " +
+            "if ARGV[3] then " +
+            "  local seen = redis.call('hincrby', KEYS[1], '" + SEEN + "', 1) " +
+            "  redis.call('hset', KEYS[1], 'v' .. ((seen - 1) % " + Chapter02.VIEWED_ITEMS_PER_USER + "), ARGV[3]) " +
+            "  redis.call('zincrby', KEYS[2], -1, ARGV[3]) " +
+            "end " +
+            "redis.call('expire', KEYS[1], ARGV[2]) " +
+            "return 1";
+
+    private final int ttlSeconds;
+    //SCRIPT LOAD返回的脚本sha1
+    private volatile String updateTokenSha;
+
+    /**
+     * @param ttlSeconds 会话空闲多少秒后过期
+     */
+    public SessionStore(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public static String key(String token) {
+        return KEY_PREFIX + token;
+    }
+
+    static String viewedField(long view) {
+        return "v" + (view % Chapter02.VIEWED_ITEMS_PER_USER);
+    }
+
+    public String checkToken(Jedis conn, String token) {
+        RedisMetrics.begin("checkToken");
+        try {
+            return conn.hget(key(token), USER);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 更新令牌：写入用户、浏览的商品并续期，通过EVALSHA一次往返完成
+     * @param conn
+     * @param token 令牌
+     * @param user 用户
+     * @param item 商品，可以为null
+     */
+    public void updateToken(Jedis conn, String token, String user, String item) {
+        RedisMetrics.begin("updateToken");
+        try {
+            List<String> keys = Arrays.asList(key(token), "viewed:");
+            List<String> args = item != null
+                    ? Arrays.asList(user, String.valueOf(ttlSeconds), item)
+                    : Arrays.asList(user, String.valueOf(ttlSeconds));
+            String sha = updateTokenSha != null ? updateTokenSha : loadUpdateTokenScript(conn);
+            try {
+                conn.evalsha(sha, keys, args);
+            } catch (JedisDataException jde) {
+                //Redis重启或执行SCRIPT FLUSH后脚本缓存会丢失，重新加载一次
+                if (jde.getMessage() == null || !jde.getMessage().startsWith("NOSCRIPT")) {
+                    throw jde;
+                }
+                conn.evalsha(loadUpdateTokenScript(conn), keys, args);
+            }
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    private String loadUpdateTokenScript(Jedis conn) {
+        updateTokenSha = conn.scriptLoad(UPDATE_TOKEN_SCRIPT);
+        return updateTokenSha;
+    }
+
+    /**
+     * 最近浏览的商品
+     * @param conn
+     * @param token 令牌
+     * @return 商品，最近浏览的在前
+     */
+    public List<String> getViewed(Jedis conn, String token) {
+        RedisMetrics.begin("getViewed");
+        try {
+            String[] fields = new String[Chapter02.VIEWED_ITEMS_PER_USER + 1];
+            fields[0] = SEEN;
+            for (int i = 0; i < Chapter02.VIEWED_ITEMS_PER_USER; i++) {
+                fields[i + 1] = "v" + i;
+            }
+            List<String> values = conn.hmget(key(token), fields);
+            List<String> viewed = new ArrayList<String>();
+            if (values.get(0) == null) {
+                return viewed;
+            }
+            long seen = Long.parseLong(values.get(0));
+            for (long view = seen - 1; view >= 0 && view >= seen - Chapter02.VIEWED_ITEMS_PER_USER; view--) {
+                viewed.add(values.get((int) (view % Chapter02.VIEWED_ITEMS_PER_USER) + 1));
+            }
+            return viewed;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 添加购物车，同时为会话续期
+     * @param conn
+     * @param token 令牌
+     * @param item
+     * @param count 商品数量，不大于0时删除商品
+     */
+    public void addToCart(Jedis conn, String token, String item, int count) {
+        RedisMetrics.begin("addToCart");
+        try {
+            String key = key(token);
+            Pipeline pipeline = conn.pipelined();
+            if (count <= 0) {
+                pipeline.hdel(key, CART_PREFIX + item);
+            } else {
+                pipeline.hset(key, CART_PREFIX + item, String.valueOf(count));
+            }
+            pipeline.expire(key, ttlSeconds);
+            pipeline.sync();
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 购物车
+     * @param conn
+     * @param token 令牌
+     * @return 商品与数量
+     */
+    public Map<String,String> getCart(Jedis conn, String token) {
+        RedisMetrics.begin("getCart");
+        try {
+            Map<String,String> cart = new HashMap<String,String>();
+            for (Map.Entry<String,String> entry : conn.hgetAll(key(token)).entrySet()) {
+                if (entry.getKey().startsWith(CART_PREFIX)) {
+                    cart.put(entry.getKey().substring(CART_PREFIX.length()), entry.getValue());
+                }
+            }
+            return cart;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 立即删除会话(如用户退出登录)
+     * @param conn
+     * @param tokens 令牌
+     */
+    public void remove(Jedis conn, String... tokens) {
+        RedisMetrics.begin("removeSessions");
+        try {
+            String[] keys = new String[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                keys[i] = key(tokens[i]);
+            }
+            conn.del(keys);
+            TokenNearCache.publishInvalidation(conn, tokens);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 会话管理的分片版本，令牌按哈希分到ShardedRedis的逻辑分区，分区q的键：
+ *   {pN}login:  {pN}recent:         分区内的登录散列与最近登录有序集合
+ *   {pN}viewed:令牌  {pN}cart:令牌     会话的浏览记录与购物车
+ *   {pN}viewed:                     分区内的商品浏览次数
+ * 一个会话的所有键都在同一个分区，更新令牌的流水线与清理会话的多键DEL在分区内执行，Redis Cluster中同样可用。
+ * 每个分区单独清理，保留limit / 分区数 个最近的会话；商品浏览排行只能由各分区的排行近似合并(topViewed)。
+ */
+public class ShardedChapter02 {
+    //每批最多清理的会话数
+    private static final int CLEAN_BATCH = 100;
+
+    private final ShardedRedis redis;
+
+    public ShardedChapter02(ShardedRedis redis) {
+        this.redis = redis;
+    }
+
+    public static void main(String[] args) {
+        ShardedRedis redis = ShardedRedis.fromSystemProperties();
+        try {
+            new ShardedChapter02(redis).run();
+        } finally {
+            redis.close();
+        }
+    }
+
+    public void run() {
+        System.out.println("Shards: " + redis);
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            String token = UUID.randomUUID().toString();
+            tokens.add(token);
+            updateToken(token, "user" + i, "item" + (i % 3));
+        }
+        String r = checkToken(tokens.get(0));
+        System.out.println("Token " + tokens.get(0) + " belongs to: " + r);
+        assert "user0".equals(r);
+
+        addToCart(tokens.get(0), "itemY", 3);
+        System.out.println("The most viewed items are: " + topViewed(3));
+
+        long removed = cleanSessions(0, true);
+        System.out.println("Cleaned " + removed + " sessions");
+        assert removed == tokens.size();
+        assert checkToken(tokens.get(0)) == null;
+    }
+
+    public ShardedRedis getRedis() {
+        return redis;
+    }
+
+    public String checkToken(final String token) {
+        final int partition = redis.partitionOf(token);
+        return redis.execute(partition, new RedisCallback<String>() {
+            public String doInRedis(Jedis conn) {
+                RedisMetrics.begin("checkToken");
+                try {
+                    return conn.hget(ShardedRedis.key(partition, "login:"), token);
+                } finally {
+                    RedisMetrics.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * 更新令牌，与Chapter02.updateTokenPipelined相同，所有命令在令牌所在分区的一次往返内发送
+     * @param token 令牌
+     * @param user 用户
+     * @param item 商品
+     */
+    public void updateToken(final String token, final String user, final String item) {
+        final int partition = redis.partitionOf(token);
+        redis.execute(partition, new RedisCallback<Void>() {
+            public Void doInRedis(Jedis conn) {
+                RedisMetrics.begin("updateToken");
+                try {
+                    long timestamp = System.currentTimeMillis() / 1000;
+                    String viewed = ShardedRedis.key(partition, "viewed:" + token);
+                    Pipeline pipeline = conn.pipelined();
+                    pipeline.hset(ShardedRedis.key(partition, "login:"), token, user);
+                    pipeline.zadd(ShardedRedis.key(partition, "recent:"), timestamp, token);
+                    if (item != null) {
+                        pipeline.zadd(viewed, timestamp, item);
+                        pipeline.zremrangeByRank(viewed, 0, -(Chapter02.VIEWED_ITEMS_PER_USER + 1));
+                        pipeline.zincrby(ShardedRedis.key(partition, "viewed:"), -1, item);
+                    }
+                    pipeline.sync();
+                    return null;
+                } finally {
+                    RedisMetrics.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * 添加购物车
+     * @param session 令牌
+     * @param item
+     * @param count 商品数量，不大于0时删除商品
+     */
+    public void addToCart(final String session, final String item, final int count) {
+        final int partition = redis.partitionOf(session);
+        redis.execute(partition, new RedisCallback<Void>() {
+            public Void doInRedis(Jedis conn) {
+                RedisMetrics.begin("addToCart");
+                try {
+                    String cart = ShardedRedis.key(partition, "cart:" + session);
+                    if (count <= 0) {
+                        conn.hdel(cart, item);
+                    } else {
+                        conn.hset(cart, item, String.valueOf(count));
+                    }
+                    return null;
+                } finally {
+                    RedisMetrics.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * 各节点并行清理其分区中最旧的会话，直到每个分区不超过 limit / 分区数(向上取整) 个会话
+     * @param limit 保留的会话总数
+     * @param full 是否同时删除购物车
+     * @return 删除的会话数
+     */
+    public long cleanSessions(int limit, final boolean full) {
+        final int quota = (limit + redis.getPartitions() - 1) / redis.getPartitions();
+        long removed = 0;
+        for (Long count : redis.scatter(new ShardedRedis.ShardCallback<Long>() {
+            public Long doInShard(Jedis conn, List<Integer> partitions) {
+                long count = 0;
+                for (int partition : partitions) {
+                    long batch;
+                    while ((batch = cleanBatch(conn, partition, quota, full)) > 0) {
+                        count += batch;
+                    }
+                }
+                return count;
+            }
+        })) {
+            removed += count;
+        }
+        return removed;
+    }
+
+    //清理分区中最多CLEAN_BATCH个超出配额的会话，返回删除的会话数
+    private long cleanBatch(Jedis conn, int partition, int quota, boolean full) {
+        String recent = ShardedRedis.key(partition, "recent:");
+        long size = conn.zcard(recent);
+        if (size <= quota) {
+            return 0;
+        }
+        RedisMetrics.begin(full ? "cleanFullSessions" : "cleanSessions");
+        try {
+            Set<String> tokenSet = conn.zrange(recent, 0, Math.min(size - quota, CLEAN_BATCH) - 1);
+            String[] tokens = tokenSet.toArray(new String[tokenSet.size()]);
+
+            List<String> sessionKeys = new ArrayList<String>();
+            for (String token : tokens) {
+                sessionKeys.add(ShardedRedis.key(partition, "viewed:" + token));
+                if (full) {
+                    sessionKeys.add(ShardedRedis.key(partition, "cart:" + token));
+                }
+            }
+            //所有键带有同一个hash tag，多键DEL在Redis Cluster中也合法
+            Pipeline pipeline = conn.pipelined();
+            pipeline.del(sessionKeys.toArray(new String[sessionKeys.size()]));
+            pipeline.hdel(ShardedRedis.key(partition, "login:"), tokens);
+            pipeline.zrem(recent, tokens);
+            pipeline.sync();
+            return tokens.length;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 浏览最多的商品：各分区取前limit名并按商品累加浏览次数，
+     * 某商品在某分区排在limit名之外时该分区的次数不计入，结果是近似值
+     * @param limit
+     * @return 商品，按浏览次数从多到少
+     */
+    public List<String> topViewed(final int limit) {
+        RedisMetrics.begin("topViewed");
+        try {
+            final Map<String, Double> views = new HashMap<String, Double>();
+            for (List<Tuple> top : redis.scatter(new ShardedRedis.ShardCallback<List<Tuple>>() {
+                public List<Tuple> doInShard(Jedis conn, List<Integer> partitions) {
+                    Pipeline pipeline = conn.pipelined();
+                    List<Response<Set<Tuple>>> responses = new ArrayList<Response<Set<Tuple>>>(partitions.size());
+                    for (int partition : partitions) {
+                        //浏览次数以负数记录，排名最前的分值最小
+                        responses.add(pipeline.zrangeWithScores(ShardedRedis.key(partition, "viewed:"), 0, limit - 1));
+                    }
+                    pipeline.sync();
+                    List<Tuple> top = new ArrayList<Tuple>();
+                    for (Response<Set<Tuple>> response : responses) {
+                        top.addAll(response.get());
+                    }
+                    return top;
+                }
+            })) {
+                for (Tuple tuple : top) {
+                    Double current = views.get(tuple.getElement());
+                    views.put(tuple.getElement(), (current == null ? 0 : current) - tuple.getScore());
+                }
+            }
+            List<Map.Entry<String, Double>> entries = new ArrayList<Map.Entry<String, Double>>(views.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, Double>>() {
+                public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+                    return Double.compare(b.getValue(), a.getValue());
+                }
+            });
+            List<String> items = new ArrayList<String>(Math.min(limit, entries.size()));
+            for (Map.Entry<String, Double> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+                items.add(entry.getKey());
+            }
+            return items;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    /**
+     * 定期清理会话的线程
+     */
+    public class CleanSessionsThread
+            extends Thread
+    {
+        private final int limit;
+        private final boolean full;
+        private volatile boolean quit;
+
+        public CleanSessionsThread(int limit, boolean full) {
+            this.limit = limit;
+            this.full = full;
+            setName("sharded-session-cleaner");
+            setDaemon(true);
+        }
+
+        public void quit() {
+            quit = true;
+        }
+
+        public void run() {
+            while (!quit) {
+                if (cleanSessions(limit, full) == 0) {
+                    try {
+                        sleep(1000);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,428 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * checkToken的进程内近端缓存
+ * 容量有限的LRU缓存，条目超过ttl后重新从login:读取。
+ * 清理线程删除令牌后在INVALIDATION_CHANNEL发布失效消息，订阅线程收到后删除本地条目；
+ * 发布订阅不保证送达(订阅连接断开期间的消息会丢失)，ttl是本地数据过期的上限；
+ * 启动订阅后，订阅断开时清空本地条目，重新订阅成功前不读取也不放入本地缓存，直接读取login:。
+ * 条目按令牌散列到多个分段，每个分段是独立加锁的LRU，并发读取不再竞争同一把锁。
+ * 从login:读取前取得版本号(loadVersion)，读取后put时如果期间令牌被失效则丢弃结果，
+ * 慢的HGET不会把刚删除的令牌重新放回缓存。
+ */
+public class TokenNearCache {
+    //失效消息频道，消息格式为"发布时间毫秒 令牌1 令牌2 ..."
+    public static final String INVALIDATION_CHANNEL = "login:invalidate";
+
+    //分段数，2的幂
+    private static final int SEGMENTS = 16;
+    //记录失效版本的槽数，2的幂，令牌散列到槽，同槽令牌的失效会让读取结果被保守地丢弃
+    private static final int VERSION_SLOTS = 4096;
+    //重新订阅的等待时间(毫秒)，连续失败时加倍
+    private static final long MIN_RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 5000;
+
+    private final long ttlMillis;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    //每次失效递增的版本号
+    private final AtomicLong version = new AtomicLong();
+    //每个槽最近一次失效时的版本号
+    private final AtomicLongArray invalidatedAt = new AtomicLongArray(VERSION_SLOTS);
+    //最近一次清空全部条目时的版本号
+    private volatile long clearedAt;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    //读取期间令牌被失效而丢弃的结果数
+    private final AtomicLong staleLoads = new AtomicLong();
+    //失效消息从发布到本地删除的延迟，即本地可能返回已删除令牌的时间窗口
+    private final AtomicLong invalidationMessages = new AtomicLong();
+    private final AtomicLong totalStalenessMillis = new AtomicLong();
+    private final AtomicLong maxStalenessMillis = new AtomicLong();
+    //订阅失败(包括取不到连接)的次数
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastFailure;
+
+    private volatile Subscriber subscriber;
+
+    public TokenNearCache(int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        //容量平均分到各分段，总容量可能略大于maxSize
+        int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * 获取令牌对应的用户，本地未命中或已过期时从login:读取
+     * @param conn
+     * @param token 令牌
+     * @return 用户，令牌不存在时为null
+     */
+    public String get(Jedis conn, String token) {
+        String user = getLocal(token);
+        if (user != null) {
+            return user;
+        }
+        long loadVersion = loadVersion();
+        user = conn.hget("login:", token);
+        //不存在的令牌不缓存，登录后可以立即查到
+        if (user != null) {
+            put(token, user, loadVersion);
+        }
+        return user;
+    }
+
+    /**
+     * 只查本地缓存，未命中或已过期时返回null(计为一次未命中)，
+     * 由调用方先取得loadVersion，从login:读取后put
+     * @param token 令牌
+     * @return
+     */
+    public String getLocal(String token) {
+        if (!isCaching()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Segment segment = segmentFor(token);
+        synchronized (segment) {
+            CachedUser entry = segment.get(token);
+            if (entry != null) {
+                if (now - entry.loadedAt < ttlMillis) {
+                    hits.incrementAndGet();
+                    return entry.user;
+                }
+                segment.remove(token);
+                expirations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 从login:读取前调用，读取结果交给put(token, user, loadVersion)
+     * @return 当前版本号
+     */
+    public long loadVersion() {
+        return version.get();
+    }
+
+    /**
+     * 放入从login:读取的结果，读取期间令牌被失效时丢弃
+     * @param token 令牌
+     * @param user 用户
+     * @param loadVersion 读取前loadVersion()的返回值
+     * @return 是否放入
+     */
+    public boolean put(String token, String user, long loadVersion) {
+        Segment segment = segmentFor(token);
+        synchronized (segment) {
+            //订阅断开时先标记再逐段加锁清空，在锁内检查不会在清空后放回条目
+            if (!isCaching()) {
+                return false;
+            }
+            //invalidate先递增版本号再删除条目(同一把锁内)，这里在锁内检查，不会漏掉并发的失效
+            if (invalidatedAt.get(slot(token)) > loadVersion || clearedAt > loadVersion) {
+                staleLoads.incrementAndGet();
+                return false;
+            }
+            segment.put(token, new CachedUser(user, System.currentTimeMillis()));
+            return true;
+        }
+    }
+
+    /**
+     * 令牌写入login:后由写入方直接放入，不做版本检查
+     * @param token 令牌
+     * @param user 用户
+     */
+    public void put(String token, String user) {
+        Segment segment = segmentFor(token);
+        synchronized (segment) {
+            if (!isCaching()) {
+                return;
+            }
+            segment.put(token, new CachedUser(user, System.currentTimeMillis()));
+        }
+    }
+
+    public void invalidate(String... tokens) {
+        for (String token : tokens) {
+            Segment segment = segmentFor(token);
+            synchronized (segment) {
+                invalidatedAt.set(slot(token), version.incrementAndGet());
+                if (segment.remove(token) != null) {
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    //订阅断开期间可能丢失失效消息，清空全部条目，正在进行的读取结果也丢弃
+    private void clear() {
+        clearedAt = version.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segmentFor(String token) {
+        return segments[spread(token) & (SEGMENTS - 1)];
+    }
+
+    private static int slot(String token) {
+        return spread(token) & (VERSION_SLOTS - 1);
+    }
+
+    private static int spread(String token) {
+        int h = token.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 删除令牌后通知所有进程的近端缓存
+     * @param conn
+     * @param tokens 已删除的令牌
+     */
+    public static void publishInvalidation(Jedis conn, String... tokens) {
+        if (tokens.length == 0) {
+            return;
+        }
+        StringBuilder message = new StringBuilder(tokens.length * 37 + 16);
+        message.append(System.currentTimeMillis());
+        for (String token : tokens) {
+            message.append(' ').append(token);
+        }
+        conn.publish(INVALIDATION_CHANNEL, message.toString());
+    }
+
+    /**
+     * 启动订阅线程接收失效消息，订阅会一直占用一个连接
+     * @param provider
+     */
+    public synchronized void start(RedisConnectionProvider provider) {
+        if (subscriber == null) {
+            subscriber = new Subscriber(provider);
+            subscriber.start();
+        }
+    }
+
+    public synchronized void close() {
+        if (subscriber != null) {
+            subscriber.quit();
+            subscriber = null;
+        }
+    }
+
+    //没有启动订阅时只靠ttl过期；启动后只在订阅有效期间使用本地条目，断开期间的失效消息会丢失
+    private boolean isCaching() {
+        Subscriber current = subscriber;
+        return current == null || current.subscribed;
+    }
+
+    //失效消息的订阅是否有效
+    public boolean isSubscribed() {
+        Subscriber current = subscriber;
+        return current != null && current.subscribed;
+    }
+
+    private void onInvalidation(String message) {
+        String[] parts = message.split(" ");
+        long staleness = Math.max(0, System.currentTimeMillis() - Long.parseLong(parts[0]));
+        invalidationMessages.incrementAndGet();
+        totalStalenessMillis.addAndGet(staleness);
+        long max;
+        while (staleness > (max = maxStalenessMillis.get())) {
+            if (maxStalenessMillis.compareAndSet(max, staleness)) {
+                break;
+            }
+        }
+
+        String[] tokens = new String[parts.length - 1];
+        System.arraycopy(parts, 1, tokens, 0, tokens.length);
+        invalidate(tokens);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    //超出容量被淘汰的条目数
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    //超过ttl被丢弃的条目数
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    //收到失效消息后删除的条目数
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    //读取期间令牌被失效而丢弃的结果数
+    public long getStaleLoads() {
+        return staleLoads.get();
+    }
+
+    public double getMeanStalenessMillis() {
+        long count = invalidationMessages.get();
+        return count == 0 ? 0 : (double) totalStalenessMillis.get() / count;
+    }
+
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis.get();
+    }
+
+    //订阅失败的次数
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次订阅失败的异常
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d, hitRatio=%.3f, evictions=%d, expirations=%d, invalidations=%d, "
+                        + "staleLoads=%d, staleness(mean/max)=%.1f/%dms, failures=%d",
+                size(), getHitRatio(), evictions.get(), expirations.get(), invalidations.get(),
+                staleLoads.get(), getMeanStalenessMillis(), maxStalenessMillis.get(), failures.get());
+    }
+
+    private static class CachedUser {
+        private final String user;
+        private final long loadedAt;
+
+        private CachedUser(String user, long loadedAt) {
+            this.user = user;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    //一个分段，访问时在分段对象上加锁
+    private class Segment
+            extends LinkedHashMap<String,CachedUser>
+    {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        private Segment(int maxSize) {
+            //accessOrder为true时按访问顺序排列，最久未访问的条目在最前
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String,CachedUser> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private class Subscriber
+            extends Thread
+    {
+        private final RedisConnectionProvider provider;
+        private final JedisPubSub pubSub = new JedisPubSub() {
+            public void onMessage(String channel, String message) {
+                onInvalidation(message);
+            }
+
+            public void onSubscribe(String channel, int subscribedChannels) {
+                //订阅完成前已调用quit()
+                if (quit) {
+                    unsubscribe();
+                    return;
+                }
+                retryMillis = MIN_RETRY_MILLIS;
+                subscribed = true;
+            }
+        };
+        private volatile boolean quit;
+        private volatile boolean subscribed;
+        private long retryMillis = MIN_RETRY_MILLIS;
+
+        private Subscriber(RedisConnectionProvider provider) {
+            this.provider = provider;
+            setName("token-near-cache-invalidation");
+            setDaemon(true);
+        }
+
+        private void quit() {
+            quit = true;
+            interrupt();
+            if (pubSub.isSubscribed()) {
+                pubSub.unsubscribe();
+            }
+        }
+
+        public void run() {
+            while (!quit) {
+                Jedis conn = null;
+                try {
+                    conn = provider.getConnection();
+                    //subscribe会阻塞直到取消订阅
+                    conn.subscribe(pubSub, INVALIDATION_CHANNEL);
+                } catch (RuntimeException re) {
+                    //取不到连接或连接断开，期间可能丢失失效消息：清空本地缓存，等待后重新订阅
+                    subscribed = false;
+                    clear();
+                    failures.incrementAndGet();
+                    lastFailure = re.toString();
+                    try {
+                        sleep(retryMillis);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                } finally {
+                    subscribed = false;
+                    if (conn != null) {
+                        conn.close();
+                    }
+                }
+            }
+        }
+    }
+}
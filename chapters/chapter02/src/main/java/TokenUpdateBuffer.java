@@ -0,0 +1,232 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * updateToken的延迟写入
+ * 登录散列login:同步写入(每个窗口内令牌或用户变化时写一次)，写入后checkToken立即可以查到；
+ * 同一令牌在一个时间窗口内的多次浏览先在本地合并，窗口结束时以一个流水线写入：
+ * 最近登录只写一次，最近浏览一次ZADD写入多个商品，同一商品的多次浏览合并为一次zincrby。
+ * 进程异常退出或写入失败时会丢失一个窗口内的浏览记录，失败次数见getFailures。
+ */
+public class TokenUpdateBuffer
+        extends Thread
+{
+    private final Chapter02 chapter;
+    private final RedisConnectionProvider provider;
+    //合并窗口(毫秒)
+    private final long windowMillis;
+    private final ConcurrentMap<String,PendingSession> pending = new ConcurrentHashMap<String,PendingSession>();
+    private volatile boolean quit;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastFailure;
+
+    public TokenUpdateBuffer(Chapter02 chapter, long windowMillis) {
+        this.chapter = chapter;
+        this.provider = chapter.getProvider();
+        this.windowMillis = windowMillis;
+        setName("token-update-buffer");
+        setDaemon(true);
+    }
+
+    /**
+     * 记录一次浏览，参数与Chapter02.updateToken相同
+     * @param conn 用于同步写入login:
+     * @param token 令牌
+     * @param user 用户
+     * @param item 商品，可以为null
+     */
+    public void updateToken(Jedis conn, String token, String user, String item) {
+        long timestamp = System.currentTimeMillis() / 1000;
+        requests.incrementAndGet();
+        while (true) {
+            PendingSession session = pending.get(token);
+            if (session == null) {
+                PendingSession created = new PendingSession();
+                session = pending.putIfAbsent(token, created);
+                if (session == null) {
+                    session = created;
+                }
+            }
+            //正在被flush的会话不能再写入，重新取一个
+            int recorded = session.record(user, item, timestamp);
+            if (recorded == PendingSession.FLUSHED) {
+                pending.remove(token, session);
+                continue;
+            }
+            if (recorded == PendingSession.USER_CHANGED) {
+                RedisMetrics.begin("updateToken");
+                try {
+                    conn.hset("login:", token, user);
+                } finally {
+                    RedisMetrics.end();
+                }
+                commands.incrementAndGet();
+                chapter.cacheToken(token, user);
+            }
+            return;
+        }
+    }
+
+    public void quit() {
+        quit = true;
+        interrupt();
+    }
+
+    public void run() {
+        while (!quit) {
+            try {
+                sleep(windowMillis);
+            } catch (InterruptedException ie) {
+                //quit()打断等待，退出前把剩余的浏览写入
+            }
+            flushSafely();
+        }
+        //等待期间quit()之后仍可能有浏览记录进入，退出前再写一次
+        flushSafely();
+    }
+
+    //写入失败时计数，线程不退出
+    private void flushSafely() {
+        try {
+            Jedis conn = provider.getConnection();
+            try {
+                flush(conn);
+            } finally {
+                conn.close();
+            }
+        } catch (RuntimeException re) {
+            failures.incrementAndGet();
+            lastFailure = re.toString();
+        }
+    }
+
+    /**
+     * 把当前窗口内合并的浏览写入Redis
+     * @param conn
+     * @return 写入的令牌数
+     */
+    public int flush(Jedis conn) {
+        RedisMetrics.begin("flushTokens");
+        try {
+            Pipeline pipeline = conn.pipelined();
+            int sessions = 0;
+            long sent = 0;
+            for (String token : pending.keySet()) {
+                PendingSession session = pending.remove(token);
+                if (session == null) {
+                    continue;
+                }
+                synchronized (session) {
+                    session.flushed = true;
+                    pipeline.zadd("recent:", session.timestamp, token);
+                    sent++;
+                    if (!session.viewed.isEmpty()) {
+                        String viewed = "viewed:" + token;
+                        pipeline.zadd(viewed, session.viewed);
+                        pipeline.zremrangeByRank(viewed, 0, -(Chapter02.VIEWED_ITEMS_PER_USER + 1));
+                        sent += 2;
+                        for (Map.Entry<String,Integer> entry : session.counts.entrySet()) {
+                            pipeline.zincrby("viewed:", -entry.getValue(), entry.getKey());
+                            sent++;
+                        }
+                    }
+                }
+                sessions++;
+            }
+            pipeline.sync();
+
+            if (sessions > 0) {
+                commands.addAndGet(sent);
+                flushes.incrementAndGet();
+            }
+            return sessions;
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    //记录的updateToken调用次数
+    public long getRequests() {
+        return requests.get();
+    }
+
+    //实际发送到Redis的命令数
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    //写入失败的窗口数
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次写入失败的异常
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    public double getCommandsPerRequest() {
+        long r = requests.get();
+        return r == 0 ? 0 : (double) commands.get() / r;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("requests=%d, commands=%d, flushes=%d, failures=%d, commands/request=%.3f",
+                requests.get(), commands.get(), flushes.get(), failures.get(), getCommandsPerRequest());
+    }
+
+    private static class PendingSession {
+        //record的返回值
+        private static final int FLUSHED = -1;
+        private static final int RECORDED = 0;
+        private static final int USER_CHANGED = 1;
+
+        private String user;
+        private long timestamp;
+        //最近浏览的商品及浏览时间，只保留最近的VIEWED_ITEMS_PER_USER个
+        private final LinkedHashMap<String,Double> viewed = new LinkedHashMap<String,Double>() {
+            protected boolean removeEldestEntry(Map.Entry<String,Double> eldest) {
+                return size() > Chapter02.VIEWED_ITEMS_PER_USER;
+            }
+        };
+        //窗口内每个商品的浏览次数
+        private final Map<String,Integer> counts = new HashMap<String,Integer>();
+        private boolean flushed;
+
+        /**
+         * @return FLUSHED表示会话已被flush，需要重新取一个；USER_CHANGED表示需要写入login:
+         */
+        private synchronized int record(String user, String item, long timestamp) {
+            if (flushed) {
+                return FLUSHED;
+            }
+            boolean changed = !user.equals(this.user);
+            this.user = user;
+            this.timestamp = timestamp;
+            if (item != null) {
+                //重新放入，移到最近浏览的末尾
+                viewed.remove(item);
+                viewed.put(item, (double) timestamp);
+                Integer count = counts.get(item);
+                counts.put(item, count == null ? 1 : count + 1);
+            }
+            return changed ? USER_CHANGED : RECORDED;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ZParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 定期修剪并缩放viewed:商品浏览排行
+ * updateToken一直对viewed:执行zincrby，集合会包含所有浏览过的商品，旧商品也一直保持排名。
+ * 每一轮先分批删除排名在keep之后的商品(每批chunk个，批之间暂停，避免长时间阻塞Redis)，
+ * 再用ZINTERSTORE按weight缩放剩余商品的分值，让新的浏览记录更快改变排名。
+ * 修剪后集合最多只有keep个商品，缩放是一条命令，耗时有上限。
+ */
+public class ViewedRescaler
+        extends Thread
+{
+    //保留的最大样本数
+    private static final int MAX_SAMPLES = 288;
+
+    private final RedisConnectionProvider provider;
+    //保留浏览次数最多的商品数
+    private final int keep;
+    //分值缩放系数
+    private final double weight;
+    //每次删除的商品数
+    private final int chunk;
+    //两次删除之间的暂停(毫秒)
+    private final long chunkPauseMillis;
+    //两轮之间的间隔(毫秒)
+    private final long intervalMillis;
+    private volatile boolean quit;
+
+    private final List<long[]> sizeSamples = new ArrayList<long[]>();
+    private volatile long passes;
+    private volatile long lastTrimmed;
+    private volatile long lastTrimMillis;
+    private volatile long lastRescaleMillis;
+    private final AtomicLong failures = new AtomicLong();
+    private volatile String lastFailure;
+
+    public ViewedRescaler(RedisConnectionProvider provider) {
+        this(provider, 20000, 0.5, 1000, 10, 300000);
+    }
+
+    public ViewedRescaler(RedisConnectionProvider provider, int keep, double weight, int chunk,
+                          long chunkPauseMillis, long intervalMillis)
+    {
+        this.provider = provider;
+        this.keep = keep;
+        this.weight = weight;
+        this.chunk = chunk;
+        this.chunkPauseMillis = chunkPauseMillis;
+        this.intervalMillis = intervalMillis;
+        setName("viewed-rescaler");
+        setDaemon(true);
+    }
+
+    public void quit() {
+        quit = true;
+        interrupt();
+    }
+
+    public void run() {
+        while (!quit) {
+            Jedis conn = null;
+            try {
+                conn = provider.getConnection();
+                rescale(conn);
+            } catch (InterruptedException ie) {
+                return;
+            } catch (RuntimeException re) {
+                //取不到连接或命令失败，下一轮重试，线程不退出
+                failures.incrementAndGet();
+                lastFailure = re.toString();
+            } finally {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+
+            try {
+                sleep(intervalMillis);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 执行一轮修剪与缩放，修剪期间调用quit()时不再缩放
+     * @param conn
+     */
+    public void rescale(Jedis conn) throws InterruptedException {
+        RedisMetrics.begin("rescaleViewed");
+        try {
+            long start = System.currentTimeMillis();
+            long size = conn.zcard("viewed:");
+            sample(start, size);
+
+            //浏览最多的商品分值最小、排名在前，从末尾开始删除
+            long trimmed = 0;
+            while (size > keep && !quit) {
+                long remove = Math.min(chunk, size - keep);
+                trimmed += conn.zremrangeByRank("viewed:", -remove, -1);
+                size = conn.zcard("viewed:");
+                if (size > keep) {
+                    Thread.sleep(chunkPauseMillis);
+                }
+            }
+            long trimmedAt = System.currentTimeMillis();
+            if (quit) {
+                //修剪被quit()中断，不缩放只修剪了一部分的集合
+                return;
+            }
+
+            if (size > 0) {
+                conn.zinterstore("viewed:", new ZParams().weights(weight), "viewed:");
+            }
+            long end = System.currentTimeMillis();
+
+            lastTrimmed = trimmed;
+            lastTrimMillis = trimmedAt - start;
+            lastRescaleMillis = end - trimmedAt;
+            passes++;
+            sample(end, size);
+        } finally {
+            RedisMetrics.end();
+        }
+    }
+
+    private void sample(long time, long size) {
+        synchronized (sizeSamples) {
+            sizeSamples.add(new long[]{time, size});
+            if (sizeSamples.size() > MAX_SAMPLES) {
+                sizeSamples.remove(0);
+            }
+        }
+    }
+
+    /**
+     * 每轮修剪前后viewed:的大小
+     * @return [时间毫秒, 商品数]的列表
+     */
+    public List<long[]> getSizeHistory() {
+        synchronized (sizeSamples) {
+            return new ArrayList<long[]>(sizeSamples);
+        }
+    }
+
+    public long getPasses() {
+        return passes;
+    }
+
+    //最近一轮删除的商品数
+    public long getLastTrimmed() {
+        return lastTrimmed;
+    }
+
+    //最近一轮分批删除的耗时(毫秒，包括批间暂停)
+    public long getLastTrimMillis() {
+        return lastTrimMillis;
+    }
+
+    //最近一轮ZINTERSTORE缩放的耗时(毫秒)
+    public long getLastRescaleMillis() {
+        return lastRescaleMillis;
+    }
+
+    //失败的轮数
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次失败的异常
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public String toString() {
+        return "passes=" + passes + ", lastTrimmed=" + lastTrimmed + ", trim=" + lastTrimMillis
+                + "ms, rescale=" + lastRescaleMillis + "ms, failures=" + failures.get();
+    }
+}
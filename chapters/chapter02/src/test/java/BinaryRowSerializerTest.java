@@ -0,0 +1,71 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BinaryRowSerializerTest {
+    private final RowSerializer serializer = new BinaryRowSerializer();
+
+    @Test
+    public void roundTrip() {
+        assertRoundTrip(new Chapter02.Inventory("item1", "data to cache...", 1234567890L));
+        assertRoundTrip(new Chapter02.Inventory("item1", "", 0));
+        assertRoundTrip(new Chapter02.Inventory("商品", "数据\u0000😀", -1));
+        //长度超过127字节时变长整数占两个字节
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'x');
+        assertRoundTrip(new Chapter02.Inventory("item1", new String(chars), Long.MAX_VALUE));
+    }
+
+    @Test
+    public void nullFieldsStayNull() {
+        //与GsonRowSerializer一样，null编码为不存在，解码后仍为null
+        Chapter02.Inventory decoded = serializer.decode(
+                serializer.encode(new Chapter02.Inventory("item1", null, 42)));
+        assertEquals("item1", decoded.getId());
+        assertNull(decoded.getData());
+        assertEquals(42, decoded.getTime());
+
+        decoded = serializer.decode(serializer.encode(new Chapter02.Inventory(null, "", 42)));
+        assertNull(decoded.getId());
+        assertEquals("", decoded.getData());
+
+        Chapter02.Inventory gson = new GsonRowSerializer().decode(
+                new GsonRowSerializer().encode(new Chapter02.Inventory("item1", null, 42)));
+        assertNull(gson.getData());
+    }
+
+    @Test
+    public void compressedRoundTrip() {
+        RowSerializer compressing = new CompressingRowSerializer(serializer, 16);
+        char[] chars = new char[4096];
+        Arrays.fill(chars, 'x');
+        assertRoundTrip(compressing, new Chapter02.Inventory("item1", new String(chars), 7));
+        assertRoundTrip(compressing, new Chapter02.Inventory("item1", null, 7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compressedRowShorterThanStoredLength() {
+        RowSerializer compressing = new CompressingRowSerializer(serializer, 16);
+        char[] chars = new char[4096];
+        Arrays.fill(chars, 'x');
+        byte[] encoded = compressing.encode(new Chapter02.Inventory("item1", new String(chars), 7));
+        assertEquals(1, encoded[0]);
+        //记录的原始长度比压缩流多一个字节
+        encoded[4]++;
+        compressing.decode(encoded);
+    }
+
+    private void assertRoundTrip(Chapter02.Inventory row) {
+        assertRoundTrip(serializer, row);
+    }
+
+    private static void assertRoundTrip(RowSerializer serializer, Chapter02.Inventory row) {
+        Chapter02.Inventory decoded = serializer.decode(serializer.encode(row));
+        assertEquals(row.getId(), decoded.getId());
+        assertEquals(row.getData(), decoded.getData());
+        assertEquals(row.getTime(), decoded.getTime());
+    }
+}
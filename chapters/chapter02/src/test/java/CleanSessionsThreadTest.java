@@ -0,0 +1,90 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CleanSessionsThreadTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+    private Chapter02 chapter;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+        chapter = new Chapter02(provider);
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void cleanerSurvivesRedisOutage() throws InterruptedException {
+        chapter.updateToken(conn, "token1", "user1", "item1");
+        FlakyConnectionProvider flaky = new FlakyConnectionProvider(provider);
+        flaky.setDown(true);
+        Chapter02.CleanSessionsThread thread = chapter.new CleanSessionsThread(flaky, 0);
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (thread.getFailures() < 1) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            //取不到连接时记录失败并重试，线程不退出
+            assertTrue(thread.isAlive());
+            assertTrue(thread.getLastFailure(), thread.getLastFailure().contains("Could not get a resource"));
+
+            flaky.setDown(false);
+            deadline = System.currentTimeMillis() + 5000;
+            while (conn.hlen("login:") > 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertFalse(conn.exists("viewed:token1"));
+        } finally {
+            thread.quit();
+            thread.join(5000);
+        }
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void fullCleanerSurvivesRedisOutage() throws InterruptedException {
+        chapter.updateToken(conn, "token1", "user1", "item1");
+        chapter.addToCart(conn, "token1", "item2", 3);
+        FlakyConnectionProvider flaky = new FlakyConnectionProvider(provider);
+        flaky.setDown(true);
+        Chapter02.CleanFullSessionsThread thread = chapter.new CleanFullSessionsThread(flaky, 0);
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (thread.getFailures() < 1) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertTrue(thread.isAlive());
+
+            flaky.setDown(false);
+            deadline = System.currentTimeMillis() + 5000;
+            while (conn.exists("cart:token1")) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertEquals(0, conn.zcard("recent:").longValue());
+        } finally {
+            thread.quit();
+            thread.join(5000);
+        }
+        assertFalse(thread.isAlive());
+    }
+}
@@ -0,0 +1,210 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PageCacheTest {
+    private static final String REQUEST = "http://test.com/?item=1";
+
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+    private ExecutorService executor;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void concurrentMissesRunOneCallback() throws Exception {
+        //两个实例相当于两个进程：进程内合并同一页面的生成，进程之间通过lock:cache:散列值互斥
+        PageCache first = new PageCache(60, 60);
+        PageCache second = new PageCache(60, 60);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(get(i % 2 == 0 ? first : second, blocking("content", release)));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Future<String> result : results) {
+            assertEquals("content", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(1, first.getRegenerations() + second.getRegenerations());
+        //启动较晚的调用方可能已命中生成好的页面
+        assertEquals(8, first.getMisses() + second.getMisses() + first.getHits() + second.getHits());
+
+        long hits = first.getHits();
+        assertEquals("content", first.get(conn, REQUEST, counting("other")));
+        assertEquals(hits + 1, first.getHits());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void staleValueServedWhileOneRefreshRuns() throws Exception {
+        PageCache cache = new PageCache(60, 60, 0, 5000, 0, 0);
+        assertEquals("old", cache.get(conn, REQUEST, counting("old")));
+        //逻辑过期，但仍在staleSeconds内
+        String key = "cache:" + PageCache.hashRequest(REQUEST);
+        conn.hset(key, "expires", String.valueOf(System.currentTimeMillis() - 1));
+
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> refresh = get(cache, blocking("new", release));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!conn.exists("lock:" + key)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        //生成期间其他调用方返回旧页面，不再调用callback
+        for (int i = 0; i < 3; i++) {
+            assertEquals("old", cache.get(conn, REQUEST, counting("other")));
+        }
+        assertEquals(3, cache.getStaleHits());
+        release.countDown();
+        assertEquals("new", refresh.get(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+
+        assertEquals("new", cache.get(conn, REQUEST, counting("other")));
+        assertEquals(1, cache.getHits());
+        assertTrue(conn.ttl(key) > 60);
+    }
+
+    @Test
+    public void staleValueServedWhenRefreshFails() {
+        PageCache cache = new PageCache(60, 60, 0, 5000, 0, 0);
+        assertEquals("old", cache.get(conn, REQUEST, counting("old")));
+        String key = "cache:" + PageCache.hashRequest(REQUEST);
+        conn.hset(key, "expires", String.valueOf(System.currentTimeMillis() - 1));
+
+        //回调返回null或抛出异常时拿到锁的调用方仍返回旧页面
+        assertEquals("old", cache.get(conn, REQUEST, counting(null)));
+        assertEquals("old", cache.get(conn, REQUEST, new Chapter02.Callback() {
+            public String call(String request) {
+                throw new IllegalStateException("backend down");
+            }
+        }));
+        assertEquals(2, cache.getStaleHits());
+        assertEquals(1, cache.getRefreshFailures());
+        assertEquals("old", conn.hget(key, "content"));
+        //锁已释放，下一次可以重新生成
+        assertFalse(conn.exists("lock:" + key));
+        assertEquals("new", cache.get(conn, REQUEST, counting("new")));
+    }
+
+    @Test
+    public void hashCollisionIsTreatedAsMiss() {
+        PageCache cache = new PageCache(60, 60, 0, 5000, 0, 0);
+        String key = "cache:" + PageCache.hashRequest(REQUEST);
+        conn.hset(key, "req", "http://test.com/?item=2");
+        conn.hset(key, "content", "another page");
+        conn.hset(key, "expires", String.valueOf(System.currentTimeMillis() + 60000));
+        conn.hset(key, "delta", "1");
+
+        //散列值相同但请求不同时不返回别的页面
+        assertNull(cache.get(conn, REQUEST, null));
+        assertEquals("page", cache.get(conn, REQUEST, counting("page")));
+        assertEquals(2, cache.getCollisions());
+        assertEquals(REQUEST, conn.hget(key, "req"));
+    }
+
+    @Test
+    public void xfetchRefreshesEarly() {
+        String key = "cache:" + PageCache.hashRequest(REQUEST);
+        PageCache early = new PageCache(60, 60, 1.0, 5000, 0, 0);
+        assertEquals("old", early.get(conn, REQUEST, counting("old")));
+        //上次生成耗时远大于剩余有效期时几乎一定提前刷新
+        conn.hset(key, "delta", "1000000000");
+        assertEquals("new", early.get(conn, REQUEST, counting("new")));
+        assertEquals(1, early.getEarlyRefreshes());
+        assertEquals(2, early.getRegenerations());
+
+        //beta为0时过期前不提前刷新
+        PageCache never = new PageCache(60, 60, 0, 5000, 0, 0);
+        conn.hset(key, "delta", "1000000000");
+        assertEquals("new", never.get(conn, REQUEST, counting("newer")));
+        assertEquals(0, never.getEarlyRefreshes());
+        assertEquals(1, never.getHits());
+    }
+
+    @Test
+    public void localTierServesWithoutRedis() throws Exception {
+        PageCache cache = new PageCache(60, 60, 0, 5000, 10, 60000);
+        assertEquals("page", cache.get(conn, REQUEST, counting("page")));
+        String key = "cache:" + PageCache.hashRequest(REQUEST);
+        conn.del(key);
+        assertEquals("page", cache.get(conn, REQUEST, counting("other")));
+        assertEquals(1, cache.getLocalHits());
+        assertEquals(1, calls.get());
+
+        //一级缓存条目过期后重新读取Redis
+        PageCache shortLived = new PageCache(60, 60, 0, 5000, 10, 1);
+        assertEquals("page", shortLived.get(conn, REQUEST, counting("page")));
+        Thread.sleep(5);
+        conn.hset(key, "content", "changed");
+        assertEquals("changed", shortLived.get(conn, REQUEST, counting("other")));
+        assertEquals(0, shortLived.getLocalHits());
+        assertEquals(1, shortLived.getHits());
+    }
+
+    private Future<String> get(final PageCache cache, final Chapter02.Callback callback) {
+        return executor.submit(new Callable<String>() {
+            public String call() {
+                Jedis own = provider.getConnection();
+                try {
+                    return cache.get(own, REQUEST, callback);
+                } finally {
+                    own.close();
+                }
+            }
+        });
+    }
+
+    private Chapter02.Callback counting(final String content) {
+        return new Chapter02.Callback() {
+            public String call(String request) {
+                calls.incrementAndGet();
+                return content;
+            }
+        };
+    }
+
+    private Chapter02.Callback blocking(final String content, final CountDownLatch release) {
+        return new Chapter02.Callback() {
+            public String call(String request) {
+                calls.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return content;
+            }
+        };
+    }
+}
@@ -0,0 +1,148 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestClassifierTest {
+    //与new URL解析结果对比的请求
+    private static final String[] REQUESTS = {
+            "http://test.com/?item=itemA",
+            "http://test.com/?item=itemB",
+            "http://test.com/?item=itemX",
+            "http://test.com/",
+            "http://test.com/?item=itemA&_=1234536",
+            "http://test.com/?_&item=itemA",
+            "http://test.com/?item=itemX&item=itemA",
+            "http://test.com/?item=itemA&item",
+            "http://test.com/?item",
+            "http://test.com/?item=",
+            "http://test.com/?items=itemA",
+            "http://test.com/#?item=itemA",
+            "http://test.com/?item=itemA#top",
+            "http://test.com/?a=1&item=itemA&b=2",
+            "HTTPS://test.com/?item=itemA",
+            "ftp://test.com/?item=itemA",
+            "file:/tmp/?item=itemA",
+            "gopher://test.com/?item=itemA",
+            "test.com/?item=itemA",
+            ":?item=itemA",
+            "?item=itemA",
+    };
+
+    private RedisConnectionProvider provider;
+    private RequestClassifier classifier;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        Jedis conn = provider.getConnection();
+        try {
+            //分值越小浏览越多
+            conn.zadd("viewed:", -3, "itemA");
+            conn.zadd("viewed:", -2, "itemB");
+            conn.zadd("viewed:", -1, "itemX");
+            classifier = new RequestClassifier(provider, 2, 60000);
+            classifier.refresh(conn);
+        } finally {
+            conn.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    @Test
+    public void cachesTopItems() {
+        assertEquals(2, classifier.getSnapshotSize());
+        assertTrue(classifier.canCache("http://test.com/?item=itemA"));
+        assertTrue(classifier.canCache("http://test.com/?item=itemB"));
+        //不在前limit名中
+        assertFalse(classifier.canCache("http://test.com/?item=itemX"));
+    }
+
+    @Test
+    public void dynamicAndMissingParameters() {
+        assertFalse(classifier.canCache("http://test.com/"));
+        assertFalse(classifier.canCache("http://test.com/?item=itemA&_=1234536"));
+        assertFalse(classifier.canCache("http://test.com/?item"));
+        assertFalse(classifier.canCache("http://test.com/?items=itemA"));
+        //重复的参数以最后一个为准
+        assertTrue(classifier.canCache("http://test.com/?item=itemX&item=itemA"));
+        assertFalse(classifier.canCache("http://test.com/?item=itemA&item"));
+    }
+
+    @Test
+    public void fragmentIsNotQuery() {
+        assertFalse(classifier.canCache("http://test.com/#?item=itemA"));
+        assertTrue(classifier.canCache("http://test.com/?item=itemA#top"));
+    }
+
+    @Test
+    public void schemes() {
+        assertTrue(classifier.canCache("HTTPS://test.com/?item=itemA"));
+        assertTrue(classifier.canCache("ftp://test.com/?item=itemA"));
+        assertFalse(classifier.canCache("gopher://test.com/?item=itemA"));
+        assertFalse(classifier.canCache("test.com/?item=itemA"));
+        assertFalse(classifier.canCache("?item=itemA"));
+    }
+
+    @Test
+    public void matchesUrlParsing() {
+        Chapter02 chapter = new Chapter02(provider);
+        for (String request : REQUESTS) {
+            String item = chapter.cacheableItem(request);
+            boolean expected = "itemA".equals(item) || "itemB".equals(item);
+            assertEquals(request, expected, classifier.canCache(request));
+        }
+    }
+
+    @Test
+    public void counters() {
+        classifier.canCache("http://test.com/");
+        classifier.canCache("http://test.com/?item=itemA");
+        classifier.canCache("http://test.com/?item=itemX");
+        assertEquals(3, classifier.getClassified());
+        assertEquals(2, classifier.getLookups());
+        assertEquals(1, classifier.getRefreshes());
+        assertEquals(1, classifier.getRedisCallsSaved());
+    }
+
+    @Test
+    public void refresherSurvivesRedisOutage() throws InterruptedException {
+        FlakyConnectionProvider flaky = new FlakyConnectionProvider(provider);
+        RequestClassifier refreshing = new RequestClassifier(flaky, 2, 10);
+        refreshing.start();
+        try {
+            flaky.setDown(true);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (refreshing.getFailures() < 3) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            assertTrue(refreshing.getLastFailure().contains("JedisConnectionException"));
+            //刷新失败期间继续使用旧快照
+            assertTrue(refreshing.canCache("http://test.com/?item=itemA"));
+
+            //恢复后重新读取排行
+            flaky.setDown(false);
+            Jedis conn = provider.getConnection();
+            try {
+                conn.zadd("viewed:", -10, "itemX");
+            } finally {
+                conn.close();
+            }
+            while (!refreshing.canCache("http://test.com/?item=itemX")) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+        } finally {
+            refreshing.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowCacheSchedulerTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void unchangedRowsAreNotRewritten() throws InterruptedException {
+        final Map<String, String> table = new HashMap<String, String>();
+        table.put("item1", "data");
+        //行的time是修改时间，内容不变时编码结果相同
+        RowBackend backend = new RowBackend() {
+            public Map<String, Chapter02.Inventory> getAll(Collection<String> rowIds) {
+                Map<String, Chapter02.Inventory> rows = new HashMap<String, Chapter02.Inventory>();
+                for (String rowId : rowIds) {
+                    rows.put(rowId, new Chapter02.Inventory(rowId, table.get(rowId), 1000));
+                }
+                return rows;
+            }
+        };
+        RowCacheScheduler scheduler = new RowCacheScheduler(provider, 2, new GsonRowSerializer(), new RowLoader(backend));
+        new Chapter02(provider).scheduleRowCache(conn, "item1", 1, 8);
+
+        assertEquals(1, scheduler.refreshDue(conn));
+        assertEquals(0, scheduler.getWritesAvoided());
+        assertTrue(conn.exists("inv:item1"));
+
+        //到期后再次刷新，数据未变，不写入且间隔加倍
+        conn.zadd("schedule:", 0, "item1");
+        assertEquals(1, scheduler.refreshDue(conn));
+        assertEquals(1, scheduler.getWritesAvoided());
+        assertTrue(scheduler.getBytesAvoided() > 0);
+        assertEquals(2.0, RowCacheScheduler.getEffectiveInterval(conn, "item1"), 0);
+
+        //数据变化后重新写入，间隔减半
+        table.put("item1", "changed");
+        conn.zadd("schedule:", 0, "item1");
+        assertEquals(1, scheduler.refreshDue(conn));
+        assertEquals(1, scheduler.getWritesAvoided());
+        assertTrue(conn.get("inv:item1").contains("changed"));
+        assertEquals(1.0, RowCacheScheduler.getEffectiveInterval(conn, "item1"), 0);
+    }
+
+    @Test
+    public void everyEncodedFieldCounts() throws InterruptedException {
+        //与StubRowBackend一样，每次读取的time不同
+        RowBackend backend = new RowBackend() {
+            private long reads;
+
+            public Map<String, Chapter02.Inventory> getAll(Collection<String> rowIds) {
+                Map<String, Chapter02.Inventory> rows = new HashMap<String, Chapter02.Inventory>();
+                for (String rowId : rowIds) {
+                    rows.put(rowId, new Chapter02.Inventory(rowId, "data", ++reads));
+                }
+                return rows;
+            }
+        };
+        RowCacheScheduler scheduler = new RowCacheScheduler(provider, 2, new GsonRowSerializer(), new RowLoader(backend));
+        new Chapter02(provider).scheduleRowCache(conn, "item1", 1, 8);
+
+        assertEquals(1, scheduler.refreshDue(conn));
+        String first = conn.get("inv:item1");
+        conn.zadd("schedule:", 0, "item1");
+        assertEquals(1, scheduler.refreshDue(conn));
+        assertEquals(0, scheduler.getWritesAvoided());
+        assertFalse(first.equals(conn.get("inv:item1")));
+    }
+
+    @Test
+    public void gaugesArePerScheduler() throws InterruptedException {
+        RowCacheScheduler first = new RowCacheScheduler(provider, 1);
+        RowCacheScheduler second = new RowCacheScheduler(provider, 1);
+        assertFalse(first.getGaugePrefix().equals(second.getGaugePrefix()));
+        first.start();
+        second.start();
+        assertTrue(RedisMetrics.get().getGauges().containsKey(first.getGaugePrefix() + "writesAvoided"));
+        assertTrue(RedisMetrics.get().getGauges().containsKey(second.getGaugePrefix() + "writesAvoided"));
+
+        //停止一个调度器不影响另一个的指标
+        first.quit();
+        first.join(5000);
+        assertFalse(first.isAlive());
+        assertFalse(RedisMetrics.get().getGauges().containsKey(first.getGaugePrefix() + "writesAvoided"));
+        assertFalse(RedisMetrics.get().getGauges().containsKey(first.getGaugePrefix() + "bytesAvoided"));
+        assertFalse(RedisMetrics.get().getGauges().containsKey(first.getGaugePrefix() + "averageIntervalMillis"));
+        assertTrue(RedisMetrics.get().getGauges().containsKey(second.getGaugePrefix() + "writesAvoided"));
+        assertTrue(RedisMetrics.get().getGauges().containsKey(second.getGaugePrefix() + "bytesAvoided"));
+        assertTrue(RedisMetrics.get().getGauges().containsKey(second.getGaugePrefix() + "averageIntervalMillis"));
+
+        second.quit();
+        second.join(5000);
+        assertFalse(RedisMetrics.get().getGauges().containsKey(second.getGaugePrefix() + "writesAvoided"));
+    }
+
+    @Test
+    public void survivesRedisOutage() throws InterruptedException {
+        FlakyConnectionProvider flaky = new FlakyConnectionProvider(provider);
+        flaky.setDown(true);
+        RowCacheScheduler scheduler = new RowCacheScheduler(flaky, 1, new GsonRowSerializer(), 1000, 30, 20);
+        scheduler.start();
+        try {
+            await(scheduler, 2);
+            assertTrue(scheduler.isAlive());
+            assertTrue(scheduler.getLastFailure().contains("JedisConnectionException"));
+
+            //恢复后继续刷新
+            flaky.setDown(false);
+            new Chapter02(provider).scheduleRowCache(conn, "item1", 5);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!conn.exists("inv:item1")) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        } finally {
+            scheduler.quit();
+            scheduler.join(5000);
+        }
+    }
+
+    private static void await(RowCacheScheduler scheduler, long failures) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getFailures() < failures) {
+            assertTrue("failures=" + scheduler.getFailures(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
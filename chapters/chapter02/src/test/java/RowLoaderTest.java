@@ -0,0 +1,234 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RowLoaderTest {
+
+    @Test
+    public void loadsInBatches() throws InterruptedException {
+        InMemoryRowBackend backend = new InMemoryRowBackend();
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 2500; i++) {
+            backend.put("row" + i, "data" + i);
+            ids.add("row" + i);
+        }
+        ids.add("missing");
+        RowLoader loader = new RowLoader(backend, 1000, 4);
+
+        Map<String, Chapter02.Inventory> rows = loader.loadAll(ids);
+        assertEquals(2500, rows.size());
+        assertEquals("data7", rows.get("row7").getData());
+        assertFalse(rows.containsKey("missing"));
+        assertNull(loader.load("missing"));
+        assertEquals(4, backend.getCalls());
+        assertEquals(2500, loader.getLoaded());
+        assertEquals(2, loader.getMissing());
+        assertEquals(0, loader.getInFlight());
+    }
+
+    @Test
+    public void coalescesConcurrentLoads() throws Exception {
+        final InMemoryRowBackend backend = new InMemoryRowBackend(300).put("a", "A").put("b", "B");
+        final RowLoader loader = new RowLoader(backend, 1000, 4);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Future<Map<String, Chapter02.Inventory>> first = executor.submit(new Callable<Map<String, Chapter02.Inventory>>() {
+                public Map<String, Chapter02.Inventory> call() throws InterruptedException {
+                    return loader.loadAll(Arrays.asList("a", "b"));
+                }
+            });
+            awaitInFlight(loader, 1);
+
+            List<Future<Chapter02.Inventory>> others = new ArrayList<Future<Chapter02.Inventory>>();
+            for (int i = 0; i < 6; i++) {
+                others.add(executor.submit(new Callable<Chapter02.Inventory>() {
+                    public Chapter02.Inventory call() throws InterruptedException {
+                        return loader.load("a");
+                    }
+                }));
+            }
+            Chapter02.Inventory row = first.get().get("a");
+            for (Future<Chapter02.Inventory> other : others) {
+                //等待同一次查询的结果
+                assertSame(row, other.get());
+            }
+            assertEquals(1, backend.getCalls());
+            assertEquals(6, loader.getCoalesced());
+            assertEquals(0, loader.getInFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void boundsConcurrentQueries() throws Exception {
+        final InMemoryRowBackend backend = new InMemoryRowBackend(50);
+        for (int i = 0; i < 16; i++) {
+            backend.put("row" + i, "data" + i);
+        }
+        final RowLoader loader = new RowLoader(backend, 1, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Chapter02.Inventory>> results = new ArrayList<Future<Chapter02.Inventory>>();
+            for (int i = 0; i < 16; i++) {
+                final String rowId = "row" + i;
+                results.add(executor.submit(new Callable<Chapter02.Inventory>() {
+                    public Chapter02.Inventory call() throws InterruptedException {
+                        return loader.load(rowId);
+                    }
+                }));
+            }
+            for (Future<Chapter02.Inventory> result : results) {
+                assertTrue(result.get() != null);
+            }
+            assertEquals(16, backend.getCalls());
+            assertTrue("maxRunning=" + backend.getMaxRunning(), backend.getMaxRunning() <= 2);
+            assertTrue(loader.getWaitMillis() > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failurePropagatesToWaiters() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RowLoader loader = new RowLoader(new RowBackend() {
+            public Map<String, Chapter02.Inventory> getAll(Collection<String> rowIds) {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("backend down");
+            }
+        }, 1000, 4);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Chapter02.Inventory> owner = executor.submit(loadTask(loader, "a"));
+            awaitInFlight(loader, 1);
+            Future<Chapter02.Inventory> waiter = executor.submit(loadTask(loader, "a"));
+            awaitCoalesced(loader, 1);
+            release.countDown();
+
+            assertFailure(owner, IllegalStateException.class, "backend down");
+            assertFailure(waiter, IllegalStateException.class, "backend down");
+            assertEquals(0, loader.getInFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void interruptedOwnerAbandonsItsRows() throws Exception {
+        final InMemoryRowBackend backend = new InMemoryRowBackend(1000).put("a", "A").put("b", "B");
+        final RowLoader loader = new RowLoader(backend, 1000, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            //占用唯一的查询许可
+            Future<Chapter02.Inventory> busy = executor.submit(loadTask(loader, "a"));
+            awaitInFlight(loader, 1);
+            //等待许可的线程负责读取b
+            final Thread[] owner = new Thread[1];
+            final CountDownLatch started = new CountDownLatch(1);
+            Future<Chapter02.Inventory> blocked = executor.submit(new Callable<Chapter02.Inventory>() {
+                public Chapter02.Inventory call() throws InterruptedException {
+                    owner[0] = Thread.currentThread();
+                    started.countDown();
+                    return loader.load("b");
+                }
+            });
+            started.await();
+            //阻塞在许可上时b已登记为正在读取
+            awaitWaiting(owner[0]);
+            Future<Chapter02.Inventory> waiter = executor.submit(loadTask(loader, "b"));
+            awaitCoalesced(loader, 1);
+
+            owner[0].interrupt();
+            assertFailure(blocked, InterruptedException.class, null);
+            //放弃的行以异常结束，等待的线程不会一直阻塞
+            assertFailure(waiter, IllegalStateException.class, "Row load abandoned: b");
+            assertEquals("A", busy.get().getData());
+            assertEquals(0, loader.getInFlight());
+
+            //之后可以重新读取
+            assertEquals("B", loader.load("b").getData());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void duplicateIdsAreLoadedOnce() throws InterruptedException {
+        InMemoryRowBackend backend = new InMemoryRowBackend().put("a", "A");
+        RowLoader loader = new RowLoader(backend);
+        assertEquals(Collections.singleton("a"), loader.loadAll(Arrays.asList("a", "a", "a")).keySet());
+        assertEquals(1, backend.getRowsRead());
+        assertEquals(1, loader.getRequested());
+    }
+
+    private static Callable<Chapter02.Inventory> loadTask(final RowLoader loader, final String rowId) {
+        return new Callable<Chapter02.Inventory>() {
+            public Chapter02.Inventory call() throws InterruptedException {
+                return loader.load(rowId);
+            }
+        };
+    }
+
+    private static void awaitInFlight(RowLoader loader, int queries) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loader.getInFlight() < queries) {
+            assertTrue("inFlight=" + loader.getInFlight(), System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("state=" + thread.getState(), System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitCoalesced(RowLoader loader, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loader.getCoalesced() < count) {
+            assertTrue("coalesced=" + loader.getCoalesced(), System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void assertFailure(Future<?> future, Class<? extends Exception> type, String message)
+            throws InterruptedException, TimeoutException
+    {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected " + type.getSimpleName());
+        } catch (ExecutionException ee) {
+            assertTrue(String.valueOf(ee.getCause()), type.isInstance(ee.getCause()));
+            if (message != null) {
+                assertEquals(message, ee.getCause().getMessage());
+            }
+        }
+    }
+}
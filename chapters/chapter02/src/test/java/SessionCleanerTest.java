@@ -0,0 +1,95 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionCleanerTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void cleansBacklogWithTiedScores() throws InterruptedException {
+        //同一秒登录的大量令牌不会被多清理
+        Pipeline pipeline = conn.pipelined();
+        for (int i = 0; i < 3000; i++) {
+            pipeline.zadd("recent:", i < 2000 ? 100 : 200 + i, "token" + i);
+            pipeline.hset("login:", "token" + i, "user" + i);
+        }
+        pipeline.sync();
+
+        SessionCleaner cleaner = new SessionCleaner(provider, 1000, 4, false, 100, 500);
+        cleaner.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (conn.zcard("recent:") > 1000) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+        } finally {
+            assertTrue(cleaner.shutdown(5000));
+        }
+        assertEquals(1000, (long) conn.zcard("recent:"));
+        assertEquals(1000, (long) conn.hlen("login:"));
+        //保留最近登录的令牌
+        assertTrue(conn.hexists("login:", "token2999"));
+        assertFalse(conn.hexists("login:", "token0"));
+        assertEquals(0, cleaner.getFailures());
+    }
+
+    @Test
+    public void countsFailures() throws InterruptedException {
+        FlakyConnectionProvider flaky = new FlakyConnectionProvider(provider);
+        flaky.setDown(true);
+        SessionCleaner cleaner = new SessionCleaner(flaky, 1000, 2, false);
+        cleaner.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cleaner.getFailures() < 2) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertTrue(cleaner.getLastFailure().contains("JedisConnectionException"));
+        } finally {
+            assertTrue(cleaner.shutdown(5000));
+        }
+    }
+
+    @Test
+    public void gaugesArePerInstance() throws InterruptedException {
+        SessionCleaner sessions = new SessionCleaner(provider, 1000, 1, false);
+        SessionCleaner full = new SessionCleaner(provider, 1000, 1, true);
+        assertNotEquals(sessions.getGaugePrefix(), full.getGaugePrefix());
+        sessions.start();
+        full.start();
+        assertTrue(RedisMetrics.get().getGauges().containsKey(sessions.getGaugePrefix() + "backlog"));
+        assertTrue(RedisMetrics.get().getGauges().containsKey(full.getGaugePrefix() + "backlog"));
+
+        //停止一个实例只移除它自己的指标
+        assertTrue(sessions.shutdown(5000));
+        Map<String, Long> gauges = RedisMetrics.get().getGauges();
+        assertFalse(gauges.containsKey(sessions.getGaugePrefix() + "cleanedPerSecond"));
+        assertTrue(gauges.containsKey(full.getGaugePrefix() + "cleanedPerSecond"));
+        assertTrue(full.shutdown(5000));
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionMigratorTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+    private final SessionStore store = new SessionStore(3600);
+    private long now;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+        now = System.currentTimeMillis() / 1000;
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void migratesLiveSessions() {
+        oldSession("token1", "user1", now - 100);
+        for (int i = 0; i < 3; i++) {
+            conn.zadd("viewed:token1", now - 100 + i, "item" + i);
+        }
+        conn.hset("cart:token1", "item1", "2");
+        oldSession("token2", "user2", now - 10);
+
+        SessionMigrator migrator = new SessionMigrator(store, 1, false);
+        assertEquals(2, migrator.migrate(conn));
+        assertEquals(0, migrator.getExpired());
+        assertEquals(0, migrator.getExisting());
+
+        assertEquals("user1", store.checkToken(conn, "token1"));
+        assertEquals(Arrays.asList("item2", "item1", "item0"), store.getViewed(conn, "token1"));
+        Map<String,String> cart = new HashMap<String,String>();
+        cart.put("item1", "2");
+        assertEquals(cart, store.getCart(conn, "token1"));
+        assertEquals("user2", store.checkToken(conn, "token2"));
+        assertTrue(store.getViewed(conn, "token2").isEmpty());
+
+        //过期时间按最后访问时间计算
+        long ttl = conn.ttl(SessionStore.key("token1"));
+        assertTrue("ttl=" + ttl, ttl <= 3500 && ttl > 3400);
+        //迁移后继续浏览，接在迁移的商品之后写入环
+        store.updateToken(conn, "token1", "user1", "item3");
+        assertEquals(Arrays.asList("item3", "item2", "item1", "item0"), store.getViewed(conn, "token1"));
+        //未删除旧布局
+        assertEquals("user1", conn.hget("login:", "token1"));
+    }
+
+    @Test
+    public void countsExpiredAndExistingSessions() {
+        oldSession("expired", "user1", now - 4000);
+        oldSession("nologin", null, now - 10);
+        oldSession("existing", "user3", now - 10);
+        store.updateToken(conn, "existing", "newer", "item9");
+        oldSession("live", "user4", now - 10);
+
+        SessionMigrator migrator = new SessionMigrator(store, 2, false);
+        assertEquals(1, migrator.migrate(conn));
+        assertEquals(2, migrator.getExpired());
+        assertEquals(1, migrator.getExisting());
+        assertFalse(conn.exists(SessionStore.key("expired")));
+        assertFalse(conn.exists(SessionStore.key("nologin")));
+        //已存在的会话不会被覆盖
+        assertEquals("newer", store.checkToken(conn, "existing"));
+        assertEquals("user4", store.checkToken(conn, "live"));
+    }
+
+    @Test
+    public void deletesOldLayout() {
+        for (int i = 0; i < 5; i++) {
+            oldSession("token" + i, "user" + i, now - 10 + i);
+            conn.zadd("viewed:token" + i, now, "item");
+            conn.hset("cart:token" + i, "item", "1");
+        }
+        SessionMigrator migrator = new SessionMigrator(store, 2, true);
+        //删除旧键后后面的会话排名前移，不会漏掉
+        assertEquals(5, migrator.migrate(conn));
+        assertEquals(0, (long) conn.zcard("recent:"));
+        assertEquals(0, (long) conn.hlen("login:"));
+        assertFalse(conn.exists("viewed:token0"));
+        assertFalse(conn.exists("cart:token4"));
+        assertEquals("user3", store.checkToken(conn, "token3"));
+        assertNull(store.checkToken(conn, "token5"));
+    }
+
+    private void oldSession(String token, String user, long lastSeen) {
+        if (user != null) {
+            conn.hset("login:", token, user);
+        }
+        conn.zadd("recent:", lastSeen, token);
+    }
+}
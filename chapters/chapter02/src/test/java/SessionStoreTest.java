@@ -0,0 +1,112 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionStoreTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+    private final SessionStore store = new SessionStore(3600);
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void viewedRingWrapsAround() {
+        store.updateToken(conn, "token", "user", null);
+        assertEquals("user", store.checkToken(conn, "token"));
+        assertTrue(store.getViewed(conn, "token").isEmpty());
+
+        int views = Chapter02.VIEWED_ITEMS_PER_USER + 7;
+        for (int i = 0; i < views; i++) {
+            store.updateToken(conn, "token", "user", "item" + i);
+        }
+        //只保留最近的25个，最近浏览的在前
+        List<String> expected = new ArrayList<String>();
+        for (int i = views - 1; i >= views - Chapter02.VIEWED_ITEMS_PER_USER; i--) {
+            expected.add("item" + i);
+        }
+        assertEquals(expected, store.getViewed(conn, "token"));
+        assertEquals(String.valueOf(views), conn.hget(SessionStore.key("token"), SessionStore.SEEN));
+        assertEquals(-1, conn.zscore("viewed:", "item0"), 0);
+    }
+
+    @Test
+    public void viewedWithFewItems() {
+        store.updateToken(conn, "token", "user", "a");
+        store.updateToken(conn, "token", "user", "b");
+        store.updateToken(conn, "token", "user", "a");
+        //重复浏览同一商品在环中占用多个位置
+        assertEquals(Arrays.asList("a", "b", "a"), store.getViewed(conn, "token"));
+        assertEquals(-2, conn.zscore("viewed:", "a"), 0);
+    }
+
+    @Test
+    public void updateTokenReloadsFlushedScript() {
+        store.updateToken(conn, "token", "user", "a");
+        conn.scriptFlush();
+        store.updateToken(conn, "token", "user", "b");
+        assertEquals(Arrays.asList("b", "a"), store.getViewed(conn, "token"));
+    }
+
+    @Test
+    public void cartRoundTrip() {
+        store.updateToken(conn, "token", "user", "a");
+        store.addToCart(conn, "token", "item1", 3);
+        store.addToCart(conn, "token", "item2", 1);
+        store.addToCart(conn, "token", "item2", 0);
+        Map<String,String> expected = new HashMap<String,String>();
+        expected.put("item1", "3");
+        assertEquals(expected, store.getCart(conn, "token"));
+        //购物车字段不影响用户与浏览记录
+        assertEquals("user", store.checkToken(conn, "token"));
+        assertEquals(Collections.singletonList("a"), store.getViewed(conn, "token"));
+    }
+
+    @Test
+    public void everyUpdateRenewsTtl() {
+        store.updateToken(conn, "token", "user", null);
+        conn.expire(SessionStore.key("token"), 5);
+        store.updateToken(conn, "token", "user", "a");
+        assertTrue(conn.ttl(SessionStore.key("token")) > 3000);
+
+        conn.expire(SessionStore.key("token"), 5);
+        store.addToCart(conn, "token", "item1", 1);
+        assertTrue(conn.ttl(SessionStore.key("token")) > 3000);
+
+        //只有购物车操作时也会创建带过期时间的会话
+        store.addToCart(conn, "other", "item1", 1);
+        assertTrue(conn.ttl(SessionStore.key("other")) > 3000);
+    }
+
+    @Test
+    public void removeDeletesSessions() {
+        store.updateToken(conn, "token1", "user1", "a");
+        store.updateToken(conn, "token2", "user2", null);
+        store.remove(conn, "token1", "token2");
+        assertNull(store.checkToken(conn, "token1"));
+        assertFalse(conn.exists(SessionStore.key("token2")));
+        assertTrue(store.getViewed(conn, "token1").isEmpty());
+    }
+}
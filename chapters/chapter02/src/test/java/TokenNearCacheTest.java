@@ -0,0 +1,99 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TokenNearCacheTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void invalidationRemovesEntry() throws InterruptedException {
+        TokenNearCache cache = new TokenNearCache(100, 60000);
+        cache.start(provider);
+        try {
+            awaitSubscribed(cache);
+            conn.hset("login:", "token1", "user1");
+            assertEquals("user1", cache.get(conn, "token1"));
+            assertEquals("user1", cache.getLocal("token1"));
+
+            conn.hdel("login:", "token1");
+            TokenNearCache.publishInvalidation(conn, "token1");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getInvalidations() == 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            assertNull(cache.get(conn, "token1"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void staleLoadIsDropped() {
+        TokenNearCache cache = new TokenNearCache(100, 60000);
+        long loadVersion = cache.loadVersion();
+        cache.invalidate("token1");
+        assertFalse(cache.put("token1", "user1", loadVersion));
+        assertNull(cache.getLocal("token1"));
+        assertTrue(cache.put("token1", "user1", cache.loadVersion()));
+        assertEquals("user1", cache.getLocal("token1"));
+    }
+
+    @Test
+    public void bypassedUntilResubscribed() throws InterruptedException {
+        FlakyConnectionProvider flaky = new FlakyConnectionProvider(provider);
+        flaky.setDown(true);
+        TokenNearCache cache = new TokenNearCache(100, 60000);
+        cache.start(flaky);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getFailures() < 2) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            assertTrue(cache.getLastFailure().contains("JedisConnectionException"));
+
+            //收不到失效消息时不使用本地条目，每次都读取login:
+            conn.hset("login:", "token1", "user1");
+            assertEquals("user1", cache.get(conn, "token1"));
+            assertEquals(0, cache.size());
+            conn.hdel("login:", "token1");
+            assertNull(cache.get(conn, "token1"));
+
+            flaky.setDown(false);
+            awaitSubscribed(cache);
+            conn.hset("login:", "token1", "user1");
+            assertEquals("user1", cache.get(conn, "token1"));
+            assertEquals(1, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void awaitSubscribed(TokenNearCache cache) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!cache.isSubscribed()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
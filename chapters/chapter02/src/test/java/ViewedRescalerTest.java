@@ -0,0 +1,79 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ViewedRescalerTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+        for (int i = 0; i < 10; i++) {
+            conn.zadd("viewed:", -(100 - i), "item" + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void trimsAndRescales() throws InterruptedException {
+        ViewedRescaler rescaler = new ViewedRescaler(provider, 5, 0.5, 2, 1, 60000);
+        rescaler.rescale(conn);
+        assertEquals(5, (long) conn.zcard("viewed:"));
+        assertEquals(5, rescaler.getLastTrimmed());
+        //浏览最多的商品保留，分值按weight缩放
+        assertEquals(-50.0, conn.zscore("viewed:", "item0"), 0);
+        assertNull(conn.zscore("viewed:", "item9"));
+        assertEquals(1, rescaler.getPasses());
+    }
+
+    @Test
+    public void quitSkipsRescale() throws InterruptedException {
+        ViewedRescaler rescaler = new ViewedRescaler(provider, 5, 0.5, 2, 1, 60000);
+        rescaler.quit();
+        rescaler.rescale(conn);
+        //修剪没有完成时不缩放
+        assertEquals(-100.0, conn.zscore("viewed:", "item0"), 0);
+        assertEquals(0, rescaler.getPasses());
+    }
+
+    @Test
+    public void survivesRedisOutage() throws InterruptedException {
+        FlakyConnectionProvider flaky = new FlakyConnectionProvider(provider);
+        flaky.setDown(true);
+        ViewedRescaler rescaler = new ViewedRescaler(flaky, 5, 0.5, 2, 1, 10);
+        rescaler.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (rescaler.getFailures() < 2) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            assertTrue(rescaler.isAlive());
+            assertTrue(rescaler.getLastFailure().contains("JedisConnectionException"));
+
+            flaky.setDown(false);
+            while (rescaler.getPasses() == 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            assertEquals(5, (long) conn.zcard("viewed:"));
+        } finally {
+            rescaler.quit();
+            rescaler.join(5000);
+        }
+        assertFalse(rescaler.isAlive());
+    }
+}
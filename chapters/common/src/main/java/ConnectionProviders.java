@@ -0,0 +1,15 @@
+/**
+ * 按配置创建连接提供者：外部Redis使用PooledConnectionProvider，redis.embedded=true时使用EmbeddedConnectionProvider
+ */
+public final class ConnectionProviders {
+    private ConnectionProviders() {
+    }
+
+    public static RedisConnectionProvider fromSystemProperties() {
+        return create(RedisConfig.fromSystemProperties());
+    }
+
+    public static RedisConnectionProvider create(RedisConfig config) {
+        return config.isEmbedded() ? new EmbeddedConnectionProvider(config) : new PooledConnectionProvider(config);
+    }
+}
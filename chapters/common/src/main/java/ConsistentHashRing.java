@@ -0,0 +1,83 @@
+import redis.clients.jedis.util.Hashing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * 客户端一致性哈希环，每个节点在环上放置replicas个虚拟节点(MurmurHash)
+ * 增删节点时只有约1/N的键改变归属。键中有{...}时只对其中的hash tag计算哈希，规则与Redis Cluster相同，
+ * 所以相同hash tag的键总在同一个节点上，多键命令可以执行。
+ */
+public class ConsistentHashRing {
+    public static final int DEFAULT_REPLICAS = 160;
+
+    private final List<String> nodes;
+    private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+
+    public ConsistentHashRing(List<String> nodes) {
+        this(nodes, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * @param nodes 节点名(如host:port)，虚拟节点的位置只由名字决定，重启或调整顺序后键的归属不变
+     * @param replicas 每个节点的虚拟节点数
+     */
+    public ConsistentHashRing(List<String> nodes, int replicas) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one node is required");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int r = 0; r < replicas; r++) {
+                ring.put(Hashing.MURMUR_HASH.hash(nodes.get(i) + "#" + r), i);
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @return 键所在节点的下标
+     */
+    public int nodeFor(String key) {
+        long hash = Hashing.MURMUR_HASH.hash(hashTag(key));
+        SortedMap<Long, Integer> tail = ring.tailMap(hash);
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Redis Cluster的hash tag规则：第一个'{'与其后第一个'}'之间非空时只使用其中的部分
+     * @param key
+     * @return
+     */
+    public static String hashTag(String key) {
+        int open = key.indexOf('{');
+        if (open >= 0) {
+            int close = key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                return key.substring(open + 1, close);
+            }
+        }
+        return key;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    //各节点在环上所占的比例
+    public double[] getOwnership() {
+        double[] ownership = new double[nodes.size()];
+        //第一个虚拟节点负责从最后一个虚拟节点绕回的区间
+        double range = Math.pow(2, 64);
+        double previous = ring.lastKey() - range;
+        for (Map.Entry<Long, Integer> entry : ring.entrySet()) {
+            ownership[entry.getValue()] += (entry.getKey() - previous) / range;
+            previous = entry.getKey();
+        }
+        return ownership;
+    }
+}
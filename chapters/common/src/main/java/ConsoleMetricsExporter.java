@@ -0,0 +1,26 @@
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * 把指标按操作逐行打印到控制台(或指定的输出流)，调试与基准测试时使用
+ */
+public class ConsoleMetricsExporter implements MetricsExporter {
+    private final PrintStream out;
+
+    public ConsoleMetricsExporter() {
+        this(System.out);
+    }
+
+    public ConsoleMetricsExporter(PrintStream out) {
+        this.out = out;
+    }
+
+    public void export(RedisMetrics metrics) {
+        for (OperationMetrics operation : metrics.getOperationMetrics()) {
+            out.println(operation);
+        }
+        for (Map.Entry<String, Long> gauge : metrics.getGauges().entrySet()) {
+            out.println(gauge.getKey() + ": " + gauge.getValue());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import redis.clients.jedis.Jedis;
+
+/**
+ * 连接进程内EmbeddedRedisServer的连接提供者，启动时创建服务，close()时一并关闭
+ * 服务在几毫秒内启动，数据只在内存中，适合测试与基准测试；Chapter01/Chapter02通过构造函数传入即可使用。
+ */
+public class EmbeddedConnectionProvider implements RedisConnectionProvider {
+    private final EmbeddedRedisServer server;
+    private final PooledConnectionProvider pool;
+
+    public EmbeddedConnectionProvider() {
+        this(new RedisConfig());
+    }
+
+    /**
+     * @param config 使用其中的数据库与连接池设置，主机与端口由服务决定
+     */
+    public EmbeddedConnectionProvider(RedisConfig config) {
+        this.server = new EmbeddedRedisServer().start();
+        this.pool = new PooledConnectionProvider(new RedisConfig()
+                .setHost(server.getHost())
+                .setPort(server.getPort())
+                .setDatabase(config.getDatabase())
+                .setPoolSize(config.getPoolSize())
+                .setTimeout(config.getTimeout())
+                .setMaxWaitMillis(config.getMaxWaitMillis())
+                .setMetrics(config.isMetrics()));
+    }
+
+    public EmbeddedRedisServer getServer() {
+        return server;
+    }
+
+    public Jedis getConnection() {
+        return pool.getConnection();
+    }
+
+    public <T> T execute(RedisCallback<T> callback) {
+        return pool.execute(callback);
+    }
+
+    public PoolMetrics getMetrics() {
+        return pool.getMetrics();
+    }
+
+    public void close() {
+        pool.close();
+        server.close();
+    }
+}
@@ -0,0 +1,1113 @@
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * EmbeddedRedisServer的数据与命令实现
+ * 16个数据库，值为字符串(byte[])、散列、集合或有序集合；键、字段与成员按ISO-8859-1保存为String，二进制安全。
+ * 过期的键在访问时删除。所有命令由EmbeddedRedisServer在同一把锁下执行，与Redis单线程执行命令的语义相同。
+ * 有序集合用HashMap加TreeSet实现，按排名访问的复杂度为O(排名)而不是O(log n)，只适合测试与基准测试的数据量。
+ */
+class EmbeddedDatabase {
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    static final int DATABASES = 16;
+    private static final String WRONGTYPE = "WRONGTYPE Operation against a key holding the wrong kind of value";
+    private static final String NOT_INTEGER = "ERR value is not an integer or out of range";
+    private static final String NOT_FLOAT = "ERR value is not a valid float";
+    private static final String SYNTAX = "ERR syntax error";
+
+    private final Db[] dbs = new Db[DATABASES];
+
+    EmbeddedDatabase() {
+        for (int i = 0; i < DATABASES; i++) {
+            dbs[i] = new Db();
+        }
+    }
+
+    /**
+     * 执行一条命令并写入回复
+     * @param db 数据库编号
+     * @param args 命令名与参数
+     * @param out
+     * @return 命令是否存在
+     */
+    boolean execute(int db, byte[][] args, EmbeddedRedisServer.Reply out) {
+        String command = str(args[0]).toUpperCase();
+        try {
+            return execute(dbs[db], command, args, out);
+        } catch (CommandException ce) {
+            out.error(ce.getMessage());
+            return true;
+        }
+    }
+
+    void flushAll() {
+        for (Db db : dbs) {
+            db.data.clear();
+            db.expires.clear();
+        }
+    }
+
+    private boolean execute(Db db, String command, byte[][] args, EmbeddedRedisServer.Reply out) {
+        if ("GET".equals(command)) {
+            arity(args, 2);
+            out.bulk(get(db, str(args[1]), byte[].class));
+        } else if ("SET".equals(command)) {
+            set(db, args, out);
+        } else if ("SETEX".equals(command) || "PSETEX".equals(command)) {
+            arity(args, 4);
+            long ttl = integer(args[2]);
+            if (ttl <= 0) {
+                throw new CommandException("ERR invalid expire time in '" + command.toLowerCase() + "' command");
+            }
+            String key = str(args[1]);
+            db.data.put(key, args[3]);
+            db.expires.put(key, System.currentTimeMillis() + ("SETEX".equals(command) ? ttl * 1000 : ttl));
+            out.status("OK");
+        } else if ("SETNX".equals(command)) {
+            arity(args, 3);
+            String key = str(args[1]);
+            if (get(db, key) != null) {
+                out.integer(0);
+            } else {
+                db.data.put(key, args[2]);
+                out.integer(1);
+            }
+        } else if ("GETSET".equals(command)) {
+            arity(args, 3);
+            String key = str(args[1]);
+            out.bulk(get(db, key, byte[].class));
+            db.data.put(key, args[2]);
+            db.expires.remove(key);
+        } else if ("MGET".equals(command)) {
+            minArity(args, 2);
+            out.array(args.length - 1);
+            for (int i = 1; i < args.length; i++) {
+                Object value = get(db, str(args[i]));
+                out.bulk(value instanceof byte[] ? (byte[]) value : null);
+            }
+        } else if ("MSET".equals(command)) {
+            if (args.length < 3 || args.length % 2 != 1) {
+                throw wrongArity(args);
+            }
+            for (int i = 1; i < args.length; i += 2) {
+                String key = str(args[i]);
+                db.data.put(key, args[i + 1]);
+                db.expires.remove(key);
+            }
+            out.status("OK");
+        } else if ("INCR".equals(command) || "DECR".equals(command)) {
+            arity(args, 2);
+            out.integer(incrBy(db, str(args[1]), "INCR".equals(command) ? 1 : -1));
+        } else if ("INCRBY".equals(command) || "DECRBY".equals(command)) {
+            arity(args, 3);
+            long increment = integer(args[2]);
+            out.integer(incrBy(db, str(args[1]), "INCRBY".equals(command) ? increment : -increment));
+        } else if ("STRLEN".equals(command)) {
+            arity(args, 2);
+            byte[] value = get(db, str(args[1]), byte[].class);
+            out.integer(value == null ? 0 : value.length);
+        } else if ("APPEND".equals(command)) {
+            arity(args, 3);
+            String key = str(args[1]);
+            byte[] value = get(db, key, byte[].class);
+            byte[] appended = value == null ? args[2] : concat(value, args[2]);
+            db.data.put(key, appended);
+            out.integer(appended.length);
+        } else if ("SETBIT".equals(command)) {
+            arity(args, 4);
+            String key = str(args[1]);
+            long offset = bitOffset(args[2]);
+            String bit = str(args[3]);
+            if (!"0".equals(bit) && !"1".equals(bit)) {
+                throw new CommandException("ERR bit is not an integer or out of range");
+            }
+            byte[] value = get(db, key, byte[].class);
+            int index = (int) (offset >> 3);
+            if (value == null || value.length <= index) {
+                byte[] grown = new byte[index + 1];
+                if (value != null) {
+                    System.arraycopy(value, 0, grown, 0, value.length);
+                }
+                value = grown;
+                db.data.put(key, value);
+            }
+            //与Redis相同，字节内的最高位是偏移量0
+            int mask = 0x80 >> (int) (offset & 7);
+            out.integer((value[index] & mask) != 0 ? 1 : 0);
+            if ("1".equals(bit)) {
+                value[index] |= mask;
+            } else {
+                value[index] &= ~mask;
+            }
+        } else if ("GETBIT".equals(command)) {
+            arity(args, 3);
+            long offset = bitOffset(args[2]);
+            byte[] value = get(db, str(args[1]), byte[].class);
+            int index = (int) (offset >> 3);
+            out.integer(value != null && index < value.length && (value[index] & (0x80 >> (int) (offset & 7))) != 0 ? 1 : 0);
+        } else if ("BITCOUNT".equals(command)) {
+            arity(args, 2);
+            byte[] value = get(db, str(args[1]), byte[].class);
+            long count = 0;
+            if (value != null) {
+                for (byte b : value) {
+                    count += Integer.bitCount(b & 0xff);
+                }
+            }
+            out.integer(count);
+        } else if ("DEL".equals(command)) {
+            minArity(args, 2);
+            long removed = 0;
+            for (int i = 1; i < args.length; i++) {
+                if (remove(db, str(args[i]))) {
+                    removed++;
+                }
+            }
+            out.integer(removed);
+        } else if ("EXISTS".equals(command)) {
+            minArity(args, 2);
+            long count = 0;
+            for (int i = 1; i < args.length; i++) {
+                if (get(db, str(args[i])) != null) {
+                    count++;
+                }
+            }
+            out.integer(count);
+        } else if ("EXPIRE".equals(command) || "PEXPIRE".equals(command)) {
+            arity(args, 3);
+            String key = str(args[1]);
+            long ttl = integer(args[2]);
+            if (get(db, key) == null) {
+                out.integer(0);
+            } else if (ttl <= 0) {
+                remove(db, key);
+                out.integer(1);
+            } else {
+                db.expires.put(key, System.currentTimeMillis() + ("EXPIRE".equals(command) ? ttl * 1000 : ttl));
+                out.integer(1);
+            }
+        } else if ("EXPIREAT".equals(command) || "PEXPIREAT".equals(command)) {
+            arity(args, 3);
+            String key = str(args[1]);
+            long at = integer(args[2]) * ("EXPIREAT".equals(command) ? 1000 : 1);
+            if (get(db, key) == null) {
+                out.integer(0);
+            } else if (at <= System.currentTimeMillis()) {
+                remove(db, key);
+                out.integer(1);
+            } else {
+                db.expires.put(key, at);
+                out.integer(1);
+            }
+        } else if ("TTL".equals(command) || "PTTL".equals(command)) {
+            arity(args, 2);
+            String key = str(args[1]);
+            if (get(db, key) == null) {
+                out.integer(-2);
+            } else {
+                Long expireAt = db.expires.get(key);
+                if (expireAt == null) {
+                    out.integer(-1);
+                } else {
+                    long millis = expireAt - System.currentTimeMillis();
+                    out.integer("TTL".equals(command) ? (millis + 500) / 1000 : millis);
+                }
+            }
+        } else if ("PERSIST".equals(command)) {
+            arity(args, 2);
+            String key = str(args[1]);
+            out.integer(get(db, key) != null && db.expires.remove(key) != null ? 1 : 0);
+        } else if ("TYPE".equals(command)) {
+            arity(args, 2);
+            out.status(type(get(db, str(args[1]))));
+        } else if ("KEYS".equals(command)) {
+            arity(args, 2);
+            Pattern pattern = glob(str(args[1]));
+            List<String> keys = new ArrayList<String>();
+            for (String key : new ArrayList<String>(db.data.keySet())) {
+                if (get(db, key) != null && pattern.matcher(key).matches()) {
+                    keys.add(key);
+                }
+            }
+            out.array(keys.size());
+            for (String key : keys) {
+                out.bulk(key);
+            }
+        } else if ("DBSIZE".equals(command)) {
+            arity(args, 1);
+            purgeExpired(db);
+            out.integer(db.data.size());
+        } else if ("FLUSHDB".equals(command)) {
+            db.data.clear();
+            db.expires.clear();
+            out.status("OK");
+        } else if ("FLUSHALL".equals(command)) {
+            flushAll();
+            out.status("OK");
+        } else if ("HSET".equals(command) || "HMSET".equals(command)) {
+            if (args.length < 4 || args.length % 2 != 0) {
+                throw wrongArity(args);
+            }
+            Map<String, String> hash = hashForWrite(db, str(args[1]));
+            long added = 0;
+            for (int i = 2; i < args.length; i += 2) {
+                if (hash.put(str(args[i]), str(args[i + 1])) == null) {
+                    added++;
+                }
+            }
+            if ("HSET".equals(command)) {
+                out.integer(added);
+            } else {
+                out.status("OK");
+            }
+        } else if ("HSETNX".equals(command)) {
+            arity(args, 4);
+            Map<String, String> hash = hashForWrite(db, str(args[1]));
+            String field = str(args[2]);
+            if (hash.containsKey(field)) {
+                out.integer(0);
+            } else {
+                hash.put(field, str(args[3]));
+                out.integer(1);
+            }
+        } else if ("HGET".equals(command)) {
+            arity(args, 3);
+            Map<String, String> hash = hash(db, str(args[1]));
+            out.bulk(hash == null ? null : hash.get(str(args[2])));
+        } else if ("HMGET".equals(command)) {
+            minArity(args, 3);
+            Map<String, String> hash = hash(db, str(args[1]));
+            out.array(args.length - 2);
+            for (int i = 2; i < args.length; i++) {
+                out.bulk(hash == null ? null : hash.get(str(args[i])));
+            }
+        } else if ("HGETALL".equals(command) || "HKEYS".equals(command) || "HVALS".equals(command)) {
+            arity(args, 2);
+            Map<String, String> hash = hash(db, str(args[1]));
+            if (hash == null) {
+                out.array(0);
+            } else {
+                out.array("HGETALL".equals(command) ? hash.size() * 2 : hash.size());
+                for (Map.Entry<String, String> entry : hash.entrySet()) {
+                    if (!"HVALS".equals(command)) {
+                        out.bulk(entry.getKey());
+                    }
+                    if (!"HKEYS".equals(command)) {
+                        out.bulk(entry.getValue());
+                    }
+                }
+            }
+        } else if ("HDEL".equals(command)) {
+            minArity(args, 3);
+            String key = str(args[1]);
+            Map<String, String> hash = hash(db, key);
+            long removed = 0;
+            if (hash != null) {
+                for (int i = 2; i < args.length; i++) {
+                    if (hash.remove(str(args[i])) != null) {
+                        removed++;
+                    }
+                }
+                removeIfEmpty(db, key, hash.isEmpty());
+            }
+            out.integer(removed);
+        } else if ("HLEN".equals(command)) {
+            arity(args, 2);
+            Map<String, String> hash = hash(db, str(args[1]));
+            out.integer(hash == null ? 0 : hash.size());
+        } else if ("HEXISTS".equals(command)) {
+            arity(args, 3);
+            Map<String, String> hash = hash(db, str(args[1]));
+            out.integer(hash != null && hash.containsKey(str(args[2])) ? 1 : 0);
+        } else if ("HINCRBY".equals(command)) {
+            arity(args, 4);
+            Map<String, String> hash = hashForWrite(db, str(args[1]));
+            String field = str(args[2]);
+            String current = hash.get(field);
+            long value = (current == null ? 0 : integer(current)) + integer(args[3]);
+            hash.put(field, String.valueOf(value));
+            out.integer(value);
+        } else if ("SADD".equals(command)) {
+            minArity(args, 3);
+            Set<String> set = setForWrite(db, str(args[1]));
+            long added = 0;
+            for (int i = 2; i < args.length; i++) {
+                if (set.add(str(args[i]))) {
+                    added++;
+                }
+            }
+            out.integer(added);
+        } else if ("SREM".equals(command)) {
+            minArity(args, 3);
+            String key = str(args[1]);
+            Set<String> set = set(db, key);
+            long removed = 0;
+            if (set != null) {
+                for (int i = 2; i < args.length; i++) {
+                    if (set.remove(str(args[i]))) {
+                        removed++;
+                    }
+                }
+                removeIfEmpty(db, key, set.isEmpty());
+            }
+            out.integer(removed);
+        } else if ("SMEMBERS".equals(command)) {
+            arity(args, 2);
+            Set<String> set = set(db, str(args[1]));
+            if (set == null) {
+                out.array(0);
+            } else {
+                out.array(set.size());
+                for (String member : set) {
+                    out.bulk(member);
+                }
+            }
+        } else if ("SISMEMBER".equals(command)) {
+            arity(args, 3);
+            Set<String> set = set(db, str(args[1]));
+            out.integer(set != null && set.contains(str(args[2])) ? 1 : 0);
+        } else if ("SCARD".equals(command)) {
+            arity(args, 2);
+            Set<String> set = set(db, str(args[1]));
+            out.integer(set == null ? 0 : set.size());
+        } else if ("ZADD".equals(command)) {
+            zadd(db, args, out);
+        } else if ("ZINCRBY".equals(command)) {
+            arity(args, 4);
+            ZSet zset = zsetForWrite(db, str(args[1]));
+            String member = str(args[3]);
+            Double current = zset.scores.get(member);
+            double score = checkScore((current == null ? 0 : current) + score(args[2]));
+            zset.add(member, score);
+            out.bulk(formatScore(score));
+        } else if ("ZSCORE".equals(command)) {
+            arity(args, 3);
+            ZSet zset = zset(db, str(args[1]));
+            Double score = zset == null ? null : zset.scores.get(str(args[2]));
+            out.bulk(score == null ? null : formatScore(score));
+        } else if ("ZREM".equals(command)) {
+            minArity(args, 3);
+            String key = str(args[1]);
+            ZSet zset = zset(db, key);
+            long removed = 0;
+            if (zset != null) {
+                for (int i = 2; i < args.length; i++) {
+                    if (zset.remove(str(args[i]))) {
+                        removed++;
+                    }
+                }
+                removeIfEmpty(db, key, zset.scores.isEmpty());
+            }
+            out.integer(removed);
+        } else if ("ZCARD".equals(command)) {
+            arity(args, 2);
+            ZSet zset = zset(db, str(args[1]));
+            out.integer(zset == null ? 0 : zset.scores.size());
+        } else if ("ZCOUNT".equals(command)) {
+            arity(args, 4);
+            ZSet zset = zset(db, str(args[1]));
+            out.integer(zset == null ? 0 : zset.rangeByScore(
+                    ScoreBound.parse(args[2]), ScoreBound.parse(args[3]), false, 0, -1).size());
+        } else if ("ZRANK".equals(command) || "ZREVRANK".equals(command)) {
+            arity(args, 3);
+            ZSet zset = zset(db, str(args[1]));
+            long rank = zset == null ? -1 : zset.rank(str(args[2]));
+            if (rank < 0) {
+                out.bulk((byte[]) null);
+            } else {
+                out.integer("ZRANK".equals(command) ? rank : zset.scores.size() - 1 - rank);
+            }
+        } else if ("ZRANGE".equals(command) || "ZREVRANGE".equals(command)) {
+            if (args.length != 4 && !(args.length == 5 && "WITHSCORES".equalsIgnoreCase(str(args[4])))) {
+                throw args.length < 4 ? wrongArity(args) : new CommandException(SYNTAX);
+            }
+            ZSet zset = zset(db, str(args[1]));
+            List<ZEntry> entries = zset == null ? new ArrayList<ZEntry>()
+                    : zset.range(integer(args[2]), integer(args[3]), "ZREVRANGE".equals(command));
+            writeEntries(entries, args.length == 5, out);
+        } else if ("ZRANGEBYSCORE".equals(command) || "ZREVRANGEBYSCORE".equals(command)) {
+            zrangeByScore(db, args, "ZREVRANGEBYSCORE".equals(command), out);
+        } else if ("ZREMRANGEBYRANK".equals(command)) {
+            arity(args, 4);
+            String key = str(args[1]);
+            ZSet zset = zset(db, key);
+            long removed = 0;
+            if (zset != null) {
+                for (ZEntry entry : zset.range(integer(args[2]), integer(args[3]), false)) {
+                    zset.remove(entry.member);
+                    removed++;
+                }
+                removeIfEmpty(db, key, zset.scores.isEmpty());
+            }
+            out.integer(removed);
+        } else if ("ZREMRANGEBYSCORE".equals(command)) {
+            arity(args, 4);
+            String key = str(args[1]);
+            ZSet zset = zset(db, key);
+            long removed = 0;
+            if (zset != null) {
+                for (ZEntry entry : zset.rangeByScore(
+                        ScoreBound.parse(args[2]), ScoreBound.parse(args[3]), false, 0, -1)) {
+                    zset.remove(entry.member);
+                    removed++;
+                }
+                removeIfEmpty(db, key, zset.scores.isEmpty());
+            }
+            out.integer(removed);
+        } else if ("ZINTERSTORE".equals(command) || "ZUNIONSTORE".equals(command)) {
+            zstore(db, args, "ZINTERSTORE".equals(command), out);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void set(Db db, byte[][] args, EmbeddedRedisServer.Reply out) {
+        minArity(args, 3);
+        String key = str(args[1]);
+        boolean nx = false;
+        boolean xx = false;
+        boolean keepTtl = false;
+        long expireAt = 0;
+        for (int i = 3; i < args.length; i++) {
+            String option = str(args[i]).toUpperCase();
+            if ("NX".equals(option)) {
+                nx = true;
+            } else if ("XX".equals(option)) {
+                xx = true;
+            } else if ("KEEPTTL".equals(option)) {
+                keepTtl = true;
+            } else if (("EX".equals(option) || "PX".equals(option)) && i + 1 < args.length) {
+                long ttl = integer(args[++i]);
+                if (ttl <= 0) {
+                    throw new CommandException("ERR invalid expire time in 'set' command");
+                }
+                expireAt = System.currentTimeMillis() + ("EX".equals(option) ? ttl * 1000 : ttl);
+            } else {
+                throw new CommandException(SYNTAX);
+            }
+        }
+        if (nx && xx) {
+            throw new CommandException(SYNTAX);
+        }
+
+        boolean exists = get(db, key) != null;
+        if ((nx && exists) || (xx && !exists)) {
+            out.bulk((byte[]) null);
+            return;
+        }
+        db.data.put(key, args[2]);
+        if (expireAt > 0) {
+            db.expires.put(key, expireAt);
+        } else if (!keepTtl) {
+            db.expires.remove(key);
+        }
+        out.status("OK");
+    }
+
+    private long incrBy(Db db, String key, long increment) {
+        byte[] value = get(db, key, byte[].class);
+        long current = value == null ? 0 : integer(value);
+        long result = current + increment;
+        if (((current ^ result) & (increment ^ result)) < 0) {
+            throw new CommandException("ERR increment or decrement would overflow");
+        }
+        db.data.put(key, String.valueOf(result).getBytes(LATIN1));
+        return result;
+    }
+
+    private void zadd(Db db, byte[][] args, EmbeddedRedisServer.Reply out) {
+        minArity(args, 4);
+        boolean nx = false;
+        boolean xx = false;
+        boolean ch = false;
+        boolean incr = false;
+        int i = 2;
+        for (; i < args.length; i++) {
+            String option = str(args[i]).toUpperCase();
+            if ("NX".equals(option)) {
+                nx = true;
+            } else if ("XX".equals(option)) {
+                xx = true;
+            } else if ("CH".equals(option)) {
+                ch = true;
+            } else if ("INCR".equals(option)) {
+                incr = true;
+            } else {
+                break;
+            }
+        }
+        int pairs = args.length - i;
+        if (pairs == 0 || pairs % 2 != 0 || (nx && xx) || (incr && pairs != 2)) {
+            throw new CommandException(SYNTAX);
+        }
+        //先检查全部分值，出错时不修改有序集合
+        double[] scores = new double[pairs / 2];
+        for (int n = 0; n < scores.length; n++) {
+            scores[n] = score(args[i + n * 2]);
+        }
+
+        String key = str(args[1]);
+        ZSet zset = zset(db, key);
+        if (zset == null) {
+            if (xx) {
+                if (incr) {
+                    out.bulk((byte[]) null);
+                } else {
+                    out.integer(0);
+                }
+                return;
+            }
+            zset = zsetForWrite(db, key);
+        }
+
+        long changed = 0;
+        Double result = null;
+        for (int n = 0; n < scores.length; n++) {
+            String member = str(args[i + n * 2 + 1]);
+            Double current = zset.scores.get(member);
+            if ((nx && current != null) || (xx && current == null)) {
+                continue;
+            }
+            double score = incr ? checkScore((current == null ? 0 : current) + scores[n]) : scores[n];
+            result = score;
+            if (current == null) {
+                changed++;
+            } else if (ch && current != score) {
+                changed++;
+            }
+            zset.add(member, score);
+        }
+        removeIfEmpty(db, key, zset.scores.isEmpty());
+        if (incr) {
+            out.bulk(result == null ? null : formatScore(result));
+        } else {
+            out.integer(changed);
+        }
+    }
+
+    private void zrangeByScore(Db db, byte[][] args, boolean reverse, EmbeddedRedisServer.Reply out) {
+        minArity(args, 4);
+        boolean withScores = false;
+        long offset = 0;
+        long count = -1;
+        for (int i = 4; i < args.length; i++) {
+            String option = str(args[i]).toUpperCase();
+            if ("WITHSCORES".equals(option)) {
+                withScores = true;
+            } else if ("LIMIT".equals(option) && i + 2 < args.length) {
+                offset = integer(args[++i]);
+                count = integer(args[++i]);
+            } else {
+                throw new CommandException(SYNTAX);
+            }
+        }
+        //ZREVRANGEBYSCORE的参数顺序为max min
+        ScoreBound min = ScoreBound.parse(args[reverse ? 3 : 2]);
+        ScoreBound max = ScoreBound.parse(args[reverse ? 2 : 3]);
+        ZSet zset = zset(db, str(args[1]));
+        List<ZEntry> entries = zset == null || offset < 0 ? new ArrayList<ZEntry>()
+                : zset.rangeByScore(min, max, reverse, offset, count);
+        writeEntries(entries, withScores, out);
+    }
+
+    private void zstore(Db db, byte[][] args, boolean intersect, EmbeddedRedisServer.Reply out) {
+        minArity(args, 4);
+        int numKeys = (int) integer(args[2]);
+        if (numKeys <= 0) {
+            throw new CommandException("ERR at least 1 input key is needed for ZUNIONSTORE/ZINTERSTORE");
+        }
+        if (args.length < 3 + numKeys) {
+            throw new CommandException(SYNTAX);
+        }
+        double[] weights = new double[numKeys];
+        for (int n = 0; n < numKeys; n++) {
+            weights[n] = 1;
+        }
+        String aggregate = "SUM";
+        for (int i = 3 + numKeys; i < args.length; i++) {
+            String option = str(args[i]).toUpperCase();
+            if ("WEIGHTS".equals(option) && i + numKeys < args.length) {
+                for (int n = 0; n < numKeys; n++) {
+                    weights[n] = score(args[++i]);
+                }
+            } else if ("AGGREGATE".equals(option) && i + 1 < args.length) {
+                aggregate = str(args[++i]).toUpperCase();
+                if (!"SUM".equals(aggregate) && !"MIN".equals(aggregate) && !"MAX".equals(aggregate)) {
+                    throw new CommandException(SYNTAX);
+                }
+            } else {
+                throw new CommandException(SYNTAX);
+            }
+        }
+
+        //集合作为分值都为1的有序集合参与计算
+        List<Map<String, Double>> sources = new ArrayList<Map<String, Double>>(numKeys);
+        for (int n = 0; n < numKeys; n++) {
+            Object value = get(db, str(args[3 + n]));
+            if (value == null) {
+                sources.add(new HashMap<String, Double>());
+            } else if (value instanceof ZSet) {
+                sources.add(((ZSet) value).scores);
+            } else if (value instanceof HashSet) {
+                Map<String, Double> scores = new HashMap<String, Double>();
+                for (Object member : (HashSet<?>) value) {
+                    scores.put((String) member, 1.0);
+                }
+                sources.add(scores);
+            } else {
+                throw new CommandException(WRONGTYPE);
+            }
+        }
+
+        Map<String, Double> result = new HashMap<String, Double>();
+        if (intersect) {
+            for (Map.Entry<String, Double> entry : sources.get(0).entrySet()) {
+                String member = entry.getKey();
+                if (!inAll(member, sources)) {
+                    continue;
+                }
+                double score = weighted(entry.getValue(), weights[0]);
+                for (int n = 1; n < numKeys; n++) {
+                    score = aggregate(aggregate, score, weighted(sources.get(n).get(member), weights[n]));
+                }
+                result.put(member, score);
+            }
+        } else {
+            for (int n = 0; n < numKeys; n++) {
+                for (Map.Entry<String, Double> entry : sources.get(n).entrySet()) {
+                    double score = weighted(entry.getValue(), weights[n]);
+                    Double current = result.get(entry.getKey());
+                    result.put(entry.getKey(), current == null ? score : aggregate(aggregate, current, score));
+                }
+            }
+        }
+
+        String destination = str(args[1]);
+        remove(db, destination);
+        if (!result.isEmpty()) {
+            ZSet zset = new ZSet();
+            for (Map.Entry<String, Double> entry : result.entrySet()) {
+                zset.add(entry.getKey(), entry.getValue());
+            }
+            db.data.put(destination, zset);
+        }
+        out.integer(result.size());
+    }
+
+    private static boolean inAll(String member, List<Map<String, Double>> sources) {
+        for (Map<String, Double> source : sources) {
+            if (!source.containsKey(member)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double aggregate(String aggregate, double a, double b) {
+        if ("MIN".equals(aggregate)) {
+            return Math.min(a, b);
+        } else if ("MAX".equals(aggregate)) {
+            return Math.max(a, b);
+        }
+        //与Redis相同，inf与-inf相加按0计算
+        double sum = a + b;
+        return Double.isNaN(sum) ? 0 : sum;
+    }
+
+    //与Redis相同，inf*0按0计算
+    private static double weighted(double score, double weight) {
+        double result = score * weight;
+        return Double.isNaN(result) ? 0 : result;
+    }
+
+    private static void writeEntries(List<ZEntry> entries, boolean withScores, EmbeddedRedisServer.Reply out) {
+        out.array(withScores ? entries.size() * 2 : entries.size());
+        for (ZEntry entry : entries) {
+            out.bulk(entry.member);
+            if (withScores) {
+                out.bulk(formatScore(entry.score));
+            }
+        }
+    }
+
+    private Object get(Db db, String key) {
+        Long expireAt = db.expires.get(key);
+        if (expireAt != null && expireAt <= System.currentTimeMillis()) {
+            db.data.remove(key);
+            db.expires.remove(key);
+            return null;
+        }
+        return db.data.get(key);
+    }
+
+    private <T> T get(Db db, String key, Class<T> type) {
+        Object value = get(db, key);
+        if (value != null && !type.isInstance(value)) {
+            throw new CommandException(WRONGTYPE);
+        }
+        return type.cast(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> hash(Db db, String key) {
+        return get(db, key, HashMap.class);
+    }
+
+    private Map<String, String> hashForWrite(Db db, String key) {
+        Map<String, String> hash = hash(db, key);
+        if (hash == null) {
+            hash = new HashMap<String, String>();
+            db.data.put(key, hash);
+        }
+        return hash;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> set(Db db, String key) {
+        return get(db, key, HashSet.class);
+    }
+
+    private Set<String> setForWrite(Db db, String key) {
+        Set<String> set = set(db, key);
+        if (set == null) {
+            set = new HashSet<String>();
+            db.data.put(key, set);
+        }
+        return set;
+    }
+
+    private ZSet zset(Db db, String key) {
+        return get(db, key, ZSet.class);
+    }
+
+    private ZSet zsetForWrite(Db db, String key) {
+        ZSet zset = zset(db, key);
+        if (zset == null) {
+            zset = new ZSet();
+            db.data.put(key, zset);
+        }
+        return zset;
+    }
+
+    private boolean remove(Db db, String key) {
+        boolean existed = get(db, key) != null;
+        db.data.remove(key);
+        db.expires.remove(key);
+        return existed;
+    }
+
+    //与Redis相同，集合类的值为空时删除键
+    private void removeIfEmpty(Db db, String key, boolean empty) {
+        if (empty) {
+            remove(db, key);
+        }
+    }
+
+    private void purgeExpired(Db db) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> it = db.expires.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() <= now) {
+                db.data.remove(entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    private static String type(Object value) {
+        if (value == null) {
+            return "none";
+        } else if (value instanceof byte[]) {
+            return "string";
+        } else if (value instanceof HashMap) {
+            return "hash";
+        } else if (value instanceof HashSet) {
+            return "set";
+        }
+        return "zset";
+    }
+
+    //KEYS的glob模式：*、?与[...]
+    private static Pattern glob(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[') {
+                int end = pattern.indexOf(']', i + 1);
+                if (end < 0) {
+                    regex.append("\\[");
+                } else {
+                    regex.append('[').append(pattern.substring(i + 1, end).replace("[", "\\[")).append(']');
+                    i = end;
+                }
+            } else if (c == '\\' && i + 1 < pattern.length()) {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static void arity(byte[][] args, int expected) {
+        if (args.length != expected) {
+            throw wrongArity(args);
+        }
+    }
+
+    private static void minArity(byte[][] args, int min) {
+        if (args.length < min) {
+            throw wrongArity(args);
+        }
+    }
+
+    private static CommandException wrongArity(byte[][] args) {
+        return new CommandException("ERR wrong number of arguments for '" + str(args[0]).toLowerCase() + "' command");
+    }
+
+    static String str(byte[] bytes) {
+        return new String(bytes, LATIN1);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    //位偏移量，与Redis相同限制在512MB的字符串内
+    private static long bitOffset(byte[] value) {
+        long offset;
+        try {
+            offset = integer(value);
+        } catch (CommandException ce) {
+            offset = -1;
+        }
+        if (offset < 0 || offset >= 4L * 1024 * 1024 * 1024) {
+            throw new CommandException("ERR bit offset is not an integer or out of range");
+        }
+        return offset;
+    }
+
+    private static long integer(byte[] value) {
+        return integer(str(value));
+    }
+
+    private static long integer(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            throw new CommandException(NOT_INTEGER);
+        }
+    }
+
+    private static double score(byte[] value) {
+        String s = str(value);
+        if ("inf".equalsIgnoreCase(s) || "+inf".equalsIgnoreCase(s)) {
+            return Double.POSITIVE_INFINITY;
+        } else if ("-inf".equalsIgnoreCase(s)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        try {
+            double score = Double.parseDouble(s);
+            if (Double.isNaN(score)) {
+                throw new CommandException(NOT_FLOAT);
+            }
+            return score;
+        } catch (NumberFormatException nfe) {
+            throw new CommandException(NOT_FLOAT);
+        }
+    }
+
+    private static double checkScore(double score) {
+        if (Double.isNaN(score)) {
+            throw new CommandException("ERR resulting score is not a number (NaN)");
+        }
+        return score;
+    }
+
+    //整数分值不带小数点，与Redis的格式一致
+    static String formatScore(double score) {
+        if (Double.isInfinite(score)) {
+            return score > 0 ? "inf" : "-inf";
+        }
+        if (score == Math.rint(score) && Math.abs(score) < 1e15) {
+            return Long.toString((long) score);
+        }
+        return String.valueOf(score);
+    }
+
+    private static class Db {
+        private final HashMap<String, Object> data = new HashMap<String, Object>();
+        //键的过期时间(毫秒时间戳)
+        private final HashMap<String, Long> expires = new HashMap<String, Long>();
+    }
+
+    /**
+     * 命令执行失败，消息作为错误回复返回给客户端
+     */
+    private static class CommandException
+            extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private CommandException(String message) {
+            super(message);
+        }
+    }
+
+    private static class ScoreBound {
+        private final double value;
+        private final boolean exclusive;
+
+        private ScoreBound(double value, boolean exclusive) {
+            this.value = value;
+            this.exclusive = exclusive;
+        }
+
+        private static ScoreBound parse(byte[] arg) {
+            if (arg.length > 0 && arg[0] == '(') {
+                byte[] value = new byte[arg.length - 1];
+                System.arraycopy(arg, 1, value, 0, value.length);
+                return new ScoreBound(parseScore(value), true);
+            }
+            return new ScoreBound(parseScore(arg), false);
+        }
+
+        private static double parseScore(byte[] value) {
+            try {
+                return score(value);
+            } catch (CommandException ce) {
+                throw new CommandException("ERR min or max is not a float");
+            }
+        }
+
+        private boolean belowMax(double score) {
+            return exclusive ? score < value : score <= value;
+        }
+
+        private boolean aboveMin(double score) {
+            return exclusive ? score > value : score >= value;
+        }
+    }
+
+    /**
+     * 有序集合的成员，按分值再按成员排序；member为null时排在同分值的所有成员之后，用作查找的边界
+     */
+    private static class ZEntry
+            implements Comparable<ZEntry>
+    {
+        private final double score;
+        private final String member;
+
+        private ZEntry(double score, String member) {
+            this.score = score;
+            this.member = member;
+        }
+
+        public int compareTo(ZEntry other) {
+            if (score != other.score) {
+                return score < other.score ? -1 : 1;
+            }
+            if (member == null) {
+                return other.member == null ? 0 : 1;
+            }
+            if (other.member == null) {
+                return -1;
+            }
+            return member.compareTo(other.member);
+        }
+    }
+
+    private static class ZSet {
+        private final HashMap<String, Double> scores = new HashMap<String, Double>();
+        private final TreeSet<ZEntry> ordered = new TreeSet<ZEntry>();
+
+        private void add(String member, double score) {
+            Double current = scores.put(member, score);
+            if (current != null) {
+                ordered.remove(new ZEntry(current, member));
+            }
+            ordered.add(new ZEntry(score, member));
+        }
+
+        private boolean remove(String member) {
+            Double current = scores.remove(member);
+            if (current == null) {
+                return false;
+            }
+            ordered.remove(new ZEntry(current, member));
+            return true;
+        }
+
+        private long rank(String member) {
+            Double score = scores.get(member);
+            return score == null ? -1 : ordered.headSet(new ZEntry(score, member)).size();
+        }
+
+        //start与stop可以为负数，表示从末尾开始的排名
+        private List<ZEntry> range(long start, long stop, boolean reverse) {
+            int size = scores.size();
+            if (start < 0) {
+                start = Math.max(0, size + start);
+            }
+            if (stop < 0) {
+                stop = size + stop;
+            }
+            stop = Math.min(stop, size - 1);
+            List<ZEntry> entries = new ArrayList<ZEntry>();
+            if (start > stop) {
+                return entries;
+            }
+            Iterator<ZEntry> it = reverse ? ordered.descendingIterator() : ordered.iterator();
+            for (long rank = 0; rank <= stop && it.hasNext(); rank++) {
+                ZEntry entry = it.next();
+                if (rank >= start) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+
+        private List<ZEntry> rangeByScore(ScoreBound min, ScoreBound max, boolean reverse, long offset, long count) {
+            Iterator<ZEntry> it = reverse
+                    ? ordered.headSet(new ZEntry(max.value, null), false).descendingIterator()
+                    : ordered.tailSet(new ZEntry(min.value, ""), true).iterator();
+            List<ZEntry> entries = new ArrayList<ZEntry>();
+            while (it.hasNext() && count != 0) {
+                ZEntry entry = it.next();
+                if (reverse ? !max.belowMax(entry.score) : !min.aboveMin(entry.score)) {
+                    //边界分值被排除
+                    continue;
+                }
+                if (reverse ? !min.aboveMin(entry.score) : !max.belowMax(entry.score)) {
+                    break;
+                }
+                if (offset > 0) {
+                    offset--;
+                    continue;
+                }
+                entries.add(entry);
+                if (count > 0) {
+                    count--;
+                }
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,755 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的Redis协议(RESP)服务，用于没有Redis服务器时的测试、基准测试与命令回放
+ * 只监听127.0.0.1，端口为0时由系统分配；每个连接一个线程，所有命令在同一把锁下执行，
+ * 流水线中的回复在读完已到达的命令后一次flush。
+ * 支持的命令：字符串(含SETBIT/GETBIT/BITCOUNT)、散列、集合、有序集合(含ZINTERSTORE/ZUNIONSTORE)、EXPIRE/EXPIREAT、KEYS、
+ * MULTI/EXEC/DISCARD(不支持WATCH)、SELECT、PING、PUBLISH/SUBSCRIBE与MONITOR；
+ * EVAL/EVALSHA/SCRIPT只支持章节脚本用到的Lua子集(见EmbeddedScripting)，脚本中只能调用数据命令。
+ */
+public class EmbeddedRedisServer implements Closeable {
+    private final int requestedPort;
+    private final EmbeddedDatabase database = new EmbeddedDatabase();
+    private final EmbeddedScripting scripting = new EmbeddedScripting();
+    //命令执行锁，同一时刻只执行一条命令
+    private final Object lock = new Object();
+    private final Map<String, Set<Session>> channels = new HashMap<String, Set<Session>>();
+    private final List<Session> monitors = new CopyOnWriteArrayList<Session>();
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+    private final AtomicInteger clientIds = new AtomicInteger();
+    private final AtomicLong commands = new AtomicLong();
+    //接受连接或读写客户端连接失败的次数
+    private final AtomicLong ioFailures = new AtomicLong();
+    private volatile String lastIoFailure;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    public EmbeddedRedisServer() {
+        this(0);
+    }
+
+    public EmbeddedRedisServer(int port) {
+        this.requestedPort = port;
+    }
+
+    /**
+     * 开始监听，返回后即可连接
+     * @return
+     */
+    public synchronized EmbeddedRedisServer start() {
+        if (serverSocket != null) {
+            return this;
+        }
+        try {
+            ServerSocket socket = new ServerSocket();
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), requestedPort));
+            serverSocket = socket;
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Cannot start embedded Redis server on port " + requestedPort, ioe);
+        }
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "embedded-redis-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    //已执行的命令数
+    public long getCommands() {
+        return commands.get();
+    }
+
+    //接受连接或读写客户端连接失败的次数
+    public long getIoFailures() {
+        return ioFailures.get();
+    }
+
+    //最近一次连接失败的原因
+    public String getLastIoFailure() {
+        return lastIoFailure;
+    }
+
+    public int getConnections() {
+        return sessions.size();
+    }
+
+    /**
+     * 清空所有数据库
+     */
+    public void flushAll() {
+        synchronized (lock) {
+            database.flushAll();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ioe) {
+            //忽略
+        }
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                final Session session = new Session(socket, clientIds.incrementAndGet());
+                sessions.add(session);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        session.serve();
+                    }
+                }, "embedded-redis-client-" + session.id);
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ioe) {
+                if (!closed) {
+                    ioFailures.incrementAndGet();
+                    lastIoFailure = "accept: " + ioe;
+                }
+            }
+        }
+    }
+
+    /**
+     * 执行一条命令，MULTI中的命令先入队
+     */
+    private void dispatch(Session session, byte[][] args) throws IOException {
+        String command = EmbeddedDatabase.str(args[0]).toUpperCase();
+        Reply out = session.out;
+        synchronized (lock) {
+            commands.incrementAndGet();
+            if (!monitors.isEmpty() && !"MONITOR".equals(command)) {
+                feedMonitors(session, args);
+            }
+            synchronized (out) {
+                if (session.subscribed()) {
+                    subscriberCommand(session, command, args);
+                } else if (session.queued != null && !"EXEC".equals(command) && !"DISCARD".equals(command)
+                        && !"MULTI".equals(command))
+                {
+                    session.queued.add(args);
+                    out.status("QUEUED");
+                } else {
+                    command(session, command, args);
+                }
+            }
+        }
+    }
+
+    private void command(Session session, String command, byte[][] args) throws IOException {
+        Reply out = session.out;
+        if ("PING".equals(command)) {
+            if (args.length > 1) {
+                out.bulk(args[1]);
+            } else {
+                out.status("PONG");
+            }
+        } else if ("ECHO".equals(command) && args.length == 2) {
+            out.bulk(args[1]);
+        } else if ("SELECT".equals(command) && args.length == 2) {
+            int db = parseDb(args[1]);
+            if (db < 0) {
+                out.error("ERR DB index is out of range");
+            } else {
+                session.db = db;
+                out.status("OK");
+            }
+        } else if ("QUIT".equals(command)) {
+            out.status("OK");
+            out.flush();
+            session.close();
+        } else if ("CLIENT".equals(command) || "AUTH".equals(command)) {
+            //连接池可能发送CLIENT SETNAME，直接返回成功
+            out.status("OK");
+        } else if ("TIME".equals(command)) {
+            long micros = System.currentTimeMillis() * 1000;
+            out.array(2);
+            out.bulk(String.valueOf(micros / 1000000));
+            out.bulk(String.valueOf(micros % 1000000));
+        } else if ("MULTI".equals(command)) {
+            if (session.queued != null) {
+                out.error("ERR MULTI calls can not be nested");
+            } else {
+                session.queued = new ArrayList<byte[][]>();
+                out.status("OK");
+            }
+        } else if ("EXEC".equals(command)) {
+            if (session.queued == null) {
+                out.error("ERR EXEC without MULTI");
+            } else {
+                List<byte[][]> queued = session.queued;
+                session.queued = null;
+                out.array(queued.size());
+                for (byte[][] queuedArgs : queued) {
+                    command(session, EmbeddedDatabase.str(queuedArgs[0]).toUpperCase(), queuedArgs);
+                }
+            }
+        } else if ("DISCARD".equals(command)) {
+            if (session.queued == null) {
+                out.error("ERR DISCARD without MULTI");
+            } else {
+                session.queued = null;
+                out.status("OK");
+            }
+        } else if ("PUBLISH".equals(command) && args.length == 3) {
+            out.integer(publish(args[1], args[2]));
+        } else if ("SUBSCRIBE".equals(command) && args.length > 1) {
+            subscriberCommand(session, command, args);
+        } else if ("UNSUBSCRIBE".equals(command)) {
+            subscriberCommand(session, command, args);
+        } else if ("MONITOR".equals(command)) {
+            monitors.add(session);
+            session.monitoring = true;
+            out.status("OK");
+        } else if ("EVAL".equals(command) || "EVALSHA".equals(command)) {
+            eval(session, command, args);
+        } else if ("SCRIPT".equals(command) && args.length > 1) {
+            script(session, args);
+        } else if (!database.execute(session.db, args, out)) {
+            out.error("ERR unknown command '" + EmbeddedDatabase.str(args[0]) + "'");
+        }
+    }
+
+    /**
+     * EVAL 脚本 键数 键... 参数... / EVALSHA sha1 键数 键... 参数...
+     */
+    private void eval(final Session session, String command, byte[][] args) {
+        Reply out = session.out;
+        if (args.length < 3) {
+            out.error("ERR wrong number of arguments for '" + command.toLowerCase() + "' command");
+            return;
+        }
+        int numKeys;
+        try {
+            numKeys = Integer.parseInt(EmbeddedDatabase.str(args[2]));
+        } catch (NumberFormatException nfe) {
+            out.error("ERR value is not an integer or out of range");
+            return;
+        }
+        if (numKeys < 0) {
+            out.error("ERR Number of keys can't be negative");
+            return;
+        }
+        if (numKeys > args.length - 3) {
+            out.error("ERR Number of keys can't be greater than number of args");
+            return;
+        }
+        List<Object> keys = new ArrayList<Object>(numKeys);
+        List<Object> argv = new ArrayList<Object>(args.length - 3 - numKeys);
+        for (int i = 3; i < args.length; i++) {
+            (i < 3 + numKeys ? keys : argv).add(EmbeddedDatabase.str(args[i]));
+        }
+        try {
+            String sha = "EVAL".equals(command)
+                    ? scripting.load(EmbeddedDatabase.str(args[1]))
+                    : EmbeddedDatabase.str(args[1]);
+            Object result = scripting.run(sha, keys, argv, new EmbeddedScripting.Commands() {
+                public Object call(byte[][] call) {
+                    return scriptCommand(session, call);
+                }
+            });
+            writeScriptValue(out, result);
+        } catch (EmbeddedScripting.ScriptException se) {
+            out.error(se.getMessage());
+        }
+    }
+
+    //脚本中的redis.call，回复转换为Lua的值
+    private Object scriptCommand(Session session, byte[][] args) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Reply captured = new Reply(buffer);
+        if (!database.execute(session.db, args, captured)) {
+            return new EmbeddedScripting.ErrorReply("ERR Unknown Redis command called from script");
+        }
+        return readScriptValue(buffer.toByteArray(), new int[1]);
+    }
+
+    private Object readScriptValue(byte[] data, int[] position) {
+        char type = (char) data[position[0]++];
+        int start = position[0];
+        while (data[position[0]] != '\r') {
+            position[0]++;
+        }
+        String line = new String(data, start, position[0] - start, EmbeddedDatabase.LATIN1);
+        position[0] += 2;
+        if (type == '+') {
+            Map<String, Object> status = new HashMap<String, Object>();
+            status.put("ok", line);
+            return status;
+        }
+        if (type == '-') {
+            return new EmbeddedScripting.ErrorReply(line);
+        }
+        if (type == ':') {
+            return Double.valueOf(line);
+        }
+        int length = Integer.parseInt(line);
+        if (length < 0) {
+            return Boolean.FALSE;
+        }
+        if (type == '$') {
+            String value = new String(data, position[0], length, EmbeddedDatabase.LATIN1);
+            position[0] += length + 2;
+            return value;
+        }
+        List<Object> items = new ArrayList<Object>(length);
+        for (int i = 0; i < length; i++) {
+            items.add(readScriptValue(data, position));
+        }
+        return items;
+    }
+
+    //Lua的返回值转换为回复：数字取整，true为1，false/nil为空回复，表到第一个nil为止
+    @SuppressWarnings("unchecked")
+    private void writeScriptValue(Reply out, Object value) {
+        if (value instanceof Double) {
+            out.integer(((Double) value).longValue());
+        } else if (value instanceof String) {
+            out.bulk((String) value);
+        } else if (Boolean.TRUE.equals(value)) {
+            out.integer(1);
+        } else if (value instanceof List) {
+            List<Object> items = (List<Object>) value;
+            int size = 0;
+            while (size < items.size() && items.get(size) != null) {
+                size++;
+            }
+            out.array(size);
+            for (int i = 0; i < size; i++) {
+                writeScriptValue(out, items.get(i));
+            }
+        } else if (value instanceof Map && ((Map<String, Object>) value).get("err") != null) {
+            out.error(String.valueOf(((Map<String, Object>) value).get("err")));
+        } else if (value instanceof Map && ((Map<String, Object>) value).get("ok") != null) {
+            out.status(String.valueOf(((Map<String, Object>) value).get("ok")));
+        } else {
+            out.bulk((byte[]) null);
+        }
+    }
+
+    /**
+     * SCRIPT LOAD/EXISTS/FLUSH
+     */
+    private void script(Session session, byte[][] args) {
+        Reply out = session.out;
+        String subcommand = EmbeddedDatabase.str(args[1]).toUpperCase();
+        if ("LOAD".equals(subcommand) && args.length == 3) {
+            try {
+                out.bulk(scripting.load(EmbeddedDatabase.str(args[2])));
+            } catch (EmbeddedScripting.ScriptException se) {
+                out.error(se.getMessage());
+            }
+        } else if ("EXISTS".equals(subcommand)) {
+            out.array(args.length - 2);
+            for (int i = 2; i < args.length; i++) {
+                out.integer(scripting.exists(EmbeddedDatabase.str(args[i])) ? 1 : 0);
+            }
+        } else if ("FLUSH".equals(subcommand)) {
+            scripting.flush();
+            out.status("OK");
+        } else {
+            out.error("ERR Unknown SCRIPT subcommand or wrong number of arguments for '" + subcommand + "'");
+        }
+    }
+
+    /**
+     * 订阅状态下只允许SUBSCRIBE、UNSUBSCRIBE、PING与QUIT
+     */
+    private void subscriberCommand(Session session, String command, byte[][] args) throws IOException {
+        Reply out = session.out;
+        if ("SUBSCRIBE".equals(command)) {
+            for (int i = 1; i < args.length; i++) {
+                String channel = EmbeddedDatabase.str(args[i]);
+                if (session.channels.add(channel)) {
+                    Set<Session> subscribers = channels.get(channel);
+                    if (subscribers == null) {
+                        subscribers = new LinkedHashSet<Session>();
+                        channels.put(channel, subscribers);
+                    }
+                    subscribers.add(session);
+                }
+                out.array(3);
+                out.bulk("subscribe");
+                out.bulk(channel);
+                out.integer(session.channels.size());
+            }
+        } else if ("UNSUBSCRIBE".equals(command)) {
+            List<String> targets = new ArrayList<String>();
+            for (int i = 1; i < args.length; i++) {
+                targets.add(EmbeddedDatabase.str(args[i]));
+            }
+            if (targets.isEmpty()) {
+                targets.addAll(session.channels);
+            }
+            if (targets.isEmpty()) {
+                out.array(3);
+                out.bulk("unsubscribe");
+                out.bulk((byte[]) null);
+                out.integer(0);
+            }
+            for (String channel : targets) {
+                unsubscribe(session, channel);
+                out.array(3);
+                out.bulk("unsubscribe");
+                out.bulk(channel);
+                out.integer(session.channels.size());
+            }
+        } else if ("PING".equals(command)) {
+            out.array(2);
+            out.bulk("pong");
+            out.bulk(args.length > 1 ? args[1] : new byte[0]);
+        } else if ("QUIT".equals(command)) {
+            command(session, command, args);
+        } else {
+            out.error("ERR only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING / QUIT allowed in this context");
+        }
+    }
+
+    private void unsubscribe(Session session, String channel) {
+        session.channels.remove(channel);
+        Set<Session> subscribers = channels.get(channel);
+        if (subscribers != null) {
+            subscribers.remove(session);
+            if (subscribers.isEmpty()) {
+                channels.remove(channel);
+            }
+        }
+    }
+
+    private int publish(byte[] channel, byte[] message) {
+        Set<Session> subscribers = channels.get(EmbeddedDatabase.str(channel));
+        if (subscribers == null) {
+            return 0;
+        }
+        int received = 0;
+        for (Session subscriber : new ArrayList<Session>(subscribers)) {
+            synchronized (subscriber.out) {
+                try {
+                    subscriber.out.array(3);
+                    subscriber.out.bulk("message");
+                    subscriber.out.bulk(channel);
+                    subscriber.out.bulk(message);
+                    subscriber.out.flush();
+                    received++;
+                } catch (IOException ioe) {
+                    subscriber.close();
+                }
+            }
+        }
+        return received;
+    }
+
+    /**
+     * 按Redis MONITOR的格式发送命令：时间戳 [数据库 客户端地址] "命令" "参数"...
+     */
+    private void feedMonitors(Session session, byte[][] args) {
+        long micros = System.currentTimeMillis() * 1000;
+        StringBuilder line = new StringBuilder(64);
+        line.append(micros / 1000000).append('.');
+        String fraction = String.valueOf(micros % 1000000);
+        for (int i = fraction.length(); i < 6; i++) {
+            line.append('0');
+        }
+        line.append(fraction).append(" [").append(session.db).append(' ').append(session.address).append(']');
+        for (byte[] arg : args) {
+            line.append(' ');
+            quote(line, arg);
+        }
+        String status = line.toString();
+        for (Session monitor : monitors) {
+            synchronized (monitor.out) {
+                try {
+                    monitor.out.status(status);
+                    monitor.out.flush();
+                } catch (IOException ioe) {
+                    monitor.close();
+                }
+            }
+        }
+    }
+
+    //与Redis的sdscatrepr相同的转义
+    static void quote(StringBuilder line, byte[] arg) {
+        line.append('"');
+        for (byte b : arg) {
+            int c = b & 0xff;
+            switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case 7:
+                    line.append("\\a");
+                    break;
+                case '\b':
+                    line.append("\\b");
+                    break;
+                default:
+                    if (c >= 0x20 && c < 0x7f) {
+                        line.append((char) c);
+                    } else {
+                        line.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                    }
+            }
+        }
+        line.append('"');
+    }
+
+    private static int parseDb(byte[] arg) {
+        try {
+            int db = Integer.parseInt(EmbeddedDatabase.str(arg));
+            return db >= 0 && db < EmbeddedDatabase.DATABASES ? db : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * 一个客户端连接
+     */
+    private class Session {
+        private final Socket socket;
+        private final int id;
+        private final String address;
+        private final InputStream in;
+        private final Reply out;
+        private final Set<String> channels = new LinkedHashSet<String>();
+        private int db;
+        //MULTI之后入队的命令，为null表示不在事务中
+        private List<byte[][]> queued;
+        private boolean monitoring;
+
+        private Session(Socket socket, int id) throws IOException {
+            this.socket = socket;
+            this.id = id;
+            this.address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            this.in = new BufferedInputStream(socket.getInputStream(), 65536);
+            this.out = new Reply(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        }
+
+        private boolean subscribed() {
+            return !channels.isEmpty();
+        }
+
+        private void serve() {
+            try {
+                while (!closed) {
+                    byte[][] args = readCommand();
+                    if (args == null) {
+                        break;
+                    }
+                    if (args.length > 0) {
+                        dispatch(this, args);
+                    }
+                    //流水线中还有已到达的命令时继续处理，最后一起flush
+                    if (in.available() == 0) {
+                        synchronized (out) {
+                            out.flush();
+                        }
+                    }
+                }
+            } catch (SocketException se) {
+                //连接已关闭
+            } catch (IOException ioe) {
+                if (!closed && !socket.isClosed()) {
+                    ioFailures.incrementAndGet();
+                    lastIoFailure = "client " + id + ": " + ioe;
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * 读取一条RESP数组形式的命令
+         * @return 命令名与参数，连接关闭时为null
+         */
+        private byte[][] readCommand() throws IOException {
+            int type = in.read();
+            if (type < 0) {
+                return null;
+            }
+            if (type != '*') {
+                throw new IOException("Protocol error: expected '*', got '" + (char) type + "'");
+            }
+            int count = (int) readNumber();
+            byte[][] args = new byte[Math.max(0, count)][];
+            for (int i = 0; i < args.length; i++) {
+                if (in.read() != '$') {
+                    throw new IOException("Protocol error: expected '$'");
+                }
+                int length = (int) readNumber();
+                byte[] arg = new byte[length];
+                int read = 0;
+                while (read < length) {
+                    int n = in.read(arg, read, length - read);
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    read += n;
+                }
+                //跳过\r\n
+                if (in.read() < 0 || in.read() < 0) {
+                    throw new EOFException();
+                }
+                args[i] = arg;
+            }
+            return args;
+        }
+
+        private long readNumber() throws IOException {
+            long value = 0;
+            boolean negative = false;
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                if (c == '-') {
+                    negative = true;
+                } else {
+                    value = value * 10 + (c - '0');
+                }
+            }
+            in.read();
+            return negative ? -value : value;
+        }
+
+        private void close() {
+            sessions.remove(this);
+            if (monitoring) {
+                monitors.remove(this);
+            }
+            synchronized (lock) {
+                for (String channel : new ArrayList<String>(this.channels)) {
+                    unsubscribe(this, channel);
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                //忽略
+            }
+        }
+    }
+
+    /**
+     * RESP回复的写入，调用者需要持有该对象的锁
+     */
+    static class Reply {
+        private static final byte[] CRLF = {'\r', '\n'};
+        private final OutputStream out;
+        //写入失败后的异常，在flush时抛出
+        private IOException failure;
+
+        Reply(OutputStream out) {
+            this.out = out;
+        }
+
+        void status(String status) {
+            write('+', status);
+        }
+
+        void error(String message) {
+            write('-', message);
+        }
+
+        void integer(long value) {
+            write(':', Long.toString(value));
+        }
+
+        void array(int size) {
+            write('*', Integer.toString(size));
+        }
+
+        void bulk(String value) {
+            bulk(value == null ? null : value.getBytes(EmbeddedDatabase.LATIN1));
+        }
+
+        void bulk(byte[] value) {
+            if (value == null) {
+                write('$', "-1");
+                return;
+            }
+            write('$', Integer.toString(value.length));
+            try {
+                out.write(value);
+                out.write(CRLF);
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+        }
+
+        void flush() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            out.flush();
+        }
+
+        private void write(char type, String line) {
+            try {
+                out.write(type);
+                out.write(line.getBytes(EmbeddedDatabase.LATIN1));
+                out.write(CRLF);
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+        }
+    }
+}
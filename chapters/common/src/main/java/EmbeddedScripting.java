@@ -0,0 +1,915 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * EmbeddedRedisServer的EVAL/EVALSHA/SCRIPT实现，只支持章节脚本用到的Lua子集：
+ *   local、赋值(包括t[i] = v)、if/elseif/else、for _, v in ipairs(t)、数值for、return
+ *   nil/true/false、数字、字符串、数组表{a, b}、t[i]、#t、..、算术、比较、and/or/not
+ *   redis.call、redis.pcall、tonumber、tostring
+ * 脚本在服务的命令锁下执行，与Redis一样是原子的。值的转换与Redis相同：整数回复为数字，
+ * 空回复为false，数组回复为表；返回数字时取整，true为1，false/nil为空回复。
+ * 不支持函数定义、字符串库、表的键值对与元表，遇到时编译失败。
+ */
+class EmbeddedScripting {
+    /**
+     * 脚本中redis.call执行的命令
+     */
+    interface Commands {
+        /**
+         * @param args 命令名与参数
+         * @return 转换后的回复，错误回复为ErrorReply
+         */
+        Object call(byte[][] args);
+    }
+
+    /**
+     * 错误回复
+     */
+    static class ErrorReply {
+        final String message;
+
+        ErrorReply(String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * 脚本执行失败，消息作为错误回复返回给客户端
+     */
+    static class ScriptException
+            extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        ScriptException(String message) {
+            super(message);
+        }
+    }
+
+    //sha1到编译后的脚本
+    private final Map<String, Block> scripts = new HashMap<String, Block>();
+
+    /**
+     * 编译并缓存脚本
+     * @param source
+     * @return 脚本的sha1
+     */
+    String load(String source) {
+        String sha = sha1(source);
+        if (!scripts.containsKey(sha)) {
+            scripts.put(sha, new Parser(source).chunk());
+        }
+        return sha;
+    }
+
+    boolean exists(String sha) {
+        return scripts.containsKey(sha.toLowerCase());
+    }
+
+    void flush() {
+        scripts.clear();
+    }
+
+    /**
+     * 执行已加载的脚本
+     * @param sha 脚本的sha1
+     * @param keys KEYS
+     * @param argv ARGV
+     * @param commands
+     * @return Lua的返回值，转换为回复前的形式；脚本不存在时抛出ScriptException
+     */
+    Object run(String sha, List<Object> keys, List<Object> argv, Commands commands) {
+        Block script = scripts.get(sha.toLowerCase());
+        if (script == null) {
+            throw new ScriptException("NOSCRIPT No matching script. Please use EVAL.");
+        }
+        Scope globals = new Scope(null);
+        globals.define("KEYS", keys);
+        globals.define("ARGV", argv);
+        globals.define("redis", redisTable(commands));
+        globals.define("tonumber", new Function() {
+            public Object call(List<Object> args) {
+                return toNumber(arg(args, 0));
+            }
+        });
+        globals.define("tostring", new Function() {
+            public Object call(List<Object> args) {
+                return toStringValue(arg(args, 0));
+            }
+        });
+        try {
+            script.exec(new Scope(globals));
+            return null;
+        } catch (Return r) {
+            return r.value;
+        }
+    }
+
+    private Map<String, Object> redisTable(final Commands commands) {
+        Map<String, Object> redis = new HashMap<String, Object>();
+        redis.put("call", new Function() {
+            public Object call(List<Object> args) {
+                Object reply = commands.call(commandArgs(args));
+                if (reply instanceof ErrorReply) {
+                    throw new ScriptException(((ErrorReply) reply).message);
+                }
+                return reply;
+            }
+        });
+        redis.put("pcall", new Function() {
+            public Object call(List<Object> args) {
+                Object reply = commands.call(commandArgs(args));
+                if (reply instanceof ErrorReply) {
+                    Map<String, Object> error = new HashMap<String, Object>();
+                    error.put("err", ((ErrorReply) reply).message);
+                    return error;
+                }
+                return reply;
+            }
+        });
+        return redis;
+    }
+
+    private static byte[][] commandArgs(List<Object> args) {
+        if (args.isEmpty()) {
+            throw new ScriptException("ERR Please specify at least one argument for redis.call()");
+        }
+        byte[][] command = new byte[args.size()][];
+        for (int i = 0; i < command.length; i++) {
+            Object arg = args.get(i);
+            if (!(arg instanceof String) && !(arg instanceof Double)) {
+                throw new ScriptException("ERR Lua redis() command arguments must be strings or integers");
+            }
+            command[i] = toStringValue(arg).toString().getBytes(EmbeddedDatabase.LATIN1);
+        }
+        return command;
+    }
+
+    static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(EmbeddedDatabase.LATIN1));
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    private static Object arg(List<Object> args, int index) {
+        return index < args.size() ? args.get(index) : null;
+    }
+
+    private static boolean truthy(Object value) {
+        return value != null && !Boolean.FALSE.equals(value);
+    }
+
+    private static Object toNumber(Object value) {
+        if (value instanceof Double) {
+            return value;
+        }
+        if (value instanceof String) {
+            try {
+                return Double.valueOf(((String) value).trim());
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static Object toStringValue(Object value) {
+        if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+                return Long.toString((long) number);
+            }
+            return String.valueOf(number);
+        }
+        if (value == null) {
+            return "nil";
+        }
+        return value instanceof String ? value : String.valueOf(value);
+    }
+
+    private static double arithmetic(Object value) {
+        Object number = toNumber(value);
+        if (number == null) {
+            throw new ScriptException("ERR attempt to perform arithmetic on a " + typeName(value) + " value");
+        }
+        return (Double) number;
+    }
+
+    private static String typeName(Object value) {
+        if (value == null) {
+            return "nil";
+        }
+        if (value instanceof Boolean) {
+            return "boolean";
+        }
+        if (value instanceof Double) {
+            return "number";
+        }
+        if (value instanceof String) {
+            return "string";
+        }
+        return value instanceof Function ? "function" : "table";
+    }
+
+    //数组表的t[i] = v，i超出末尾时中间补nil
+    @SuppressWarnings("unchecked")
+    private static void setIndex(Object table, Object key, Object value) {
+        if (!(table instanceof List)) {
+            throw new ScriptException("ERR attempt to index a " + typeName(table) + " value");
+        }
+        if (!(key instanceof Double) || (Double) key < 1 || (Double) key != Math.floor((Double) key)) {
+            throw new ScriptException("ERR only positive integer table keys are supported");
+        }
+        List<Object> list = (List<Object>) table;
+        int i = ((Double) key).intValue() - 1;
+        while (list.size() <= i) {
+            list.add(null);
+        }
+        list.set(i, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object index(Object table, Object key) {
+        if (table instanceof List) {
+            List<Object> list = (List<Object>) table;
+            Object number = key instanceof Double ? key : null;
+            if (number == null) {
+                return null;
+            }
+            double position = (Double) number;
+            int i = (int) position;
+            return i == position && i >= 1 && i <= list.size() ? list.get(i - 1) : null;
+        }
+        if (table instanceof Map) {
+            return ((Map<String, Object>) table).get(String.valueOf(toStringValue(key)));
+        }
+        throw new ScriptException("ERR attempt to index a " + typeName(table) + " value");
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a == b || (a.getClass() == b.getClass() && (a instanceof Double || a instanceof String || a instanceof Boolean) && a.equals(b));
+    }
+
+    private static int compare(Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            return Double.compare((Double) a, (Double) b);
+        }
+        if (a instanceof String && b instanceof String) {
+            return ((String) a).compareTo((String) b);
+        }
+        throw new ScriptException("ERR attempt to compare " + typeName(a) + " with " + typeName(b));
+    }
+
+    /**
+     * 可从脚本中调用的函数
+     */
+    private interface Function {
+        Object call(List<Object> args);
+    }
+
+    private interface Expression {
+        Object eval(Scope scope);
+    }
+
+    private interface Statement {
+        void exec(Scope scope);
+    }
+
+    /**
+     * return的值，沿调用栈传到run
+     */
+    private static class Return
+            extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+        private final Object value;
+
+        private Return(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    /**
+     * 局部变量作用域，找不到时向外层查找，最外层为全局变量
+     */
+    private static class Scope {
+        private final Scope parent;
+        private final Map<String, Object> variables = new HashMap<String, Object>();
+
+        private Scope(Scope parent) {
+            this.parent = parent;
+        }
+
+        private void define(String name, Object value) {
+            variables.put(name, value);
+        }
+
+        private Object get(String name) {
+            for (Scope scope = this; scope != null; scope = scope.parent) {
+                if (scope.variables.containsKey(name)) {
+                    return scope.variables.get(name);
+                }
+            }
+            return null;
+        }
+
+        private void set(String name, Object value) {
+            Scope scope = this;
+            while (scope.parent != null && !scope.variables.containsKey(name)) {
+                scope = scope.parent;
+            }
+            scope.variables.put(name, value);
+        }
+    }
+
+    /**
+     * 语句块，执行时新建一层作用域
+     */
+    private static class Block implements Statement {
+        private final List<Statement> statements = new ArrayList<Statement>();
+
+        public void exec(Scope scope) {
+            Scope inner = new Scope(scope);
+            for (Statement statement : statements) {
+                statement.exec(inner);
+            }
+        }
+    }
+
+    /**
+     * 递归下降的语法分析，直接生成可执行的语法树
+     */
+    private static class Parser {
+        private final List<String> tokens = new ArrayList<String>();
+        //与tokens对应，字符串字面量为true
+        private final List<Boolean> literals = new ArrayList<Boolean>();
+        private int position;
+
+        private Parser(String source) {
+            tokenize(source);
+        }
+
+        private Block chunk() {
+            Block block = block();
+            if (position < tokens.size()) {
+                throw error("'<eof>' expected near '" + tokens.get(position) + "'");
+            }
+            return block;
+        }
+
+        private Block block() {
+            Block block = new Block();
+            while (position < tokens.size()) {
+                if (peek("end") || peek("else") || peek("elseif")) {
+                    break;
+                }
+                if (accept("return")) {
+                    final Expression value = peek("end") || peek("else") || peek("elseif") || peek(";")
+                            || position >= tokens.size() ? null : expression();
+                    accept(";");
+                    block.statements.add(new Statement() {
+                        public void exec(Scope scope) {
+                            throw new Return(value == null ? null : value.eval(scope));
+                        }
+                    });
+                    break;
+                }
+                block.statements.add(statement());
+                accept(";");
+            }
+            return block;
+        }
+
+        private Statement statement() {
+            if (accept("local")) {
+                final String name = name();
+                final Expression value = accept("=") ? expression() : null;
+                return new Statement() {
+                    public void exec(Scope scope) {
+                        scope.define(name, value == null ? null : value.eval(scope));
+                    }
+                };
+            }
+            if (accept("if")) {
+                return ifStatement();
+            }
+            if (accept("for")) {
+                return forStatement();
+            }
+            if (accept("do")) {
+                Block body = block();
+                expect("end");
+                return body;
+            }
+            if (isName() && "=".equals(lookAhead(1))) {
+                final String name = name();
+                expect("=");
+                final Expression value = expression();
+                return new Statement() {
+                    public void exec(Scope scope) {
+                        scope.set(name, value.eval(scope));
+                    }
+                };
+            }
+            if (isName() && "[".equals(lookAhead(1))) {
+                //t[i] = v，只支持数组表
+                final String name = name();
+                expect("[");
+                final Expression key = expression();
+                expect("]");
+                expect("=");
+                final Expression value = expression();
+                return new Statement() {
+                    public void exec(Scope scope) {
+                        setIndex(scope.get(name), key.eval(scope), value.eval(scope));
+                    }
+                };
+            }
+            final Expression call = primary();
+            return new Statement() {
+                public void exec(Scope scope) {
+                    call.eval(scope);
+                }
+            };
+        }
+
+        private Statement ifStatement() {
+            final List<Expression> conditions = new ArrayList<Expression>();
+            final List<Block> bodies = new ArrayList<Block>();
+            conditions.add(expression());
+            expect("then");
+            bodies.add(block());
+            Block otherwise = null;
+            while (true) {
+                if (accept("elseif")) {
+                    conditions.add(expression());
+                    expect("then");
+                    bodies.add(block());
+                } else if (accept("else")) {
+                    otherwise = block();
+                    expect("end");
+                    break;
+                } else {
+                    expect("end");
+                    break;
+                }
+            }
+            final Block elseBody = otherwise;
+            return new Statement() {
+                public void exec(Scope scope) {
+                    for (int i = 0; i < conditions.size(); i++) {
+                        if (truthy(conditions.get(i).eval(scope))) {
+                            bodies.get(i).exec(scope);
+                            return;
+                        }
+                    }
+                    if (elseBody != null) {
+                        elseBody.exec(scope);
+                    }
+                }
+            };
+        }
+
+        private Statement forStatement() {
+            final String first = name();
+            if (accept("=")) {
+                final Expression start = expression();
+                expect(",");
+                final Expression limit = expression();
+                final Expression step = accept(",") ? expression() : null;
+                expect("do");
+                final Block body = block();
+                expect("end");
+                return new Statement() {
+                    public void exec(Scope scope) {
+                        double from = arithmetic(start.eval(scope));
+                        double to = arithmetic(limit.eval(scope));
+                        double by = step == null ? 1 : arithmetic(step.eval(scope));
+                        for (double i = from; by > 0 ? i <= to : i >= to; i += by) {
+                            Scope loop = new Scope(scope);
+                            loop.define(first, i);
+                            body.exec(loop);
+                        }
+                    }
+                };
+            }
+            expect(",");
+            final String second = name();
+            expect("in");
+            expect("ipairs");
+            expect("(");
+            final Expression table = expression();
+            expect(")");
+            expect("do");
+            final Block body = block();
+            expect("end");
+            return new Statement() {
+                @SuppressWarnings("unchecked")
+                public void exec(Scope scope) {
+                    Object value = table.eval(scope);
+                    if (!(value instanceof List)) {
+                        throw new ScriptException("ERR bad argument #1 to 'ipairs' (table expected, got " + typeName(value) + ")");
+                    }
+                    List<Object> list = (List<Object>) value;
+                    for (int i = 0; i < list.size() && list.get(i) != null; i++) {
+                        Scope loop = new Scope(scope);
+                        loop.define(first, (double) (i + 1));
+                        loop.define(second, list.get(i));
+                        body.exec(loop);
+                    }
+                }
+            };
+        }
+
+        private Expression expression() {
+            return or();
+        }
+
+        private Expression or() {
+            Expression left = and();
+            while (accept("or")) {
+                final Expression a = left;
+                final Expression b = and();
+                left = new Expression() {
+                    public Object eval(Scope scope) {
+                        Object value = a.eval(scope);
+                        return truthy(value) ? value : b.eval(scope);
+                    }
+                };
+            }
+            return left;
+        }
+
+        private Expression and() {
+            Expression left = comparison();
+            while (accept("and")) {
+                final Expression a = left;
+                final Expression b = comparison();
+                left = new Expression() {
+                    public Object eval(Scope scope) {
+                        Object value = a.eval(scope);
+                        return truthy(value) ? b.eval(scope) : value;
+                    }
+                };
+            }
+            return left;
+        }
+
+        private Expression comparison() {
+            Expression left = concat();
+            while (peek("==") || peek("~=") || peek("<") || peek("<=") || peek(">") || peek(">=")) {
+                final String operator = tokens.get(position++);
+                final Expression a = left;
+                final Expression b = concat();
+                left = new Expression() {
+                    public Object eval(Scope scope) {
+                        Object x = a.eval(scope);
+                        Object y = b.eval(scope);
+                        if ("==".equals(operator)) {
+                            return equal(x, y);
+                        }
+                        if ("~=".equals(operator)) {
+                            return !equal(x, y);
+                        }
+                        int c = compare(x, y);
+                        if ("<".equals(operator)) {
+                            return c < 0;
+                        }
+                        if ("<=".equals(operator)) {
+                            return c <= 0;
+                        }
+                        return ">".equals(operator) ? c > 0 : c >= 0;
+                    }
+                };
+            }
+            return left;
+        }
+
+        //..是右结合的
+        private Expression concat() {
+            final Expression left = additive();
+            if (!accept("..")) {
+                return left;
+            }
+            final Expression right = concat();
+            return new Expression() {
+                public Object eval(Scope scope) {
+                    Object a = left.eval(scope);
+                    Object b = right.eval(scope);
+                    for (Object value : new Object[]{a, b}) {
+                        if (!(value instanceof String) && !(value instanceof Double)) {
+                            throw new ScriptException("ERR attempt to concatenate a " + typeName(value) + " value");
+                        }
+                    }
+                    return String.valueOf(toStringValue(a)) + toStringValue(b);
+                }
+            };
+        }
+
+        private Expression additive() {
+            Expression left = multiplicative();
+            while (peek("+") || peek("-")) {
+                left = binary(tokens.get(position++), left, multiplicative());
+            }
+            return left;
+        }
+
+        private Expression multiplicative() {
+            Expression left = unary();
+            while (peek("*") || peek("/") || peek("%")) {
+                left = binary(tokens.get(position++), left, unary());
+            }
+            return left;
+        }
+
+        private Expression binary(final String operator, final Expression a, final Expression b) {
+            return new Expression() {
+                public Object eval(Scope scope) {
+                    double x = arithmetic(a.eval(scope));
+                    double y = arithmetic(b.eval(scope));
+                    if ("+".equals(operator)) {
+                        return x + y;
+                    }
+                    if ("-".equals(operator)) {
+                        return x - y;
+                    }
+                    if ("*".equals(operator)) {
+                        return x * y;
+                    }
+                    if ("/".equals(operator)) {
+                        return x / y;
+                    }
+                    return x - Math.floor(x / y) * y;
+                }
+            };
+        }
+
+        private Expression unary() {
+            if (accept("not")) {
+                final Expression operand = unary();
+                return new Expression() {
+                    public Object eval(Scope scope) {
+                        return !truthy(operand.eval(scope));
+                    }
+                };
+            }
+            if (accept("#")) {
+                final Expression operand = unary();
+                return new Expression() {
+                    public Object eval(Scope scope) {
+                        Object value = operand.eval(scope);
+                        if (value instanceof String) {
+                            return (double) ((String) value).length();
+                        }
+                        if (value instanceof List) {
+                            return (double) ((List<?>) value).size();
+                        }
+                        throw new ScriptException("ERR attempt to get length of a " + typeName(value) + " value");
+                    }
+                };
+            }
+            if (accept("-")) {
+                final Expression operand = unary();
+                return new Expression() {
+                    public Object eval(Scope scope) {
+                        return -arithmetic(operand.eval(scope));
+                    }
+                };
+            }
+            return primary();
+        }
+
+        private Expression primary() {
+            Expression expression = atom();
+            while (true) {
+                if (accept("[")) {
+                    final Expression table = expression;
+                    final Expression key = expression();
+                    expect("]");
+                    expression = new Expression() {
+                        public Object eval(Scope scope) {
+                            return index(table.eval(scope), key.eval(scope));
+                        }
+                    };
+                } else if (accept(".")) {
+                    final Expression table = expression;
+                    final String key = name();
+                    expression = new Expression() {
+                        public Object eval(Scope scope) {
+                            return index(table.eval(scope), key);
+                        }
+                    };
+                } else if (accept("(")) {
+                    final Expression function = expression;
+                    final List<Expression> args = new ArrayList<Expression>();
+                    if (!accept(")")) {
+                        do {
+                            args.add(expression());
+                        } while (accept(","));
+                        expect(")");
+                    }
+                    expression = new Expression() {
+                        public Object eval(Scope scope) {
+                            Object target = function.eval(scope);
+                            if (!(target instanceof Function)) {
+                                throw new ScriptException("ERR attempt to call a " + typeName(target) + " value");
+                            }
+                            List<Object> values = new ArrayList<Object>(args.size());
+                            for (Expression arg : args) {
+                                values.add(arg.eval(scope));
+                            }
+                            return ((Function) target).call(values);
+                        }
+                    };
+                } else {
+                    return expression;
+                }
+            }
+        }
+
+        private Expression atom() {
+            if (position >= tokens.size()) {
+                throw error("unexpected <eof>");
+            }
+            final String token = tokens.get(position);
+            if (literals.get(position)) {
+                position++;
+                return constant(token);
+            }
+            if (accept("nil")) {
+                return constant(null);
+            }
+            if (accept("true")) {
+                return constant(Boolean.TRUE);
+            }
+            if (accept("false")) {
+                return constant(Boolean.FALSE);
+            }
+            if (accept("(")) {
+                Expression inner = expression();
+                expect(")");
+                return inner;
+            }
+            if (accept("{")) {
+                final List<Expression> items = new ArrayList<Expression>();
+                while (!accept("}")) {
+                    items.add(expression());
+                    if (!accept(",") && !accept(";")) {
+                        expect("}");
+                        break;
+                    }
+                }
+                return new Expression() {
+                    public Object eval(Scope scope) {
+                        List<Object> table = new ArrayList<Object>(items.size());
+                        for (Expression item : items) {
+                            table.add(item.eval(scope));
+                        }
+                        return table;
+                    }
+                };
+            }
+            if (Character.isDigit(token.charAt(0))) {
+                position++;
+                try {
+                    return constant(Double.valueOf(token));
+                } catch (NumberFormatException nfe) {
+                    throw error("malformed number near '" + token + "'");
+                }
+            }
+            final String name = name();
+            return new Expression() {
+                public Object eval(Scope scope) {
+                    return scope.get(name);
+                }
+            };
+        }
+
+        private Expression constant(final Object value) {
+            return new Expression() {
+                public Object eval(Scope scope) {
+                    return value;
+                }
+            };
+        }
+
+        private static final String KEYWORDS =
+                " and do else elseif end false for function if in local nil not or repeat return then true until while ";
+
+        private boolean isName() {
+            if (position >= tokens.size() || literals.get(position)) {
+                return false;
+            }
+            String token = tokens.get(position);
+            return (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_') && !KEYWORDS.contains(" " + token + " ");
+        }
+
+        private String name() {
+            if (!isName()) {
+                throw error("<name> expected near '" + (position < tokens.size() ? tokens.get(position) : "<eof>") + "'");
+            }
+            return tokens.get(position++);
+        }
+
+        private String lookAhead(int offset) {
+            int i = position + offset;
+            return i < tokens.size() && !literals.get(i) ? tokens.get(i) : null;
+        }
+
+        private boolean peek(String token) {
+            return position < tokens.size() && !literals.get(position) && token.equals(tokens.get(position));
+        }
+
+        private boolean accept(String token) {
+            if (peek(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("'" + token + "' expected near '" + (position < tokens.size() ? tokens.get(position) : "<eof>") + "'");
+            }
+        }
+
+        private ScriptException error(String message) {
+            return new ScriptException("ERR Error compiling script: " + message);
+        }
+
+        private void tokenize(String source) {
+            int i = 0;
+            int length = source.length();
+            while (i < length) {
+                char c = source.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (source.startsWith("--", i)) {
+                    while (i < length && source.charAt(i) != '\n') {
+                        i++;
+                    }
+                } else if (c == '\'' || c == '"') {
+                    StringBuilder literal = new StringBuilder();
+                    i++;
+                    while (i < length && source.charAt(i) != c) {
+                        char ch = source.charAt(i++);
+                        if (ch == '\\' && i < length) {
+                            char escaped = source.charAt(i++);
+                            ch = escaped == 'n' ? '\n' : escaped == 't' ? '\t' : escaped == 'r' ? '\r' : escaped;
+                        }
+                        literal.append(ch);
+                    }
+                    if (i >= length) {
+                        throw error("unfinished string");
+                    }
+                    i++;
+                    add(literal.toString(), true);
+                } else if (Character.isLetter(c) || c == '_') {
+                    int start = i;
+                    while (i < length && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '_')) {
+                        i++;
+                    }
+                    add(source.substring(start, i), false);
+                } else if (Character.isDigit(c)) {
+                    int start = i;
+                    while (i < length && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '.')) {
+                        i++;
+                    }
+                    add(source.substring(start, i), false);
+                } else {
+                    String two = i + 1 < length ? source.substring(i, i + 2) : "";
+                    if ("==".equals(two) || "~=".equals(two) || "<=".equals(two) || ">=".equals(two) || "..".equals(two)) {
+                        add(two, false);
+                        i += 2;
+                    } else if ("=<>()[]{},;.#+-*/%".indexOf(c) >= 0) {
+                        add(String.valueOf(c), false);
+                        i++;
+                    } else {
+                        throw error("unexpected symbol near '" + c + "'");
+                    }
+                }
+            }
+        }
+
+        private void add(String token, boolean literal) {
+            tokens.add(token);
+            literals.add(literal);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.commands.ProtocolCommand;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.List;
+
+/**
+ * 记录每个命令与回复的Jedis，指标累加到RedisMetrics的当前操作
+ * Jedis的所有命令(包括流水线与事务)最终都经过Connection.sendCommand与readProtocolWithCheckingBroken，
+ * 替换内部的Client即可覆盖全部调用。字节数按RESP编码计算，不读取套接字，不复制数据。
+ */
+public class InstrumentedJedis extends Jedis {
+
+    public InstrumentedJedis(String host, int port, int timeout) {
+        super(host, port, timeout);
+        //父类构造函数只创建了未连接的Client，直接替换
+        client = new InstrumentedClient(host, port);
+        client.setConnectionTimeout(timeout);
+        client.setSoTimeout(timeout);
+    }
+
+    //RESP中一个长度前缀与其后CRLF的字节数，如"$5\r\n"
+    private static long header(long length) {
+        return 1 + digits(length) + 2;
+    }
+
+    private static int digits(long value) {
+        if (value < 0) {
+            return 1 + digits(-value);
+        }
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    static long commandSize(ProtocolCommand command, byte[]... args) {
+        byte[] name = command.getRaw();
+        long size = header(args.length + 1) + header(name.length) + name.length + 2;
+        for (byte[] arg : args) {
+            size += header(arg.length) + arg.length + 2;
+        }
+        return size;
+    }
+
+    static long replySize(Object reply) {
+        if (reply == null) {
+            //"$-1\r\n"
+            return 5;
+        }
+        if (reply instanceof byte[]) {
+            int length = ((byte[]) reply).length;
+            return header(length) + length + 2;
+        }
+        if (reply instanceof Long) {
+            return header((Long) reply);
+        }
+        if (reply instanceof List) {
+            List<?> items = (List<?>) reply;
+            long size = header(items.size());
+            //Jedis的多条回复是ArrayList，按下标遍历不创建迭代器
+            for (int i = 0; i < items.size(); i++) {
+                size += replySize(items.get(i));
+            }
+            return size;
+        }
+        return 0;
+    }
+
+    /**
+     * 记录命令与回复的Client
+     */
+    static class InstrumentedClient extends Client {
+
+        InstrumentedClient(String host, int port) {
+            super(host, port);
+        }
+
+        @Override
+        public void sendCommand(ProtocolCommand cmd, byte[]... args) {
+            super.sendCommand(cmd, args);
+            RedisMetrics.onCommand(commandSize(cmd, args));
+        }
+
+        @Override
+        protected Object readProtocolWithCheckingBroken() {
+            Object reply;
+            try {
+                reply = super.readProtocolWithCheckingBroken();
+            } catch (JedisDataException jde) {
+                //错误回复："-message\r\n"
+                String message = jde.getMessage();
+                RedisMetrics.onReply(message == null ? 3 : message.length() + 3);
+                throw jde;
+            }
+            RedisMetrics.onReply(replySize(reply));
+            return reply;
+        }
+    }
+}
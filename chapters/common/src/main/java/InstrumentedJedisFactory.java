@@ -0,0 +1,61 @@
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import redis.clients.jedis.Jedis;
+
+/**
+ * 创建InstrumentedJedis的连接池工厂，行为与Jedis内部的JedisFactory相同(SELECT数据库、PING校验、QUIT关闭)
+ * 由PooledConnectionProvider在redis.metrics=true时通过JedisPool.initPool安装。
+ */
+public class InstrumentedJedisFactory implements PooledObjectFactory<Jedis> {
+    private final RedisConfig config;
+
+    public InstrumentedJedisFactory(RedisConfig config) {
+        this.config = config;
+        RedisMetrics.enable();
+    }
+
+    public PooledObject<Jedis> makeObject() {
+        Jedis jedis = new InstrumentedJedis(config.getHost(), config.getPort(), config.getTimeout());
+        try {
+            jedis.connect();
+            if (config.getDatabase() != 0) {
+                jedis.select(config.getDatabase());
+            }
+        } catch (RuntimeException re) {
+            jedis.close();
+            throw re;
+        }
+        return new DefaultPooledObject<Jedis>(jedis);
+    }
+
+    public void destroyObject(PooledObject<Jedis> pooled) {
+        Jedis jedis = pooled.getObject();
+        if (jedis.isConnected()) {
+            try {
+                jedis.quit();
+            } catch (RuntimeException re) {
+                //连接可能已断开，忽略
+            }
+            jedis.disconnect();
+        }
+    }
+
+    public boolean validateObject(PooledObject<Jedis> pooled) {
+        try {
+            return pooled.getObject().isConnected() && "PONG".equals(pooled.getObject().ping());
+        } catch (RuntimeException re) {
+            return false;
+        }
+    }
+
+    public void activateObject(PooledObject<Jedis> pooled) {
+        Jedis jedis = pooled.getObject();
+        if (jedis.getDB() != config.getDatabase()) {
+            jedis.select(config.getDatabase());
+        }
+    }
+
+    public void passivateObject(PooledObject<Jedis> pooled) {
+    }
+}
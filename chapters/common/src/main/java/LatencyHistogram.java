@@ -0,0 +1,93 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的对数分桶延迟直方图(纳秒)，与HdrHistogram的思路相同
+ * 每个2的幂区间再均分为8个桶，记录的相对误差不超过12.5%；记录只做一次数组元素自增与几次CAS，不分配对象。
+ */
+public class LatencyHistogram {
+    //每个2的幂区间的子桶数为2^SUB_BITS
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            //其他线程更新了最大值，重新比较
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * 百分位数，返回所在桶的上界，不超过记录的最大值
+     * @param percentile 0到100
+     * @return 纳秒
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    //小于SUB_BUCKETS的值各占一个桶，其余按最高位与其后SUB_BITS位分桶
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
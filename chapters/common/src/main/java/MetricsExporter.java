@@ -0,0 +1,7 @@
+/**
+ * 指标导出接口，由RedisMetrics.startExporter定期调用，可以实现为写日志、推送到监控系统等
+ * 每次调用拿到的是累计值，需要区间值的实现自行保存上一次的结果。
+ */
+public interface MetricsExporter {
+    void export(RedisMetrics metrics);
+}
@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个逻辑操作的累计指标，由RedisMetrics.end()在操作结束时一次性合并，线程安全且无锁
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+    private final String operation;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong maxPipelineDepth = new AtomicLong();
+
+    OperationMetrics(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * 合并一次调用的结果
+     * @param nanos 调用耗时，小于0表示不计调用次数与延迟(未标记操作的命令)
+     */
+    void record(long nanos, long commands, long roundTrips, long bytesSent, long bytesReceived,
+                long pipelineDepth)
+    {
+        if (nanos >= 0) {
+            calls.incrementAndGet();
+            latency.record(nanos);
+        }
+        if (commands > 0) {
+            this.commands.addAndGet(commands);
+            this.bytesSent.addAndGet(bytesSent);
+        }
+        if (roundTrips > 0) {
+            this.roundTrips.addAndGet(roundTrips);
+        }
+        if (bytesReceived > 0) {
+            this.bytesReceived.addAndGet(bytesReceived);
+        }
+        long current;
+        while (pipelineDepth > (current = maxPipelineDepth.get())
+                && !maxPipelineDepth.compareAndSet(current, pipelineDepth)) {
+            //其他线程更新了最大值，重新比较
+        }
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    //发送的命令数
+    public long getCommands() {
+        return commands.get();
+    }
+
+    //网络往返次数，一次流水线或事务只算一次
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    //按RESP编码计算的发送字节数
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    //按RESP编码估算的接收字节数
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    //一次往返中未读取回复的最大命令数
+    public long getMaxPipelineDepth() {
+        return maxPipelineDepth.get();
+    }
+
+    public double getCommandsPerCall() {
+        long n = calls.get();
+        return n == 0 ? 0 : (double) commands.get() / n;
+    }
+
+    public double getRoundTripsPerCall() {
+        long n = calls.get();
+        return n == 0 ? 0 : (double) roundTrips.get() / n;
+    }
+
+    public long getMeanMicros() {
+        return latency.getMeanNanos() / 1000;
+    }
+
+    public long getP50Micros() {
+        return latency.getPercentileNanos(50) / 1000;
+    }
+
+    public long getP99Micros() {
+        return latency.getPercentileNanos(99) / 1000;
+    }
+
+    public long getP999Micros() {
+        return latency.getPercentileNanos(99.9) / 1000;
+    }
+
+    public long getMaxMicros() {
+        return latency.getMaxNanos() / 1000;
+    }
+
+    public void reset() {
+        latency.reset();
+        calls.set(0);
+        commands.set(0);
+        roundTrips.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        maxPipelineDepth.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: calls=%d, commands/call=%.1f, roundTrips/call=%.1f, maxDepth=%d, "
+                        + "sent=%dB, received=%dB, mean=%dus, p50=%dus, p99=%dus, p99.9=%dus, max=%dus",
+                operation, getCalls(), getCommandsPerCall(), getRoundTripsPerCall(), getMaxPipelineDepth(),
+                getBytesSent(), getBytesReceived(), getMeanMicros(), getP50Micros(), getP99Micros(),
+                getP999Micros(), getMaxMicros());
+    }
+}
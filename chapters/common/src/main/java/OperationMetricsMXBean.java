@@ -0,0 +1,35 @@
+/**
+ * 一个逻辑操作(postArticle、updateToken等)的Redis调用指标，由RedisMetrics注册到JMX：
+ * home.learn:type=RedisMetrics,operation=操作名
+ */
+public interface OperationMetricsMXBean {
+    String getOperation();
+
+    long getCalls();
+
+    long getCommands();
+
+    long getRoundTrips();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getMaxPipelineDepth();
+
+    double getCommandsPerCall();
+
+    double getRoundTripsPerCall();
+
+    long getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+
+    void reset();
+}
@@ -0,0 +1,272 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多路复用的流水线调度器：大量并发调用方共享少量连接
+ * 调用方提交PipelinedOperation后立即拿到CompletableFuture，不占用线程等待回复；
+ * 每个连接一个调度线程，取出队列中所有等待的操作(最多maxBatch个)，把它们本轮的命令放进同一个流水线，
+ * 一次往返后逐个读取结果，需要下一轮的操作直接进入下一批。并发调用越多，每次往返分摊的操作越多。
+ * future在调度线程中完成，后续的thenApply等也在调度线程中执行，可能阻塞的处理应使用thenApplyAsync等。
+ * 连接断开或借不到连接时本批的操作以异常完成，调度线程等待一段时间(连续失败时加倍)后借用新连接继续。
+ */
+public class PipelineDispatcher {
+    private static final long POLL_MILLIS = 100;
+    //失败后重新借用连接前的等待时间(毫秒)，连续失败时加倍
+    private static final long MIN_RETRY_MILLIS = 10;
+    private static final long MAX_RETRY_MILLIS = 1000;
+
+    private final RedisConnectionProvider provider;
+    private final int maxBatch;
+    private final BlockingQueue<PipelinedOperation<?>> queue = new LinkedBlockingQueue<PipelinedOperation<?>>();
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private volatile boolean closed;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    //最近一次借用连接或执行一批操作失败的原因
+    private volatile String lastFailure;
+
+    public PipelineDispatcher(RedisConnectionProvider provider) {
+        this(provider, 2, 1000);
+    }
+
+    /**
+     * @param provider 每个调度线程从中借用一个连接，一直占用到close()
+     * @param connections 连接(调度线程)数
+     * @param maxBatch 一次往返中最多包含的操作数
+     */
+    public PipelineDispatcher(RedisConnectionProvider provider, int connections, int maxBatch) {
+        this.provider = provider;
+        this.maxBatch = maxBatch;
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker(i);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 提交操作，dispatcher关闭后提交的操作立即以IllegalStateException完成
+     * @param operation
+     * @return 操作的结果
+     */
+    public <T> CompletableFuture<T> submit(PipelinedOperation<T> operation) {
+        if (closed) {
+            operation.fail(new IllegalStateException("Dispatcher is closed"));
+            return operation.getFuture();
+        }
+        submitted.incrementAndGet();
+        queue.add(operation);
+        //与close()并发时，close()清空队列后才加入的操作没有线程执行，自己取回并结束；
+        //取回失败说明已被调度线程或close()取走，由它们结束
+        if (closed && queue.remove(operation)) {
+            operation.fail(new IllegalStateException("Dispatcher is closed"));
+        }
+        return operation.getFuture();
+    }
+
+    /**
+     * 停止调度线程并归还连接，未执行的操作以IllegalStateException完成
+     */
+    public void close() {
+        closed = true;
+        for (Worker worker : workers) {
+            worker.quit();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        PipelinedOperation<?> operation;
+        while ((operation = queue.poll()) != null) {
+            operation.fail(new IllegalStateException("Dispatcher is closed"));
+        }
+    }
+
+    //等待调度的操作数
+    public int getPending() {
+        return queue.size();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    //往返次数
+    public long getBatches() {
+        return batches.get();
+    }
+
+    //各操作执行的轮数之和
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    //以异常完成的操作数
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //最近一次借用连接或执行一批操作失败的原因
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    //平均每次往返包含的操作轮数
+    public double getMeanBatchSize() {
+        long n = batches.get();
+        return n == 0 ? 0 : (double) rounds.get() / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("submitted=%d, batches=%d, rounds/batch=%.1f, failures=%d, pending=%d",
+                submitted.get(), batches.get(), getMeanBatchSize(), failures.get(), queue.size());
+    }
+
+    private class Worker
+            extends Thread
+    {
+        private final List<PipelinedOperation<?>> batch = new ArrayList<PipelinedOperation<?>>();
+        //需要继续下一轮的操作，优先进入下一批
+        private final List<PipelinedOperation<?>> continuing = new ArrayList<PipelinedOperation<?>>();
+        private volatile boolean quit;
+
+        Worker(int index) {
+            setName("pipeline-dispatcher-" + index);
+            setDaemon(true);
+        }
+
+        void quit() {
+            quit = true;
+        }
+
+        public void run() {
+            Jedis conn = null;
+            long retryMillis = MIN_RETRY_MILLIS;
+            try {
+                while (!quit || !continuing.isEmpty()) {
+                    if (!fill()) {
+                        continue;
+                    }
+                    try {
+                        if (conn == null) {
+                            conn = provider.getConnection();
+                        }
+                        if (dispatch(conn)) {
+                            retryMillis = MIN_RETRY_MILLIS;
+                            continue;
+                        }
+                    } catch (RuntimeException re) {
+                        //借不到连接或执行失败，本批以异常完成，线程不退出
+                        lastFailure = getName() + ": " + re;
+                        fail(re);
+                    }
+                    if (conn != null) {
+                        //连接可能已断开，归还连接池时会被销毁
+                        conn.close();
+                        conn = null;
+                    }
+                    Thread.sleep(retryMillis);
+                    retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                fail(new IllegalStateException("Dispatcher is closed"));
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+
+        //取出下一批操作，没有操作时返回false
+        private boolean fill() throws InterruptedException {
+            batch.addAll(continuing);
+            continuing.clear();
+            if (batch.isEmpty()) {
+                PipelinedOperation<?> first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    return false;
+                }
+                batch.add(first);
+            }
+            if (batch.size() < maxBatch) {
+                queue.drainTo(batch, maxBatch - batch.size());
+            }
+            return true;
+        }
+
+        //执行一批操作的一轮，连接断开时返回false
+        private boolean dispatch(Jedis conn) {
+            RedisMetrics.begin("pipelineDispatch");
+            try {
+                Pipeline pipeline = conn.pipelined();
+                for (PipelinedOperation<?> operation : batch) {
+                    try {
+                        operation.send(pipeline);
+                    } catch (RuntimeException re) {
+                        failures.incrementAndGet();
+                        operation.fail(re);
+                    }
+                }
+                try {
+                    pipeline.sync();
+                } catch (JedisConnectionException jce) {
+                    lastFailure = getName() + ": " + jce;
+                    fail(jce);
+                    return false;
+                }
+                batches.incrementAndGet();
+                rounds.addAndGet(batch.size());
+                for (PipelinedOperation<?> operation : batch) {
+                    if (operation.isDone()) {
+                        continue;
+                    }
+                    try {
+                        if (!operation.receive()) {
+                            continuing.add(operation);
+                        }
+                    } catch (RuntimeException re) {
+                        failures.incrementAndGet();
+                        operation.fail(re);
+                    }
+                }
+                batch.clear();
+                return true;
+            } finally {
+                RedisMetrics.end();
+            }
+        }
+
+        private void fail(Throwable cause) {
+            fail(batch, cause);
+            fail(continuing, cause);
+        }
+
+        private void fail(List<PipelinedOperation<?>> operations, Throwable cause) {
+            for (PipelinedOperation<?> operation : operations) {
+                if (!operation.isDone()) {
+                    failures.incrementAndGet();
+                    operation.fail(cause);
+                }
+            }
+            operations.clear();
+        }
+    }
+}
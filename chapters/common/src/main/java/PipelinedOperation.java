@@ -0,0 +1,42 @@
+import redis.clients.jedis.Pipeline;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 由PipelineDispatcher执行的异步操作，可以分多轮完成
+ * 每一轮dispatcher调用send把本轮命令加入与其他调用方共享的流水线，sync后调用receive读取结果；
+ * receive返回false时操作在下一批中继续下一轮，返回true前应调用complete设置结果。
+ * send与receive在dispatcher线程中执行，不能阻塞，也不能使用其他连接。
+ * @param <T> 结果类型
+ */
+public abstract class PipelinedOperation<T> {
+    private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+    /**
+     * 把本轮的命令加入流水线
+     * @param pipeline
+     */
+    protected abstract void send(Pipeline pipeline);
+
+    /**
+     * 读取本轮命令的结果
+     * @return 操作是否已完成
+     */
+    protected abstract boolean receive();
+
+    protected void complete(T value) {
+        future.complete(value);
+    }
+
+    void fail(Throwable cause) {
+        future.completeExceptionally(cause);
+    }
+
+    boolean isDone() {
+        return future.isDone();
+    }
+
+    public CompletableFuture<T> getFuture() {
+        return future;
+    }
+}
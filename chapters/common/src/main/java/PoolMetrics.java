@@ -0,0 +1,63 @@
+/**
+ * 连接池指标快照
+ */
+public class PoolMetrics {
+    private final int active;
+    private final int idle;
+    private final int waiters;
+    private final long meanBorrowWaitMillis;
+    private final long maxBorrowWaitMillis;
+    private final long borrowCount;
+    private final long exhaustedCount;
+
+    public PoolMetrics(int active, int idle, int waiters, long meanBorrowWaitMillis,
+                       long maxBorrowWaitMillis, long borrowCount, long exhaustedCount)
+    {
+        this.active = active;
+        this.idle = idle;
+        this.waiters = waiters;
+        this.meanBorrowWaitMillis = meanBorrowWaitMillis;
+        this.maxBorrowWaitMillis = maxBorrowWaitMillis;
+        this.borrowCount = borrowCount;
+        this.exhaustedCount = exhaustedCount;
+    }
+
+    //已借出的连接数
+    public int getActive() {
+        return active;
+    }
+
+    //池中空闲的连接数
+    public int getIdle() {
+        return idle;
+    }
+
+    //正在等待借用连接的线程数
+    public int getWaiters() {
+        return waiters;
+    }
+
+    public long getMeanBorrowWaitMillis() {
+        return meanBorrowWaitMillis;
+    }
+
+    public long getMaxBorrowWaitMillis() {
+        return maxBorrowWaitMillis;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    //等待超时仍未借到连接的次数
+    public long getExhaustedCount() {
+        return exhaustedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + active + ", idle=" + idle + ", waiters=" + waiters
+                + ", borrowWait(mean/max)=" + meanBorrowWaitMillis + "/" + maxBorrowWaitMillis + "ms"
+                + ", borrows=" + borrowCount + ", exhausted=" + exhaustedCount;
+    }
+}
@@ -0,0 +1,73 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisExhaustedPoolException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于JedisPool(commons-pool2)的连接提供者，线程安全，可被多个请求线程共享
+ */
+public class PooledConnectionProvider implements RedisConnectionProvider {
+    private final RedisConfig config;
+    private final JedisPool pool;
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    public PooledConnectionProvider() {
+        this(RedisConfig.fromSystemProperties());
+    }
+
+    public PooledConnectionProvider(RedisConfig config) {
+        this.config = config;
+
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(config.getPoolSize());
+        poolConfig.setMaxIdle(config.getPoolSize());
+        poolConfig.setMaxWaitMillis(config.getMaxWaitMillis());
+        //开启JMX后commons-pool2会统计借用等待时间
+        poolConfig.setJmxEnabled(true);
+        this.pool = new JedisPool(poolConfig, config.getHost(), config.getPort(),
+                config.getTimeout(), null, config.getDatabase());
+        if (config.isMetrics()) {
+            //替换JedisPool内部的工厂，借出的连接为InstrumentedJedis
+            pool.initPool(poolConfig, new InstrumentedJedisFactory(config));
+        }
+    }
+
+    public Jedis getConnection() {
+        try {
+            Jedis conn = pool.getResource();
+            borrowCount.incrementAndGet();
+            return conn;
+        } catch (JedisExhaustedPoolException jepe) {
+            //连接池耗尽，等待maxWaitMillis后仍未借到连接
+            exhaustedCount.incrementAndGet();
+            throw jepe;
+        }
+    }
+
+    public <T> T execute(RedisCallback<T> callback) {
+        Jedis conn = getConnection();
+        try {
+            return callback.doInRedis(conn);
+        } finally {
+            //池中借出的连接调用close()即归还连接池
+            conn.close();
+        }
+    }
+
+    public PoolMetrics getMetrics() {
+        return new PoolMetrics(pool.getNumActive(), pool.getNumIdle(), pool.getNumWaiters(),
+                pool.getMeanBorrowWaitTimeMillis(), pool.getMaxBorrowWaitTimeMillis(),
+                borrowCount.get(), exhaustedCount.get());
+    }
+
+    public RedisConfig getConfig() {
+        return config;
+    }
+
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,9 @@
+import redis.clients.jedis.Jedis;
+
+/**
+ * 在借出的连接上执行的操作，执行结束后连接自动归还
+ * @param <T> 返回值类型
+ */
+public interface RedisCallback<T> {
+    T doInRedis(Jedis conn);
+}
@@ -0,0 +1,139 @@
+/**
+ * Redis连接配置：主机、端口、数据库与连接池大小
+ * 默认值与各章节示例一致(localhost:6379, 15号数据库)，可通过系统属性覆盖：
+ * redis.host, redis.port, redis.db, redis.pool.size, redis.timeout, redis.pool.maxWait
+ * redis.embedded=true时不连接外部Redis，由ConnectionProviders启动进程内的EmbeddedRedisServer
+ * redis.metrics=true时连接池使用InstrumentedJedis，按操作记录调用指标(见RedisMetrics)
+ * redis.shards与redis.partitions是ShardedRedis的节点列表与逻辑分区数
+ */
+public class RedisConfig {
+    private String host = "localhost";
+    private int port = 6379;
+    private int database = 15;
+    private int poolSize = 8;
+    //连接与读写超时(毫秒)
+    private int timeout = 2000;
+    //连接池耗尽时借用连接的最长等待时间(毫秒)，-1表示一直等待
+    private long maxWaitMillis = 1000;
+    //使用进程内的EmbeddedRedisServer
+    private boolean embedded;
+    //记录每个Redis调用的指标
+    private boolean metrics;
+    //分片节点：host:port列表，embedded时为进程内服务的数量；为null时只有一个节点
+    private String shards;
+    //分片模式的逻辑分区数
+    private int partitions = 16;
+
+    public static RedisConfig fromSystemProperties() {
+        RedisConfig config = new RedisConfig();
+        config.host = System.getProperty("redis.host", config.host);
+        config.port = Integer.getInteger("redis.port", config.port);
+        config.database = Integer.getInteger("redis.db", config.database);
+        config.poolSize = Integer.getInteger("redis.pool.size", config.poolSize);
+        config.timeout = Integer.getInteger("redis.timeout", config.timeout);
+        config.maxWaitMillis = Long.getLong("redis.pool.maxWait", config.maxWaitMillis);
+        config.embedded = Boolean.getBoolean("redis.embedded");
+        config.metrics = Boolean.getBoolean("redis.metrics");
+        config.shards = System.getProperty("redis.shards");
+        config.partitions = Integer.getInteger("redis.partitions", config.partitions);
+        return config;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public RedisConfig setHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public RedisConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getDatabase() {
+        return database;
+    }
+
+    public RedisConfig setDatabase(int database) {
+        this.database = database;
+        return this;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public RedisConfig setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public RedisConfig setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public RedisConfig setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    public boolean isEmbedded() {
+        return embedded;
+    }
+
+    public RedisConfig setEmbedded(boolean embedded) {
+        this.embedded = embedded;
+        return this;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    public RedisConfig setMetrics(boolean metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public String getShards() {
+        return shards;
+    }
+
+    public RedisConfig setShards(String shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public RedisConfig setPartitions(int partitions) {
+        this.partitions = partitions;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        if (embedded) {
+            return "embedded/" + database + " (pool " + poolSize + ")";
+        }
+        return host + ":" + port + "/" + database + " (pool " + poolSize + ")";
+    }
+}
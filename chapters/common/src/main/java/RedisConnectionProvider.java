@@ -0,0 +1,31 @@
+import redis.clients.jedis.Jedis;
+
+import java.io.Closeable;
+
+/**
+ * Redis连接提供者
+ * Jedis对象线程不安全，各线程通过提供者借用连接，用完后调用Jedis.close()归还，而不是各自new Jedis
+ */
+public interface RedisConnectionProvider extends Closeable {
+    /**
+     * 借用一个已选择好数据库的连接，使用完毕必须调用close()归还
+     * @return
+     */
+    Jedis getConnection();
+
+    /**
+     * 借用连接执行操作并归还
+     * @param callback
+     * @param <T>
+     * @return 操作的返回值
+     */
+    <T> T execute(RedisCallback<T> callback);
+
+    /**
+     * 连接池指标
+     * @return
+     */
+    PoolMetrics getMetrics();
+
+    void close();
+}
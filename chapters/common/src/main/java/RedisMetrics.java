@@ -0,0 +1,335 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的Redis调用指标：按逻辑操作统计延迟直方图、命令数、往返次数、收发字节数与流水线深度
+ * 业务方法用begin/end标记逻辑操作，InstrumentedJedis在发送命令与读取回复时累加到当前线程的上下文，
+ * 操作结束时一次性合并到该操作的OperationMetrics。热路径上只有ThreadLocal查找与原子自增，不分配对象；
+ * 未调用enable()时begin/end直接返回。嵌套的begin/end计入最外层操作，不在任何操作内的命令计入untagged。
+ * 指标通过JMX(home.learn:type=RedisMetrics)查看，或用startExporter定期交给MetricsExporter导出。
+ */
+public class RedisMetrics implements RedisMetricsMXBean {
+    public static final String UNTAGGED = "untagged";
+    private static final String DOMAIN = "home.learn";
+
+    private static final RedisMetrics INSTANCE = new RedisMetrics();
+    private static volatile boolean enabled;
+
+    private static final ThreadLocal<Context> CONTEXT = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private volatile boolean registered;
+
+    private RedisMetrics() {
+    }
+
+    public static RedisMetrics get() {
+        return INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 开始记录，并把指标注册到平台MBeanServer；InstrumentedJedisFactory创建时自动调用
+     */
+    public static void enable() {
+        enabled = true;
+        INSTANCE.registerMBeans();
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    /**
+     * 标记当前线程进入一个逻辑操作，必须在finally中调用end()
+     * @param operation 操作名，应为常量，不要拼接参数
+     */
+    public static void begin(String operation) {
+        if (!enabled) {
+            return;
+        }
+        Context context = CONTEXT.get();
+        if (context.depth++ > 0) {
+            return;
+        }
+        //之前未标记的命令先计入untagged
+        if (context.commands > 0 || context.bytesReceived > 0) {
+            context.flush(INSTANCE.operation(UNTAGGED), -1);
+        }
+        context.operation = operation;
+        context.startNanos = System.nanoTime();
+    }
+
+    public static void end() {
+        if (!enabled) {
+            return;
+        }
+        Context context = CONTEXT.get();
+        if (context.depth == 0 || --context.depth > 0) {
+            return;
+        }
+        context.flush(INSTANCE.operation(context.operation), System.nanoTime() - context.startNanos);
+        context.operation = null;
+    }
+
+    //InstrumentedJedis发送一条命令
+    static void onCommand(long bytes) {
+        Context context = CONTEXT.get();
+        context.commands++;
+        context.bytesSent += bytes;
+        context.inFlight++;
+    }
+
+    //InstrumentedJedis读取一个回复
+    static void onReply(long bytes) {
+        Context context = CONTEXT.get();
+        context.bytesReceived += bytes;
+        //没有等待回复的命令时是订阅消息，不算往返
+        if (context.inFlight == 0) {
+            return;
+        }
+        if (!context.reading) {
+            //一批命令的第一个回复：一次往返，此时未读取的命令数即流水线深度
+            context.reading = true;
+            context.roundTrips++;
+            context.pipelineDepth = Math.max(context.pipelineDepth, context.inFlight);
+        }
+        if (--context.inFlight == 0) {
+            context.reading = false;
+            if (context.depth == 0) {
+                context.flush(INSTANCE.operation(UNTAGGED), -1);
+            }
+        }
+    }
+
+    /**
+     * 取得或创建操作的指标，新操作在已注册JMX时同时注册其MBean
+     * @param operation
+     * @return
+     */
+    public OperationMetrics operation(String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics(operation);
+            metrics = operations.putIfAbsent(operation, created);
+            if (metrics == null) {
+                metrics = created;
+                if (registered) {
+                    register(created);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    public Collection<OperationMetrics> getOperationMetrics() {
+        return new ArrayList<OperationMetrics>(operations.values());
+    }
+
+    public String[] getOperationNames() {
+        return operations.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * 注册一个按需读取的数值指标，如清理线程的积压量；同名的指标会被替换
+     * @param name
+     * @param gauge
+     */
+    public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value());
+        }
+        return values;
+    }
+
+    public long getCommands() {
+        long commands = 0;
+        for (OperationMetrics metrics : operations.values()) {
+            commands += metrics.getCommands();
+        }
+        return commands;
+    }
+
+    public long getBytesSent() {
+        long bytes = 0;
+        for (OperationMetrics metrics : operations.values()) {
+            bytes += metrics.getBytesSent();
+        }
+        return bytes;
+    }
+
+    public long getBytesReceived() {
+        long bytes = 0;
+        for (OperationMetrics metrics : operations.values()) {
+            bytes += metrics.getBytesReceived();
+        }
+        return bytes;
+    }
+
+    public void reset() {
+        for (OperationMetrics metrics : operations.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * 启动定期导出线程，返回的线程调用quit()停止
+     * @param exporter
+     * @param periodMillis
+     * @return
+     */
+    public ExportThread startExporter(MetricsExporter exporter, long periodMillis) {
+        ExportThread thread = new ExportThread(exporter, periodMillis);
+        thread.start();
+        return thread;
+    }
+
+    private synchronized void registerMBeans() {
+        if (registered) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=RedisMetrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException jme) {
+            System.err.println("Cannot register RedisMetrics MBean: " + jme);
+            return;
+        }
+        registered = true;
+        for (OperationMetrics metrics : operations.values()) {
+            register(metrics);
+        }
+    }
+
+    private void register(OperationMetrics metrics) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=RedisMetrics,operation="
+                    + ObjectName.quote(metrics.getOperation()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException jme) {
+            System.err.println("Cannot register MBean for " + metrics.getOperation() + ": " + jme);
+        }
+    }
+
+    /**
+     * 按需读取的数值指标
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    /**
+     * 线程内的累加状态，只由所属线程读写，不需要同步
+     */
+    private static class Context {
+        private String operation;
+        private int depth;
+        private long startNanos;
+        private long commands;
+        private long roundTrips;
+        private long bytesSent;
+        private long bytesReceived;
+        private long pipelineDepth;
+        //已发送未读取回复的命令数，跨操作保留
+        private long inFlight;
+        private boolean reading;
+
+        void flush(OperationMetrics metrics, long nanos) {
+            metrics.record(nanos, commands, roundTrips, bytesSent, bytesReceived, pipelineDepth);
+            commands = 0;
+            roundTrips = 0;
+            bytesSent = 0;
+            bytesReceived = 0;
+            pipelineDepth = 0;
+        }
+    }
+
+    /**
+     * 定期导出指标的守护线程
+     */
+    public class ExportThread
+            extends Thread
+    {
+        private final MetricsExporter exporter;
+        private final long periodMillis;
+        private volatile boolean quit;
+        private final AtomicLong failures = new AtomicLong();
+        private volatile String lastFailure;
+
+        ExportThread(MetricsExporter exporter, long periodMillis) {
+            this.exporter = exporter;
+            this.periodMillis = periodMillis;
+            setName("redis-metrics-exporter");
+            setDaemon(true);
+        }
+
+        public void quit() {
+            quit = true;
+            interrupt();
+        }
+
+        public void run() {
+            while (!quit) {
+                try {
+                    sleep(periodMillis);
+                } catch (InterruptedException ie) {
+                    if (quit) {
+                        break;
+                    }
+                }
+                try {
+                    exporter.export(RedisMetrics.this);
+                } catch (RuntimeException re) {
+                    //导出目标暂时不可用，下一周期重试
+                    failures.incrementAndGet();
+                    lastFailure = re.toString();
+                }
+            }
+            //停止时再导出一次，不丢失最后一个周期
+            exporter.export(RedisMetrics.this);
+        }
+
+        //导出失败的次数
+        public long getFailures() {
+            return failures.get();
+        }
+
+        //最近一次导出失败的异常
+        public String getLastFailure() {
+            return lastFailure;
+        }
+    }
+}
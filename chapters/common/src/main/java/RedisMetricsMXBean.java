@@ -0,0 +1,19 @@
+import java.util.Map;
+
+/**
+ * RedisMetrics的JMX视图：home.learn:type=RedisMetrics
+ */
+public interface RedisMetricsMXBean {
+    //已记录的逻辑操作名
+    String[] getOperationNames();
+
+    Map<String, Long> getGauges();
+
+    long getCommands();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    void reset();
+}
@@ -0,0 +1,219 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.Hashing;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 客户端分片：把数据分成固定数量的逻辑分区，分区通过一致性哈希环分布到多个Redis节点
+ * 分区p的所有键都以hash tag {pN} 开头，如{p3}score:，同一分区的键总在同一个节点(或Redis Cluster的同一个槽)上，
+ * 分区内可以使用流水线、事务与ZINTERSTORE等多键命令。分区数应远大于节点数，增加节点时整区迁移。
+ * 跨分区的读取用scatter在各节点上并行执行，由调用方归并结果。
+ * 配置：redis.shards=host1:port1,host2:port2 (redis.embedded=true时为进程内服务的数量)，redis.partitions=16
+ */
+public class ShardedRedis implements Closeable {
+    private final List<RedisConnectionProvider> shards;
+    private final ConsistentHashRing ring;
+    private final int partitions;
+    //每个节点上的分区
+    private final List<List<Integer>> shardPartitions = new ArrayList<List<Integer>>();
+    private final int[] partitionShards;
+    private final ExecutorService scatterExecutor;
+
+    /**
+     * @param names 节点名，决定节点在哈希环上的位置
+     * @param shards 与names一一对应的连接提供者，close()时一并关闭
+     * @param partitions 逻辑分区数
+     */
+    public ShardedRedis(List<String> names, List<RedisConnectionProvider> shards, int partitions) {
+        this.shards = Collections.unmodifiableList(new ArrayList<RedisConnectionProvider>(shards));
+        this.ring = new ConsistentHashRing(names);
+        this.partitions = partitions;
+        this.partitionShards = new int[partitions];
+        for (int i = 0; i < shards.size(); i++) {
+            shardPartitions.add(new ArrayList<Integer>());
+        }
+        for (int p = 0; p < partitions; p++) {
+            partitionShards[p] = ring.nodeFor(tag(p));
+            shardPartitions.get(partitionShards[p]).add(p);
+        }
+        this.scatterExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shard-scatter-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static ShardedRedis fromSystemProperties() {
+        return create(RedisConfig.fromSystemProperties());
+    }
+
+    /**
+     * 按配置创建：embedded时启动redis.shards个进程内服务，否则连接redis.shards列出的节点，
+     * 各节点使用配置中的数据库、连接池与超时设置
+     * @param config
+     * @return
+     */
+    public static ShardedRedis create(RedisConfig config) {
+        List<String> names = new ArrayList<String>();
+        List<RedisConnectionProvider> shards = new ArrayList<RedisConnectionProvider>();
+        String spec = config.getShards() != null ? config.getShards() : config.isEmbedded() ? "1"
+                : config.getHost() + ":" + config.getPort();
+        if (config.isEmbedded()) {
+            int count = Integer.parseInt(spec.trim());
+            for (int i = 0; i < count; i++) {
+                names.add("embedded-" + i);
+                shards.add(new EmbeddedConnectionProvider(config));
+            }
+        } else {
+            for (String node : spec.split(",")) {
+                node = node.trim();
+                int colon = node.lastIndexOf(':');
+                names.add(node);
+                shards.add(new PooledConnectionProvider(new RedisConfig()
+                        .setHost(node.substring(0, colon))
+                        .setPort(Integer.parseInt(node.substring(colon + 1)))
+                        .setDatabase(config.getDatabase())
+                        .setPoolSize(config.getPoolSize())
+                        .setTimeout(config.getTimeout())
+                        .setMaxWaitMillis(config.getMaxWaitMillis())
+                        .setMetrics(config.isMetrics())));
+            }
+        }
+        return new ShardedRedis(names, shards, config.getPartitions());
+    }
+
+    //分区p的hash tag
+    public static String tag(int partition) {
+        return "{p" + partition + "}";
+    }
+
+    //分区p中的键，如key(3, "score:")为{p3}score:
+    public static String key(int partition, String key) {
+        return tag(partition) + key;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * 字符串id(如会话令牌)所属的分区
+     * @param id
+     * @return
+     */
+    public int partitionOf(String id) {
+        return (int) ((Hashing.MURMUR_HASH.hash(id) & Long.MAX_VALUE) % partitions);
+    }
+
+    public RedisConnectionProvider shard(int partition) {
+        return shards.get(partitionShards[partition]);
+    }
+
+    /**
+     * 在分区所在节点上执行
+     * @param partition
+     * @param callback
+     * @return
+     */
+    public <T> T execute(int partition, RedisCallback<T> callback) {
+        return shard(partition).execute(callback);
+    }
+
+    /**
+     * 在键所在节点上执行，用于没有分区前缀的独立键(如cache:、inv:)
+     * @param key
+     * @param callback
+     * @return
+     */
+    public <T> T execute(String key, RedisCallback<T> callback) {
+        return shards.get(ring.nodeFor(key)).execute(callback);
+    }
+
+    /**
+     * 在每个节点上并行执行一次，回调收到该节点上的分区，返回各节点的结果(按节点顺序)
+     * @param callback
+     * @return
+     */
+    public <T> List<T> scatter(final ShardCallback<T> callback) {
+        List<Future<T>> futures = new ArrayList<Future<T>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            final RedisConnectionProvider shard = shards.get(i);
+            final List<Integer> owned = Collections.unmodifiableList(shardPartitions.get(i));
+            futures.add(scatterExecutor.submit(new Callable<T>() {
+                public T call() {
+                    return shard.execute(new RedisCallback<T>() {
+                        public T doInRedis(Jedis conn) {
+                            return callback.doInShard(conn, owned);
+                        }
+                    });
+                }
+            }));
+        }
+        List<T> results = new ArrayList<T>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for shards", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+        return results;
+    }
+
+    public List<RedisConnectionProvider> getShards() {
+        return shards;
+    }
+
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+
+    public void close() {
+        scatterExecutor.shutdown();
+        for (RedisConnectionProvider shard : shards) {
+            shard.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < shards.size(); i++) {
+            builder.append(i == 0 ? "" : ", ").append(ring.getNodes().get(i))
+                    .append('=').append(shardPartitions.get(i).size()).append(" partitions");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 在一个节点上执行的回调
+     */
+    public interface ShardCallback<T> {
+        /**
+         * @param conn 节点的连接
+         * @param partitions 该节点上的分区，可能为空
+         * @return
+         */
+        T doInShard(Jedis conn, List<Integer> partitions);
+    }
+}
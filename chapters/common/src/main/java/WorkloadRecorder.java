@@ -0,0 +1,102 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisMonitor;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 通过MONITOR记录Redis(或EmbeddedRedisServer)收到的命令流，每行一条，格式与redis-cli monitor的输出相同，
+ * 可以直接用redis-cli monitor在生产环境抓取，再由WorkloadReplayer回放。
+ * MONITOR会明显降低Redis的吞吐量，只应短时间开启。
+ */
+public class WorkloadRecorder
+        extends Thread
+{
+    private final String host;
+    private final int port;
+    private final Writer out;
+    private final AtomicLong recorded = new AtomicLong();
+    private volatile Jedis conn;
+    private volatile boolean quit;
+    //记录意外中断的原因，quit()结束的为null
+    private volatile String failure;
+
+    public WorkloadRecorder(String host, int port, Writer out) {
+        this.host = host;
+        this.port = port;
+        this.out = out;
+        setName("workload-recorder");
+        setDaemon(true);
+    }
+
+    /**
+     * 用法：WorkloadRecorder 输出文件 记录秒数，连接配置见RedisConfig
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        RedisConfig config = RedisConfig.fromSystemProperties();
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[0]), "UTF-8"));
+        try {
+            WorkloadRecorder recorder = new WorkloadRecorder(config.getHost(), config.getPort(), out);
+            recorder.start();
+            Thread.sleep(Long.parseLong(args.length > 1 ? args[1] : "60") * 1000);
+            recorder.quit();
+            recorder.join();
+            System.out.println("Recorded " + recorder.getRecorded() + " commands to " + args[0]);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void quit() {
+        quit = true;
+        Jedis current = conn;
+        if (current != null) {
+            //关闭连接使MONITOR的读取结束
+            current.disconnect();
+        }
+    }
+
+    public void run() {
+        //MONITOR连接不能超时，也不能归还连接池
+        conn = new Jedis(host, port, 0);
+        try {
+            conn.monitor(new JedisMonitor() {
+                public void onCommand(String command) {
+                    try {
+                        out.write(command);
+                        out.write('\n');
+                        recorded.incrementAndGet();
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException("Cannot write recorded command", ioe);
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            if (!quit) {
+                failure = re.toString();
+            }
+        } finally {
+            conn.close();
+            try {
+                out.flush();
+            } catch (IOException ioe) {
+                //忽略
+            }
+        }
+    }
+
+    //已记录的命令数
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    //记录意外中断的原因，没有中断时为null
+    public String getFailure() {
+        return failure;
+    }
+}
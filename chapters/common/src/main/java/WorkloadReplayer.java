@@ -0,0 +1,318 @@
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.commands.ProtocolCommand;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按N倍速回放WorkloadRecorder(或redis-cli monitor)记录的命令流，测量目标的吞吐量
+ * 命令按原客户端分配到connections个连接上，同一客户端的命令保持原来的顺序；
+ * 每条命令在 开始时间 + 原时间间隔 / speed 时发送，speed为0时不等待，尽快回放。
+ * 所有命令回放到提供者配置的数据库，不回放SELECT、事务、订阅与连接管理命令(MULTI中的命令逐条回放)，
+ * 也不回放Lua脚本内部执行的命令(客户端为lua的行)。
+ */
+public class WorkloadReplayer {
+    private static final Set<String> SKIPPED = new HashSet<String>(Arrays.asList(
+            "SELECT", "MULTI", "EXEC", "DISCARD", "WATCH", "UNWATCH", "SUBSCRIBE", "UNSUBSCRIBE",
+            "PSUBSCRIBE", "PUNSUBSCRIBE", "MONITOR", "QUIT", "AUTH", "CLIENT"));
+
+    private final RedisConnectionProvider provider;
+    private final int connections;
+    private final double speed;
+
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile long elapsedMillis;
+    private volatile long maxLagMillis;
+
+    public WorkloadReplayer(RedisConnectionProvider provider, int connections, double speed) {
+        this.provider = provider;
+        this.connections = connections;
+        this.speed = speed;
+    }
+
+    /**
+     * 用法：WorkloadReplayer 记录文件 [倍速] [连接数]，连接配置见RedisConfig
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        List<RecordedCommand> commands;
+        Reader reader = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+        try {
+            commands = parse(reader);
+        } finally {
+            reader.close();
+        }
+
+        RedisConfig config = RedisConfig.fromSystemProperties();
+        config.setPoolSize(Math.max(config.getPoolSize(), connections));
+        RedisConnectionProvider provider = ConnectionProviders.create(config);
+        try {
+            WorkloadReplayer replayer = new WorkloadReplayer(provider, connections, speed);
+            replayer.replay(commands);
+            System.out.println(replayer);
+        } finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * 读取MONITOR格式的命令流，忽略无法解析的行(如MONITOR开头的OK)
+     * @param reader
+     * @return
+     */
+    public static List<RecordedCommand> parse(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<RecordedCommand> commands = new ArrayList<RecordedCommand>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            RecordedCommand command = parseLine(line);
+            if (command != null) {
+                commands.add(command);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * 解析一行：1339518083.107412 [0 127.0.0.1:60866] "set" "key" "value"
+     * @param line
+     * @return 无法解析时为null
+     */
+    public static RecordedCommand parseLine(String line) {
+        int space = line.indexOf(' ');
+        int open = line.indexOf('[');
+        int close = line.indexOf(']', open + 1);
+        if (space <= 0 || open != space + 1 || close < 0) {
+            return null;
+        }
+        long micros;
+        try {
+            String timestamp = line.substring(0, space);
+            int dot = timestamp.indexOf('.');
+            micros = dot < 0 ? Long.parseLong(timestamp) * 1000000
+                    : Long.parseLong(timestamp.substring(0, dot)) * 1000000
+                    + Long.parseLong((timestamp.substring(dot + 1) + "000000").substring(0, 6));
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        String source = line.substring(open + 1, close);
+        String client = source.substring(source.indexOf(' ') + 1);
+
+        List<byte[]> args = new ArrayList<byte[]>();
+        int i = close + 1;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == ' ') {
+                i++;
+                continue;
+            }
+            if (c != '"') {
+                return null;
+            }
+            ByteArrayOutputStream arg = new ByteArrayOutputStream();
+            i++;
+            while (i < line.length() && line.charAt(i) != '"') {
+                c = line.charAt(i++);
+                if (c != '\\' || i >= line.length()) {
+                    arg.write(c);
+                    continue;
+                }
+                c = line.charAt(i++);
+                switch (c) {
+                    case 'n':
+                        arg.write('\n');
+                        break;
+                    case 'r':
+                        arg.write('\r');
+                        break;
+                    case 't':
+                        arg.write('\t');
+                        break;
+                    case 'a':
+                        arg.write(7);
+                        break;
+                    case 'b':
+                        arg.write('\b');
+                        break;
+                    case 'x':
+                        arg.write(Integer.parseInt(line.substring(i, i + 2), 16));
+                        i += 2;
+                        break;
+                    default:
+                        arg.write(c);
+                }
+            }
+            //跳过结尾的引号
+            i++;
+            args.add(arg.toByteArray());
+        }
+        if (args.isEmpty()) {
+            return null;
+        }
+        return new RecordedCommand(micros, client, args.toArray(new byte[args.size()][]));
+    }
+
+    /**
+     * 回放命令，所有命令回放完毕后返回
+     * @param commands
+     */
+    public void replay(List<RecordedCommand> commands) throws InterruptedException {
+        if (commands.isEmpty()) {
+            return;
+        }
+        //按客户端分配连接，同一客户端的命令在同一个线程中按顺序回放
+        List<List<RecordedCommand>> queues = new ArrayList<List<RecordedCommand>>(connections);
+        for (int i = 0; i < connections; i++) {
+            queues.add(new ArrayList<RecordedCommand>());
+        }
+        for (RecordedCommand command : commands) {
+            if ("lua".equals(command.client)) {
+                continue;
+            }
+            if (SKIPPED.contains(command.getName())) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            queues.get((command.client.hashCode() & 0x7fffffff) % connections).add(command);
+        }
+
+        final long firstMicros = commands.get(0).micros;
+        final long startNanos = System.nanoTime();
+        List<Thread> threads = new ArrayList<Thread>(connections);
+        for (int i = 0; i < connections; i++) {
+            final List<RecordedCommand> queue = queues.get(i);
+            if (queue.isEmpty()) {
+                continue;
+            }
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    replay(queue, firstMicros, startNanos);
+                }
+            }, "workload-replayer-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    private void replay(List<RecordedCommand> queue, long firstMicros, long startNanos) {
+        Jedis conn = provider.getConnection();
+        try {
+            Client client = conn.getClient();
+            long maxLag = 0;
+            for (RecordedCommand command : queue) {
+                if (speed > 0) {
+                    long due = startNanos + (long) ((command.micros - firstMicros) * 1000 / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } else {
+                        maxLag = Math.max(maxLag, -wait / 1000000);
+                    }
+                }
+                client.sendCommand(command, Arrays.copyOfRange(command.args, 1, command.args.length));
+                try {
+                    client.getOne();
+                } catch (JedisDataException jde) {
+                    errors.incrementAndGet();
+                }
+                replayed.incrementAndGet();
+            }
+            synchronized (this) {
+                maxLagMillis = Math.max(maxLagMillis, maxLag);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            conn.close();
+        }
+    }
+
+    //已回放的命令数
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    //回放时返回错误的命令数
+    public long getErrors() {
+        return errors.get();
+    }
+
+    //未回放的连接管理、事务与订阅命令数
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getCommandsPerSecond() {
+        return elapsedMillis == 0 ? 0 : replayed.get() * 1000.0 / elapsedMillis;
+    }
+
+    //命令实际发送时间比计划晚的最大毫秒数，持续增长说明目标跟不上回放速度
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("replayed=%d, errors=%d, skipped=%d, elapsed=%dms, commands/s=%.0f, maxLag=%dms",
+                replayed.get(), errors.get(), skipped.get(), elapsedMillis, getCommandsPerSecond(), maxLagMillis);
+    }
+
+    /**
+     * 记录的一条命令，同时作为发送时的命令名
+     */
+    public static class RecordedCommand
+            implements ProtocolCommand
+    {
+        private final long micros;
+        private final String client;
+        private final byte[][] args;
+
+        RecordedCommand(long micros, String client, byte[][] args) {
+            this.micros = micros;
+            this.client = client;
+            this.args = args;
+        }
+
+        public byte[] getRaw() {
+            return args[0];
+        }
+
+        //记录时间(微秒)
+        public long getMicros() {
+            return micros;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public String getName() {
+            return new String(args[0], EmbeddedDatabase.LATIN1).toUpperCase();
+        }
+    }
+}
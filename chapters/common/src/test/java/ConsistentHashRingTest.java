@@ -0,0 +1,87 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+    private static final List<String> NODES = Arrays.asList("redis-a:6379", "redis-b:6379", "redis-c:6379");
+
+    @Test
+    public void hashTag() {
+        assertEquals("user1000", ConsistentHashRing.hashTag("{user1000}.following"));
+        assertEquals("user1000", ConsistentHashRing.hashTag("foo{user1000}bar"));
+        //只使用第一个'{'与其后第一个'}'
+        assertEquals("bar", ConsistentHashRing.hashTag("foo{bar}{zap}"));
+        assertEquals("bar{zap", ConsistentHashRing.hashTag("foo{bar{zap}"));
+        //标签为空或不完整时使用整个键
+        assertEquals("foo{}{bar}", ConsistentHashRing.hashTag("foo{}{bar}"));
+        assertEquals("foo{bar", ConsistentHashRing.hashTag("foo{bar"));
+        assertEquals("foo}bar{", ConsistentHashRing.hashTag("foo}bar{"));
+        assertEquals("viewed:", ConsistentHashRing.hashTag("viewed:"));
+    }
+
+    @Test
+    public void sameTagSameNode() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES);
+        for (int i = 0; i < 100; i++) {
+            String tag = "{token" + i + "}";
+            assertEquals(ring.nodeFor(tag + "viewed:"), ring.nodeFor("cart:" + tag));
+        }
+    }
+
+    @Test
+    public void nodeOrderDoesNotMatter() {
+        List<String> reversed = new ArrayList<String>(NODES);
+        Collections.reverse(reversed);
+        ConsistentHashRing ring = new ConsistentHashRing(NODES);
+        ConsistentHashRing other = new ConsistentHashRing(reversed);
+        for (int i = 0; i < 1000; i++) {
+            String key = "article:" + i;
+            assertEquals(ring.getNodes().get(ring.nodeFor(key)), other.getNodes().get(other.nodeFor(key)));
+        }
+    }
+
+    @Test
+    public void addingNodeMovesAboutOneShare() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES);
+        List<String> grown = new ArrayList<String>(NODES);
+        grown.add("redis-d:6379");
+        ConsistentHashRing bigger = new ConsistentHashRing(grown);
+
+        int keys = 10000;
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String key = "article:" + i;
+            String before = ring.getNodes().get(ring.nodeFor(key));
+            String after = bigger.getNodes().get(bigger.nodeFor(key));
+            if (!before.equals(after)) {
+                //只会移到新节点
+                assertEquals("redis-d:6379", after);
+                moved++;
+            }
+        }
+        //理想情况下移动1/4
+        assertTrue("moved=" + moved, moved > keys * 0.15 && moved < keys * 0.35);
+    }
+
+    @Test
+    public void ownership() {
+        double[] ownership = new ConsistentHashRing(NODES).getOwnership();
+        double total = 0;
+        for (double share : ownership) {
+            assertTrue("share=" + share, share > 0.25 && share < 0.42);
+            total += share;
+        }
+        assertEquals(1.0, total, 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresNodes() {
+        new ConsistentHashRing(Collections.<String>emptyList());
+    }
+}
@@ -0,0 +1,290 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.ZParams;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.params.ZAddParams;
+import redis.clients.jedis.params.ZIncrByParams;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 数据命令的回复与真实Redis相同，期望值取自Redis命令文档
+ */
+public class EmbeddedDatabaseTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void strings() {
+        assertNull(conn.get("missing"));
+        assertEquals("OK", conn.set("key", "value"));
+        //NX/XX不满足时为空回复
+        assertNull(conn.set("key", "other", SetParams.setParams().nx()));
+        assertNull(conn.set("absent", "other", SetParams.setParams().xx()));
+        assertEquals("OK", conn.set("key", "other", SetParams.setParams().xx()));
+        assertEquals("other", conn.getSet("key", "third"));
+        assertEquals(Arrays.asList("third", null), conn.mget("key", "missing"));
+        assertEquals(7, (long) conn.append("key", "-x"));
+        assertEquals(7, (long) conn.strlen("key"));
+        assertEquals(0, (long) conn.strlen("missing"));
+        assertEquals(0, (long) conn.setnx("key", "v"));
+        assertEquals(1, (long) conn.setnx("new", "v"));
+    }
+
+    @Test
+    public void counters() {
+        assertEquals(1, (long) conn.incr("counter"));
+        assertEquals(11, (long) conn.incrBy("counter", 10));
+        assertEquals(10, (long) conn.decr("counter"));
+        assertEquals(-5, (long) conn.decrBy("counter", 15));
+        conn.set("text", "abc");
+        try {
+            conn.incr("text");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertEquals("ERR value is not an integer or out of range", jde.getMessage());
+        }
+        conn.set("max", String.valueOf(Long.MAX_VALUE));
+        try {
+            conn.incr("max");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertEquals("ERR increment or decrement would overflow", jde.getMessage());
+        }
+    }
+
+    @Test
+    public void wrongType() {
+        conn.sadd("set", "member");
+        try {
+            conn.get("set");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertEquals("WRONGTYPE Operation against a key holding the wrong kind of value", jde.getMessage());
+        }
+        try {
+            conn.zadd("set", 1, "member");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage().startsWith("WRONGTYPE"));
+        }
+        //MGET对其他类型返回空回复而不是错误
+        assertEquals(Collections.<String>singletonList(null), conn.mget("set"));
+        assertEquals("set", conn.type("set"));
+        assertEquals("none", conn.type("missing"));
+    }
+
+    @Test
+    public void keysAndExpiry() {
+        conn.set("a", "1");
+        conn.set("b", "2");
+        assertEquals(2, (long) conn.exists("a", "b", "missing"));
+        //同一个key出现多次时计数多次
+        assertEquals(2, (long) conn.exists("a", "a"));
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), conn.keys("?"));
+
+        //不存在为-2，没有过期时间为-1
+        assertEquals(-2, (long) conn.ttl("missing"));
+        assertEquals(-1, (long) conn.ttl("a"));
+        assertEquals(1, (long) conn.expire("a", 100));
+        assertEquals(0, (long) conn.expire("missing", 100));
+        assertTrue(conn.ttl("a") > 98);
+        assertTrue(conn.pttl("a") > 98000);
+        assertEquals(1, (long) conn.persist("a"));
+        assertEquals(-1, (long) conn.ttl("a"));
+        //SET覆盖过期时间
+        conn.setex("a", 100, "1");
+        conn.set("a", "1");
+        assertEquals(-1, (long) conn.ttl("a"));
+        //过去的时间立即删除
+        conn.expireAt("b", 1);
+        assertFalse(conn.exists("b"));
+        assertEquals(1, (long) conn.del("a", "missing"));
+        assertEquals(0, (long) conn.dbSize());
+    }
+
+    @Test
+    public void expiredKeysAreGone() throws InterruptedException {
+        conn.psetex("short", 20L, "value");
+        conn.sadd("members", "a");
+        conn.pexpire("members", 20);
+        Thread.sleep(50);
+        assertNull(conn.get("short"));
+        assertFalse(conn.exists("members"));
+        assertEquals(-2, (long) conn.ttl("short"));
+        //过期的key可以重新写入任何类型
+        conn.zadd("short", 1, "member");
+        assertEquals("zset", conn.type("short"));
+    }
+
+    @Test
+    public void hashes() {
+        assertEquals(1, (long) conn.hset("hash", "a", "1"));
+        assertEquals(0, (long) conn.hset("hash", "a", "2"));
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("b", "3");
+        fields.put("c", "4");
+        assertEquals(2, (long) conn.hset("hash", fields));
+        assertEquals(0, (long) conn.hsetnx("hash", "a", "x"));
+        assertEquals(Arrays.asList("2", null), conn.hmget("hash", "a", "missing"));
+        assertEquals(13, (long) conn.hincrBy("hash", "c", 9));
+        assertEquals(3, (long) conn.hlen("hash"));
+        assertTrue(conn.hexists("hash", "b"));
+        assertEquals(2, (long) conn.hdel("hash", "a", "b", "missing"));
+        assertEquals(Collections.singletonMap("c", "13"), conn.hgetAll("hash"));
+        assertEquals(Collections.emptyMap(), conn.hgetAll("missing"));
+        //最后一个字段删除后key也删除
+        conn.hdel("hash", "c");
+        assertFalse(conn.exists("hash"));
+    }
+
+    @Test
+    public void sets() {
+        assertEquals(2, (long) conn.sadd("set", "a", "b", "a"));
+        assertEquals(0, (long) conn.sadd("set", "b"));
+        assertTrue(conn.sismember("set", "a"));
+        assertFalse(conn.sismember("missing", "a"));
+        assertEquals(2, (long) conn.scard("set"));
+        assertEquals(1, (long) conn.srem("set", "a", "missing"));
+        assertEquals(Collections.singleton("b"), conn.smembers("set"));
+        conn.srem("set", "b");
+        assertFalse(conn.exists("set"));
+    }
+
+    @Test
+    public void sortedSets() {
+        assertEquals(3, (long) conn.zadd("zset", scores("a", 1, "b", 2, "c", 2)));
+        assertEquals(0, (long) conn.zadd("zset", 5, "a"));
+        //XX只更新已有成员，NX只加入新成员
+        assertEquals(0, (long) conn.zadd("zset", 9, "d", ZAddParams.zAddParams().xx()));
+        assertNull(conn.zscore("zset", "d"));
+        assertEquals(0, (long) conn.zadd("zset", 9, "a", ZAddParams.zAddParams().nx()));
+        assertEquals(5.0, conn.zscore("zset", "a"), 0);
+        //ZADD XX INCR对不存在的成员为空回复
+        assertNull(conn.zincrby("zset", 1, "d", ZIncrByParams.zIncrByParams().xx()));
+        assertEquals(6.0, conn.zincrby("zset", 1, "a", ZIncrByParams.zIncrByParams().xx()), 0);
+        assertEquals(1.5, conn.zincrby("new", 1.5, "x"), 0);
+
+        //分值相同按成员的字典序排列，ZREVRANGE反过来
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("b", "c", "a")), conn.zrange("zset", 0, -1));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("a", "c", "b")), conn.zrevrange("zset", 0, -1));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("c", "a")), conn.zrange("zset", -2, 100));
+        assertEquals(Collections.emptySet(), conn.zrange("zset", 5, 10));
+        assertEquals(new LinkedHashSet<Tuple>(Arrays.asList(new Tuple("a", 6.0))), conn.zrevrangeWithScores("zset", 0, 0));
+        assertEquals(1, (long) conn.zrank("zset", "c"));
+        assertEquals(0, (long) conn.zrevrank("zset", "a"));
+        assertNull(conn.zrank("zset", "missing"));
+        assertEquals(3, (long) conn.zcard("zset"));
+        assertEquals(2, (long) conn.zcount("zset", 2, 2));
+    }
+
+    @Test
+    public void scoreRanges() {
+        conn.zadd("zset", scores("a", 1, "b", 2, "c", 3, "d", 4));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("b", "c")), conn.zrangeByScore("zset", "(1", "3"));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("a", "b", "c", "d")), conn.zrangeByScore("zset", "-inf", "+inf"));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("c", "b")), conn.zrevrangeByScore("zset", "+inf", "-inf", 1, 2));
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("d", "c")), conn.zrevrangeByScore("zset", "4", "(2"));
+        try {
+            conn.zrangeByScore("zset", "x", "1");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertEquals("ERR min or max is not a float", jde.getMessage());
+        }
+
+        assertEquals(1, (long) conn.zremrangeByRank("zset", -1, -1));
+        assertEquals(2, (long) conn.zremrangeByScore("zset", "-inf", "(3"));
+        assertEquals(Collections.singleton("c"), conn.zrange("zset", 0, -1));
+        assertEquals(1, (long) conn.zrem("zset", "c", "missing"));
+        assertFalse(conn.exists("zset"));
+    }
+
+    @Test
+    public void storeOperations() {
+        conn.zadd("z1", scores("a", 1, "b", 2, "c", 3));
+        conn.zadd("z2", scores("b", 10, "c", 20, "d", 30));
+        //集合的成员分值为1
+        conn.sadd("s", "a", "b");
+
+        assertEquals(2, (long) conn.zinterstore("sum", "z1", "z2"));
+        assertEquals(12.0, conn.zscore("sum", "b"), 0);
+        assertEquals(2, (long) conn.zinterstore("max", new ZParams().aggregate(ZParams.Aggregate.MAX), "z1", "z2"));
+        assertEquals(20.0, conn.zscore("max", "c"), 0);
+        assertEquals(2, (long) conn.zinterstore("weighted", new ZParams().weights(0, 2), "s", "z1"));
+        assertEquals(2.0, conn.zscore("weighted", "a"), 0);
+        assertEquals(4.0, conn.zscore("weighted", "b"), 0);
+        assertEquals(4, (long) conn.zunionstore("union", new ZParams().aggregate(ZParams.Aggregate.MIN), "z1", "z2"));
+        assertEquals(2.0, conn.zscore("union", "b"), 0);
+        assertEquals(30.0, conn.zscore("union", "d"), 0);
+
+        //没有交集时删除目标key；不存在的输入视为空集合
+        conn.set("empty", "x");
+        assertEquals(0, (long) conn.zinterstore("empty", "z1", "missing"));
+        assertFalse(conn.exists("empty"));
+        //目标key可以是输入之一
+        assertEquals(2, (long) conn.zinterstore("z1", "z1", "s"));
+        assertEquals(2.0, conn.zscore("z1", "a"), 0);
+    }
+
+    @Test
+    public void bits() {
+        assertFalse(conn.setbit("bits", 7, true));
+        assertTrue(conn.setbit("bits", 7, true));
+        //偏移量0是第一个字节的最高位
+        assertEquals("\u0001", conn.get("bits"));
+        conn.setbit("bits", 0, true);
+        assertEquals(2, (long) conn.bitcount("bits"));
+        assertTrue(conn.getbit("bits", 0));
+        assertFalse(conn.getbit("bits", 1000));
+        assertEquals(1, (long) conn.strlen("bits"));
+        conn.setbit("bits", 15, false);
+        assertEquals(2, (long) conn.strlen("bits"));
+    }
+
+    @Test
+    public void databasesAreSeparate() {
+        //连接默认使用RedisConfig的数据库15
+        conn.set("key", "db15");
+        conn.select(1);
+        assertNull(conn.get("key"));
+        conn.set("key", "db1");
+        conn.flushDB();
+        conn.select(15);
+        assertEquals("db15", conn.get("key"));
+    }
+
+    private static Map<String, Double> scores(Object... memberScores) {
+        Map<String, Double> scores = new HashMap<String, Double>();
+        for (int i = 0; i < memberScores.length; i += 2) {
+            scores.put((String) memberScores[i], ((Number) memberScores[i + 1]).doubleValue());
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,232 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.commands.ProtocolCommand;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 协议层的行为：回复格式、流水线、事务、发布订阅与连接管理，期望值与真实Redis相同
+ */
+public class EmbeddedRedisServerTest {
+    private EmbeddedRedisServer server;
+    private Jedis conn;
+
+    @Before
+    public void setUp() {
+        server = new EmbeddedRedisServer().start();
+        conn = connect();
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        server.close();
+    }
+
+    @Test
+    public void basicReplies() {
+        assertEquals("PONG", conn.ping());
+        assertEquals("hello", conn.ping("hello"));
+        assertEquals("hello", conn.echo("hello"));
+        assertEquals(2, conn.time().size());
+        try {
+            conn.select(16);
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertEquals("ERR DB index is out of range", jde.getMessage());
+        }
+        try {
+            conn.sendCommand(new RawCommand("NOSUCHCOMMAND"));
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage(), jde.getMessage().startsWith("ERR unknown command"));
+        }
+        try {
+            conn.sendCommand(new RawCommand("GET"));
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertEquals("ERR wrong number of arguments for 'get' command", jde.getMessage());
+        }
+        //错误之后连接仍然可用
+        assertEquals("PONG", conn.ping());
+    }
+
+    @Test
+    public void binarySafeValues() {
+        byte[] all = new byte[256];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (byte) i;
+        }
+        byte[] key = {'k', 0, '\r', '\n', (byte) 0xff};
+        assertEquals("OK", conn.set(key, all));
+        assertArrayEquals(all, conn.get(key));
+        conn.hset("hash".getBytes(), all, all);
+        assertArrayEquals(all, conn.hget("hash".getBytes(), all));
+
+        //大于读缓冲的值
+        byte[] large = new byte[1024 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        conn.set("large".getBytes(), large);
+        assertArrayEquals(large, conn.get("large".getBytes()));
+        conn.set("empty", "");
+        assertEquals("", conn.get("empty"));
+    }
+
+    @Test
+    public void pipelinedRepliesInOrder() {
+        Pipeline pipeline = conn.pipelined();
+        List<Response<Long>> replies = new ArrayList<Response<Long>>();
+        for (int i = 0; i < 10000; i++) {
+            replies.add(pipeline.incr("counter"));
+        }
+        Response<String> missing = pipeline.get("missing");
+        pipeline.sync();
+        for (int i = 0; i < replies.size(); i++) {
+            assertEquals(i + 1, (long) replies.get(i).get());
+        }
+        assertNull(missing.get());
+    }
+
+    @Test
+    public void transactions() {
+        conn.set("string", "value");
+        Transaction trans = conn.multi();
+        trans.incr("counter");
+        //运行时错误只影响这一条命令，其余命令照常执行
+        trans.incr("string");
+        trans.incr("counter");
+        List<Object> results = trans.exec();
+        assertEquals(3, results.size());
+        assertEquals(1L, results.get(0));
+        assertTrue(results.get(1) instanceof JedisDataException);
+        assertEquals(2L, results.get(2));
+
+        trans = conn.multi();
+        trans.set("discarded", "1");
+        assertEquals("OK", trans.discard());
+        assertFalse(conn.exists("discarded"));
+
+        try {
+            conn.sendCommand(new RawCommand("EXEC"));
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertEquals("ERR EXEC without MULTI", jde.getMessage());
+        }
+    }
+
+    @Test
+    public void publishSubscribe() throws InterruptedException {
+        final List<String> messages = new ArrayList<String>();
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(2);
+        final JedisPubSub listener = new JedisPubSub() {
+            @Override
+            public void onSubscribe(String channel, int subscribedChannels) {
+                subscribed.countDown();
+            }
+
+            @Override
+            public void onMessage(String channel, String message) {
+                synchronized (messages) {
+                    messages.add(channel + ":" + message);
+                }
+                received.countDown();
+            }
+        };
+        final Jedis subscriber = connect();
+        Thread thread = new Thread() {
+            public void run() {
+                subscriber.subscribe(listener, "channel1", "channel2");
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+            //订阅两个频道后才会发布到第二个频道，等待两个频道都订阅完成
+            long deadline = System.currentTimeMillis() + 5000;
+            while (listener.getSubscribedChannels() < 2) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            //返回收到消息的订阅者数量
+            assertEquals(1, (long) conn.publish("channel1", "a"));
+            assertEquals(1, (long) conn.publish("channel2", "b"));
+            assertEquals(0, (long) conn.publish("nobody", "c"));
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            synchronized (messages) {
+                assertEquals(Arrays.asList("channel1:a", "channel2:b"), messages);
+            }
+            listener.unsubscribe();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+            //退订之后连接恢复普通命令
+            assertEquals("PONG", subscriber.ping());
+        } finally {
+            subscriber.close();
+        }
+    }
+
+    @Test
+    public void connectionsAndClose() throws InterruptedException {
+        conn.ping();
+        Jedis other = connect();
+        try {
+            other.ping();
+            assertEquals(2, server.getConnections());
+            long commands = server.getCommands();
+            conn.set("key", "value");
+            assertEquals(commands + 1, server.getCommands());
+            server.flushAll();
+            assertNull(conn.get("key"));
+        } finally {
+            other.close();
+        }
+
+        server.close();
+        try {
+            conn.ping();
+            fail("Expected JedisConnectionException");
+        } catch (JedisConnectionException jce) {
+            //服务关闭时断开所有连接
+        }
+    }
+
+    private Jedis connect() {
+        return new Jedis(server.getHost(), server.getPort());
+    }
+
+    /**
+     * Jedis没有对应方法的命令
+     */
+    private static class RawCommand implements ProtocolCommand {
+        private final byte[] raw;
+
+        RawCommand(String name) {
+            this.raw = name.getBytes();
+        }
+
+        public byte[] getRaw() {
+            return raw;
+        }
+    }
+}
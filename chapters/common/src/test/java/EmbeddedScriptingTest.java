@@ -0,0 +1,234 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 期望值是真实Redis(5.x及以上)对同一脚本的回复，见EVAL文档中Lua与Redis类型的转换规则
+ */
+public class EmbeddedScriptingTest {
+    private RedisConnectionProvider provider;
+    private Jedis conn;
+
+    @Before
+    public void setUp() {
+        provider = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        conn = provider.getConnection();
+    }
+
+    @After
+    public void tearDown() {
+        conn.close();
+        provider.close();
+    }
+
+    @Test
+    public void luaToRedisConversion() {
+        //数字取整(向零截断)，true为1，false与nil为空回复
+        assertEquals(3L, eval("return 3.99"));
+        assertEquals(-3L, eval("return -3.5"));
+        assertEquals(1L, eval("return true"));
+        assertNull(eval("return false"));
+        assertNull(eval("return nil"));
+        assertNull(eval("local x = 1"));
+        assertEquals("3.99", eval("return '3.99'"));
+        //数组表转换为多条回复，遇到nil为止
+        assertEquals(Arrays.<Object>asList(1L, 2L, "three"), eval("return {1, 2, 'three'}"));
+        assertEquals(Collections.<Object>singletonList(1L), eval("return {1, nil, 3}"));
+        assertEquals(Arrays.<Object>asList(1L, Arrays.asList("a", "b")), eval("return {1, {'a', 'b'}}"));
+        assertEquals(Collections.emptyList(), eval("return {}"));
+    }
+
+    @Test
+    public void redisToLuaConversion() {
+        conn.set("string", "value");
+        conn.set("counter", "41");
+        conn.hset("hash", "field", "1");
+        //整数回复为数字，批量回复为字符串
+        assertEquals(42L, eval("return redis.call('incr', KEYS[1])", "counter"));
+        assertEquals(43L, eval("return redis.call('incr', KEYS[1]) + 0", "counter"));
+        assertEquals("valuex", eval("return redis.call('get', KEYS[1]) .. 'x'", "string"));
+        //空回复为false而不是nil
+        assertEquals(1L, eval("return redis.call('get', KEYS[1]) == false", "missing"));
+        assertEquals(1L, eval("if not redis.call('get', KEYS[1]) then return 1 end return 0", "missing"));
+        //状态回复为{ok=...}，原样返回给客户端
+        assertEquals("OK", eval("return redis.call('set', KEYS[1], 'v')", "status"));
+        //多条回复为表
+        assertEquals(Arrays.<Object>asList("field", "1"), eval("return redis.call('hgetall', KEYS[1])", "hash"));
+        assertEquals(0L, eval("return #redis.call('smembers', KEYS[1])", "missing"));
+        assertEquals(2L, eval("return #redis.call('hgetall', KEYS[1])", "hash"));
+    }
+
+    @Test
+    public void keysAndArgv() {
+        assertEquals(Arrays.<Object>asList("k1", "k2", "a1"),
+                conn.eval("return {KEYS[1], KEYS[2], ARGV[1]}", 2, "k1", "k2", "a1"));
+        assertEquals(2L, conn.eval("return #KEYS", 2, "k1", "k2", "a1"));
+        assertEquals(1L, conn.eval("return #ARGV", 2, "k1", "k2", "a1"));
+        //超出范围为nil
+        assertNull(conn.eval("return KEYS[3]", 2, "k1", "k2"));
+        //参数总是字符串
+        assertNull(conn.eval("return ARGV[1] == 1", 0, "1"));
+        assertEquals(1L, conn.eval("return tonumber(ARGV[1]) == 1", 0, "1"));
+
+        try {
+            conn.eval("return 1", 2, "k1");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage().contains("Number of keys can't be greater than number of args"));
+        }
+    }
+
+    @Test
+    public void arithmeticAndStrings() {
+        assertEquals(3L, eval("return 7 / 2"));
+        assertEquals(11L, eval("return '10' + 1"));
+        assertEquals(1L, eval("return 7 - 2 * 3"));
+        assertEquals(3L, eval("return (1 + 2) * 1"));
+        assertEquals("a1", eval("return 'a' .. 1"));
+        assertEquals("10", eval("return tostring(10)"));
+        assertEquals("1.5", eval("return tostring(1.5)"));
+        assertEquals(13L, eval("return tonumber('12') + 1"));
+        assertEquals(1L, eval("return tonumber('abc') == nil"));
+        assertEquals(3L, eval("return #'abc'"));
+        assertEquals(1L, eval("return 'a' < 'b'"));
+        assertEquals(1L, eval("return 1 == 1 and 2 > 1"));
+        assertNull(eval("return 1 == 2"));
+        assertEquals("b", eval("return nil or 'b'"));
+        assertNull(eval("return nil and 'b'"));
+    }
+
+    @Test
+    public void controlFlowAndTables() {
+        assertEquals(Arrays.<Object>asList(1L, 4L, 9L),
+                eval("local t = {} for i = 1, 3 do t[i] = i * i end return t"));
+        assertEquals(6L, eval("local sum = 0 for _, v in ipairs({1, 2, 3}) do sum = sum + v end return sum"));
+        assertEquals(Arrays.<Object>asList(1L, 3L),
+                eval("local t = {} for i = 1, 4 do if i % 2 == 1 then t[#t + 1] = i end end return t"));
+        assertEquals("two", eval("local x = 2 if x == 1 then return 'one' elseif x == 2 then return 'two' else return 'other' end"));
+        assertEquals(3L, eval("local t = {1, 2} t[3] = 3 return #t"));
+        //数值for包含上界
+        assertEquals(5L, eval("local n = 0 for i = 1, 5 do n = n + 1 end return n"));
+        assertEquals(0L, eval("local n = 0 for i = 1, 0 do n = n + 1 end return n"));
+    }
+
+    @Test
+    public void callErrors() {
+        conn.set("string", "value");
+        //redis.call的错误终止脚本，返回给客户端
+        try {
+            eval("redis.call('zadd', KEYS[1], 1, 'member') return 1", "string");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage(), jde.getMessage().contains("WRONGTYPE"));
+        }
+        //之前的写入保留，脚本没有回滚
+        try {
+            eval("redis.call('set', KEYS[1], 'written') redis.call('incr', KEYS[1]) return 1", "partial");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage(), jde.getMessage().contains("not an integer"));
+        }
+        assertEquals("written", conn.get("partial"));
+
+        //redis.pcall返回{err=...}，脚本可以继续执行
+        assertEquals("caught", eval("local r = redis.pcall('incr', KEYS[1]) if r.err then return 'caught' end return r", "string"));
+        try {
+            eval("return redis.pcall('incr', KEYS[1])", "string");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage(), jde.getMessage().contains("not an integer"));
+        }
+
+        try {
+            eval("return redis.call('nosuchcommand')");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage(), jde.getMessage().contains("Unknown Redis command called from script"));
+        }
+    }
+
+    @Test
+    public void scriptCache() {
+        //sha1与Redis相同，客户端可以直接使用预先计算的sha1
+        String sha = conn.scriptLoad("return 1");
+        assertEquals("e0e1f9fabfc9d4800c877a703b823ac0578ff8db", sha);
+        assertEquals(1L, conn.evalsha(sha));
+        assertEquals(1L, conn.evalsha(sha.toUpperCase()));
+        assertEquals(Arrays.asList(true, false), conn.scriptExists(sha, "0000000000000000000000000000000000000000"));
+
+        //EVAL同样缓存脚本
+        conn.eval("return 2");
+        assertTrue(conn.scriptExists("7f923f79fe76194c868d7e1d0820de36700eb649"));
+
+        assertEquals("OK", conn.scriptFlush());
+        assertFalse(conn.scriptExists(sha));
+        try {
+            conn.evalsha(sha);
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage(), jde.getMessage().startsWith("NOSCRIPT"));
+        }
+    }
+
+    @Test
+    public void compileErrors() {
+        try {
+            conn.scriptLoad("return (");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage(), jde.getMessage().startsWith("ERR Error compiling script"));
+        }
+        //子集之外的语法在编译时拒绝，不会执行一半
+        try {
+            eval("redis.call('set', KEYS[1], 'v') local function f() return 1 end return f()", "unsupported");
+            fail("Expected JedisDataException");
+        } catch (JedisDataException jde) {
+            assertTrue(jde.getMessage(), jde.getMessage().startsWith("ERR Error compiling script"));
+        }
+        assertFalse(conn.exists("unsupported"));
+    }
+
+    @Test
+    public void scriptsRunAtomically() throws InterruptedException {
+        final String script = "local v = tonumber(redis.call('get', KEYS[1]) or '0') " +
+                "redis.call('set', KEYS[1], v + 1) return v + 1";
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    Jedis other = provider.getConnection();
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            other.eval(script, 1, "counter");
+                        }
+                    } finally {
+                        other.close();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        //读取与写入之间没有其他命令插入
+        assertEquals("400", conn.get("counter"));
+    }
+
+    private Object eval(String script, String... keys) {
+        List<String> keyList = Arrays.asList(keys);
+        return conn.eval(script, keyList, Collections.<String>emptyList());
+    }
+}
@@ -0,0 +1,51 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可以模拟Redis不可用的连接提供者，down时借用连接抛出JedisConnectionException
+ */
+public class FlakyConnectionProvider implements RedisConnectionProvider {
+    private final RedisConnectionProvider delegate;
+    private volatile boolean down;
+    private final AtomicLong refused = new AtomicLong();
+
+    public FlakyConnectionProvider(RedisConnectionProvider delegate) {
+        this.delegate = delegate;
+    }
+
+    public void setDown(boolean down) {
+        this.down = down;
+    }
+
+    //down期间拒绝的借用次数
+    public long getRefused() {
+        return refused.get();
+    }
+
+    public Jedis getConnection() {
+        if (down) {
+            refused.incrementAndGet();
+            throw new JedisConnectionException("Could not get a resource from the pool");
+        }
+        return delegate.getConnection();
+    }
+
+    public <T> T execute(RedisCallback<T> callback) {
+        Jedis conn = getConnection();
+        try {
+            return callback.doInRedis(conn);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public PoolMetrics getMetrics() {
+        return delegate.getMetrics();
+    }
+
+    public void close() {
+        delegate.close();
+    }
+}
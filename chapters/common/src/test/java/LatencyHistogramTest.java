@@ -0,0 +1,71 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (long value = 0; value < 8; value++) {
+            assertEquals(value, LatencyHistogram.bucket(value));
+            assertEquals(value, LatencyHistogram.upperBound((int) value));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        //每个桶的上界属于该桶，上界加一属于下一个桶
+        for (int bucket = 0; bucket < 400; bucket++) {
+            long upper = LatencyHistogram.upperBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucket(upper));
+            assertEquals(bucket + 1, LatencyHistogram.bucket(upper + 1));
+        }
+        int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(last));
+    }
+
+    @Test
+    public void relativeErrorIsBounded() {
+        for (long value = 8; value < 100000000L; value = value * 3 / 2 + 1) {
+            long upper = LatencyHistogram.upperBound(LatencyHistogram.bucket(value));
+            assertTrue(upper >= value);
+            assertTrue("value=" + value + ", upper=" + upper, upper - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMeanNanos());
+        assertEquals(1000000, histogram.getMaxNanos());
+
+        long p50 = histogram.getPercentileNanos(50);
+        assertTrue("p50=" + p50, p50 >= 500000 && p50 <= 500000 * 9 / 8);
+        long p99 = histogram.getPercentileNanos(99);
+        assertTrue("p99=" + p99, p99 >= 990000 && p99 <= 1000000);
+        //上界不超过记录的最大值
+        assertEquals(1000000, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNanos(99));
+        assertEquals(0, histogram.getMeanNanos());
+
+        histogram.record(-5);
+        histogram.record(12345);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentileNanos(50));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getPercentileNanos(99));
+    }
+}
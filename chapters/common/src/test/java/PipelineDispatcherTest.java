@@ -0,0 +1,133 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PipelineDispatcherTest {
+    private RedisConnectionProvider embedded;
+    //down时借用连接失败，模拟Redis不可用
+    private volatile boolean down;
+    private RedisConnectionProvider provider;
+
+    @Before
+    public void setUp() {
+        embedded = ConnectionProviders.create(new RedisConfig().setEmbedded(true));
+        provider = new RedisConnectionProvider() {
+            public Jedis getConnection() {
+                if (down) {
+                    throw new JedisConnectionException("Could not get a resource from the pool");
+                }
+                return embedded.getConnection();
+            }
+
+            public <T> T execute(RedisCallback<T> callback) {
+                return embedded.execute(callback);
+            }
+
+            public PoolMetrics getMetrics() {
+                return embedded.getMetrics();
+            }
+
+            public void close() {
+                embedded.close();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        provider.close();
+    }
+
+    @Test
+    public void batchesOperations() throws Exception {
+        PipelineDispatcher dispatcher = new PipelineDispatcher(provider, 2, 100);
+        try {
+            assertEquals("OK", dispatcher.submit(set("key", "value")).get(5, TimeUnit.SECONDS));
+            assertEquals("value", dispatcher.submit(get("key")).get(5, TimeUnit.SECONDS));
+            assertEquals(2, dispatcher.getSubmitted());
+            assertEquals(0, dispatcher.getFailures());
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void workersSurviveBorrowFailures() throws Exception {
+        down = true;
+        PipelineDispatcher dispatcher = new PipelineDispatcher(provider, 1, 100);
+        try {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    dispatcher.submit(get("key")).get(5, TimeUnit.SECONDS);
+                    fail("Expected JedisConnectionException");
+                } catch (ExecutionException ee) {
+                    assertTrue(String.valueOf(ee.getCause()), ee.getCause() instanceof JedisConnectionException);
+                }
+            }
+            assertEquals(3, dispatcher.getFailures());
+            assertTrue(dispatcher.getLastFailure().contains("Could not get a resource"));
+
+            //恢复后同一个调度线程继续执行
+            down = false;
+            assertEquals("OK", dispatcher.submit(set("key", "value")).get(5, TimeUnit.SECONDS));
+            assertEquals("value", dispatcher.submit(get("key")).get(5, TimeUnit.SECONDS));
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void submitAfterCloseFails() throws Exception {
+        PipelineDispatcher dispatcher = new PipelineDispatcher(provider, 1, 100);
+        dispatcher.close();
+        CompletableFuture<String> result = dispatcher.submit(get("key"));
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Expected IllegalStateException");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static PipelinedOperation<String> get(final String key) {
+        return new PipelinedOperation<String>() {
+            private Response<String> value;
+
+            protected void send(Pipeline pipeline) {
+                value = pipeline.get(key);
+            }
+
+            protected boolean receive() {
+                complete(value.get());
+                return true;
+            }
+        };
+    }
+
+    private static PipelinedOperation<String> set(final String key, final String value) {
+        return new PipelinedOperation<String>() {
+            private Response<String> reply;
+
+            protected void send(Pipeline pipeline) {
+                reply = pipeline.set(key, value);
+            }
+
+            protected boolean receive() {
+                complete(reply.get());
+                return true;
+            }
+        };
+    }
+}